@@ -126,6 +126,8 @@ public class HortonMessages {
     public static final String OMSKRIGING_pA_DESCRIPTION = "The range if the models runs with the gaussian variogram.";
     public static final String OMSKRIGING_pS_DESCRIPTION = "The sill if the models runs with the gaussian variogram.";
     public static final String OMSKRIGING_pNug_DESCRIPTION = "Is the nugget if the models runs with the gaussian variogram.";
+    public static final String OMSKRIGING_pMaxNeighbours_DESCRIPTION = "The maximum number of nearest stations used for the interpolation of each point (0 = all the stations).";
+    public static final String OMSKRIGING_pThreads_DESCRIPTION = "The number of threads to use.";
     public static final String OMSKRIGING_outGrid_DESCRIPTION = "The interpolated gridded data (for mode 2 and 3.";
     public static final String OMSKRIGING_outData_DESCRIPTION = "The interpolated data (for mode 0 and 1).";
 
@@ -173,6 +175,7 @@ public class HortonMessages {
     public static final String OMSPITFILLER_AUTHORNAMES = "David Tarboton, Andrea Antonello";
     public static final String OMSPITFILLER_AUTHORCONTACTS = "http://www.neng.usu.edu/cee/faculty/dtarb/tardem.html#programs, http://www.hydrologis.com";
     public static final String OMSPITFILLER_inElev_DESCRIPTION = "The map of digital elevation model (DEM).";
+    public static final String OMSPITFILLER_doPriorityFlood_DESCRIPTION = "Use the priority-flood engine instead of the pool flooding (same result, faster on large DEMs).";
     public static final String OMSPITFILLER_outPit_DESCRIPTION = "The depitted elevation map.";
 
     public static final String OMSSKYVIEW_DESCRIPTION = "Calculates the skyview factor.";
@@ -186,6 +189,7 @@ public class HortonMessages {
     public static final String OMSSKYVIEW_AUTHORCONTACTS = "http://www.ing.unitn.it/dica/hp/?user=rigon";
     public static final String OMSSKYVIEW_inElev_DESCRIPTION = "The map of the elevation.";
     public static final String OMSSKYVIEW_outSky_DESCRIPTION = "The map of skyview factor.";
+    public static final String OMSSKYVIEW_pHorizonSectors_DESCRIPTION = "If larger than 0, the horizon of the elevation map is precomputed for this number of azimuth sectors (needs 4 bytes per cell and sector) and the shadows are looked up in it, the horizon is shared with the other modules working on the same elevation coverage. If 0 (default), the shadows are traced for every sun position.";
 
     public static final String OMSSHALSTAB_DESCRIPTION = "A version of the OmsShalstab stability model.";
     public static final String OMSSHALSTAB_DOCUMENTATION = "OmsShalstab.html";
@@ -386,6 +390,7 @@ public class HortonMessages {
     public static final String OMSHILLSHADE_pAzimuth_DESCRIPTION = "The value of the azimuth (default is 360).";
     public static final String OMSHILLSHADE_pElev_DESCRIPTION = "The sun elevation (default is 90).";
     public static final String OMSHILLSHADE_outHill_DESCRIPTION = "The map of hillshade.";
+    public static final String OMSHILLSHADE_pHorizonSectors_DESCRIPTION = "If larger than 0, the horizon of the elevation map is precomputed for this number of azimuth sectors (needs 4 bytes per cell and sector) and the shadows are looked up in it, the horizon is shared with the other modules working on the same elevation coverage. If 0 (default), the shadows are traced for every sun position.";
 
     public static final String OMSEPANETPROJECTFILESGENERATOR_DESCRIPTION = "Generates the base shapefiles for an epanet run.";
     public static final String OMSEPANETPROJECTFILESGENERATOR_DOCUMENTATION = "";
@@ -549,6 +554,8 @@ public class HortonMessages {
     public static final String OMSINSOLATION_tStartDate_DESCRIPTION = "The first day of the simulation.";
     public static final String OMSINSOLATION_tEndDate_DESCRIPTION = "The last day of the simulation.";
     public static final String OMSINSOLATION_outIns_DESCRIPTION = "The map of total insolation.";
+    public static final String OMSINSOLATION_pHorizonSectors_DESCRIPTION = "If larger than 0, the horizon of the elevation map is precomputed for this number of azimuth sectors (needs 4 bytes per cell and sector) and the shadows are looked up in it, the horizon is shared with the other modules working on the same elevation coverage. If 0 (default), the shadows are traced for every sun position.";
+    public static final String OMSINSOLATION_pThreads_DESCRIPTION = "The number of threads to use.";
 
     public static final String OMSMELTONNUMBER_DESCRIPTION = "Melton number calculator";
     public static final String OMSMELTONNUMBER_DOCUMENTATION = "";
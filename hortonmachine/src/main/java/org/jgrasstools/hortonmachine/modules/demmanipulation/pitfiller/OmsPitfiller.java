@@ -27,9 +27,12 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_LAB
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_LICENSE;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_STATUS;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_doPriorityFlood_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSPITFILLER_outPit_DESCRIPTION;
 
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
 import java.awt.image.WritableRaster;
 import java.util.HashMap;
 
@@ -65,6 +68,10 @@ public class OmsPitfiller extends JGTModel {
     @In
     public GridCoverage2D inElev;
 
+    @Description(OMSPITFILLER_doPriorityFlood_DESCRIPTION)
+    @In
+    public boolean doPriorityFlood = false;
+
     @Description(OMSPITFILLER_outPit_DESCRIPTION)
     @Out
     public GridCoverage2D outPit = null;
@@ -169,7 +176,11 @@ public class OmsPitfiller extends JGTModel {
             }
         }
 
-        flood();
+        if (doPriorityFlood) {
+            priorityFlood(pitRaster);
+        } else {
+            flood();
+        }
         if (isCanceled(pm)) {
             return;
         }
@@ -179,7 +190,7 @@ public class OmsPitfiller extends JGTModel {
                 return;
             }
             for( int j = 0; j < nCols; j++ ) {
-                if (dir[j][i] == 0) {
+                if (!doPriorityFlood && dir[j][i] == 0) {
                     return;
                 }
                 double value = pitIter.getSampleDouble(j, i, 0);
@@ -193,6 +204,36 @@ public class OmsPitfiller extends JGTModel {
         outPit = CoverageUtilities.buildCoverage("pitfiller", pitRaster, regionMap, inElev.getCoordinateReferenceSystem());
     }
 
+    /**
+     * Fills the pits with the {@link PriorityFloodPitfiller} engine.
+     * 
+     * <p>The engine works directly on the data buffer of the raster when possible,
+     * else on a copy of the data.</p>
+     * 
+     * @param pitRaster the raster to fill.
+     */
+    private void priorityFlood( WritableRaster pitRaster ) {
+        double[] data = null;
+        DataBuffer dataBuffer = pitRaster.getDataBuffer();
+        if (dataBuffer instanceof DataBufferDouble && dataBuffer.getNumBanks() == 1 && pitRaster.getMinX() == 0
+                && pitRaster.getMinY() == 0 && pitRaster.getSampleModel().getWidth() == nCols
+                && dataBuffer.getSize() == nCols * nRows) {
+            data = ((DataBufferDouble) dataBuffer).getData();
+        }
+        boolean isCopy = data == null;
+        if (isCopy) {
+            data = pitRaster.getSamples(0, 0, nCols, nRows, 0, (double[]) null);
+        }
+
+        PriorityFloodPitfiller filler = new PriorityFloodPitfiller(data, nCols, nRows, pm);
+        if (!filler.fill()) {
+            return;
+        }
+        if (isCopy) {
+            pitRaster.setSamples(0, 0, nCols, nRows, 0, data);
+        }
+    }
+
     /**
      * Takes the elevation matrix and calculate a matrix with pits filled, using the flooding
      * algorithm.
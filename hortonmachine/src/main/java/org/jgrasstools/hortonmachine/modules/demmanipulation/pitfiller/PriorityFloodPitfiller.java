@@ -0,0 +1,245 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.modules.demmanipulation.pitfiller;
+
+import java.util.BitSet;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Priority-flood depression filling engine.
+ *
+ * <p>The cells on the border of the region are the outlets. Starting
+ * from them, cells are visited in order of elevation through a min-heap,
+ * so that every cell is reached from its lowest possible spill path. Cells
+ * that are found lower than the cell they are reached from lie in a depression:
+ * they are raised to its spill elevation and handled through a plain FIFO
+ * queue, which avoids the heap cost on flat filled areas (see Barnes et al., 2014,
+ * Priority-Flood: An optimal depression-filling and watershed-labeling
+ * algorithm for digital elevation models).</p>
+ *
+ * <p>Each cell is visited exactly once, the result is the same surface
+ * produced by the pool flooding of {@link OmsPitfiller}: every cell
+ * has a non ascending path to the border and pits are filled flat
+ * to their pour point.</p>
+ *
+ * <p>The elevation is supplied as row major array and filled in place,
+ * cells are handled as primitive int indexes.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PriorityFloodPitfiller {
+
+    private static final int[] DCOL = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DROW = {0, -1, -1, -1, 0, 1, 1, 1};
+
+    private final double[] elevation;
+    private final int cols;
+    private final int rows;
+    private final IJGTProgressMonitor pm;
+
+    // min-heap of cells ordered by elevation
+    private double[] heapValues;
+    private int[] heapCells;
+    private int heapSize = 0;
+
+    // fifo of the cells inside depressions
+    private int[] pitQueue;
+    private int pitHead = 0;
+    private int pitTail = 0;
+    private int pitSize = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param elevation the elevation data in row major order, it is filled in place.
+     * @param cols the number of columns.
+     * @param rows the number of rows.
+     * @param pm the progress monitor, used also to check for cancelation. Can be <code>null</code>.
+     */
+    public PriorityFloodPitfiller( double[] elevation, int cols, int rows, IJGTProgressMonitor pm ) {
+        if (elevation.length < (long) cols * rows) {
+            throw new IllegalArgumentException("The elevation array is smaller than the region.");
+        }
+        this.elevation = elevation;
+        this.cols = cols;
+        this.rows = rows;
+        this.pm = pm;
+    }
+
+    /**
+     * Fill the depressions.
+     *
+     * @return <code>false</code> if the process has been canceled.
+     */
+    public boolean fill() {
+        int cellsNum = cols * rows;
+        BitSet closed = new BitSet(cellsNum);
+
+        int border = Math.max(1, 2 * (cols + rows));
+        heapValues = new double[border];
+        heapCells = new int[border];
+        pitQueue = new int[Math.max(16, border)];
+
+        /*
+         * seed with the region border
+         */
+        for( int c = 0; c < cols; c++ ) {
+            seed(c, closed);
+            if (rows > 1) {
+                seed((rows - 1) * cols + c, closed);
+            }
+        }
+        for( int r = 1; r < rows - 1; r++ ) {
+            seed(r * cols, closed);
+            if (cols > 1) {
+                seed(r * cols + cols - 1, closed);
+            }
+        }
+
+        if (pm != null) {
+            pm.beginTask("Priority-flood filling...", rows);
+        }
+        int processed = 0;
+        int rowWork = Math.max(1, cols);
+        while( heapSize > 0 || pitSize > 0 ) {
+            int cell;
+            if (pitSize > 0) {
+                cell = pitPoll();
+            } else {
+                cell = heapPoll();
+            }
+            double cellElev = elevation[cell];
+            int row = cell / cols;
+            int col = cell - row * cols;
+            for( int k = 0; k < 8; k++ ) {
+                int nCol = col + DCOL[k];
+                int nRow = row + DROW[k];
+                if (nCol < 0 || nRow < 0 || nCol >= cols || nRow >= rows) {
+                    continue;
+                }
+                int neighbour = nRow * cols + nCol;
+                if (closed.get(neighbour)) {
+                    continue;
+                }
+                closed.set(neighbour);
+                if (elevation[neighbour] <= cellElev) {
+                    elevation[neighbour] = cellElev;
+                    pitOffer(neighbour);
+                } else {
+                    heapOffer(neighbour, elevation[neighbour]);
+                }
+            }
+
+            processed++;
+            if (processed % rowWork == 0) {
+                if (pm != null) {
+                    if (pm.isCanceled()) {
+                        return false;
+                    }
+                    pm.worked(1);
+                }
+            }
+        }
+        if (pm != null) {
+            pm.done();
+        }
+        return true;
+    }
+
+    private void seed( int cell, BitSet closed ) {
+        closed.set(cell);
+        heapOffer(cell, elevation[cell]);
+    }
+
+    private void heapOffer( int cell, double value ) {
+        if (heapSize == heapValues.length) {
+            int newSize = heapValues.length * 2;
+            double[] newValues = new double[newSize];
+            int[] newCells = new int[newSize];
+            System.arraycopy(heapValues, 0, newValues, 0, heapSize);
+            System.arraycopy(heapCells, 0, newCells, 0, heapSize);
+            heapValues = newValues;
+            heapCells = newCells;
+        }
+        // sift up
+        int index = heapSize++;
+        while( index > 0 ) {
+            int parent = (index - 1) >>> 1;
+            if (heapValues[parent] <= value) {
+                break;
+            }
+            heapValues[index] = heapValues[parent];
+            heapCells[index] = heapCells[parent];
+            index = parent;
+        }
+        heapValues[index] = value;
+        heapCells[index] = cell;
+    }
+
+    private int heapPoll() {
+        int result = heapCells[0];
+        heapSize--;
+        if (heapSize > 0) {
+            double value = heapValues[heapSize];
+            int cell = heapCells[heapSize];
+            // sift down
+            int index = 0;
+            int half = heapSize >>> 1;
+            while( index < half ) {
+                int child = 2 * index + 1;
+                int right = child + 1;
+                if (right < heapSize && heapValues[right] < heapValues[child]) {
+                    child = right;
+                }
+                if (value <= heapValues[child]) {
+                    break;
+                }
+                heapValues[index] = heapValues[child];
+                heapCells[index] = heapCells[child];
+                index = child;
+            }
+            heapValues[index] = value;
+            heapCells[index] = cell;
+        }
+        return result;
+    }
+
+    private void pitOffer( int cell ) {
+        if (pitSize == pitQueue.length) {
+            int[] newQueue = new int[pitQueue.length * 2];
+            for( int i = 0; i < pitSize; i++ ) {
+                newQueue[i] = pitQueue[(pitHead + i) % pitQueue.length];
+            }
+            pitQueue = newQueue;
+            pitHead = 0;
+            pitTail = pitSize;
+        }
+        pitQueue[pitTail] = cell;
+        pitTail = (pitTail + 1) % pitQueue.length;
+        pitSize++;
+    }
+
+    private int pitPoll() {
+        int cell = pitQueue[pitHead];
+        pitHead = (pitHead + 1) % pitQueue.length;
+        pitSize--;
+        return cell;
+    }
+
+}
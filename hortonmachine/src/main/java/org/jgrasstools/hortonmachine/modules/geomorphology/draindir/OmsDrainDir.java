@@ -36,12 +36,12 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSDRAINDIR_outF
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSDRAINDIR_outTca_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSDRAINDIR_pLambda_DESCRIPTION;
 
+import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.util.HashMap;
 
 import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
 
 import oms3.annotations.Author;
@@ -61,6 +61,7 @@ import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.modules.ModelsSupporter;
 import org.jgrasstools.gears.utils.BitMatrix;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.TiledDataBuffer;
 import org.jgrasstools.gears.utils.sorting.QuickSortAlgorithm;
 import org.jgrasstools.hortonmachine.i18n.HortonMessageHandler;
 
@@ -129,7 +130,6 @@ public class OmsDrainDir extends JGTModel {
             return;
         }
         checkNull(inFlow, inPit);
-        double[] orderedelev, indexes;
         int nelev;
 
         HashMap<String, Double> regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(inPit);
@@ -143,53 +143,86 @@ public class OmsDrainDir extends JGTModel {
         RenderedImage flowRI = inFlow.getRenderedImage();
         WritableRaster flowWR = CoverageUtilities.renderedImage2WritableRaster(flowRI, true);
 
-        RandomIter pitRandomIter = RandomIterFactory.create(pitfillerWR, null);
+        /*
+         * the elevations and the cell indexes are sorted in buffers that
+         * are file based for big rasters, as the rasters themselves
+         */
+        DataBuffer indexes = CoverageUtilities.createCellsBuffer(DataBuffer.TYPE_INT, cols * rows);
+        WritableRaster tcaWR = null;
+        WritableRaster dirWR = null;
+        WritableRaster deviationsWR = null;
+        boolean isDone = false;
+        try {
+            RandomIter pitRandomIter = CoverageUtilities.getRandomIterator(pitfillerWR);
+            DataBuffer orderedelev = CoverageUtilities.createCellsBuffer(DataBuffer.TYPE_DOUBLE, cols * rows);
+            try {
+                nelev = 0;
+                for( int j = 0; j < rows; j++ ) {
+                    if (isCanceled(pm)) {
+                        return;
+                    }
+                    for( int i = 0; i < cols; i++ ) {
+                        double elev = pitRandomIter.getSampleDouble(i, j, 0);
+                        orderedelev.setElemDouble(((j) * cols) + i, elev);
+                        indexes.setElem(((j) * cols) + i, ((j) * cols) + i + 1);
+                        if (!isNovalue(elev)) {
+                            nelev = nelev + 1;
+                        }
+                    }
+                }
 
-        // create new matrix
-        orderedelev = new double[cols * rows];
-        indexes = new double[cols * rows];
+                QuickSortAlgorithm t = new QuickSortAlgorithm(pm);
+                t.sort(orderedelev, indexes, cols * rows);
+            } finally {
+                CoverageUtilities.closeTiledBuffer(orderedelev);
+            }
 
-        nelev = 0;
-        for( int j = 0; j < rows; j++ ) {
+            pm.message(msg.message("draindir.initializematrix"));
+
+            // Initialize new RasterData and set value
+            tcaWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, Double.class, null, NaN);
+            dirWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, Double.class, null, NaN);
+
+            // it contains the analyzed cells
+            deviationsWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
+            BitMatrix analizedMatrix = new BitMatrix(cols, rows);
+
+            if (doLad) {
+                OrlandiniD8_LAD(indexes, deviationsWR, analizedMatrix, pitfillerWR, flowWR, tcaWR, dirWR, nelev);
+            } else {
+                OrlandiniD8_LTD(indexes, deviationsWR, analizedMatrix, pitfillerWR, flowWR, tcaWR, dirWR, nelev);
+                // only if required executes this method
+                if (inFlownet != null) {
+                    newDirections(pitfillerWR, dirWR);
+                }
+            }
             if (isCanceled(pm)) {
                 return;
             }
-            for( int i = 0; i < cols; i++ ) {
-                orderedelev[((j) * cols) + i] = pitRandomIter.getSampleDouble(i, j, 0);
-                indexes[((j) * cols) + i] = ((j) * cols) + i + 1;
-                if (!isNovalue(pitRandomIter.getSampleDouble(i, j, 0))) {
-                    nelev = nelev + 1;
-                }
+            logTilesStatistics(pitfillerWR, flowWR, tcaWR, dirWR, deviationsWR);
+            outFlow = CoverageUtilities.buildCoverage("draindir", dirWR, regionMap, inPit.getCoordinateReferenceSystem());
+            outTca = CoverageUtilities.buildCoverage("tca", tcaWR, regionMap, inPit.getCoordinateReferenceSystem());
+            isDone = true;
+        } finally {
+            // the working rasters are not needed anymore, the outputs only if something went wrong
+            CoverageUtilities.closeTiledBuffer(indexes);
+            CoverageUtilities.closeTiledBuffer(pitfillerWR);
+            CoverageUtilities.closeTiledBuffer(flowWR);
+            CoverageUtilities.closeTiledBuffer(deviationsWR);
+            if (!isDone) {
+                CoverageUtilities.closeTiledBuffer(tcaWR);
+                CoverageUtilities.closeTiledBuffer(dirWR);
             }
         }
+    }
 
-        QuickSortAlgorithm t = new QuickSortAlgorithm(pm);
-        t.sort(orderedelev, indexes);
-
-        pm.message(msg.message("draindir.initializematrix"));
-
-        // Initialize new RasterData and set value
-        WritableRaster tcaWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, Double.class, null, NaN);
-        WritableRaster dirWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, Double.class, null, NaN);
-
-        // it contains the analyzed cells
-        WritableRaster deviationsWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
-        BitMatrix analizedMatrix = new BitMatrix(cols, rows);
-
-        if (doLad) {
-            OrlandiniD8_LAD(indexes, deviationsWR, analizedMatrix, pitfillerWR, flowWR, tcaWR, dirWR, nelev);
-        } else {
-            OrlandiniD8_LTD(indexes, deviationsWR, analizedMatrix, pitfillerWR, flowWR, tcaWR, dirWR, nelev);
-            // only if required executes this method
-            if (inFlownet != null) {
-                newDirections(pitfillerWR, dirWR);
+    private void logTilesStatistics( WritableRaster... rasters ) {
+        for( WritableRaster raster : rasters ) {
+            TiledDataBuffer tiledBuffer = CoverageUtilities.getTiledDataBuffer(raster);
+            if (tiledBuffer != null) {
+                pm.message(tiledBuffer.getCacheStatistics());
             }
         }
-        if (isCanceled(pm)) {
-            return;
-        }
-        outFlow = CoverageUtilities.buildCoverage("draindir", dirWR, regionMap, inPit.getCoordinateReferenceSystem());
-        outTca = CoverageUtilities.buildCoverage("tca", tcaWR, regionMap, inPit.getCoordinateReferenceSystem());
     }
 
     /**
@@ -203,7 +236,7 @@ public class OmsDrainDir extends JGTModel {
      * @param nelev
      * @return
      */
-    private void OrlandiniD8_LAD( double[] indexes, WritableRaster deviationsImage, BitMatrix analizedMatrix,
+    private void OrlandiniD8_LAD( DataBuffer indexes, WritableRaster deviationsImage, BitMatrix analizedMatrix,
             WritableRaster pitImage, WritableRaster flowImage, WritableRaster tcaImage, WritableRaster dirImage, int nelev ) {
         int row, col, ncelle, nr, nc;
         double dev1, dev2, sumdev1, sumdev2, sumdev;
@@ -220,19 +253,19 @@ public class OmsDrainDir extends JGTModel {
         // get rows and cols from the active region
 
         ncelle = 0;
-        RandomIter pitRandomIter = RandomIterFactory.create(pitImage, null);
-        RandomIter flowRandomIter = RandomIterFactory.create(flowImage, null);
+        RandomIter pitRandomIter = CoverageUtilities.getRandomIterator(pitImage);
+        RandomIter flowRandomIter = CoverageUtilities.getRandomIterator(flowImage);
 
-        WritableRandomIter tcaRandomIter = RandomIterFactory.createWritable(tcaImage, null);
-        WritableRandomIter deviationRandomIter = RandomIterFactory.createWritable(deviationsImage, null);
-        WritableRandomIter dirRandomIter = RandomIterFactory.createWritable(dirImage, null);
+        WritableRandomIter tcaRandomIter = CoverageUtilities.getWritableRandomIterator(tcaImage);
+        WritableRandomIter deviationRandomIter = CoverageUtilities.getWritableRandomIterator(deviationsImage);
+        WritableRandomIter dirRandomIter = CoverageUtilities.getWritableRandomIterator(dirImage);
 
         pm.beginTask(msg.message("draindir.orlandinilad"), rows * cols);
         for( int i = rows * cols - 1; i >= 0; i-- ) {
             if (isCanceled(pm)) {
                 return;
             }
-            count = indexes[i] - 1;
+            count = indexes.getElem(i) - 1;
             row = (int) Math.floor(count / cols);
             col = (int) (count % cols);
             if (!isNovalue(pitRandomIter.getSampleDouble(col, row, 0)) && !isNovalue(flowRandomIter.getSampleDouble(col, row, 0))) {
@@ -319,7 +352,7 @@ public class OmsDrainDir extends JGTModel {
      * @param nelev
      * @return
      */
-    private void OrlandiniD8_LTD( double[] indexes, WritableRaster deviationsImage, BitMatrix analizedMatrix,
+    private void OrlandiniD8_LTD( DataBuffer indexes, WritableRaster deviationsImage, BitMatrix analizedMatrix,
             WritableRaster pitImage, WritableRaster flowImage, WritableRaster tcaImage, WritableRaster dirImage, int nelev ) {
 
         int row, col, ncelle, nr, nc;
@@ -335,12 +368,12 @@ public class OmsDrainDir extends JGTModel {
          * it indicates the position of the triangle's vertexes
          */
         ncelle = 0;
-        RandomIter pitRandomIter = RandomIterFactory.create(pitImage, null);
-        RandomIter flowRandomIter = RandomIterFactory.create(flowImage, null);
+        RandomIter pitRandomIter = CoverageUtilities.getRandomIterator(pitImage);
+        RandomIter flowRandomIter = CoverageUtilities.getRandomIterator(flowImage);
 
-        WritableRandomIter tcaRandomIter = RandomIterFactory.createWritable(tcaImage, null);
-        WritableRandomIter deviationRandomIter = RandomIterFactory.createWritable(deviationsImage, null);
-        WritableRandomIter dirRandomIter = RandomIterFactory.createWritable(dirImage, null);
+        WritableRandomIter tcaRandomIter = CoverageUtilities.getWritableRandomIterator(tcaImage);
+        WritableRandomIter deviationRandomIter = CoverageUtilities.getWritableRandomIterator(deviationsImage);
+        WritableRandomIter dirRandomIter = CoverageUtilities.getWritableRandomIterator(dirImage);
         double[] u = {xRes, yRes};
         double[] v = {NaN, NaN};
         dx = u[0];
@@ -354,7 +387,7 @@ public class OmsDrainDir extends JGTModel {
             if (isCanceled(pm)) {
                 return;
             }
-            count = indexes[i] - 1;
+            count = indexes.getElem(i) - 1;
             row = (int) Math.floor(count / cols);
             col = (int) (count % cols);
 
@@ -611,17 +644,17 @@ public class OmsDrainDir extends JGTModel {
                 {0, 0, 9}, {0, 0, 10}};
         double elev = 0.0;
         int[] flow = new int[2], nflow = new int[2];
-        RandomIter pitRandomIter = RandomIterFactory.create(pitWR, null);
+        RandomIter pitRandomIter = CoverageUtilities.getRandomIterator(pitWR);
 
         RenderedImage flowFixedRI = inFlownet.getRenderedImage();
         WritableRaster flowFixedWR = CoverageUtilities.renderedImage2WritableRaster(flowFixedRI, true);
-        RandomIter flowFixedIter = RandomIterFactory.create(flowFixedWR, null);
+        RandomIter flowFixedIter = CoverageUtilities.getRandomIterator(flowFixedWR);
 
-        WritableRandomIter dirRandomIter = RandomIterFactory.createWritable(dirWR, null);
+        WritableRandomIter dirRandomIter = CoverageUtilities.getWritableRandomIterator(dirWR);
 
         WritableRaster modflowImage = CoverageUtilities.createDoubleWritableRaster(pitWR.getWidth(), pitWR.getHeight(), null,
                 null, null);
-        WritableRandomIter modflowRandomIter = RandomIterFactory.createWritable(modflowImage, null);
+        WritableRandomIter modflowRandomIter = CoverageUtilities.getWritableRandomIterator(modflowImage);
 
         pm.beginTask("Correcting drainage directions...", rows);
         for( int j = 0; j < rows; j++ ) {
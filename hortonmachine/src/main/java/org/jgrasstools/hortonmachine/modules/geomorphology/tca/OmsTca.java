@@ -32,11 +32,9 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_inFlow_DE
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_outLoop_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSTCA_outTca_DESCRIPTION;
 
-import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 
 import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
 
 import oms3.annotations.Author;
@@ -53,10 +51,12 @@ import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.jgrasstools.gears.libs.modules.FlowAccumulationEngine;
 import org.jgrasstools.gears.libs.modules.FlowNode;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.coverage.TiledDataBuffer;
 
 @Description(OMSTCA_DESCRIPTION)
 @Documentation(OMSTCA_DOCUMENTATION)
@@ -90,14 +90,68 @@ public class OmsTca extends JGTModel {
         int cols = regionMap.getCols();
         int rows = regionMap.getRows();
 
-        RenderedImage flowRI = inFlow.getRenderedImage();
+        if ((long) cols * rows > CoverageUtilities.getTiledRasterThreshold()) {
+            outTca = calculateTiledTca(regionMap, cols, rows);
+            return;
+        }
+
+        RandomIter flowIter = CoverageUtilities.getRandomIterator(inFlow);
+        FlowAccumulationEngine engine = new FlowAccumulationEngine(flowIter, cols, rows);
+        flowIter.done();
+
+        /*
+         * the tca of a cell is the cell itself plus the tca
+         * of the cells draining into it
+         */
+        final int[] tca = new int[cols * rows];
+        engine.accumulate("Calculating tca...", pm, new FlowAccumulationEngine.CellVisitor(){
+            public void visit( int index, int[] donors, int donorsNum ) {
+                int tcaValue = 1;
+                for( int i = 0; i < donorsNum; i++ ) {
+                    tcaValue += tca[donors[i]];
+                }
+                tca[index] = tcaValue;
+            }
+        });
+        checkCancel();
+
+        WritableRaster tcaWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, doubleNovalue);
+        WritableRandomIter tcaIter = CoverageUtilities.getWritableRandomIterator(tcaWR);
+        int index = 0;
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                if (tca[index] > 0) {
+                    tcaIter.setSample(c, r, 0, tca[index]);
+                }
+                index++;
+            }
+        }
+        tcaIter.done();
+
+        outTca = CoverageUtilities.buildCoverage("tca", tcaWR, regionMap, inFlow.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * Calculates the tca of rasters above the {@link CoverageUtilities#getTiledRasterThreshold() tiled raster threshold}.
+     * 
+     * <p>The {@link FlowAccumulationEngine} keeps the whole drainage topology in heap, so 
+     * here the tca is instead cumulated walking downstream from every source into a file 
+     * based {@link TiledDataBuffer tiled} raster.</p>
+     * 
+     * @param regionMap the region of the flow map.
+     * @param cols the cols of the region.
+     * @param rows the rows of the region.
+     * @return the tca coverage.
+     */
+    private GridCoverage2D calculateTiledTca( RegionMap regionMap, int cols, int rows ) {
         WritableRaster tcaWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, doubleNovalue);
 
-        RandomIter flowIter = RandomIterFactory.create(flowRI, null);
-        WritableRandomIter tcaIter = RandomIterFactory.createWritable(tcaWR, null);
+        RandomIter flowIter = CoverageUtilities.getRandomIterator(inFlow);
+        WritableRandomIter tcaIter = CoverageUtilities.getWritableRandomIterator(tcaWR);
 
         pm.beginTask("Calculating tca...", rows); //$NON-NLS-1$
         for( int r = 0; r < rows; r++ ) {
+            checkCancel();
             for( int c = 0; c < cols; c++ ) {
                 FlowNode flowNode = new FlowNode(flowIter, cols, rows, c, r);
                 if (flowNode.isSource()) {
@@ -129,7 +183,12 @@ public class OmsTca extends JGTModel {
         flowIter.done();
         tcaIter.done();
 
-        outTca = CoverageUtilities.buildCoverage("tca", tcaWR, regionMap, inFlow.getCoordinateReferenceSystem());
+        TiledDataBuffer tiledBuffer = CoverageUtilities.getTiledDataBuffer(tcaWR);
+        if (tiledBuffer != null) {
+            pm.message(tiledBuffer.getCacheStatistics());
+        }
+
+        return CoverageUtilities.buildCoverage("tca", tcaWR, regionMap, inFlow.getCoordinateReferenceSystem());
     }
 
 }
\ No newline at end of file
@@ -120,7 +120,8 @@ public class OmsTca3d extends JGTModel {
 
     }
 
-    private WritableRaster area3d( WritableRaster pitImage, WritableRaster flowImage, WritableRaster tca3dImage ) {
+    private WritableRaster area3d( WritableRaster pitImage, WritableRaster flowImage, WritableRaster tca3dImage )
+            throws Exception {
         int[][] tri = {{0, 0}, {1, 2}, /* tri 012 */
         {3, 2}, /* tri 023 */
         {3, 4}, /* tri 034 |4|3|2| */
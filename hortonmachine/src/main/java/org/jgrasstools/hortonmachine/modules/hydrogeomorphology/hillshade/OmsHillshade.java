@@ -33,6 +33,7 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_inE
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_outHill_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pAzimuth_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pElev_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pHorizonSectors_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pMinDiffuse_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
@@ -57,6 +58,7 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.libs.modules.HorizonAngles;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
@@ -87,6 +89,10 @@ public class OmsHillshade extends JGTModel {
     @In
     public double pElev = 90;
 
+    @Description(OMSHILLSHADE_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
     @Description(OMSHILLSHADE_outHill_DESCRIPTION)
     @Out
     public GridCoverage2D outHill;
@@ -165,8 +171,10 @@ public class OmsHillshade extends JGTModel {
      *            the raster of the gradient value of the dem.
      * @param dx
      *            the resolution of the dem. .
+     * @throws Exception 
      */
-    private void calchillshade( WritableRaster pitWR, WritableRaster hillshadeWR, WritableRaster gradientWR, double dx ) {
+    private void calchillshade( WritableRaster pitWR, WritableRaster hillshadeWR, WritableRaster gradientWR, double dx )
+            throws Exception {
 
         pAzimuth = Math.toRadians(pAzimuth);
         pElev = Math.toRadians(pElev);
@@ -176,7 +184,13 @@ public class OmsHillshade extends JGTModel {
         double[] inverseSunVector = calcInverseSunVector(sunVector);
         int rows = pitWR.getHeight();
         int cols = pitWR.getWidth();
-        WritableRaster sOmbraWR = calculateFactor(rows, cols, sunVector, inverseSunVector, normalSunVector, pitWR, dx);
+        WritableRaster sOmbraWR;
+        if (pHorizonSectors > 0) {
+            HorizonAngles horizon = HorizonAngles.getCached(inElev, pitWR, dx, pHorizonSectors, getDefaultThreadsNum(), pm);
+            sOmbraWR = horizon.calculateFactor(sunVector);
+        } else {
+            sOmbraWR = calculateFactor(rows, cols, sunVector, inverseSunVector, normalSunVector, pitWR, dx);
+        }
         pm.beginTask(msg.message("hillshade.calculating"), rows * cols);
         for( int j = 1; j < rows - 1; j++ ) {
             for( int i = 1; i < cols - 1; i++ ) {
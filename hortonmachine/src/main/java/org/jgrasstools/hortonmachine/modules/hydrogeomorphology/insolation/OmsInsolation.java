@@ -31,13 +31,19 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_NA
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_STATUS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_outIns_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_pHorizonSectors_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_pThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_tEndDate_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSINSOLATION_tStartDate_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.media.jai.RasterFactory;
 import javax.media.jai.iterator.RandomIter;
@@ -57,6 +63,8 @@ import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.jgrasstools.gears.libs.modules.HorizonAngles;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
@@ -92,6 +100,14 @@ public class OmsInsolation extends JGTModel {
     @In
     public String tEndDate = null;
 
+    @Description(OMSINSOLATION_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
+    @Description(OMSINSOLATION_pThreads_DESCRIPTION)
+    @In
+    public int pThreads = 1;
+
     @Description(OMSINSOLATION_outIns_DESCRIPTION)
     @Out
     public GridCoverage2D outIns;
@@ -116,10 +132,6 @@ public class OmsInsolation extends JGTModel {
 
     private double lambda;
 
-    private double delta;
-
-    private double omega;
-
     private HortonMessageHandler msg = HortonMessageHandler.getInstance();
 
     @Execute
@@ -158,22 +170,61 @@ public class OmsInsolation extends JGTModel {
         RenderedImage pitTmpRI = inElev.getRenderedImage();
         int width = pitTmpRI.getWidth();
         int height = pitTmpRI.getHeight();
-        WritableRaster pitWR = CoverageUtilities.replaceNovalue(pitTmpRI, -9999.0);
+        final WritableRaster pitWR = CoverageUtilities.replaceNovalue(pitTmpRI, -9999.0);
         pitTmpRI = null;
 
         WritableRaster insolationWR = CoverageUtilities.createDoubleWritableRaster(width, height, null, pitWR.getSampleModel(),
                 0.0);
         WritableRandomIter insolationIterator = RandomIterFactory.createWritable(insolationWR, null);
 
-        WritableRaster gradientWR = normalVector(pitWR, dx);
+        final WritableRaster gradientWR = normalVector(pitWR, dx);
 
-        pm.beginTask(msg.message("insolation.calculating"), endDay - startDay);
+        /*
+         * with the horizon the shadows are looked up instead of
+         * being traced for every hour of every day
+         */
+        final HorizonAngles horizon;
+        if (pHorizonSectors > 0) {
+            horizon = HorizonAngles.getCached(inElev, pitWR, dx, pHorizonSectors, pThreads, pm);
+        } else {
+            horizon = null;
+        }
 
-        for( int i = startDay; i <= endDay; i++ ) {
-            calcInsolation(lambda, pitWR, gradientWR, insolationWR, i, dx);
-            pm.worked(i - startDay);
+        /*
+         * the days are processed in parallel, every worker sums
+         * into an accumulator that no other worker is using
+         */
+        final ConcurrentLinkedQueue<double[]> freeAccumulators = new ConcurrentLinkedQueue<double[]>();
+        final List<double[]> accumulators = Collections.synchronizedList(new ArrayList<double[]>());
+        final int cellsNum = width * height;
+        final int firstDay = startDay;
+        final double res = dx;
+        JGTExecutor.forEachIndex(endDay - startDay + 1, pThreads, msg.message("insolation.calculating"), pm,
+                new JGTExecutor.IndexProcessor(){
+                    public void process( int index ) throws Exception {
+                        double[] accumulator = freeAccumulators.poll();
+                        if (accumulator == null) {
+                            accumulator = new double[cellsNum];
+                            accumulators.add(accumulator);
+                        }
+                        try {
+                            calcInsolation(lambda, pitWR, gradientWR, horizon, accumulator, firstDay + index, res);
+                        } finally {
+                            freeAccumulators.offer(accumulator);
+                        }
+                    }
+                });
+        checkCancel();
+        for( int y = 0; y < height; y++ ) {
+            for( int x = 0; x < width; x++ ) {
+                double sum = 0.0;
+                for( double[] accumulator : accumulators ) {
+                    sum = sum + accumulator[y * width + x];
+                }
+                insolationIterator.setSample(x, y, 0, sum);
+            }
         }
-        pm.done();
+
         for( int y = 2; y < height - 2; y++ ) {
             for( int x = 2; x < width - 2; x++ ) {
                 if (pitWR.getSampleDouble(x, y, 0) == -9999.0) {
@@ -195,39 +246,50 @@ public class OmsInsolation extends JGTModel {
      *            the raster of elevation
      * @param gradientWR
      *            the raster of the gradient value of the dem.
-     * @param insolationWR
-     *            the wr where to store the result.
+     * @param horizon
+     *            the horizon of the dem, if <code>null</code> the shadows are traced.
+     * @param insolation
+     *            the array (by rows) where to sum the result.
      * @param the
      *            day in the year.
      * @paradx the resolutiono of the dem.
      */
-    private void calcInsolation( double lambda, WritableRaster demWR, WritableRaster gradientWR, WritableRaster insolationWR,
-            int day, double dx ) {
+    private void calcInsolation( double lambda, WritableRaster demWR, WritableRaster gradientWR, HorizonAngles horizon,
+            double[] insolation, int day, double dx ) {
         // calculating the day angle
         // double dayang = 2 * Math.PI * (day - 1) / 365.0;
         double dayangb = (360 / 365.25) * (day - 79.436);
         dayangb = Math.toRadians(dayangb);
         // Evaluate the declination of the sun.
-        delta = getDeclination(dayangb);
+        double delta = getDeclination(dayangb);
         // Evaluate the radiation in this day.
         double ss = Math.acos(-Math.tan(delta) * Math.tan(lambda));
         double hour = -ss + (Math.PI / 48.0);
         while( hour <= ss - (Math.PI / 48) ) {
-            omega = hour;
+            double omega = hour;
             // calculating the vector related to the sun
-            double sunVector[] = calcSunVector();
+            double sunVector[] = calcSunVector(delta, omega);
             double zenith = calcZenith(sunVector[2]);
-            double[] inverseSunVector = calcInverseSunVector(sunVector);
-            double[] normalSunVector = calcNormalSunVector(sunVector);
 
             int height = demWR.getHeight();
             int width = demWR.getWidth();
-            WritableRaster sOmbraWR = calculateFactor(height, width, sunVector, inverseSunVector, normalSunVector, demWR, dx);
+            WritableRaster sOmbraWR = null;
+            if (horizon == null) {
+                double[] inverseSunVector = calcInverseSunVector(sunVector);
+                double[] normalSunVector = calcNormalSunVector(sunVector);
+                sOmbraWR = calculateFactor(height, width, sunVector, inverseSunVector, normalSunVector, demWR, dx);
+            }
             double mr = 1 / (sunVector[2] + 0.15 * Math.pow((93.885 - zenith), (-1.253)));
             for( int j = 0; j < height; j++ ) {
                 for( int i = 0; i < width; i++ ) {
+                    double sOmbra;
+                    if (sOmbraWR != null) {
+                        sOmbra = sOmbraWR.getSampleDouble(i, j, 0);
+                    } else {
+                        sOmbra = horizon.isLit(i, j, sunVector) ? 1.0 : 0.0;
+                    }
                     // evaluate the radiation.
-                    calcRadiation(i, j, demWR, sOmbraWR, insolationWR, sunVector, gradientWR, mr);
+                    insolation[j * width + i] += calcRadiation(i, j, demWR, sOmbra, sunVector, gradientWR, mr);
                 }
             }
             hour = hour + Math.PI / 24.0;
@@ -247,8 +309,8 @@ public class OmsInsolation extends JGTModel {
      * evaluate several component of the radiation and then multiply by the
      * sOmbra factor.
      */
-    private void calcRadiation( int i, int j, WritableRaster demWR, WritableRaster sOmbraWR, WritableRaster insolationWR,
-            double[] sunVector, WritableRaster gradientWR, double mr ) {
+    private double calcRadiation( int i, int j, WritableRaster demWR, double sOmbra, double[] sunVector,
+            WritableRaster gradientWR, double mr ) {
         double z = demWR.getSampleDouble(i, j, 0);
         double pressure = ATM * Math.exp(-0.0001184 * z);
         double ma = mr * pressure / ATM;
@@ -270,11 +332,10 @@ public class OmsInsolation extends JGTModel {
         if (cosinc < 0) {
             cosinc = 0;
         }
-        double tmp = insolationWR.getSampleDouble(i, j, 0);
-        insolationWR.setSample(i, j, 0, In * cosinc * sOmbraWR.getSampleDouble(i, j, 0) / 1000 + tmp);
+        return In * cosinc * sOmbra / 1000;
     }
 
-    protected double[] calcSunVector() {
+    protected double[] calcSunVector( double delta, double omega ) {
         double sunVector[] = new double[3];
         sunVector[0] = -Math.sin(omega) * Math.cos(delta);
         sunVector[1] = Math.sin(lambda) * Math.cos(omega) * Math.cos(delta) - Math.cos(lambda) * Math.sin(delta);
@@ -34,6 +34,7 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_NAME;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_STATUS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_inElev_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_outSky_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSSKYVIEW_pHorizonSectors_DESCRIPTION;
 
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
@@ -54,6 +55,7 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.libs.modules.HorizonAngles;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.hortonmachine.i18n.HortonMessageHandler;
@@ -71,6 +73,10 @@ public class OmsSkyview extends JGTModel {
     @In
     public GridCoverage2D inElev = null;
 
+    @Description(OMSSKYVIEW_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
     @Description(OMSSKYVIEW_outSky_DESCRIPTION)
     @Out
     public GridCoverage2D outSky;
@@ -224,8 +230,9 @@ public class OmsSkyview extends JGTModel {
      *            the dem ( the map of elevation).
      * @param res the resolution of the map.
      * @return the map of sky view factor.
+     * @throws Exception 
      */
-    private WritableRaster skyviewfactor( WritableRaster pitWR, double res ) {
+    private WritableRaster skyviewfactor( WritableRaster pitWR, double res ) throws Exception {
 
         /*
          * evalutating the normal vector (in the center of the square compound
@@ -236,19 +243,27 @@ public class OmsSkyview extends JGTModel {
 
         WritableRaster skyviewFactorWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, pitWR.getSampleModel(),
                 0.0);
+        HorizonAngles horizon = null;
+        if (pHorizonSectors > 0) {
+            horizon = HorizonAngles.getCached(inElev, pitWR, res, pHorizonSectors, getDefaultThreadsNum(), pm);
+        }
         pm.beginTask(msg.message("skyview.calculating"), 35);
         for( int i = 0; i < 360 - 10; i = i + 10 ) {
             azimuth = Math.toRadians(i * 1.0);
             WritableRaster skyViewWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, pitWR.getSampleModel(),
                     Math.toRadians(maxSlope));
-            for( int j = (int) maxSlope; j >= 0; j-- ) {
+            if (horizon != null) {
+                horizonElevation(horizon, skyViewWR);
+            } else {
+                for( int j = (int) maxSlope; j >= 0; j-- ) {
 
-                elevation = Math.toRadians(j * 1.0);
-                double[] sunVector = calcSunVector();
-                double[] inverseSunVector = calcInverseSunVector(sunVector);
-                double[] normalSunVector = calcNormalSunVector(sunVector);
-                calculateFactor(rows, cols, sunVector, inverseSunVector, normalSunVector, pitWR, skyViewWR, res);
+                    elevation = Math.toRadians(j * 1.0);
+                    double[] sunVector = calcSunVector();
+                    double[] inverseSunVector = calcInverseSunVector(sunVector);
+                    double[] normalSunVector = calcNormalSunVector(sunVector);
+                    calculateFactor(rows, cols, sunVector, inverseSunVector, normalSunVector, pitWR, skyViewWR, res);
 
+                }
             }
             for( int t = normalVectorWR.getMinY(); t < normalVectorWR.getMinY() + normalVectorWR.getHeight(); t++ ) {
                 for( int k = normalVectorWR.getMinX(); k < normalVectorWR.getMinX() + normalVectorWR.getWidth(); k++ ) {
@@ -269,6 +284,35 @@ public class OmsSkyview extends JGTModel {
         return skyviewFactorWR;
     }
 
+    /**
+     * Set the lowest elevation (in degrees up to the max slope) at which the cells
+     * see the sun along the current azimuth, looking up the precomputed horizon
+     * instead of tracing the rays for every elevation.
+     * 
+     * @param horizon the horizon of the elevation map.
+     * @param skyViewWR the sky map.
+     */
+    private void horizonElevation( HorizonAngles horizon, WritableRaster skyViewWR ) {
+        double[] normal = new double[3];
+        for( int y = 0; y < rows; y++ ) {
+            for( int x = 0; x < cols; x++ ) {
+                double horizonAngle = horizon.getHorizonAngle(x, y, azimuth);
+                normalVectorWR.getPixel(x, y, normal);
+                for( int j = 0; j <= (int) maxSlope; j++ ) {
+                    elevation = Math.toRadians(j * 1.0);
+                    if (elevation < horizonAngle) {
+                        continue;
+                    }
+                    double[] sunVector = calcSunVector();
+                    if (scalarProduct(sunVector, normal) >= 0) {
+                        skyViewWR.setSample(x, y, 0, elevation);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Calculate the angle.
      * 
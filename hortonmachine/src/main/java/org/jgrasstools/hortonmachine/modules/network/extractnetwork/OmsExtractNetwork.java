@@ -61,10 +61,9 @@ import oms3.annotations.Status;
 import oms3.annotations.UI;
 
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.jgrasstools.gears.libs.modules.FlowNode;
+import org.jgrasstools.gears.libs.modules.FlowGraph;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
-import org.jgrasstools.gears.libs.modules.Node;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.hortonmachine.i18n.HortonMessageHandler;
@@ -187,6 +186,7 @@ public class OmsExtractNetwork extends JGTModel {
     private WritableRaster extractNetMode1( RenderedImage flowRI, RenderedImage tcaRI, RenderedImage slopeRI ) {
 
         RandomIter flowRandomIter = RandomIterFactory.create(flowRI, null);
+        FlowGraph flowGraph = new FlowGraph(flowRandomIter, cols, rows);
         RandomIter tcaRandomIter = RandomIterFactory.create(tcaRI, null);
         RandomIter slopeRandomIter = RandomIterFactory.create(slopeRI, null);
 
@@ -208,27 +208,7 @@ public class OmsExtractNetwork extends JGTModel {
 
                     if (tcaValue * slopeValue >= pThres) {
                         netRandomIter.setSample(c, r, 0, NETVALUE);
-                        FlowNode flowNode = new FlowNode(flowRandomIter, cols, rows, c, r);
-                        FlowNode runningNode = flowNode;
-                        while( (runningNode = runningNode.goDownstream()) != null ) {
-                            int rCol = runningNode.col;
-                            int rRow = runningNode.row;
-                            double tmpNetValue = netRandomIter.getSampleDouble(rCol, rRow, 0);
-                            if (!isNovalue(tmpNetValue)) {
-                                break;
-                            }
-                            if (runningNode.isMarkedAsOutlet()) {
-                                netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
-                                break;
-                            } else if (runningNode.touchesBound()) {
-                                Node goDownstream = runningNode.goDownstream();
-                                if (goDownstream == null || !goDownstream.isValid()) {
-                                    netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
-                                    break;
-                                }
-                            }
-                            netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
-                        }
+                        markDownstream(flowGraph, flowGraph.getIndex(c, r), netRandomIter);
                     }
                 } else {
                     netRandomIter.setSample(c, r, 0, doubleNovalue);
@@ -247,6 +227,7 @@ public class OmsExtractNetwork extends JGTModel {
     private WritableRaster extractNetMode2( RenderedImage flowRI, RenderedImage tcaRI, RenderedImage classRI,
             RenderedImage slopeRI ) {
         RandomIter flowRandomIter = RandomIterFactory.create(flowRI, null);
+        FlowGraph flowGraph = new FlowGraph(flowRandomIter, cols, rows);
         RandomIter tcaRandomIter = RandomIterFactory.create(tcaRI, null);
         RandomIter classRandomIter = RandomIterFactory.create(classRI, null);
         RandomIter slopeRandomIter = RandomIterFactory.create(slopeRI, null);
@@ -268,27 +249,7 @@ public class OmsExtractNetwork extends JGTModel {
                     tcaValue = pow(tcaValue, pExp) * slopeValue;
                     if (tcaValue >= pThres && classRandomIter.getSample(c, r, 0) == 15.0) {
                         netRandomIter.setSample(c, r, 0, NETVALUE);
-                        FlowNode flowNode = new FlowNode(flowRandomIter, cols, rows, c, r);
-                        FlowNode runningNode = flowNode;
-                        while( (runningNode = runningNode.goDownstream()) != null ) {
-                            int rCol = runningNode.col;
-                            int rRow = runningNode.row;
-                            double tmpNetValue = netRandomIter.getSampleDouble(rCol, rRow, 0);
-                            if (!isNovalue(tmpNetValue)) {
-                                break;
-                            }
-                            if (runningNode.isMarkedAsOutlet()) {
-                                netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
-                                break;
-                            } else if (runningNode.touchesBound()) {
-                                Node goDownstream = runningNode.goDownstream();
-                                if (goDownstream == null || !goDownstream.isValid()) {
-                                    netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
-                                    break;
-                                }
-                            }
-                            netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
-                        }
+                        markDownstream(flowGraph, flowGraph.getIndex(c, r), netRandomIter);
                     }
                 }
             }
@@ -298,4 +259,21 @@ public class OmsExtractNetwork extends JGTModel {
         return netImage;
     }
 
+    /**
+     * Marks as network the cells downstream of a cell, until an already marked cell
+     * or the end of the drainage is reached.
+     */
+    private void markDownstream( FlowGraph flowGraph, int index, WritableRandomIter netRandomIter ) {
+        int runningIndex = index;
+        while( (runningIndex = flowGraph.getDownstream(runningIndex)) != FlowGraph.NONE ) {
+            int rCol = flowGraph.getCol(runningIndex);
+            int rRow = flowGraph.getRow(runningIndex);
+            double tmpNetValue = netRandomIter.getSampleDouble(rCol, rRow, 0);
+            if (!isNovalue(tmpNetValue)) {
+                break;
+            }
+            netRandomIter.setSample(rCol, rRow, 0, NETVALUE);
+        }
+    }
+
 }
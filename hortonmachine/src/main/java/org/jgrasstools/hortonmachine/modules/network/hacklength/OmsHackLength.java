@@ -54,6 +54,7 @@ import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.jgrasstools.gears.libs.modules.Direction;
+import org.jgrasstools.gears.libs.modules.FlowAccumulationEngine;
 import org.jgrasstools.gears.libs.modules.FlowNode;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.modules.Node;
@@ -100,7 +101,7 @@ public class OmsHackLength extends JGTModel {
     private RegionMap regionMap;
 
     @Execute
-    public void process() {
+    public void process() throws Exception {
         if (!concatOr(outHacklength == null, doReset)) {
             return;
         }
@@ -134,73 +135,94 @@ public class OmsHackLength extends JGTModel {
 
     }
 
-    private void hacklength( RandomIter flowIter, RandomIter tcaIter, RandomIter elevIter ) {
+    private void hacklength( RandomIter flowIter, RandomIter tcaIter, RandomIter elevIter ) throws Exception {
+        final FlowAccumulationEngine engine = new FlowAccumulationEngine(flowIter, nCols, nRows);
 
-        double runningDistance = 0.0;
-        double maxTca = 0.0;
-
-        WritableRaster hacklengthWR = CoverageUtilities.createDoubleWritableRaster(nCols, nRows, null, null, doubleNovalue);
-        WritableRandomIter hacklengthIter = RandomIterFactory.createWritable(hacklengthWR, null);
-
-        pm.beginTask(msg.message("hacklength.calculating"), nRows); //$NON-NLS-1$
+        final double[] tca = new double[nCols * nRows];
+        final double[] elev = elevIter != null ? new double[nCols * nRows] : null;
+        final double[] hacklength = new double[nCols * nRows];
+        int index = 0;
         for( int r = 0; r < nRows; r++ ) {
             for( int c = 0; c < nCols; c++ ) {
-                FlowNode flowNode = new FlowNode(flowIter, nCols, nRows, c, r);
-                if (flowNode.isSource() && !flowNode.isHeadingOutside()) {
-                    runningDistance = 0;
-                    flowNode.setValueInMap(hacklengthIter, runningDistance);
-
-                    maxTca = 1;
-
-                    FlowNode oldNode = flowNode;
-                    FlowNode runningNode = oldNode.goDownstream();
-                    while( runningNode != null && runningNode.isValid() && !runningNode.isMarkedAsOutlet() ) {
-
-                        boolean isMax = tcaMax(runningNode, tcaIter, hacklengthIter, maxTca, runningDistance);
-                        if (isMax) {
-                            double distance = Direction.forFlow((int) oldNode.flow).getDistance(xRes, yRes);
-                            if (elevIter != null) {
-                                double d1 = oldNode.getValueFromMap(elevIter);
-                                double d2 = runningNode.getValueFromMap(elevIter);
-                                double dz = d1 - d2;
-                                runningDistance += sqrt(pow(distance, 2) + pow(dz, 2));
-                            } else {
-                                runningDistance += distance;
-                            }
-                            runningNode.setValueInMap(hacklengthIter, runningDistance);
-
-                            maxTca = runningNode.getValueFromMap(tcaIter);
-                        }
-                        oldNode = runningNode;
-                        runningNode = runningNode.goDownstream();
-                    }
+                tca[index] = tcaIter.getSampleDouble(c, r, 0);
+                if (elev != null) {
+                    elev[index] = elevIter.getSampleDouble(c, r, 0);
+                }
+                hacklength[index] = doubleNovalue;
+                index++;
+            }
+        }
 
-                    if (runningNode != null && runningNode.isMarkedAsOutlet()) {
-                        if (tcaMax(runningNode, tcaIter, hacklengthIter, maxTca, runningDistance)) {
-                            double distance = Direction.forFlow((int) oldNode.flow).getDistance(xRes, yRes);
-                            if (elevIter != null) {
-                                double d1 = oldNode.getValueFromMap(elevIter);
-                                double d2 = runningNode.getValueFromMap(elevIter);
-                                double dz = d1 - d2;
-                                runningDistance += sqrt(pow(distance, 2) + pow(dz, 2));
-                            } else {
-                                runningDistance += distance;
-                            }
-                            runningNode.setValueInMap(hacklengthIter, runningDistance);
+        /*
+         * the hacklength of a cell is the one of the main donor plus the distance
+         * from it. The main donor is the one with the maximum tca, or the longest
+         * of the donors with the same tca. If they are also equally long, the one
+         * reached by the last source in row order is used, as the walk from
+         * the sources did.
+         */
+        final int[] lastSources = new int[nCols * nRows];
+        engine.accumulate(msg.message("hacklength.calculating"), pm, new FlowAccumulationEngine.CellVisitor(){
+            public void visit( int index, int[] donors, int donorsNum ) {
+                if (donorsNum == 0) {
+                    if (!isHeadingOutside(engine, index)) {
+                        hacklength[index] = 0.0;
+                        lastSources[index] = index;
+                    }
+                    return;
+                }
+                int mainDonor = donors[0];
+                for( int i = 1; i < donorsNum; i++ ) {
+                    int donor = donors[i];
+                    if (NumericsUtilities.dEq(tca[donor], tca[mainDonor])) {
+                        if (hacklength[donor] > hacklength[mainDonor]
+                                || (hacklength[donor] == hacklength[mainDonor] && lastSources[donor] > lastSources[mainDonor])) {
+                            mainDonor = donor;
                         }
+                    } else if (tca[donor] > tca[mainDonor]) {
+                        mainDonor = donor;
                     }
-
                 }
+                double distance = Direction.forFlow(engine.getFlow(mainDonor)).getDistance(xRes, yRes);
+                if (elev != null) {
+                    double dz = elev[mainDonor] - elev[index];
+                    distance = sqrt(pow(distance, 2) + pow(dz, 2));
+                }
+                hacklength[index] = hacklength[mainDonor] + distance;
+                lastSources[index] = lastSources[mainDonor];
+            }
+        });
+        checkCancel();
 
+        WritableRaster hacklengthWR = CoverageUtilities.createDoubleWritableRaster(nCols, nRows, null, null, doubleNovalue);
+        WritableRandomIter hacklengthIter = RandomIterFactory.createWritable(hacklengthWR, null);
+        index = 0;
+        for( int r = 0; r < nRows; r++ ) {
+            for( int c = 0; c < nCols; c++ ) {
+                hacklengthIter.setSample(c, r, 0, hacklength[index++]);
             }
-            pm.worked(1);
         }
-        pm.done();
         hacklengthIter.done();
         outHacklength = CoverageUtilities.buildCoverage("Hacklength", hacklengthWR, regionMap,
                 inFlow.getCoordinateReferenceSystem());
     }
 
+    /**
+     * Checks if a source flows outside of the valid flow map, as {@link FlowNode#isHeadingOutside()}.
+     */
+    private static boolean isHeadingOutside( FlowAccumulationEngine engine, int index ) {
+        if (engine.getDownstream(index) != FlowAccumulationEngine.NONE) {
+            return false;
+        }
+        int col = index % engine.getCols();
+        int row = index / engine.getCols();
+        for( Direction direction : Direction.getOrderedDirs() ) {
+            if (!engine.isValid(col + direction.col, row + direction.row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Compare two value of tca and distance.
      * 
@@ -18,9 +18,6 @@
 package org.jgrasstools.hortonmachine.modules.network.magnitudo;
 
 import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
-import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
-import static org.jgrasstools.gears.libs.modules.ModelsEngine.go_downstream;
-import static org.jgrasstools.gears.libs.modules.ModelsEngine.isSourcePixel;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSMAGNITUDO_AUTHORCONTACTS;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSMAGNITUDO_AUTHORNAMES;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSMAGNITUDO_DESCRIPTION;
@@ -51,6 +48,7 @@ import oms3.annotations.Out;
 import oms3.annotations.Status;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.libs.modules.FlowAccumulationEngine;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.hortonmachine.i18n.HortonMessageHandler;
@@ -97,50 +95,43 @@ public class OmsMagnitudo extends JGTModel {
         }
     }
 
-    public void magnitudo( RandomIter flowIter, int width, int height, WritableRaster magWR ) {
-
-        int[] flow = new int[2];
-        // get rows and cols from the active region
-        int cols = width;
-        int rows = height;
-        RandomIter magIter = RandomIterFactory.create(magWR, null);
-        pm.beginTask(msg.message("magnitudo.workingon"), rows * 2); //$NON-NLS-1$
-
-        for( int j = 0; j < rows; j++ ) {
-            for( int i = 0; i < cols; i++ ) {
-                flow[0] = i;
-                flow[1] = j;
-                // looks for the source
-                if (isSourcePixel(flowIter, flow[0], flow[1])) {
-                    magWR.setSample(flow[0], flow[1], 0, magIter.getSampleDouble(flow[0], flow[1], 0) + 1.0);
-                    if (!go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0)))
-                        return;
-                    while( !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                            && flowIter.getSampleDouble(flow[0], flow[1], 0) != 10 ) {
-                        magWR.setSample(flow[0], flow[1], 0, magIter.getSampleDouble(flow[0], flow[1], 0) + 1.0);
-                        if (!go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0)))
-                            return;
-                    }
-
-                    if (flowIter.getSampleDouble(flow[0], flow[1], 0) == 10) {
-                        magWR.setSample(flow[0], flow[1], 0, magIter.getSampleDouble(flow[0], flow[1], 0) + 1.0);
-                    }
+    public void magnitudo( RandomIter flowIter, int width, int height, WritableRaster magWR ) throws Exception {
+        final FlowAccumulationEngine engine = new FlowAccumulationEngine(flowIter, width, height);
+
+        /*
+         * the magnitudo of a cell is the number of sources
+         * draining into it (itself included)
+         */
+        final int[] mag = new int[width * height];
+        engine.accumulate(msg.message("magnitudo.workingon"), pm, new FlowAccumulationEngine.CellVisitor(){
+            public void visit( int index, int[] donors, int donorsNum ) {
+                int flow = engine.getFlow(index);
+                int magValue = 0;
+                if (donorsNum == 0 && flow > 0 && flow < 9) {
+                    magValue = 1;
                 }
+                for( int i = 0; i < donorsNum; i++ ) {
+                    magValue += mag[donors[i]];
+                }
+                mag[index] = magValue;
             }
-            pm.worked(1);
-        }
-
-        for( int j = 0; j < rows; j++ ) {
-            for( int i = 0; i < cols; i++ ) {
-                if (magIter.getSampleDouble(i, j, 0) == 0.0 && flowIter.getSampleDouble(i, j, 0) == 10.0) {
+        });
+        checkCancel();
+
+        int index = 0;
+        for( int j = 0; j < height; j++ ) {
+            for( int i = 0; i < width; i++ ) {
+                int flow = engine.getFlow(index);
+                if (mag[index] == 0 && flow == 10) {
                     magWR.setSample(i, j, 0, 1.0);
-                } else if (magIter.getSampleDouble(i, j, 0) == 0.0 && isNovalue(flowIter.getSampleDouble(i, j, 0))) {
+                } else if (mag[index] == 0 && flow == FlowAccumulationEngine.NOVALUE_FLOW) {
                     magWR.setSample(i, j, 0, doubleNovalue);
+                } else {
+                    magWR.setSample(i, j, 0, mag[index]);
                 }
+                index++;
             }
-            pm.worked(1);
         }
-        pm.done();
     }
 
 }
\ No newline at end of file
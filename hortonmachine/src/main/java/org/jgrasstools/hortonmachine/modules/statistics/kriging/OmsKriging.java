@@ -39,14 +39,17 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_outDa
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_outGrid_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pA_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pIntegralscale_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMaxNeighbours_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pMode_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pNug_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pS_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pSemivariogramType_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pThreads_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSKRIGING_pVariance_DESCRIPTION;
 
 import java.awt.image.WritableRaster;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -76,6 +79,7 @@ import org.geotools.feature.SchemaException;
 import org.geotools.geometry.DirectPosition2D;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.modules.ModelsEngine;
 import org.jgrasstools.gears.utils.RegionMap;
@@ -89,7 +93,9 @@ import org.opengis.geometry.MismatchedDimensionException;
 import org.opengis.referencing.operation.MathTransform;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 @Description(OMSKRIGING_DESCRIPTION)
 @Author(name = OMSKRIGING_AUTHORNAMES, contact = OMSKRIGING_AUTHORCONTACTS)
@@ -194,6 +200,18 @@ public class OmsKriging extends JGTModel {
     @In
     public double pNug;
 
+    /**
+     * The maximum number of nearest stations used for each point. If 0 or
+     * bigger than the available stations, all the stations are used.
+     */
+    @Description(OMSKRIGING_pMaxNeighbours_DESCRIPTION)
+    @In
+    public int pMaxNeighbours = 0;
+
+    @Description(OMSKRIGING_pThreads_DESCRIPTION)
+    @In
+    public int pThreads = 1;
+
     @Description(OMSKRIGING_outGrid_DESCRIPTION)
     @Out
     public GridCoverage2D outGrid = null;
@@ -207,8 +225,22 @@ public class OmsKriging extends JGTModel {
      */
     private static final double TOLL = 1.0d * 10E-8;
 
+    /**
+     * The number of points handled as a row when interpolating on non regular points.
+     */
+    private static final int POINTS_BLOCK = 1000;
+
     private HortonMessageHandler msg = HortonMessageHandler.getInstance();
 
+    /*
+     * the stations of the previous time step with their factorized kriging
+     * system, reused as long as the stations and the variogram don't change.
+     * The stations are shared with OmsVariogram.
+     */
+    private StationsVariogram stationsCacheVariogram = null;
+    private double[] stationsCacheParams = null;
+    private LinearSystem stationsCacheSystem = null;
+
     private WritableRaster outWR = null;
     private int cols;
     private int rows;
@@ -390,10 +422,6 @@ public class OmsKriging extends JGTModel {
                 }
             }
 
-            /*
-             * calculating the covariance matrix.
-             */
-            double[][] covarianceMatrix = covMatrixCalculating(xStation, yStation, zStation, n1);
             /*
              * extract the coordinate of the points where interpolated.
              */
@@ -403,48 +431,20 @@ public class OmsKriging extends JGTModel {
              */
 
             if (!areAllEquals && n1 > 1) {
-                // pm.beginTask(msg.message("kriging.working"),inInterpolate.size());
+                int pointsNum = pointsToInterpolateId2Coordinates.size();
+                double[] xPoints = new double[pointsNum];
+                double[] yPoints = new double[pointsNum];
+                double[] zPoints = new double[pointsNum];
                 while( idIterator.hasNext() ) {
-                    double sum = 0.;
                     int id = idIterator.next();
                     idArray[j] = id;
                     Coordinate coordinate = (Coordinate) pointsToInterpolateId2Coordinates.get(id);
-                    xStation[n1] = coordinate.x;
-                    yStation[n1] = coordinate.y;
-                    zStation[n1] = coordinate.z;
-                    /*
-                     * calculating the right hand side of the kriging linear
-                     * system.
-                     */
-                    double[] knownTerm = knownTermsCalculation(xStation, yStation, zStation, n1);
-
-                    /*
-                     * solve the linear system, where the result is the weight.
-                     */
-                    ColumnVector knownTermColumn = new ColumnVector(knownTerm);
-                    LinearSystem linearSystem = new LinearSystem(covarianceMatrix);
-                    ColumnVector solution = linearSystem.solve(knownTermColumn, true);
-                    // Matrix a = new Matrix(covarianceMatrix);
-                    // Matrix b = new Matrix(knownTerm, knownTerm.length);
-                    // Matrix x = a.solve(b);
-                    double[] moltiplicativeFactor = solution.copyValues1D();
-
-                    double h0 = 0.0;
-                    for( int k = 0; k < n1; k++ ) {
-                        h0 = h0 + moltiplicativeFactor[k] * hStation[k];
-                        sum = sum + moltiplicativeFactor[k];
-                    }
-
-                    if (doLogarithmic) {
-                        h0 = Math.exp(h0);
-                    }
-                    result[j] = h0;
+                    xPoints[j] = coordinate.x;
+                    yPoints[j] = coordinate.y;
+                    zPoints[j] = coordinate.z;
                     j++;
-                    if (Math.abs(sum - 1) >= TOLL) {
-                        throw new ModelsRuntimeException("Error in the coffeicients calculation", this.getClass().getSimpleName());
-                    }
-
                 }
+                interpolate(xStation, yStation, zStation, hStation, n1, xPoints, yPoints, zPoints, result);
             } else if (n1 == 1 || areAllEquals) {
                 double tmp = hStation[0];
                 int k = 0;
@@ -480,6 +480,286 @@ public class OmsKriging extends JGTModel {
         }
     }
 
+    /**
+     * Interpolate the points.
+     * 
+     * <p>The points are split in rows (the rows of the grid in mode 1, blocks of
+     * {@link #POINTS_BLOCK} points else), which are distributed over {@link #pThreads}
+     * workers. The kriging system only depends on the stations, so it is factorized
+     * once and shared by the workers and by the following time steps with the same
+     * stations. If {@link #pMaxNeighbours} is set, the system is made only of the
+     * nearest stations and each worker factorizes it again only when the set of
+     * nearest stations changes.</p>
+     * 
+     * @param xStation the x coordinates of the stations.
+     * @param yStation the y coordinates of the stations.
+     * @param zStation the z coordinates of the stations.
+     * @param hStation the measured values of the stations.
+     * @param n the number of stations.
+     * @param xPoints the x coordinates of the points to interpolate.
+     * @param yPoints the y coordinates of the points to interpolate.
+     * @param zPoints the z coordinates of the points to interpolate.
+     * @param result the array into which the interpolated values are placed.
+     * @throws Exception
+     */
+    private void interpolate( final double[] xStation, final double[] yStation, final double[] zStation,
+            final double[] hStation, final int n, final double[] xPoints, final double[] yPoints, final double[] zPoints,
+            final double[] result ) throws Exception {
+        final int pointsNum = xPoints.length;
+        final boolean isGrid = pMode == 1 && pointsNum == cols * rows;
+        final int rowsNum;
+        if (isGrid) {
+            rowsNum = rows;
+        } else {
+            rowsNum = (pointsNum + POINTS_BLOCK - 1) / POINTS_BLOCK;
+        }
+
+        /*
+         * spatial index of the stations for the nearest neighbours search.
+         */
+        STRtree stationsTree = null;
+        double searchRadius = 0;
+        final int neighboursNum = pMaxNeighbours > 0 && pMaxNeighbours < n ? pMaxNeighbours : n;
+        if (neighboursNum < n) {
+            stationsTree = new STRtree();
+            Envelope stationsEnvelope = new Envelope();
+            for( int i = 0; i < n; i++ ) {
+                Envelope envelope = new Envelope(xStation[i], xStation[i], yStation[i], yStation[i]);
+                stationsTree.insert(envelope, i);
+                stationsEnvelope.expandToInclude(envelope);
+            }
+            // build it here, the queries from the workers are then read only
+            stationsTree.build();
+            // radius that on average contains the requested stations
+            double area = stationsEnvelope.getWidth() * stationsEnvelope.getHeight();
+            searchRadius = Math.sqrt(area * neighboursNum / (Math.PI * n));
+            if (!(searchRadius > 0)) {
+                searchRadius = Math.max(1.0, Math.max(stationsEnvelope.getWidth(), stationsEnvelope.getHeight()));
+            }
+        }
+        final STRtree tree = stationsTree;
+        final double radius = searchRadius;
+        final LinearSystem stationsSystem = tree == null ? getStationsSystem(xStation, yStation, zStation, n) : null;
+
+        /*
+         * each worker keeps its own system, to reuse the factorization between its rows
+         */
+        final int threads = Math.max(1, Math.min(pThreads, rowsNum));
+        JGTExecutor.forEachIndex(threads, threads, null, null, new JGTExecutor.IndexProcessor(){
+            public void process( int firstRow ) throws Exception {
+                StationsSystem system = new StationsSystem(xStation, yStation, zStation, hStation, n, tree, neighboursNum,
+                        radius, stationsSystem);
+                for( int r = firstRow; r < rowsNum; r = r + threads ) {
+                    if (isGrid) {
+                        for( int c = 0; c < cols; c++ ) {
+                            int index = c * rows + r;
+                            result[index] = system.interpolate(xPoints[index], yPoints[index], zPoints[index]);
+                        }
+                    } else {
+                        int end = Math.min(pointsNum, (r + 1) * POINTS_BLOCK);
+                        for( int index = r * POINTS_BLOCK; index < end; index++ ) {
+                            result[index] = system.interpolate(xPoints[index], yPoints[index], zPoints[index]);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The kriging system of a set of stations, owned by a single worker.
+     * 
+     * <p>The factorization of the system is kept and reused as long as the
+     * stations used don't change.</p>
+     */
+    private class StationsSystem {
+        private final double[] xStation;
+        private final double[] yStation;
+        private final double[] zStation;
+        private final double[] hStation;
+        private final int n;
+        private final STRtree tree;
+        private final int neighboursNum;
+        private final double radius;
+
+        private LinearSystem linearSystem;
+        private int[] neighbours;
+        private double[] x;
+        private double[] y;
+        private double[] z;
+        private double[] h;
+
+        StationsSystem( double[] xStation, double[] yStation, double[] zStation, double[] hStation, int n, STRtree tree,
+                int neighboursNum, double radius, LinearSystem linearSystem ) {
+            this.xStation = xStation;
+            this.yStation = yStation;
+            this.zStation = zStation;
+            this.hStation = hStation;
+            this.n = n;
+            this.tree = tree;
+            this.neighboursNum = neighboursNum;
+            this.radius = radius;
+            this.linearSystem = linearSystem;
+            if (tree == null) {
+                x = xStation;
+                y = yStation;
+                z = zStation;
+                h = hStation;
+            } else {
+                x = new double[neighboursNum];
+                y = new double[neighboursNum];
+                z = new double[neighboursNum];
+                h = new double[neighboursNum];
+            }
+        }
+
+        /**
+         * Interpolate a point.
+         * 
+         * @param xp the x coordinate of the point.
+         * @param yp the y coordinate of the point.
+         * @param zp the z coordinate of the point.
+         * @return the interpolated value.
+         * @throws Exception
+         */
+        double interpolate( double xp, double yp, double zp ) throws Exception {
+            int stationsNum = n;
+            if (tree != null) {
+                stationsNum = neighboursNum;
+                int[] nearest = nearestStations(xp, yp);
+                if (!Arrays.equals(nearest, neighbours)) {
+                    neighbours = nearest;
+                    for( int i = 0; i < stationsNum; i++ ) {
+                        x[i] = xStation[nearest[i]];
+                        y[i] = yStation[nearest[i]];
+                        z[i] = zStation[nearest[i]];
+                        h[i] = hStation[nearest[i]];
+                    }
+                    linearSystem = null;
+                }
+            }
+            if (linearSystem == null) {
+                /*
+                 * calculating the covariance matrix.
+                 */
+                linearSystem = new LinearSystem(covMatrixCalculating(x, y, z, stationsNum, null));
+            }
+
+            /*
+             * calculating the right hand side of the kriging linear
+             * system.
+             */
+            double[] knownTerm = knownTermsCalculation(x, y, z, stationsNum, xp, yp, zp);
+
+            /*
+             * solve the linear system, where the result is the weight. The
+             * decomposition of the matrix is reused between the points.
+             */
+            ColumnVector solution = linearSystem.solve(new ColumnVector(knownTerm), true);
+            double[] moltiplicativeFactor = solution.copyValues1D();
+
+            double h0 = 0.0;
+            double sum = 0.0;
+            for( int k = 0; k < stationsNum; k++ ) {
+                h0 = h0 + moltiplicativeFactor[k] * h[k];
+                sum = sum + moltiplicativeFactor[k];
+            }
+
+            if (doLogarithmic) {
+                h0 = Math.exp(h0);
+            }
+            if (Math.abs(sum - 1) >= TOLL) {
+                throw new ModelsRuntimeException("Error in the coffeicients calculation", OmsKriging.this.getClass()
+                        .getSimpleName());
+            }
+            return h0;
+        }
+
+        /**
+         * Find the nearest stations to a point.
+         * 
+         * <p>The search window is enlarged until it contains enough stations and
+         * the farthest of the nearest ones lies inside the window.</p>
+         * 
+         * @param xp the x coordinate of the point.
+         * @param yp the y coordinate of the point.
+         * @return the sorted indexes of the nearest stations.
+         */
+        private int[] nearestStations( double xp, double yp ) {
+            int[] nearest = new int[neighboursNum];
+            double[] nearestDistances = new double[neighboursNum];
+            double searchRadius = radius;
+            while( true ) {
+                List< ? > candidates = tree.query(new Envelope(xp - searchRadius, xp + searchRadius, yp - searchRadius, yp
+                        + searchRadius));
+                int candidatesNum = candidates.size();
+                if (candidatesNum >= neighboursNum) {
+                    // keep the nearest candidates through insertion in the sorted arrays
+                    int found = 0;
+                    for( Object candidate : candidates ) {
+                        int index = (Integer) candidate;
+                        double dx = xStation[index] - xp;
+                        double dy = yStation[index] - yp;
+                        double distance = dx * dx + dy * dy;
+                        if (found == neighboursNum && distance >= nearestDistances[found - 1]) {
+                            continue;
+                        }
+                        int position = found < neighboursNum ? found++ : found - 1;
+                        while( position > 0 && nearestDistances[position - 1] > distance ) {
+                            nearestDistances[position] = nearestDistances[position - 1];
+                            nearest[position] = nearest[position - 1];
+                            position--;
+                        }
+                        nearestDistances[position] = distance;
+                        nearest[position] = index;
+                    }
+                    if (candidatesNum == n || Math.sqrt(nearestDistances[neighboursNum - 1]) <= searchRadius) {
+                        Arrays.sort(nearest);
+                        return nearest;
+                    }
+                }
+                searchRadius = searchRadius * 2.0;
+            }
+        }
+    }
+
+    /**
+     * Get the factorized kriging system of all the stations.
+     * 
+     * <p>The system of the previous time step is returned if the stations
+     * and the variogram parameters did not change.</p>
+     * 
+     * @param xStation the x coordinates of the stations.
+     * @param yStation the y coordinates of the stations.
+     * @param zStation the z coordinates of the stations.
+     * @param n the number of stations.
+     * @return the system, which can be solved concurrently.
+     * @throws Exception
+     */
+    private LinearSystem getStationsSystem( double[] xStation, double[] yStation, double[] zStation, int n )
+            throws Exception {
+        double[] params = new double[]{defaultVariogramMode, pMode, pSemivariogramType, pNug, pA, pS, pVariance};
+        if (pIntegralscale != null) {
+            int length = params.length;
+            params = Arrays.copyOf(params, length + pIntegralscale.length);
+            System.arraycopy(pIntegralscale, 0, params, length, pIntegralscale.length);
+        }
+        // the elevations are only used in the three dimensional mode
+        StationsVariogram stations = StationsVariogram.getCached(xStation, yStation, pMode == 0 ? zStation : null, n);
+        if (stationsCacheSystem == null || stations != stationsCacheVariogram || !Arrays.equals(params, stationsCacheParams)) {
+            LinearSystem system = new LinearSystem(covMatrixCalculating(xStation, yStation, zStation, n, stations));
+            /*
+             * a first solve factorizes the system on this thread, the following
+             * solves only read the factorization.
+             */
+            system.solve(new ColumnVector(n + 1), false);
+            stationsCacheVariogram = stations;
+            stationsCacheParams = params;
+            stationsCacheSystem = system;
+        }
+        return stationsCacheSystem;
+    }
+
     /**
      * Verify the input of the model.
      */
@@ -671,8 +951,24 @@ public class OmsKriging extends JGTModel {
         if (isNovalue(rz)) {
             rz = 0;
         }
+        return variogram(c0, a, sill, Math.sqrt(rx * rx + rz * rz + ry * ry));
+    }
+
+    /**
+     * The gaussian variogram
+     * 
+     * @param c0
+     *            nugget.
+     * @param a
+     *            range.
+     * @param sill
+     *            sill.
+     * @param h2
+     *            distance.
+     * @return the variogram value
+     */
+    private double variogram( double c0, double a, double sill, double h2 ) {
         double value = 0;
-        double h2 = Math.sqrt(rx * rx + rz * rz + ry * ry);
         if (pSemivariogramType == 0) {
             value = c0 + sill * (1 - Math.exp(-(h2 * h2) / (a * a)));
         }
@@ -718,9 +1014,12 @@ public class OmsKriging extends JGTModel {
      *            the z coordinates.
      * @param n
      *            the number of the stations points.
+     * @param stations
+     *            the distances of the stations, can be <code>null</code>.
+     *            Used in the two dimensional mode of the semivariogram.
      * @return
      */
-    private double[][] covMatrixCalculating( double[] x, double[] y, double[] z, int n ) {
+    private double[][] covMatrixCalculating( double[] x, double[] y, double[] z, int n, StationsVariogram stations ) {
         double[][] ap = new double[n + 1][n + 1];
         if (defaultVariogramMode == 0) {
             for( int j = 0; j < n; j++ ) {
@@ -741,13 +1040,18 @@ public class OmsKriging extends JGTModel {
         } else if (defaultVariogramMode == 1) {
             for( int j = 0; j < n; j++ ) {
                 for( int i = 0; i < n; i++ ) {
-                    double rx = x[i] - x[j];
-                    double ry = y[i] - y[j];
-                    double rz = 0;
-                    if (pMode == 0) {
-                        rz = z[i] - z[j];
+                    double tmp;
+                    if (stations != null && pMode != 0) {
+                        tmp = variogram(pNug, pA, pS, stations.getDistance(i, j));
+                    } else {
+                        double rx = x[i] - x[j];
+                        double ry = y[i] - y[j];
+                        double rz = 0;
+                        if (pMode == 0) {
+                            rz = z[i] - z[j];
+                        }
+                        tmp = variogram(pNug, pA, pS, rx, ry, rz);
                     }
-                    double tmp = variogram(pNug, pA, pS, rx, ry, rz);
 
                     ap[j][i] = tmp;
                     ap[i][j] = tmp;
@@ -776,23 +1080,29 @@ public class OmsKriging extends JGTModel {
      *            the z coordinates.
      * @param n
      *            the number of the stations points.
+     * @param xp
+     *            the x coordinate of the point to interpolate.
+     * @param yp
+     *            the y coordinate of the point to interpolate.
+     * @param zp
+     *            the z coordinate of the point to interpolate.
      * @return
      */
-    private double[] knownTermsCalculation( double[] x, double[] y, double[] z, int n ) {
+    private double[] knownTermsCalculation( double[] x, double[] y, double[] z, int n, double xp, double yp, double zp ) {
 
         double[] gamma = new double[n + 1];
         if (defaultVariogramMode == 0) {
             for( int i = 0; i < n; i++ ) {
-                double rx = x[i] - x[n];
-                double ry = y[i] - y[n];
-                double rz = z[i] - z[n];
+                double rx = x[i] - xp;
+                double ry = y[i] - yp;
+                double rz = z[i] - zp;
                 gamma[i] = variogram(rx, ry, rz);
             }
         } else if (defaultVariogramMode == 1) {
             for( int i = 0; i < n; i++ ) {
-                double rx = x[i] - x[n];
-                double ry = y[i] - y[n];
-                double rz = z[i] - z[n];
+                double rx = x[i] - xp;
+                double ry = y[i] - yp;
+                double rz = z[i] - zp;
                 gamma[i] = variogram(pNug, pA, pS, rx, ry, rz);
             }
 
@@ -190,7 +190,8 @@ public class OmsVariogram extends JGTModel {
             }
         }
 
-        outResult = processAlgorithm(xStation, yStation, hStation, pCutoff);
+        StationsVariogram stationsVariogram = StationsVariogram.getCached(xStation, yStation, null, nStaz);
+        outResult = stationsVariogram.calculate(hStation, pCutoff);
         if (pPath != null && pPath.length() > 0) {
             FileWriter Rstatfile = new FileWriter(pPath);
             PrintWriter errestat = new PrintWriter(Rstatfile);
@@ -217,65 +218,23 @@ public class OmsVariogram extends JGTModel {
     }
 
     public static double[][] processAlgorithm( double[] xcord, double ycoord[], double[] values, double Cutoffinput ) {
+        StationsVariogram variogram = new StationsVariogram(xcord, ycoord, null, xcord.length);
+        return variogram.calculate(values, Cutoffinput);
+    }
 
-        double x1, x2, y1, y2;
-        double dDifX, dDifY;
-        double value;
-        double mean = 0;
-        double maxDist = 0;
-
-        int Cutoff_divide = 15;
-        double Cutoff;
-        int iCount = xcord.length;
-        double d[][] = new double[iCount][iCount];
-        double x_max = xcord[0], y_max = ycoord[0], diagonale;
-        double x_min = xcord[0], y_min = ycoord[0];
-        for( int i = 1; i < iCount; i++ ) {
-            // System.out.println(values[i]);
-            // System.out.println(xcord[i]);
-            // System.out.println(ycoord[i]);
-            x_min = Math.min(x_min, xcord[i]);
-            y_min = Math.min(y_min, ycoord[i]);
-            x_max = Math.max(x_max, xcord[i]);
-            y_max = Math.max(y_max, ycoord[i]);
-
-        }
-
-        diagonale = Math.sqrt((x_max - x_min) * (x_max - x_min) + (y_max - y_min) * (y_max - y_min));
-
-        if (Cutoffinput == 0) {
-            Cutoff = diagonale / 3;
-        } else
-            Cutoff = Cutoffinput;
-        // System.out.println(Cutoff);
-        for( int i = 0; i < iCount; i++ ) {
-            x1 = xcord[i];
-            y1 = ycoord[i];
-            value = values[i];
-
-            mean += value;
-
-            for( int j = 0; j < iCount; j++ ) {
-
-                x2 = xcord[j];
-                y2 = ycoord[j];
-
-                dDifX = x2 - x1;
-                dDifY = y2 - y1;
-                d[i][j] = Math.sqrt(dDifX * dDifX + dDifY * dDifY); // Teor
-                                                                    // Pitagora
-
-                maxDist = Math.max(maxDist, d[i][j]);
-
-            }
-        }
-
-        mean /= (double) iCount; // media dei valori di pioggia
-        double[][] risultato = calculate(Cutoff_divide, Cutoff, d, values, mean, maxDist);
-
-        return risultato;
-
-    } // chiusura metodo
+    /**
+     * Calculate the experimental variograms of many time steps for the same stations.
+     * 
+     * @param xcord the x coordinates of the stations.
+     * @param ycoord the y coordinates of the stations.
+     * @param values the values of the stations, as values[timestep][station].
+     * @param Cutoffinput the cutoff distance, if 0 a third of the diagonal of the stations extent is used.
+     * @return the variograms of the time steps.
+     */
+    public static double[][][] processAlgorithm( double[] xcord, double ycoord[], double[][] values, double Cutoffinput ) {
+        StationsVariogram variogram = new StationsVariogram(xcord, ycoord, null, xcord.length);
+        return variogram.calculate(values, Cutoffinput);
+    }
 
     public static double[][] calculate( int num, double cutoff, double[][] matricedelledistanze, double[] values, double media,
             double maxdistanza ) {
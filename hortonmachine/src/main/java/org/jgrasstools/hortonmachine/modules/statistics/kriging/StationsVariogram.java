@@ -0,0 +1,352 @@
+/* This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.modules.statistics.kriging;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The experimental variogram of a fixed set of stations.
+ *
+ * <p>The distances between the stations and the distance class of each couple
+ * of stations only depend on the station positions, so they are calculated once
+ * and kept. The variogram of a set of measured values then only needs to sum the
+ * value dependent terms over the cached couples. Many time steps can be calculated
+ * at once through {@link #calculate(double[][], double)}.</p>
+ *
+ * <p>The results are the same as the ones of {@link OmsVariogram#calculate(int, double, double[][], double[], double, double)}.</p>
+ *
+ * <p>The instances got through {@link #getCached(double[], double[], double[], int)} are
+ * shared, so that {@link OmsVariogram} and {@link OmsKriging} working on the same
+ * stations calculate the distances once.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class StationsVariogram {
+
+    /**
+     * The number of distance classes in which the cutoff distance is divided.
+     */
+    public static final int CUTOFF_DIVIDE = 15;
+
+    /**
+     * The number of station sets kept by {@link #getCached(double[], double[], double[], int)}.
+     */
+    private static final int CACHE_SIZE = 4;
+
+    private static final LinkedList<StationsVariogram> cache = new LinkedList<StationsVariogram>();
+
+    private final int n;
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+
+    /**
+     * The distances of the couples i < j, packed by rows.
+     */
+    private final double[] distances;
+    private final double maxDistance;
+    private final double diagonal;
+
+    /*
+     * the distance classes, built for the last requested cutoff.
+     */
+    private double classesCutoff = Double.NaN;
+    private int classesNum;
+    private int[] pairFirst;
+    private int[] pairSecond;
+    private int[] pairClass;
+    private int[] classPoints;
+    private double[] classDistances;
+    private int[] stationClassesStart;
+    private int[] stationClasses;
+
+    /**
+     * Get the variogram of a set of stations, reusing the one previously built for the same stations.
+     *
+     * <p>The last used station sets are kept, the least recently used one is dropped
+     * when a new set is added.</p>
+     *
+     * @param x the x coordinates of the stations.
+     * @param y the y coordinates of the stations.
+     * @param z the z coordinates of the stations, can be <code>null</code>.
+     * @param n the number of stations (the first n of the arrays are used).
+     * @return the variogram of the stations.
+     */
+    public static StationsVariogram getCached( double[] x, double[] y, double[] z, int n ) {
+        synchronized (cache) {
+            Iterator<StationsVariogram> iterator = cache.iterator();
+            while( iterator.hasNext() ) {
+                StationsVariogram variogram = iterator.next();
+                if (variogram.isFor(x, y, z, n)) {
+                    iterator.remove();
+                    cache.addFirst(variogram);
+                    return variogram;
+                }
+            }
+        }
+        StationsVariogram variogram = new StationsVariogram(x, y, z, n);
+        synchronized (cache) {
+            cache.addFirst(variogram);
+            if (cache.size() > CACHE_SIZE) {
+                cache.removeLast();
+            }
+        }
+        return variogram;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param x the x coordinates of the stations.
+     * @param y the y coordinates of the stations.
+     * @param z the z coordinates of the stations, can be <code>null</code>.
+     * @param n the number of stations (the first n of the arrays are used).
+     */
+    public StationsVariogram( double[] x, double[] y, double[] z, int n ) {
+        this.n = n;
+        this.x = Arrays.copyOf(x, n);
+        this.y = Arrays.copyOf(y, n);
+        this.z = z == null ? null : Arrays.copyOf(z, n);
+
+        double xMin = n > 0 ? x[0] : 0;
+        double xMax = xMin;
+        double yMin = n > 0 ? y[0] : 0;
+        double yMax = yMin;
+        for( int i = 1; i < n; i++ ) {
+            xMin = Math.min(xMin, x[i]);
+            yMin = Math.min(yMin, y[i]);
+            xMax = Math.max(xMax, x[i]);
+            yMax = Math.max(yMax, y[i]);
+        }
+        diagonal = Math.sqrt((xMax - xMin) * (xMax - xMin) + (yMax - yMin) * (yMax - yMin));
+
+        distances = new double[n * (n - 1) / 2];
+        double max = 0;
+        int index = 0;
+        for( int i = 0; i < n; i++ ) {
+            for( int j = i + 1; j < n; j++ ) {
+                double dx = x[j] - x[i];
+                double dy = y[j] - y[i];
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                distances[index++] = distance;
+                max = Math.max(max, distance);
+            }
+        }
+        maxDistance = max;
+    }
+
+    /**
+     * Checks if the cache was built for a set of stations.
+     *
+     * @param x the x coordinates of the stations.
+     * @param y the y coordinates of the stations.
+     * @param z the z coordinates of the stations, can be <code>null</code>.
+     * @param n the number of stations.
+     * @return <code>true</code> if the stations are the ones of this cache.
+     */
+    public boolean isFor( double[] x, double[] y, double[] z, int n ) {
+        if (n != this.n || x.length < n || y.length < n) {
+            return false;
+        }
+        if ((z == null) != (this.z == null) || (z != null && z.length < n)) {
+            return false;
+        }
+        for( int i = 0; i < n; i++ ) {
+            if (Double.compare(x[i], this.x[i]) != 0 || Double.compare(y[i], this.y[i]) != 0
+                    || (z != null && Double.compare(z[i], this.z[i]) != 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of stations.
+     */
+    public int getStationsNum() {
+        return n;
+    }
+
+    /**
+     * Get the planar distance between two stations.
+     *
+     * @param i the index of the first station.
+     * @param j the index of the second station.
+     * @return the distance.
+     */
+    public double getDistance( int i, int j ) {
+        if (i == j) {
+            return 0;
+        }
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return distances[i * n - i * (i + 1) / 2 + j - i - 1];
+    }
+
+    /**
+     * Calculate the experimental variogram of a set of values.
+     *
+     * @param values the values measured at the stations.
+     * @param cutoff the cutoff distance, if 0 a third of the diagonal of the stations extent is used.
+     * @return the variogram, one row per distance class with number of couples,
+     *          mean distance, semivariance, Moran and Geary indexes.
+     */
+    public double[][] calculate( double[] values, double cutoff ) {
+        return calculate(new double[][]{values}, cutoff)[0];
+    }
+
+    /**
+     * Calculate the experimental variograms of many time steps.
+     *
+     * <p>All the stations need to have a value for all the time steps.</p>
+     *
+     * @param values the values measured at the stations, as values[timestep][station].
+     * @param cutoff the cutoff distance, if 0 a third of the diagonal of the stations extent is used.
+     * @return the variograms of the time steps, see {@link #calculate(double[], double)}.
+     */
+    public synchronized double[][][] calculate( double[][] values, double cutoff ) {
+        buildClasses(cutoff);
+        int steps = values.length;
+
+        // values by station, so that the time steps of a couple are read sequentially
+        double[][] stationValues = new double[n][steps];
+        double[] means = new double[steps];
+        for( int t = 0; t < steps; t++ ) {
+            double[] stepValues = values[t];
+            for( int i = 0; i < n; i++ ) {
+                stationValues[i][t] = stepValues[i];
+                means[t] += stepValues[i];
+            }
+        }
+        for( int t = 0; t < steps; t++ ) {
+            means[t] /= (double) n;
+        }
+
+        double[] semivariances = new double[classesNum * steps];
+        double[] morans = new double[classesNum * steps];
+        double[] denominators = new double[classesNum * steps];
+        int pairsNum = pairClass.length;
+        for( int p = 0; p < pairsNum; p++ ) {
+            double[] values1 = stationValues[pairFirst[p]];
+            double[] values2 = stationValues[pairSecond[p]];
+            int offset = pairClass[p] * steps;
+            for( int t = 0; t < steps; t++ ) {
+                double value1 = values1[t];
+                double value2 = values2[t];
+                double diff = value1 - value2;
+                semivariances[offset + t] += diff * diff;
+                morans[offset + t] += (value1 - means[t]) * (value2 - means[t]);
+            }
+        }
+        for( int i = 0; i < n; i++ ) {
+            double[] values1 = stationValues[i];
+            for( int k = stationClassesStart[i]; k < stationClassesStart[i + 1]; k++ ) {
+                int offset = stationClasses[k] * steps;
+                for( int t = 0; t < steps; t++ ) {
+                    double diff = values1[t] - means[t];
+                    denominators[offset + t] += diff * diff;
+                }
+            }
+        }
+
+        double[][][] results = new double[steps][][];
+        for( int t = 0; t < steps; t++ ) {
+            double[][] result = new double[classesNum][5];
+            int nonZeroNum = 0;
+            for( int c = 0; c < classesNum; c++ ) {
+                int index = c * steps + t;
+                double den = denominators[index];
+                if (den != 0) {
+                    nonZeroNum++;
+                    int points = classPoints[c];
+                    result[c][0] = points;
+                    result[c][1] = classDistances[c] / points;
+                    result[c][2] = semivariances[index] / (2. * points);
+                    result[c][3] = morans[index] / den;
+                    result[c][4] = semivariances[index] * ((points - 1) / (2. * points * den));
+                }
+            }
+            // as in OmsVariogram, the first classes are returned
+            results[t] = Arrays.copyOf(result, nonZeroNum);
+        }
+        return results;
+    }
+
+    /**
+     * Assign the couples of stations to the distance classes of a cutoff.
+     *
+     * @param cutoffInput the cutoff distance, 0 for the default one.
+     */
+    private void buildClasses( double cutoffInput ) {
+        if (pairClass != null && Double.compare(cutoffInput, classesCutoff) == 0) {
+            return;
+        }
+        double cutoff = cutoffInput == 0 ? diagonal / 3 : cutoffInput;
+        double binAmplitude = cutoff / CUTOFF_DIVIDE;
+        classesNum = (int) (maxDistance / binAmplitude + 2);
+
+        int pairsNum = 0;
+        for( double distance : distances ) {
+            if (distance > 0 && distance < cutoff) {
+                pairsNum++;
+            }
+        }
+        pairFirst = new int[pairsNum];
+        pairSecond = new int[pairsNum];
+        pairClass = new int[pairsNum];
+        classPoints = new int[classesNum];
+        classDistances = new double[classesNum];
+        stationClassesStart = new int[n + 1];
+        int[] classes = new int[Math.min(pairsNum, n * classesNum)];
+        boolean[] isInClass = new boolean[classesNum];
+
+        int pair = 0;
+        int index = 0;
+        int stationClassesNum = 0;
+        for( int i = 0; i < n; i++ ) {
+            Arrays.fill(isInClass, false);
+            for( int j = i + 1; j < n; j++ ) {
+                double distance = distances[index++];
+                if (distance > 0 && distance < cutoff) {
+                    int iClass = (int) Math.floor(distance / binAmplitude);
+                    pairFirst[pair] = i;
+                    pairSecond[pair] = j;
+                    pairClass[pair] = iClass;
+                    pair++;
+                    classPoints[iClass]++;
+                    classDistances[iClass] += distance;
+                    isInClass[iClass] = true;
+                }
+            }
+            stationClassesStart[i] = stationClassesNum;
+            for( int c = 0; c < classesNum; c++ ) {
+                if (isInClass[c]) {
+                    classes[stationClassesNum++] = c;
+                }
+            }
+        }
+        stationClassesStart[n] = stationClassesNum;
+        stationClasses = Arrays.copyOf(classes, stationClassesNum);
+        classesCutoff = cutoffInput;
+    }
+
+}
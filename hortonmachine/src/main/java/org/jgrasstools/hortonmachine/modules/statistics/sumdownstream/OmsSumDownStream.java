@@ -96,6 +96,7 @@ public class OmsSumDownStream extends JGTModel {
 
         WritableRaster summedWR = ModelsEngine.sumDownstream(flowIter, toSumIter, colsRows[0], colsRows[1], pUpperThres,
                 pLowerThres, pm);
+        checkCancel();
 
         flowIter.done();
         toSumIter.done();
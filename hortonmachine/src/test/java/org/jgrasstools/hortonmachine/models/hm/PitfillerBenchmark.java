@@ -0,0 +1,119 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.models.hm;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.hortonmachine.modules.demmanipulation.pitfiller.OmsPitfiller;
+import org.jgrasstools.hortonmachine.utils.HMTestMaps;
+
+/**
+ * Benchmark of the pool flooding {@link OmsPitfiller} engine against the priority-flood one.
+ *
+ * <p>Synthetic DEMs of growing size (a tilted noisy surface full of pits and flats)
+ * are filled with both engines, the results are checked to be identical.</p>
+ *
+ * <p>Usage: PitfillerBenchmark [maxSize [iterations]]</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class PitfillerBenchmark {
+
+    public static void main( String[] args ) throws Exception {
+        int maxSize = 500;
+        int iterations = 3;
+        if (args.length > 0) {
+            maxSize = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            iterations = Integer.parseInt(args[1]);
+        }
+
+        System.out.println("size\tflooding[ms]\tpriorityflood[ms]\tspeedup");
+        for( int size = 250; size <= maxSize; size = size * 2 ) {
+            GridCoverage2D dem = createSyntheticDem(size, size);
+
+            // warm up
+            fill(dem, false);
+            fill(dem, true);
+
+            long floodingTime = 0;
+            long priorityFloodTime = 0;
+            for( int i = 0; i < iterations; i++ ) {
+                long t1 = System.nanoTime();
+                GridCoverage2D flooded = fill(dem, false);
+                long t2 = System.nanoTime();
+                GridCoverage2D priorityFlooded = fill(dem, true);
+                long t3 = System.nanoTime();
+                checkEqual(flooded, priorityFlooded, size);
+                floodingTime += t2 - t1;
+                priorityFloodTime += t3 - t2;
+            }
+            double floodingMs = floodingTime / 1E6 / iterations;
+            double priorityFloodMs = priorityFloodTime / 1E6 / iterations;
+            System.out.println(size + "x" + size + "\t" + String.format("%.1f", floodingMs) + "\t"
+                    + String.format("%.1f", priorityFloodMs) + "\t" + String.format("%.1fx", floodingMs / priorityFloodMs));
+        }
+    }
+
+    private static GridCoverage2D fill( GridCoverage2D dem, boolean doPriorityFlood ) throws Exception {
+        OmsPitfiller pitfiller = new OmsPitfiller();
+        pitfiller.inElev = dem;
+        pitfiller.doPriorityFlood = doPriorityFlood;
+        pitfiller.pm = new DummyProgressMonitor();
+        pitfiller.process();
+        return pitfiller.outPit;
+    }
+
+    private static void checkEqual( GridCoverage2D flooded, GridCoverage2D priorityFlooded, int size ) {
+        RandomIter iter1 = CoverageUtilities.getRandomIterator(flooded);
+        RandomIter iter2 = CoverageUtilities.getRandomIterator(priorityFlooded);
+        for( int r = 0; r < size; r++ ) {
+            for( int c = 0; c < size; c++ ) {
+                double v1 = iter1.getSampleDouble(c, r, 0);
+                double v2 = iter2.getSampleDouble(c, r, 0);
+                if (Double.compare(v1, v2) != 0) {
+                    throw new IllegalStateException("Engines differ at " + c + "/" + r + ": " + v1 + " - " + v2);
+                }
+            }
+        }
+        iter1.done();
+        iter2.done();
+    }
+
+    private static GridCoverage2D createSyntheticDem( int cols, int rows ) {
+        Random random = new Random(cols);
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                data[r][c] = 0.5 * (r + c) + 10 * Math.sin(r / 17.0) * Math.cos(c / 23.0) + random.nextInt(8);
+            }
+        }
+        HashMap<String, Double> regionMap = CoverageUtilities.makeRegionParamsMap(rows * 10.0, 0, 0, cols * 10.0, 10, 10, cols,
+                rows);
+        return CoverageUtilities.buildCoverage("dem", data, regionMap, HMTestMaps.getCrs(), true);
+    }
+
+}
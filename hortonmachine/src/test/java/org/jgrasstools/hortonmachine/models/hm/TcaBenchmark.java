@@ -0,0 +1,181 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.models.hm;
+
+import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.image.WritableRaster;
+import java.util.HashMap;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+import javax.media.jai.iterator.WritableRandomIter;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.libs.modules.FlowAccumulationEngine;
+import org.jgrasstools.gears.libs.modules.FlowNode;
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.hortonmachine.modules.demmanipulation.pitfiller.OmsPitfiller;
+import org.jgrasstools.hortonmachine.modules.geomorphology.flow.OmsFlowDirections;
+import org.jgrasstools.hortonmachine.modules.geomorphology.tca.OmsTca;
+import org.jgrasstools.hortonmachine.utils.HMTestMaps;
+
+/**
+ * Benchmark of the {@link FlowAccumulationEngine} based {@link OmsTca} against the
+ * downstream walk from every source cell that it replaced.
+ *
+ * <p>The flow directions of synthetic DEMs of growing size (a tilted noisy surface,
+ * filled with {@link OmsPitfiller}) are accumulated in both ways, the results are
+ * checked to be identical.</p>
+ *
+ * <p>Both keep the whole raster in heap: the engine uses about 13 bytes per cell
+ * and {@link OmsTca} 4 more for its int tca, besides the output raster.</p>
+ *
+ * <p>Usage: TcaBenchmark [maxSize [iterations]]</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TcaBenchmark {
+
+    public static void main( String[] args ) throws Exception {
+        int maxSize = 1000;
+        int iterations = 3;
+        if (args.length > 0) {
+            maxSize = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            iterations = Integer.parseInt(args[1]);
+        }
+
+        System.out.println("size\twalk[ms]\tengine[ms]\tspeedup");
+        for( int size = 250; size <= maxSize; size = size * 2 ) {
+            GridCoverage2D flow = createSyntheticFlow(size, size);
+
+            // warm up
+            walkTca(flow, size, size);
+            engineTca(flow);
+
+            long walkTime = 0;
+            long engineTime = 0;
+            for( int i = 0; i < iterations; i++ ) {
+                long t1 = System.nanoTime();
+                WritableRaster walked = walkTca(flow, size, size);
+                long t2 = System.nanoTime();
+                GridCoverage2D accumulated = engineTca(flow);
+                long t3 = System.nanoTime();
+                checkEqual(walked, accumulated, size);
+                walkTime += t2 - t1;
+                engineTime += t3 - t2;
+            }
+            double walkMs = walkTime / 1E6 / iterations;
+            double engineMs = engineTime / 1E6 / iterations;
+            System.out.println(size + "x" + size + "\t" + String.format("%.1f", walkMs) + "\t"
+                    + String.format("%.1f", engineMs) + "\t" + String.format("%.1fx", walkMs / engineMs));
+        }
+    }
+
+    private static GridCoverage2D engineTca( GridCoverage2D flow ) throws Exception {
+        OmsTca tca = new OmsTca();
+        tca.inFlow = flow;
+        tca.pm = new DummyProgressMonitor();
+        tca.process();
+        return tca.outTca;
+    }
+
+    /**
+     * The tca as calculated before the engine: every source walks downstream to the outlet,
+     * adding its upstream cells to the cells it passes.
+     */
+    private static WritableRaster walkTca( GridCoverage2D flow, int cols, int rows ) {
+        WritableRaster tcaWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, doubleNovalue);
+        RandomIter flowIter = RandomIterFactory.create(flow.getRenderedImage(), null);
+        WritableRandomIter tcaIter = RandomIterFactory.createWritable(tcaWR, null);
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                FlowNode flowNode = new FlowNode(flowIter, cols, rows, c, r);
+                if (flowNode.isSource()) {
+                    double previousTcaValue = 0.0;
+                    while( flowNode != null && flowNode.isValid() ) {
+                        int col = flowNode.col;
+                        int row = flowNode.row;
+                        double tmpTca = tcaIter.getSampleDouble(col, row, 0);
+                        double newTcaValue;
+                        if (isNovalue(tmpTca)) {
+                            tmpTca = 1.0;
+                            newTcaValue = tmpTca + previousTcaValue;
+                            previousTcaValue = newTcaValue;
+                        } else {
+                            newTcaValue = tmpTca + previousTcaValue;
+                        }
+                        tcaIter.setSample(col, row, 0, newTcaValue);
+                        flowNode = flowNode.goDownstream();
+                    }
+                }
+            }
+        }
+        flowIter.done();
+        tcaIter.done();
+        return tcaWR;
+    }
+
+    private static void checkEqual( WritableRaster walked, GridCoverage2D accumulated, int size ) {
+        RandomIter iter1 = RandomIterFactory.create(walked, null);
+        RandomIter iter2 = CoverageUtilities.getRandomIterator(accumulated);
+        for( int r = 0; r < size; r++ ) {
+            for( int c = 0; c < size; c++ ) {
+                double v1 = iter1.getSampleDouble(c, r, 0);
+                double v2 = iter2.getSampleDouble(c, r, 0);
+                if (isNovalue(v1) != isNovalue(v2) || (!isNovalue(v1) && v1 != v2)) {
+                    throw new IllegalStateException("Tca differs at " + c + "/" + r + ": " + v1 + " - " + v2);
+                }
+            }
+        }
+        iter1.done();
+        iter2.done();
+    }
+
+    private static GridCoverage2D createSyntheticFlow( int cols, int rows ) throws Exception {
+        Random random = new Random(cols);
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                data[r][c] = 0.5 * (r + c) + 10 * Math.sin(r / 17.0) * Math.cos(c / 23.0) + random.nextInt(8);
+            }
+        }
+        HashMap<String, Double> regionMap = CoverageUtilities.makeRegionParamsMap(rows * 10.0, 0, 0, cols * 10.0, 10, 10, cols,
+                rows);
+        GridCoverage2D dem = CoverageUtilities.buildCoverage("dem", data, regionMap, HMTestMaps.getCrs(), true);
+
+        OmsPitfiller pitfiller = new OmsPitfiller();
+        pitfiller.inElev = dem;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.pm = new DummyProgressMonitor();
+        pitfiller.process();
+
+        OmsFlowDirections flowDirections = new OmsFlowDirections();
+        flowDirections.inPit = pitfiller.outPit;
+        flowDirections.pm = new DummyProgressMonitor();
+        flowDirections.process();
+        return flowDirections.outFlow;
+    }
+
+}
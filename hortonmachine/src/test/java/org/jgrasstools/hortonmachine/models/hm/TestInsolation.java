@@ -60,4 +60,21 @@ public class TestInsolation extends HMTestCase {
         checkMatrixEqual(insolationCoverage.getRenderedImage(), HMTestMaps.outInsolation, 0.1);
     }
 
+    public void testInsolationThreaded() throws Exception {
+        double[][] elevationData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs3004();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsInsolation insolation = new OmsInsolation();
+        insolation.inElev = elevationCoverage;
+        insolation.tStartDate = START_DATE;
+        insolation.tEndDate = END_DATE;
+        insolation.pThreads = 2;
+        insolation.pm = pm;
+        insolation.process();
+
+        checkMatrixEqual(insolation.outIns.getRenderedImage(), HMTestMaps.outInsolation, 0.1);
+    }
+
 }
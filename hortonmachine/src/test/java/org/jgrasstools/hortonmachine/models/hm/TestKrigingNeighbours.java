@@ -0,0 +1,174 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.hortonmachine.models.hm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.jgrasstools.hortonmachine.modules.statistics.kriging.OmsKriging;
+import org.jgrasstools.hortonmachine.utils.HMTestCase;
+import org.jgrasstools.hortonmachine.utils.HMTestMaps;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Test the nearest stations and the multithreaded interpolation of {@link OmsKriging}
+ * against the single threaded run on all the stations.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestKrigingNeighbours extends HMTestCase {
+    private static final int STATIONS_NUM = 40;
+    /*
+     * more than a block of points, so that the points are split between the threads
+     */
+    private static final int POINTS_NUM = 3500;
+    private static final int NEIGHBOURS_NUM = 8;
+
+    private double[] xStations = new double[STATIONS_NUM];
+    private double[] yStations = new double[STATIONS_NUM];
+    private HashMap<Integer, double[]> data = new HashMap<Integer, double[]>();
+    private double[] xPoints = new double[POINTS_NUM];
+    private double[] yPoints = new double[POINTS_NUM];
+
+    protected void setUp() throws Exception {
+        Random random = new Random(11);
+        for( int i = 0; i < STATIONS_NUM; i++ ) {
+            xStations[i] = random.nextDouble() * 1000;
+            yStations[i] = random.nextDouble() * 1000;
+            double value = 20 + 0.01 * xStations[i] - 0.005 * yStations[i] + 3 * Math.sin(xStations[i] / 150.0);
+            data.put(i, new double[]{value});
+        }
+        for( int i = 0; i < POINTS_NUM; i++ ) {
+            xPoints[i] = random.nextDouble() * 1000;
+            yPoints[i] = random.nextDouble() * 1000;
+        }
+    }
+
+    public void testThreads() throws Exception {
+        int[] allStations = range(STATIONS_NUM);
+        int[] allPoints = range(POINTS_NUM);
+        HashMap<Integer, double[]> expected = krige(allStations, allPoints, 0, 1);
+        assertEquals(POINTS_NUM, expected.size());
+
+        checkEquals(expected, krige(allStations, allPoints, 0, 4), 0.0);
+        // more neighbours than stations means all the stations
+        checkEquals(expected, krige(allStations, allPoints, STATIONS_NUM, 4), 0.0);
+    }
+
+    public void testNeighbours() throws Exception {
+        int[] allStations = range(STATIONS_NUM);
+        int[] allPoints = range(POINTS_NUM);
+        HashMap<Integer, double[]> neighboursResult = krige(allStations, allPoints, NEIGHBOURS_NUM, 1);
+        assertEquals(POINTS_NUM, neighboursResult.size());
+        checkEquals(neighboursResult, krige(allStations, allPoints, NEIGHBOURS_NUM, 4), 0.0);
+
+        // a full single threaded run on only the nearest stations of each point
+        for( int p = 0; p < POINTS_NUM; p = p + 50 ) {
+            HashMap<Integer, double[]> expected = krige(nearestStations(p), new int[]{p}, 0, 1);
+            assertEquals(expected.get(p)[0], neighboursResult.get(p)[0], 1E-6);
+        }
+    }
+
+    private HashMap<Integer, double[]> krige( int[] stations, int[] points, int maxNeighbours, int threads ) throws Exception {
+        OmsKriging kriging = new OmsKriging();
+        kriging.pm = pm;
+        kriging.inStations = toFeatures("stations", stations, xStations, yStations);
+        kriging.fStationsid = "id";
+        kriging.inData = data;
+        kriging.inInterpolate = toFeatures("points", points, xPoints, yPoints);
+        kriging.fInterpolateid = "id";
+        kriging.pMode = 0;
+        kriging.defaultVariogramMode = 0;
+        kriging.pIntegralscale = new double[]{300, 300, 100};
+        kriging.pVariance = 5;
+        kriging.pMaxNeighbours = maxNeighbours;
+        kriging.pThreads = threads;
+        kriging.process();
+        return kriging.outData;
+    }
+
+    private void checkEquals( HashMap<Integer, double[]> expected, HashMap<Integer, double[]> result, double delta ) {
+        assertEquals(expected.size(), result.size());
+        for( Integer id : expected.keySet() ) {
+            assertEquals(expected.get(id)[0], result.get(id)[0], delta);
+        }
+    }
+
+    private int[] nearestStations( final int point ) {
+        Integer[] order = new Integer[STATIONS_NUM];
+        for( int i = 0; i < STATIONS_NUM; i++ ) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>(){
+            public int compare( Integer o1, Integer o2 ) {
+                return Double.compare(distance(o1, point), distance(o2, point));
+            }
+        });
+        int[] nearest = new int[NEIGHBOURS_NUM];
+        for( int i = 0; i < NEIGHBOURS_NUM; i++ ) {
+            nearest[i] = order[i];
+        }
+        Arrays.sort(nearest);
+        return nearest;
+    }
+
+    private double distance( int station, int point ) {
+        double dx = xStations[station] - xPoints[point];
+        double dy = yStations[station] - yPoints[point];
+        return dx * dx + dy * dy;
+    }
+
+    private static int[] range( int num ) {
+        int[] range = new int[num];
+        for( int i = 0; i < num; i++ ) {
+            range[i] = i;
+        }
+        return range;
+    }
+
+    private static SimpleFeatureCollection toFeatures( String name, int[] ids, double[] x, double[] y ) {
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName(name);
+        b.setCRS(HMTestMaps.getCrs());
+        b.add("the_geom", Point.class);
+        b.add("id", Integer.class);
+        SimpleFeatureType type = b.buildFeatureType();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+
+        DefaultFeatureCollection collection = new DefaultFeatureCollection();
+        for( int id : ids ) {
+            Point point = GeometryUtilities.gf().createPoint(new Coordinate(x[id], y[id]));
+            builder.addAll(new Object[]{point, id});
+            // padded ids, to keep the features in id order
+            collection.add(builder.buildFeature(String.format("%s.%06d", name, id)));
+        }
+        return collection;
+    }
+
+}
@@ -17,7 +17,11 @@
  */
 package org.jgrasstools.hortonmachine.models.hm;
 
+import java.awt.image.RenderedImage;
 import java.util.HashMap;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.jgrasstools.gears.libs.monitor.PrintStreamProgressMonitor;
@@ -49,4 +53,64 @@ public class TestPitfiller extends HMTestCase {
 
         checkMatrixEqual(pitfillerCoverage.getRenderedImage(), HMTestMaps.outPitData, 0);
     }
+
+    public void testPitfillerPriorityFlood() throws Exception {
+
+        double[][] elevationData = HMTestMaps.mapData;
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsPitfiller pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.pm = pm;
+        pitfiller.process();
+
+        GridCoverage2D pitfillerCoverage = pitfiller.outPit;
+
+        checkMatrixEqual(pitfillerCoverage.getRenderedImage(), HMTestMaps.outPitData, 0);
+    }
+
+    public void testPriorityFloodMatchesFlooding() throws Exception {
+        int cols = 60;
+        int rows = 45;
+        Random random = new Random(12345);
+        double[][] elevationData = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                // a tilted surface with random pits, flats and holes
+                elevationData[r][c] = r + c + random.nextInt(20);
+                if (random.nextInt(30) == 0) {
+                    elevationData[r][c] = Double.NaN;
+                }
+            }
+        }
+        HashMap<String, Double> envelopeParams = CoverageUtilities.makeRegionParamsMap(rows * 10.0, 0, 0, cols * 10.0, 10, 10,
+                cols, rows);
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs, true);
+
+        OmsPitfiller pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.pm = pm;
+        pitfiller.process();
+        RandomIter floodingIter = CoverageUtilities.getRandomIterator(pitfiller.outPit);
+        double[][] expected = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                expected[r][c] = floodingIter.getSampleDouble(c, r, 0);
+            }
+        }
+        floodingIter.done();
+
+        pitfiller = new OmsPitfiller();
+        pitfiller.inElev = elevationCoverage;
+        pitfiller.doPriorityFlood = true;
+        pitfiller.pm = pm;
+        pitfiller.process();
+        RenderedImage priorityFloodImage = pitfiller.outPit.getRenderedImage();
+
+        checkMatrixEqual(priorityFloodImage, expected, 0);
+    }
 }
@@ -68,4 +68,29 @@ public class TestTca extends HMTestCase {
         checkMatrixEqual(tcaCoverage.getRenderedImage(), HMTestMaps.tcaData);
     }
 
+    public void testNewTcaTiled() throws Exception {
+        HashMap<String, Double> envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+
+        double[][] flowData = HMTestMaps.flowData;
+        GridCoverage2D flowCoverage = CoverageUtilities.buildCoverage("flow", flowData, envelopeParams, crs, true);
+
+        long threshold = CoverageUtilities.getTiledRasterThreshold();
+        try {
+            CoverageUtilities.setTiledRasterThreshold(1);
+
+            OmsTca tca = new OmsTca();
+            tca.inFlow = flowCoverage;
+            tca.pm = pm;
+            tca.process();
+            GridCoverage2D tcaCoverage = tca.outTca;
+
+            assertNotNull(CoverageUtilities.getTiledDataBuffer(tcaCoverage.getRenderedImage()));
+            checkMatrixEqual(tcaCoverage.getRenderedImage(), HMTestMaps.tcaData);
+            tcaCoverage.dispose(true);
+        } finally {
+            CoverageUtilities.setTiledRasterThreshold(threshold);
+        }
+    }
+
 }
\ No newline at end of file
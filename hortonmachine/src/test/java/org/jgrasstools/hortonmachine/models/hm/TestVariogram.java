@@ -8,6 +8,7 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.jgrasstools.gears.io.shapefile.OmsShapefileFeatureReader;
 import org.jgrasstools.gears.io.timedependent.OmsTimeSeriesIteratorReader;
 import org.jgrasstools.hortonmachine.modules.statistics.kriging.OmsVariogram;
+import org.jgrasstools.hortonmachine.modules.statistics.kriging.StationsVariogram;
 import org.jgrasstools.hortonmachine.utils.HMTestCase;
 
 public class TestVariogram extends HMTestCase {
@@ -111,4 +112,70 @@ public class TestVariogram extends HMTestCase {
 
     }
 
+    public void testVariogramTimesteps() throws Exception {
+        double[] x = {0, 10, 25, 40, 3, 17, 33, 8, 29, 44};
+        double[] y = {0, 5, 2, 12, 20, 28, 22, 35, 40, 33};
+        int steps = 6;
+        double[][] values = new double[steps][x.length];
+        for( int t = 0; t < steps; t++ ) {
+            for( int i = 0; i < x.length; i++ ) {
+                values[t][i] = (i * 7 + t * 3) % 11 + 0.5 * t;
+            }
+        }
+
+        double cutoff = 60;
+        double[][][] variograms = OmsVariogram.processAlgorithm(x, y, values, cutoff);
+        assertEquals(steps, variograms.length);
+
+        // the legacy calculation on the full distances matrix
+        int n = x.length;
+        double[][] distances = new double[n][n];
+        double maxDistance = 0;
+        for( int i = 0; i < n; i++ ) {
+            for( int j = 0; j < n; j++ ) {
+                distances[i][j] = Math.sqrt((x[i] - x[j]) * (x[i] - x[j]) + (y[i] - y[j]) * (y[i] - y[j]));
+                maxDistance = Math.max(maxDistance, distances[i][j]);
+            }
+        }
+        for( int t = 0; t < steps; t++ ) {
+            double mean = 0;
+            for( int i = 0; i < n; i++ ) {
+                mean += values[t][i];
+            }
+            mean = mean / n;
+            double[][] expected = OmsVariogram.calculate(15, cutoff, distances, values[t], mean, maxDistance);
+            assertTrue(expected.length > 0);
+            assertEquals(expected.length, variograms[t].length);
+            for( int i = 0; i < expected.length; i++ ) {
+                for( int j = 0; j < expected[i].length; j++ ) {
+                    assertEquals(expected[i][j], variograms[t][i][j], DELTA);
+                }
+            }
+            // the single time step gives the same
+            double[][] single = OmsVariogram.processAlgorithm(x, y, values[t], cutoff);
+            assertEquals(expected.length, single.length);
+            for( int i = 0; i < expected.length; i++ ) {
+                for( int j = 0; j < expected[i].length; j++ ) {
+                    assertEquals(expected[i][j], single[i][j], DELTA);
+                }
+            }
+        }
+    }
+
+    public void testSharedStations() throws Exception {
+        double[] x = {0, 10, 25, 40};
+        double[] y = {0, 5, 2, 12};
+        double[] z = {100, Double.NaN, 120, 130};
+        StationsVariogram stations = StationsVariogram.getCached(x, y, z, x.length);
+        assertSame(stations, StationsVariogram.getCached(x.clone(), y.clone(), z.clone(), x.length));
+        assertNotSame(stations, StationsVariogram.getCached(x, y, null, x.length));
+
+        double[] moved = x.clone();
+        moved[2] = 26;
+        StationsVariogram movedStations = StationsVariogram.getCached(moved, y, z, x.length);
+        assertNotSame(stations, movedStations);
+        assertEquals(Math.sqrt(26 * 26 + 2 * 2), movedStations.getDistance(2, 0), DELTA);
+        assertEquals(Math.sqrt(26 * 26 + 2 * 2), movedStations.getDistance(0, 2), DELTA);
+    }
+
 }
@@ -852,6 +852,8 @@ public class GearsMessages {
     public static final String OMSTMSGENERATOR_pImagetype_DESCRIPTION = "The image type to generate (0 = png = default, 1 = jpg).";
     public static final String OMSTMSGENERATOR_pCheckcolor_DESCRIPTION = "A color rgb tripled. if it is not null and a tiles is made only of that color, then the tiles is not generated. Usefull to avoid generation of empty tiles.";
     public static final String OMSTMSGENERATOR_doLegacyGrass_DESCRIPTION = "Optional flag to force a legacy GRASS driver usage.";
+    public static final String OMSTMSGENERATOR_doPyramid_DESCRIPTION = "Draw the maps only at the max zoom level and build the lower zoom levels downsampling the tiles.";
+    public static final String OMSTMSGENERATOR_doDeduplicate_DESCRIPTION = "Store identical tiles only once in the mbtiles database (the tiles table becomes a view).";
     public static final String OMSTMSGENERATOR_inPath_DESCRIPTION = "The folder inside which to create the tiles.";
     public static final String OMSTMSGENERATOR_pMaxThreads_DESCRIPTION = "Max threads to use (default 1)";
 
@@ -1472,6 +1474,8 @@ public class GearsMessages {
     public static final String OMSTIMESERIESITERATORREADER_tStart_DESCRIPTION = "The optional time at which start to read (format: yyyy-MM-dd HH:mm ).";
     public static final String OMSTIMESERIESITERATORREADER_tEnd_DESCRIPTION = "The optional time at which end to read (format: yyyy-MM-dd HH:mm ).";
     public static final String OMSTIMESERIESITERATORREADER_tTimestep_DESCRIPTION = "The reading timestep in minutes.";
+    public static final String OMSTIMESERIESITERATORREADER_doFast_DESCRIPTION = "If true, the values are decoded directly from the file bytes and the output map and arrays are reused between steps (default is false).";
+    public static final String OMSTIMESERIESITERATORREADER_doCache_DESCRIPTION = "If true, the file is converted once into a binary cache (file path + .tscache) that is memory mapped by this and later runs. Implies the fast reading (default is false).";
 
     public static final String OMSPOINTDIRECTIONCALCULATOR_DESCRIPTION = "Calculates the direction of maximum slope for a source point on a dem.";
     public static final String OMSPOINTDIRECTIONCALCULATOR_DOCUMENTATION = "";
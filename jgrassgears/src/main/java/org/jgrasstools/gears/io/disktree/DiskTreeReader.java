@@ -22,14 +22,34 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import com.vividsolutions.jts.JTSVersion;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.WKBReader;
 
 /**
  * Reader for the Sort-Tile-Recursive disk index.
  * 
+ * <p>The index of the binary format is memory mapped and queried 
+ * in place, so opening the file costs the same no matter how large the 
+ * index is. Queries and geometry reads can be done concurrently from 
+ * multiple threads.</p>
+ * 
+ * <p>Files that fit in a single mapping are mapped whole and the file handle
+ * is released right after opening. Closing the reader while other threads
+ * are still querying it is then safe, the next read opens the file again.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  * @see IDiskTree
  */
@@ -39,7 +59,27 @@ public class DiskTreeReader implements IDiskTree {
 
     private STRtree indexObj;
 
-    private RandomAccessFile raf = null;
+    private volatile Mapping mapping;
+
+    /**
+     * The state of an opened file.
+     */
+    private static class Mapping {
+        /*
+         * the file handle, kept open only for legacy files and 
+         * files too large to be mapped whole
+         */
+        RandomAccessFile raf;
+        FileChannel channel;
+        // the whole file, if mapped
+        ByteBuffer fileBuffer;
+        boolean isLegacy;
+        int itemsCount;
+        int levelsCount;
+        int[] levelSizes;
+        int[] levelOffsets;
+        ByteBuffer indexBuffer;
+    }
 
     /**
      * Constructor.
@@ -51,18 +91,267 @@ public class DiskTreeReader implements IDiskTree {
     }
 
     /**
-     * Reads the {@link STRtree} object from the file.
+     * Opens the file and maps the index.
+     * 
+     * <p>This is called automatically by the reading methods if necessary.</p>
+     * 
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        getMapping();
+    }
+
+    private Mapping getMapping() throws IOException {
+        Mapping current = mapping;
+        if (current == null) {
+            current = doOpen();
+        }
+        return current;
+    }
+
+    private synchronized Mapping doOpen() throws IOException {
+        if (mapping != null) {
+            return mapping;
+        }
+        Mapping newMapping = new Mapping();
+        RandomAccessFile raf = new RandomAccessFile(new File(path), "r");
+        try {
+            FileChannel channel = raf.getChannel();
+
+            byte[] magic = new byte[MAGIC.length];
+            raf.seek(0);
+            raf.readFully(magic);
+            for( int i = 0; i < MAGIC.length; i++ ) {
+                if (magic[i] != MAGIC[i]) {
+                    newMapping.isLegacy = true;
+                    newMapping.raf = raf;
+                    newMapping.channel = channel;
+                    mapping = newMapping;
+                    return newMapping;
+                }
+            }
+
+            int version = raf.readInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported disktree format version: " + version);
+            }
+            newMapping.itemsCount = raf.readInt();
+            raf.readInt(); // node capacity, needed only for writing
+            int levelsCount = raf.readInt();
+            raf.seek(HEADER_INDEX_ADDRESS_POSITION);
+            long indexAddress = raf.readLong();
+
+            int[] levelSizes = new int[levelsCount];
+            int[] levelOffsets = new int[levelsCount];
+            long entriesCount = 0;
+            raf.seek(indexAddress);
+            for( int i = 0; i < levelsCount; i++ ) {
+                levelSizes[i] = raf.readInt();
+                entriesCount += levelSizes[i];
+            }
+            long indexSize = entriesCount * ENTRY_SIZE;
+            if (indexSize > Integer.MAX_VALUE) {
+                throw new IOException("The disktree index is too large to be mapped: " + indexSize);
+            }
+            int offset = 0;
+            for( int i = 0; i < levelsCount; i++ ) {
+                levelOffsets[i] = offset;
+                offset += levelSizes[i] * ENTRY_SIZE;
+            }
+            newMapping.levelsCount = levelsCount;
+            newMapping.levelSizes = levelSizes;
+            newMapping.levelOffsets = levelOffsets;
+
+            long indexStart = indexAddress + levelsCount * 4L;
+            long fileSize = channel.size();
+            if (fileSize <= Integer.MAX_VALUE) {
+                // the mapping stays valid after the file is closed
+                MappedByteBuffer fileBuffer = channel.map(MapMode.READ_ONLY, 0, fileSize);
+                ByteBuffer indexBuffer = fileBuffer.duplicate();
+                indexBuffer.position((int) indexStart);
+                indexBuffer.limit((int) (indexStart + indexSize));
+                newMapping.fileBuffer = fileBuffer;
+                newMapping.indexBuffer = indexBuffer.slice();
+                raf.close();
+            } else {
+                newMapping.indexBuffer = channel.map(MapMode.READ_ONLY, indexStart, indexSize);
+                newMapping.raf = raf;
+                newMapping.channel = channel;
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        mapping = newMapping;
+        return newMapping;
+    }
+
+    /**
+     * @return <code>true</code> if the file has been written in the old java serialized format.
+     * @throws IOException
+     */
+    public boolean isLegacyFormat() throws IOException {
+        return getMapping().isLegacy;
+    }
+
+    /**
+     * @return the number of indexed geometries.
+     * @throws Exception
+     */
+    public int size() throws Exception {
+        Mapping m = getMapping();
+        if (m.isLegacy) {
+            return readIndex().size();
+        }
+        return m.itemsCount;
+    }
+
+    /**
+     * Query the index for the geometries whose envelope intersects the given one.
+     * 
+     * @param searchEnv the envelope to search for.
+     * @return the list of [position, size] arrays of the geometries in the file, 
+     *          to be used with {@link #pickGeometry(long, long)}.
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public List<long[]> query( Envelope searchEnv ) throws Exception {
+        Mapping m = getMapping();
+        if (m.isLegacy) {
+            return readIndex().query(searchEnv);
+        }
+
+        List<long[]> result = new ArrayList<long[]>();
+        if (m.levelsCount == 0) {
+            return result;
+        }
+        double minX = searchEnv.getMinX();
+        double minY = searchEnv.getMinY();
+        double maxX = searchEnv.getMaxX();
+        double maxY = searchEnv.getMaxY();
+
+        ByteBuffer indexBuffer = m.indexBuffer;
+        // stack of [level, position] pairs
+        int[] stack = new int[64];
+        int stackSize = 0;
+        int rootLevel = m.levelsCount - 1;
+        for( int i = 0; i < m.levelSizes[rootLevel]; i++ ) {
+            stack = push(stack, stackSize, rootLevel, i);
+            stackSize += 2;
+        }
+        while( stackSize > 0 ) {
+            stackSize -= 2;
+            int level = stack[stackSize];
+            int index = stack[stackSize + 1];
+            int entry = m.levelOffsets[level] + index * ENTRY_SIZE;
+            if (indexBuffer.getDouble(entry) > maxX || indexBuffer.getDouble(entry + 16) < minX
+                    || indexBuffer.getDouble(entry + 8) > maxY || indexBuffer.getDouble(entry + 24) < minY) {
+                continue;
+            }
+            long first = indexBuffer.getLong(entry + 32);
+            long second = indexBuffer.getLong(entry + 40);
+            if (level == 0) {
+                result.add(new long[]{first, second});
+            } else {
+                for( int child = (int) (first + second - 1); child >= first; child-- ) {
+                    stack = push(stack, stackSize, level - 1, child);
+                    stackSize += 2;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int[] push( int[] stack, int stackSize, int level, int index ) {
+        if (stackSize + 2 > stack.length) {
+            int[] newStack = new int[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            stack = newStack;
+        }
+        stack[stackSize] = level;
+        stack[stackSize + 1] = index;
+        return stack;
+    }
+
+    /**
+     * Query the index and read the geometries whose envelope intersects the given one.
+     * 
+     * @param searchEnv the envelope to search for.
+     * @return the list of geometries.
+     * @throws Exception
+     */
+    public List<Geometry> queryGeometries( Envelope searchEnv ) throws Exception {
+        List<long[]> positions = query(searchEnv);
+        List<Geometry> geometries = new ArrayList<Geometry>(positions.size());
+        for( long[] positionSize : positions ) {
+            geometries.add(pickGeometry(positionSize[0], positionSize[1]));
+        }
+        return geometries;
+    }
+
+    /**
+     * Read all the geometries, in the order in which they have been written.
      * 
-     * @return the quadtree, holding envelops and geometry positions in the file.
+     * @return the list of geometries.
      * @throws Exception
      */
-    public STRtree readIndex() throws Exception {
+    @SuppressWarnings("unchecked")
+    public List<Geometry> getGeometries() throws Exception {
+        Mapping m = getMapping();
+        List<long[]> positions;
+        if (m.isLegacy) {
+            positions = readIndex().query(new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE,
+                    Double.MAX_VALUE));
+        } else {
+            positions = new ArrayList<long[]>(m.itemsCount);
+            for( int i = 0; i < m.itemsCount; i++ ) {
+                int entry = i * ENTRY_SIZE;
+                positions.add(new long[]{m.indexBuffer.getLong(entry + 32), m.indexBuffer.getLong(entry + 40)});
+            }
+        }
+        Collections.sort(positions, new Comparator<long[]>(){
+            public int compare( long[] o1, long[] o2 ) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        List<Geometry> geometries = new ArrayList<Geometry>(positions.size());
+        for( long[] positionSize : positions ) {
+            geometries.add(pickGeometry(positionSize[0], positionSize[1]));
+        }
+        return geometries;
+    }
 
-        File file = new File(path);
-        raf = new RandomAccessFile(file, "r");
+    /**
+     * Reads the {@link STRtree} object from the file.
+     * 
+     * <p>For files in the binary format, the tree is rebuilt from the
+     * packed index. Prefer {@link #query(Envelope)}, which doesn't need to load
+     * the index on heap.</p>
+     * 
+     * @return the tree, holding envelops and geometry positions in the file.
+     * @throws Exception
+     */
+    public synchronized STRtree readIndex() throws Exception {
+        Mapping m = getMapping();
+        if (indexObj != null) {
+            return indexObj;
+        }
+        if (!m.isLegacy) {
+            STRtree tree = new STRtree(Math.max(2, m.itemsCount));
+            for( int i = 0; i < m.itemsCount; i++ ) {
+                int entry = i * ENTRY_SIZE;
+                ByteBuffer indexBuffer = m.indexBuffer;
+                Envelope envelope = new Envelope(indexBuffer.getDouble(entry), indexBuffer.getDouble(entry + 16),
+                        indexBuffer.getDouble(entry + 8), indexBuffer.getDouble(entry + 24));
+                tree.insert(envelope, new long[]{indexBuffer.getLong(entry + 32), indexBuffer.getLong(entry + 40)});
+            }
+            indexObj = tree;
+            return indexObj;
+        }
 
+        RandomAccessFile raf = m.raf;
         raf.seek(6l);
-        checkVersions();
+        checkVersions(raf);
 
         long position = INDEX_ADDRESS_POSITION;
         raf.seek(position);
@@ -83,7 +372,7 @@ public class DiskTreeReader implements IDiskTree {
         return indexObj;
     }
 
-    private void checkVersions() throws IOException {
+    private void checkVersions( RandomAccessFile raf ) throws IOException {
         int fileMajor = raf.readInt();
         int fileMinor = raf.readInt();
 
@@ -97,7 +386,7 @@ public class DiskTreeReader implements IDiskTree {
     }
 
     /**
-     * Reads a single geomtry, using the info from the quadtree read in {@link #readIndex()}.
+     * Reads a single geomtry, using the info from {@link #query(Envelope)} or the tree read in {@link #readIndex()}.
      * 
      * @param position the position of the geom to read.
      * @param size the size of the geom to read.
@@ -105,39 +394,78 @@ public class DiskTreeReader implements IDiskTree {
      * @throws Exception
      */
     public Geometry pickGeometry( long position, long size ) throws Exception {
-        byte[] geomBytes = new byte[(int) size];
-        raf.seek(position);
-        raf.read(geomBytes);
+        Mapping m = getMapping();
+        ByteBuffer buffer;
+        if (m.fileBuffer != null) {
+            buffer = m.fileBuffer.duplicate();
+            buffer.position((int) position);
+            buffer.limit((int) (position + size));
+        } else {
+            buffer = ByteBuffer.allocate((int) size);
+            while( buffer.hasRemaining() ) {
+                int read = m.channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file while reading geometry at: " + position);
+                }
+            }
+            buffer.flip();
+        }
+
+        if (m.isLegacy) {
+            byte[] geomBytes = new byte[(int) size];
+            buffer.get(geomBytes);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(geomBytes));
+            Geometry geometry = (Geometry) in.readObject();
+            return geometry;
+        }
 
-        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(geomBytes));
-        Geometry geometry = (Geometry) in.readObject();
+        int wkbSize = buffer.getInt();
+        byte[] wkb = new byte[wkbSize];
+        buffer.get(wkb);
+        Geometry geometry = new WKBReader().read(wkb);
+        geometry.setUserData(readUserData(buffer));
         return geometry;
     }
 
+    private Object readUserData( ByteBuffer buffer ) {
+        byte type = buffer.get();
+        switch( type ) {
+        case USERDATA_STRING:
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        case USERDATA_INTEGER:
+            return buffer.getInt();
+        case USERDATA_LONG:
+            return buffer.getLong();
+        case USERDATA_DOUBLE:
+            return buffer.getDouble();
+        case USERDATA_DOUBLE_ARRAY:
+            double[] values = new double[buffer.getInt()];
+            for( int i = 0; i < values.length; i++ ) {
+                values[i] = buffer.getDouble();
+            }
+            return values;
+        default:
+            return null;
+        }
+    }
+
     /**
      * Closes the filehandle.
      * 
+     * <p>Reads of files mapped whole that are still running in other 
+     * threads are not affected.</p>
+     * 
      * @throws IOException
      */
-    public void close() throws IOException {
-        raf.close();
-    }
-
-    // public static void main( String[] args ) throws Exception {
-    //
-    //
-    // DiskTreeReader writer = new DiskTreeReader("/home/moovida/TMP/index.bin");
-    // Quadtree indexObj = writer.readIndex();
-    //
-    // List queryAll = indexObj.queryAll();
-    //
-    // for( Object object : queryAll ) {
-    // if (object instanceof long[]) {
-    // long[] posSize = (long[]) object;
-    // Geometry geom = writer.pickGeometry(posSize[0], posSize[1]);
-    // System.out.println(geom.toText());
-    // }
-    // }
-    //
-    // }
+    public synchronized void close() throws IOException {
+        Mapping m = mapping;
+        mapping = null;
+        indexObj = null;
+        if (m != null && m.raf != null) {
+            m.raf.close();
+        }
+    }
+
 }
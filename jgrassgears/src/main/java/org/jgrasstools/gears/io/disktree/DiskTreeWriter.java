@@ -17,19 +17,24 @@
  */
 package org.jgrasstools.gears.io.disktree;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
-import com.vividsolutions.jts.JTSVersion;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.WKBWriter;
 
 /**
- * Writer for the quadtree disk index.
+ * Writer for the Sort-Tile-Recursive disk index.
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  * @see IDiskTree
@@ -38,6 +43,8 @@ public class DiskTreeWriter implements IDiskTree {
 
     private final String path;
 
+    private int nodeCapacity = DEFAULT_NODE_CAPACITY;
+
     /**
      * Constructor.
      * 
@@ -47,103 +54,251 @@ public class DiskTreeWriter implements IDiskTree {
         this.path = path;
     }
 
+    /**
+     * Set the maximum number of children of the tree nodes.
+     * 
+     * @param nodeCapacity the node capacity, at least 2.
+     */
+    public void setNodeCapacity( int nodeCapacity ) {
+        if (nodeCapacity < 2) {
+            throw new IllegalArgumentException("The node capacity needs to be at least 2.");
+        }
+        this.nodeCapacity = nodeCapacity;
+    }
+
     /**
      * Writes an array of {@link Geometry}s to the disk.
      * 
+     * <p>Empty geometries are skipped. The user data of the geometries
+     * can be <code>null</code>, {@link String}s, {@link Integer}s, {@link Long}s, {@link Double}s
+     * or <code>double[]</code>s.</p>
+     * 
      * @param geometries the array of geoms to write.
      * @throws IOException
+     * @throws IllegalArgumentException if a geometry has a user data of a different type.
      */
     public void writeGeometries( Geometry[] geometries ) throws IOException {
-        File file = new File(path);
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(file, "rw");
+        // check before writing, to not leave a broken index behind
+        for( Geometry geometry : geometries ) {
+            Object userData = geometry.getUserData();
+            if (userData != null && !(userData instanceof String) && !(userData instanceof Integer)
+                    && !(userData instanceof Long) && !(userData instanceof Double) && !(userData instanceof double[])) {
+                throw new IllegalArgumentException("Unsupported user data type: " + userData.getClass().getName());
+            }
+        }
 
-            int major = JTSVersion.MAJOR;
-            int minor = JTSVersion.MINOR;
+        File file = new File(path);
 
-            raf.writeChars("jts");
-            raf.writeInt(major);
-            raf.writeInt(minor);
+        int count = 0;
+        double[] boxes = new double[geometries.length * 4];
+        long[] addresses = new long[geometries.length];
+        long[] sizes = new long[geometries.length];
 
-            long geometriesStart = INDEX_ADDRESS_POSITION + INDEX_ADDRESS_SIZE + INDEX_LENGTH_SIZE;
-            raf.seek(geometriesStart);
-            System.out.println("geometriesStart: " + geometriesStart);
+        long fileIndex = HEADER_SIZE;
+        WKBWriter wkbWriter = new WKBWriter(3);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            // header, the index info are filled at the end
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.write(new byte[HEADER_SIZE - MAGIC.length - 4]);
 
-            long fileIndex = geometriesStart;
-            STRtree tree = new STRtree(geometries.length);
             for( int i = 0; i < geometries.length; i++ ) {
                 Geometry geometry = geometries[i];
-
                 if (geometry.isEmpty()) {
                     continue;
                 }
                 Envelope envelope = geometry.getEnvelopeInternal();
+                byte[] wkb = wkbWriter.write(geometry);
+                out.writeInt(wkb.length);
+                out.write(wkb);
+                int userDataSize = writeUserData(out, geometry.getUserData());
 
-                byte[] geomBytes = serialize(geometry);
-                raf.write(geomBytes);
+                long recordSize = 4 + wkb.length + userDataSize;
+                boxes[count * 4] = envelope.getMinX();
+                boxes[count * 4 + 1] = envelope.getMinY();
+                boxes[count * 4 + 2] = envelope.getMaxX();
+                boxes[count * 4 + 3] = envelope.getMaxY();
+                addresses[count] = fileIndex;
+                sizes[count] = recordSize;
+                count++;
+                fileIndex = fileIndex + recordSize;
+            }
 
-                /*
-                 * the tree contains the envelope of a geometry
-                 * and the array with the exact position in the file where the 
-                 * geometry bytes start + the length. 
-                 */
-                tree.insert(envelope, new long[]{fileIndex, geomBytes.length});
+            long indexAddress = fileIndex;
+            int levelsCount = writeIndex(out, count, boxes, addresses, sizes);
+            out.flush();
 
-                fileIndex = fileIndex + geomBytes.length;
-                System.out.println("geom: " + i + " finished at: " + fileIndex);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(MAGIC.length + 4);
+                raf.writeInt(count);
+                raf.writeInt(nodeCapacity);
+                raf.writeInt(levelsCount);
+                raf.seek(HEADER_INDEX_ADDRESS_POSITION);
+                raf.writeLong(indexAddress);
             }
+        }
+    }
 
-            raf.seek(INDEX_ADDRESS_POSITION);
-            raf.writeLong(fileIndex);
-
-            System.out.println("INDEX_ADDRESS_POSITION: " + fileIndex);
+    /**
+     * Packs the leaf entries level by level and writes the levels.
+     * 
+     * <p>At each level the entries are sorted in Sort-Tile-Recursive order 
+     * and grouped into parents of at most {@link #nodeCapacity} children, so that 
+     * the children of a node are always contiguous in the level below.</p>
+     * 
+     * @return the number of written levels. 
+     */
+    private int writeIndex( DataOutputStream out, int count, double[] boxes, long[] firsts, long[] sizes ) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        // levels are kept in memory, they are orders of magnitude smaller than the geometries
+        List<double[]> levelBoxes = new ArrayList<double[]>();
+        List<long[]> levelFirsts = new ArrayList<long[]>();
+        List<long[]> levelSizes = new ArrayList<long[]>();
 
-            /*
-             * serialize index
-             */
-            byte[] treeBytes = serialize(tree);
+        int levelCount = count;
+        do {
+            Integer[] order = strOrder(boxes, levelCount);
+            double[] sortedBoxes = new double[levelCount * 4];
+            long[] sortedFirsts = new long[levelCount];
+            long[] sortedSizes = new long[levelCount];
+            for( int i = 0; i < levelCount; i++ ) {
+                int from = order[i];
+                System.arraycopy(boxes, from * 4, sortedBoxes, i * 4, 4);
+                sortedFirsts[i] = firsts[from];
+                sortedSizes[i] = sizes[from];
+            }
+            levelBoxes.add(sortedBoxes);
+            levelFirsts.add(sortedFirsts);
+            levelSizes.add(sortedSizes);
 
-            long treeSize = treeBytes.length;
-            raf.seek(fileIndex);
-            raf.write(treeBytes, 0, (int) treeSize);
+            // parents, the slices have been sorted so that groups never cross slices
+            int parentsCount = 0;
+            double[] parentBoxes = new double[((levelCount + nodeCapacity - 1) / nodeCapacity + sliceCount(levelCount)) * 4];
+            long[] parentFirsts = new long[parentBoxes.length / 4];
+            long[] parentSizes = new long[parentBoxes.length / 4];
+            int sliceSize = sliceSize(levelCount);
+            for( int sliceStart = 0; sliceStart < levelCount; sliceStart += sliceSize ) {
+                int sliceEnd = Math.min(levelCount, sliceStart + sliceSize);
+                for( int start = sliceStart; start < sliceEnd; start += nodeCapacity ) {
+                    int end = Math.min(sliceEnd, start + nodeCapacity);
+                    double minX = Double.POSITIVE_INFINITY;
+                    double minY = Double.POSITIVE_INFINITY;
+                    double maxX = Double.NEGATIVE_INFINITY;
+                    double maxY = Double.NEGATIVE_INFINITY;
+                    for( int i = start; i < end; i++ ) {
+                        minX = Math.min(minX, sortedBoxes[i * 4]);
+                        minY = Math.min(minY, sortedBoxes[i * 4 + 1]);
+                        maxX = Math.max(maxX, sortedBoxes[i * 4 + 2]);
+                        maxY = Math.max(maxY, sortedBoxes[i * 4 + 3]);
+                    }
+                    parentBoxes[parentsCount * 4] = minX;
+                    parentBoxes[parentsCount * 4 + 1] = minY;
+                    parentBoxes[parentsCount * 4 + 2] = maxX;
+                    parentBoxes[parentsCount * 4 + 3] = maxY;
+                    parentFirsts[parentsCount] = start;
+                    parentSizes[parentsCount] = end - start;
+                    parentsCount++;
+                }
+            }
+            boxes = parentBoxes;
+            firsts = parentFirsts;
+            sizes = parentSizes;
+            levelCount = parentsCount;
+            if (levelCount == 1) {
+                levelBoxes.add(Arrays.copyOf(boxes, 4));
+                levelFirsts.add(new long[]{firsts[0]});
+                levelSizes.add(new long[]{sizes[0]});
+            }
+        } while( levelCount > 1 );
 
-            System.out.println("treeSize: " + treeSize);
+        for( double[] levelBox : levelBoxes ) {
+            out.writeInt(levelBox.length / 4);
+        }
+        for( int level = 0; level < levelBoxes.size(); level++ ) {
+            double[] levelBox = levelBoxes.get(level);
+            long[] levelFirst = levelFirsts.get(level);
+            long[] levelSize = levelSizes.get(level);
+            for( int i = 0; i < levelFirst.length; i++ ) {
+                out.writeDouble(levelBox[i * 4]);
+                out.writeDouble(levelBox[i * 4 + 1]);
+                out.writeDouble(levelBox[i * 4 + 2]);
+                out.writeDouble(levelBox[i * 4 + 3]);
+                out.writeLong(levelFirst[i]);
+                out.writeLong(levelSize[i]);
+            }
+        }
+        return levelBoxes.size();
+    }
 
-            raf.seek(INDEX_ADDRESS_POSITION + INDEX_ADDRESS_SIZE);
-            raf.writeLong(treeSize);
+    private int sliceCount( int count ) {
+        int parentsCount = (count + nodeCapacity - 1) / nodeCapacity;
+        return (int) Math.ceil(Math.sqrt(parentsCount));
+    }
 
-            long length = raf.length();
-            System.out.println(length);
+    private int sliceSize( int count ) {
+        int slicesCount = sliceCount(count);
+        int parentsPerSlice = (int) Math.ceil((count / (double) nodeCapacity) / slicesCount);
+        return Math.max(1, parentsPerSlice) * nodeCapacity;
+    }
 
-        } finally {
-            System.out.println("close");
-            if (raf != null)
-                raf.close();
+    /**
+     * Sort-Tile-Recursive order: by x center in vertical slices, by y center inside each slice.
+     */
+    private Integer[] strOrder( final double[] boxes, int count ) {
+        Integer[] order = new Integer[count];
+        for( int i = 0; i < count; i++ ) {
+            order[i] = i;
         }
+        Arrays.sort(order, new Comparator<Integer>(){
+            public int compare( Integer o1, Integer o2 ) {
+                return Double.compare(boxes[o1 * 4] + boxes[o1 * 4 + 2], boxes[o2 * 4] + boxes[o2 * 4 + 2]);
+            }
+        });
+        int sliceSize = sliceSize(count);
+        Comparator<Integer> yComparator = new Comparator<Integer>(){
+            public int compare( Integer o1, Integer o2 ) {
+                return Double.compare(boxes[o1 * 4 + 1] + boxes[o1 * 4 + 3], boxes[o2 * 4 + 1] + boxes[o2 * 4 + 3]);
+            }
+        };
+        for( int sliceStart = 0; sliceStart < count; sliceStart += sliceSize ) {
+            Arrays.sort(order, sliceStart, Math.min(count, sliceStart + sliceSize), yComparator);
+        }
+        return order;
     }
 
-    private byte[] serialize( Object obj ) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(bos);
-        out.writeObject(obj);
-        out.close();
-        byte[] treeBytes = bos.toByteArray();
-        return treeBytes;
+    private int writeUserData( DataOutputStream out, Object userData ) throws IOException {
+        if (userData instanceof String) {
+            byte[] bytes = ((String) userData).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(USERDATA_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            return 5 + bytes.length;
+        } else if (userData instanceof Integer) {
+            out.writeByte(USERDATA_INTEGER);
+            out.writeInt((Integer) userData);
+            return 5;
+        } else if (userData instanceof Long) {
+            out.writeByte(USERDATA_LONG);
+            out.writeLong((Long) userData);
+            return 9;
+        } else if (userData instanceof Double) {
+            out.writeByte(USERDATA_DOUBLE);
+            out.writeDouble((Double) userData);
+            return 9;
+        } else if (userData instanceof double[]) {
+            double[] values = (double[]) userData;
+            out.writeByte(USERDATA_DOUBLE_ARRAY);
+            out.writeInt(values.length);
+            for( double value : values ) {
+                out.writeDouble(value);
+            }
+            return 5 + 8 * values.length;
+        } else {
+            out.writeByte(USERDATA_NONE);
+            return 1;
+        }
     }
 
-    // public static void main( String[] args ) throws ParseException, IOException {
-    //
-    // WKTReader r = new WKTReader();
-    // Geometry pol = r.read("POLYGON ((210 350, 230 310, 290 350, 290 350, 210 350))");
-    // pol.setUserData(1);
-    // Geometry line = r.read("LINESTRING (50 380, 90 210, 180 160, 240 40, 240 40)");
-    // line.setUserData(2);
-    // Geometry point = r.read("POINT (130 120)");
-    // point.setUserData(3);
-    //
-    // DiskTreeWriter writer = new DiskTreeWriter("/home/moovida/TMP/index.bin");
-    // writer.writeGeometries(new Geometry[]{pol, line, point});
-    //
-    // }
 }
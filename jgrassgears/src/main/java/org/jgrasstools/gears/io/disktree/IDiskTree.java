@@ -22,24 +22,37 @@ package org.jgrasstools.gears.io.disktree;
  * Interface for DiskTree I/O modules.
  * 
  * <p>
- * The disktree binary file is defined as follows:
+ * The disktree binary file (version 2) is defined as follows (big endian):
  * 
  * <ul>
- *  <li>6 bytes containing the chars 'jts'</li>
- *  <li>4 bytes for the jts major version</li>
- *  <li>4 bytes for the jts minor version</li>
- *  <li>8 bytes containing the address at which the quadtree is stored</li>
- *  <li>8 bytes containing the size of the stored quadtree</li>
- *  <li>then the WKB-ized geometries are stored</li>
- *  <li>after the geometries, the quadtree is stored</li>
+ *  <li>4 bytes containing the magic chars 'JGDT'</li>
+ *  <li>4 bytes for the format version</li>
+ *  <li>4 bytes for the number of indexed geometries</li>
+ *  <li>4 bytes for the node capacity of the tree</li>
+ *  <li>4 bytes for the number of tree levels</li>
+ *  <li>4 reserved bytes</li>
+ *  <li>8 bytes containing the address at which the index is stored</li>
+ *  <li>then the geometry records are stored, each made of the WKB size (4 bytes),
+ *      the WKB bytes and the user data (1 type byte followed by the value, arrays
+ *      and strings are prefixed by their length)</li>
+ *  <li>after the geometries, the index is stored: the number of entries of each
+ *      level (4 bytes each) followed by the entries of all levels, from the leaves
+ *      to the root</li>
  * </ul>
  * 
- * <p>The quadtree stores the envelope of a geometry with the 
- * int array of the [position of geom on disk, size of the geom on disk].
- * It is therefore possible to extract any geometry by knowing the 
- * envelope.
+ * <p>The index is a Sort-Tile-Recursive packed R-tree stored in flat arrays
+ * of {@link #ENTRY_SIZE} bytes entries, each starting with the bounding
+ * box (minx, miny, maxx, maxy). Leaf entries continue with the address
+ * and size of the geometry record, node entries with the position of
+ * the first child in the level below and the number of children.
+ * The reader memory maps the index and queries it without loading it on heap.
+ * It is therefore possible to extract any geometry by knowing the envelope.
  * </p>
  * 
+ * <p>Files written by older versions (starting with the chars 'jts' and holding a
+ * java serialized {@link com.vividsolutions.jts.index.strtree.STRtree}) can still
+ * be read through {@link DiskTreeReader#readIndex()}.</p>
+ * 
  * <p>Example write usage:
  * 
  * <pre>
@@ -50,26 +63,18 @@ package org.jgrasstools.gears.io.disktree;
  * line.setUserData(2);
  * Geometry point = r.read("POINT (130 120)");
  * point.setUserData(3);
- *
+ * 
  * DiskTreeWriter writer = new DiskTreeWriter("/home/moovida/TMP/index.bin");
  * writer.writeGeometries(new Geometry[]{pol, line, point});
  * </pre>
  * </p>
- *
+ * 
  * <p>Example read usage:
  * <pre>
- * DiskTreeReader writer = new DiskTreeReader("/home/moovida/TMP/index.bin");
- * Quadtree indexObj = writer.readIndex();
- *
- * List queryAll = indexObj.queryAll();
- *
- * for( Object object : queryAll ) {
- *     if (object instanceof long[]) {
- *         long[] posSize = (long[]) object;
- *         Geometry geom = writer.pickGeometry(posSize[0], posSize[1]);
- *         System.out.println(geom.toText());
- *     }
- * }
+ * DiskTreeReader reader = new DiskTreeReader("/home/moovida/TMP/index.bin");
+ * reader.open();
+ * List&lt;Geometry&gt; geometries = reader.queryGeometries(envelope);
+ * reader.close();
  * </pre>
  * 
  * @author Andrea Antonello (www.hydrologis.com)
@@ -89,4 +94,44 @@ public interface IDiskTree {
      * Byte size of the index length.
      */
     long INDEX_LENGTH_SIZE = 8;
+
+    /**
+     * The magic bytes at the start of the binary format.
+     */
+    byte[] MAGIC = {'J', 'G', 'D', 'T'};
+
+    /**
+     * The version of the binary format.
+     */
+    int FORMAT_VERSION = 2;
+
+    /**
+     * Byte size of the header of the binary format.
+     */
+    int HEADER_SIZE = 32;
+
+    /**
+     * Position of the index address in the header of the binary format.
+     */
+    int HEADER_INDEX_ADDRESS_POSITION = 24;
+
+    /**
+     * Byte size of a leaf or node entry of the packed index.
+     */
+    int ENTRY_SIZE = 48;
+
+    /**
+     * The default maximum number of children of a tree node.
+     */
+    int DEFAULT_NODE_CAPACITY = 10;
+
+    /**
+     * User data types stored with the geometries.
+     */
+    byte USERDATA_NONE = 0;
+    byte USERDATA_STRING = 1;
+    byte USERDATA_INTEGER = 2;
+    byte USERDATA_LONG = 3;
+    byte USERDATA_DOUBLE = 4;
+    byte USERDATA_DOUBLE_ARRAY = 5;
 }
@@ -112,6 +112,7 @@ public class OmsGrassLegacyReader extends JGTModel {
         try {
             reader.setReaderType(MapReader.RASTER_READER);
             reader.setOutputDataObject(new double[0][0]);
+            reader.setParameter("parallel", Boolean.TRUE);
             reader.setDataWindow(inWindow);
 
             reader.open(mapEnvironment.getCELL().getAbsolutePath());
@@ -104,6 +104,26 @@ public class CompressesRasterWriter {
      */
     private boolean compressAndWrite( RandomAccessFile theCreatedFile, RandomAccessFile theCreatedNullFile,
             double[][] rastermatrix ) throws RasterWritingFailureException {
+        for( int i = 0; i < rastermatrix.length; i++ ) {
+            compressAndWriteRow(theCreatedFile, theCreatedNullFile, i, rastermatrix[i]);
+        }
+        writeRowAddresses(theCreatedFile);
+        return true;
+    }
+
+    /**
+     * compress and write a single row of the map. The rows have to be written in order, once all of
+     * them are written the header has to be completed through
+     * {@link #writeRowAddresses(RandomAccessFile)}.
+     * 
+     * @param theCreatedFile - handler for the main map file
+     * @param theCreatedNullFile - handler for the file of the null map (in cell_misc)
+     * @param rowIndex - the index of the row
+     * @param row - the values of the row
+     * @throws RasterWritingFailureException
+     */
+    public void compressAndWriteRow( RandomAccessFile theCreatedFile, RandomAccessFile theCreatedNullFile, int rowIndex,
+            double[] row ) throws RasterWritingFailureException {
         try {
             // set the number of bytes needed for the values to write to disk
             int numberofbytes = outputToDiskType * 4;
@@ -113,7 +133,7 @@ public class CompressesRasterWriter {
              * of the column * numberofbytes (8 for double, 4 for float), which is made to define
              * how we write to disk
              */
-            byte[] rowAsBytes = new byte[rastermatrix[0].length * numberofbytes];
+            byte[] rowAsBytes = new byte[row.length * numberofbytes];
             ByteBuffer rowAsByteBuffer = ByteBuffer.wrap(rowAsBytes);
 
             /*
@@ -122,7 +142,7 @@ public class CompressesRasterWriter {
              * in a row will use 2 bytes in the nulls file, but fill only 12 n=bits. Therefore we
              * need to padd it.
              */
-            int numberOfValuesPerRow = rastermatrix[0].length;
+            int numberOfValuesPerRow = row.length;
             int rest = numberOfValuesPerRow % 8;
             int paddings = 0;
             if (rest != 0) {
@@ -130,115 +150,113 @@ public class CompressesRasterWriter {
             }
             BitSet nullbits = new BitSet(numberOfValuesPerRow + paddings);
 
-            // iterate over the number of rows to compress every row and
-            // write the result to disk
-            // if (logger.isDebugEnabled())
-            // logger.debug("rows x cols = " + rastermatrix.length + " x "
-            // + rastermatrix[0].length);
             int k = 0;
-
-            for( int i = 0; i < rastermatrix.length; i++ ) {
-                for( int j = 0; j < rastermatrix[0].length; j++ ) {
-                    // if it is NOT an NAN or if it is NOT a Novalue, then write the
-                    // value
-                    if (!Double.isNaN(rastermatrix[i][j])) {
-                        // since we have to reread all the values, let's get the
-                        // range
-                        if (rastermatrix[i][j] < range[0])
-                            range[0] = rastermatrix[i][j];
-                        if (rastermatrix[i][j] > range[1])
-                            range[1] = rastermatrix[i][j];
-
-                        // convert the double row in a sequence of byte as needed by
-                        // the
-                        // deflater
-                        if (numberofbytes == 8) {
-                            rowAsByteBuffer.putDouble(rastermatrix[i][j]);
-                        } else {
-                            // the check on other formats is no longer needed, since
-                            // it
-                            // would jump out at the begin of this method
-                            rowAsByteBuffer.putFloat((float) rastermatrix[i][j]);
-                        }
-
-                        /*
-                         * ...and create the bitarray for the nullmap (in this case 0 is ok, so we
-                         * just increment the counter k
-                         */
-                        k++;
-                    }
-                    // if it is a novalue, set the value and add the set the bit in
-                    // the null-bitmap to true
-                    else {
-                        // put in the map the placeholder = 0.0 ...
-                        if (numberofbytes == 8) {
-                            rowAsByteBuffer.putDouble(0.0);
-                        } else {
-                            // the check on other formats is no longer needed, since
-                            // it
-                            // would jump out at the begin of this method
-                            rowAsByteBuffer.putFloat(0f);
-                        }
-                        // ...and set the bit for the nullmap
-                        nullbits.set(k);
-                        k++;
+            for( int j = 0; j < row.length; j++ ) {
+                // if it is NOT an NAN or if it is NOT a Novalue, then write the
+                // value
+                if (!Double.isNaN(row[j])) {
+                    // since we have to reread all the values, let's get the
+                    // range
+                    if (row[j] < range[0])
+                        range[0] = row[j];
+                    if (row[j] > range[1])
+                        range[1] = row[j];
+
+                    // convert the double row in a sequence of byte as needed by
+                    // the
+                    // deflater
+                    if (numberofbytes == 8) {
+                        rowAsByteBuffer.putDouble(row[j]);
+                    } else {
+                        // the check on other formats is no longer needed, since
+                        // it
+                        // would jump out at the begin of this method
+                        rowAsByteBuffer.putFloat((float) row[j]);
                     }
 
+                    /*
+                     * ...and create the bitarray for the nullmap (in this case 0 is ok, so we
+                     * just increment the counter k
+                     */
+                    k++;
                 }
-
-                /*
-                 * now the bitset is complete... just need to write it to disk to create in one time
-                 * the row (in cell_misc)
-                 */
-                int l = 0;
-                byte[] bytearray = new byte[(numberOfValuesPerRow + paddings) / 8];
-
-                for( int e = 0; e < (numberOfValuesPerRow + paddings) / 8; e++ ) {
-                    bytearray[e] = (byte) 0;
-                    for( int f = 0; f < 8; f++ ) {
-                        if (nullbits.get(l)) {
-                            bytearray[e] += (byte) Math.pow(2.0, (double) (7 - f));
-                        }
-                        l++;
+                // if it is a novalue, set the value and add the set the bit in
+                // the null-bitmap to true
+                else {
+                    // put in the map the placeholder = 0.0 ...
+                    if (numberofbytes == 8) {
+                        rowAsByteBuffer.putDouble(0.0);
+                    } else {
+                        // the check on other formats is no longer needed, since
+                        // it
+                        // would jump out at the begin of this method
+                        rowAsByteBuffer.putFloat(0f);
                     }
+                    // ...and set the bit for the nullmap
+                    nullbits.set(k);
+                    k++;
                 }
 
-                theCreatedNullFile.write(bytearray);
-                nullbits.clear();
-                k = 0;
-
-                /*
-                 * now the row is converted to an array of bytes (ByteBuffer's method wrap applies
-                 * changes on the ByteBuffer to the bytearray and vice versa. We can start with the
-                 * deflater.
-                 */
-                byte[] output = new byte[rowAsBytes.length * 2];
-                /* lenght *2 since not always compressing gives the needed result :) */
-                Deflater compresser = new Deflater();
-                compresser.setInput(rowAsBytes);
-                compresser.finish();
-                int compressedDataLength = compresser.deflate(output);
-
-                /*
-                 * now write to file the compressed row and set the right rowaddress.
-                 */
-                theCreatedFile.seek(pointerInFilePosition);
-                /*
-                 * jgrass always uses compression, so the first byte of the row will always be 49,
-                 * i.e. 1 which means that the row is compressed
-                 */
-                theCreatedFile.write(49);
-                theCreatedFile.write(output, 0, compressedDataLength);
-
-                rowaddresses[i + 1] = pointerInFilePosition = theCreatedFile.getFilePointer();
-
-                rowAsByteBuffer.clear();
             }
 
             /*
-             * now that all the compressed rows are written to file, we have to write their
-             * addresses in the header
+             * now the bitset is complete... just need to write it to disk to create in one time
+             * the row (in cell_misc)
+             */
+            int l = 0;
+            byte[] bytearray = new byte[(numberOfValuesPerRow + paddings) / 8];
+
+            for( int e = 0; e < (numberOfValuesPerRow + paddings) / 8; e++ ) {
+                bytearray[e] = (byte) 0;
+                for( int f = 0; f < 8; f++ ) {
+                    if (nullbits.get(l)) {
+                        bytearray[e] += (byte) Math.pow(2.0, (double) (7 - f));
+                    }
+                    l++;
+                }
+            }
+
+            theCreatedNullFile.write(bytearray);
+
+            /*
+             * now the row is converted to an array of bytes (ByteBuffer's method wrap applies
+             * changes on the ByteBuffer to the bytearray and vice versa. We can start with the
+             * deflater.
              */
+            byte[] output = new byte[rowAsBytes.length * 2];
+            /* lenght *2 since not always compressing gives the needed result :) */
+            Deflater compresser = new Deflater();
+            compresser.setInput(rowAsBytes);
+            compresser.finish();
+            int compressedDataLength = compresser.deflate(output);
+            compresser.end();
+
+            /*
+             * now write to file the compressed row and set the right rowaddress.
+             */
+            theCreatedFile.seek(pointerInFilePosition);
+            /*
+             * jgrass always uses compression, so the first byte of the row will always be 49,
+             * i.e. 1 which means that the row is compressed
+             */
+            theCreatedFile.write(49);
+            theCreatedFile.write(output, 0, compressedDataLength);
+
+            rowaddresses[rowIndex + 1] = pointerInFilePosition = theCreatedFile.getFilePointer();
+        } catch (Exception e) {
+            throw new RasterWritingFailureException(ERROR_IN_WRITING_RASTER + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * now that all the compressed rows are written to file, we have to write their addresses in
+     * the header
+     * 
+     * @param theCreatedFile - handler for the main map file
+     * @throws RasterWritingFailureException
+     */
+    public void writeRowAddresses( RandomAccessFile theCreatedFile ) throws RasterWritingFailureException {
+        try {
             theCreatedFile.seek(1);
             for( int i = 0; i < rowaddresses.length; i++ ) {
                 theCreatedFile.writeInt((int) rowaddresses[i]);
@@ -246,10 +264,8 @@ public class CompressesRasterWriter {
         } catch (Exception e) {
             throw new RasterWritingFailureException(ERROR_IN_WRITING_RASTER + e.getLocalizedMessage());
         }
-        return true;
     }
 
-
     public Window getDataWindow() {
         return dataWindow;
     }
@@ -25,8 +25,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.zip.DataFormatException;
@@ -39,6 +42,7 @@ import org.jgrasstools.gears.io.grasslegacy.utils.FileUtilities;
 import org.jgrasstools.gears.io.grasslegacy.utils.GrassLegacyConstans;
 import org.jgrasstools.gears.io.grasslegacy.utils.JlsTokenizer;
 import org.jgrasstools.gears.io.grasslegacy.utils.Window;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 
 /**
@@ -47,12 +51,23 @@ import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
  * transformation of any of those into int, float and double matrixes, as well as in the ByteBuffers
  * of the same tipes.
  * </p>
+ * <p>
+ * If the <code>parallel</code> parameter is set, the map files are memory mapped and the rows
+ * are decoded in parallel, each worker reusing its own {@link Inflater} and buffers. When the
+ * data window has a finer resolution than the map, the file rows needed by more data rows are
+ * decoded once and kept in a small LRU row cache.
+ * </p>
  * 
  * @author Andrea Antonello - www.hydrologis.com
  * @since 1.1.0
  */
 public class GrassRasterReader extends MapReader {
 
+    /*
+     * the number of decoded file rows kept per worker by the row cache of the parallel read
+     */
+    private static final int CACHED_ROWS_PER_WORKER = 4;
+
     /*
      * 0 for 1-byte integer, 1 for 2-byte integer and so on, -1 for float, -2 for double
      */
@@ -103,9 +118,11 @@ public class GrassRasterReader extends MapReader {
 
     private boolean isOldIntegerMap = false;
 
-    // private ByteBuffer rowCache = null;
+    private ByteBuffer rowCache = null;
     private int rowCacheRow = -1;
 
+    private boolean doParallel = false;
+
     private int firstDataRow = -1;
 
     private final double[] range = new double[]{1000000.0, -1000000.0}; // min,
@@ -256,6 +273,11 @@ public class GrassRasterReader extends MapReader {
         try {
             if (dataWindow != null && moreData == true) {
 
+                if (doParallel && canMapFiles()) {
+                    moreData = readDataParallel(monitor);
+                    return moreData;
+                }
+
                 outputData = new double[dataWindow.getRows()][dataWindow.getCols()];
 
                 /* Allocate the space for the map data. */
@@ -320,7 +342,7 @@ public class GrassRasterReader extends MapReader {
                                 nullRow = initNullRow();
                             ByteBuffer wrap = ByteBuffer.wrap(nullRow);
                             for( int col = 0; col < dataWindow.getCols(); col++ ) {
-                                outputData[(int) row][col] = wrap.getDouble();
+                                outputData[(int) row][col] = getRowValue(wrap);
                             }
                         } else {
                             // System.out.println(", DATA ROW");
@@ -330,14 +352,14 @@ public class GrassRasterReader extends MapReader {
                             if (filerow == rowCacheRow) {
                                 ByteBuffer wrap = ByteBuffer.wrap(rowDataCache);
                                 for( int col = 0; col < dataWindow.getCols(); col++ ) {
-                                    outputData[(int) row][col] = wrap.getDouble();
+                                    outputData[(int) row][col] = getRowValue(wrap);
                                 }
                             } else {
                                 readRasterRow((int) filerow, rowDataCache, rowColorDataCache);
                                 rowCacheRow = (int) filerow;
                                 ByteBuffer wrap = ByteBuffer.wrap(rowDataCache);
                                 for( int col = 0; col < dataWindow.getCols(); col++ ) {
-                                    outputData[(int) row][col] = wrap.getDouble();
+                                    outputData[(int) row][col] = getRowValue(wrap);
                                 }
                             }
                         }
@@ -349,6 +371,7 @@ public class GrassRasterReader extends MapReader {
 
                     rowDataCache = null;
                     rowColorDataCache = null;
+                    rowCache = null;
                     rowCacheRow = -1;
                     nullRow = null;
                     System.gc();
@@ -425,6 +448,9 @@ public class GrassRasterReader extends MapReader {
         } else if (key.equals("matrixtype")) { //$NON-NLS-1$
             Integer dmtype = (Integer) obj;
             matrixType = dmtype.intValue();
+        } else if (key.equals("parallel")) { //$NON-NLS-1$
+            Boolean parallel = (Boolean) obj;
+            doParallel = parallel.booleanValue();
         }
     }
 
@@ -826,8 +852,13 @@ public class GrassRasterReader extends MapReader {
         // fileWindow.getRows()="+fileWindow.getRows());
 
         /* Reset row cache and read new row data */
-        ByteBuffer rowCache = ByteBuffer.allocate(fileWindow.getCols() * ((rasterMapType == -2) ? 8 : 4));
-        // rowCache.rewind();
+        int rowCacheSize = fileWindow.getCols() * ((rasterMapType == -2) ? 8 : 4);
+        if (rowCache == null || rowCache.capacity() != rowCacheSize) {
+            rowCache = ByteBuffer.allocate(rowCacheSize);
+        } else {
+            rowCache.clear();
+            Arrays.fill(rowCache.array(), (byte) 0);
+        }
         getMapRow(currentfilerow, rowCache, iscompressed);
         // rowCacheRow = currentfilerow;
 
@@ -970,6 +1001,26 @@ public class GrassRasterReader extends MapReader {
         return true;
     }
 
+    /**
+     * Reads the next value of a row filled by {@link #readRasterRow(int, byte[], byte[])}
+     * or {@link #initNullRow()}, in which the values are stored in the type of the map.
+     * 
+     * @param rowBuffer the buffer wrapping the row.
+     * @return the value, novalues are returned as NaN.
+     */
+    private double getRowValue( ByteBuffer rowBuffer ) {
+        if (rasterMapType > 0) {
+            int cell = rowBuffer.getInt();
+            if (cell == Integer.MAX_VALUE) {
+                return Double.NaN;
+            }
+            return cell;
+        } else if (rasterMapType == -1) {
+            return rowBuffer.getFloat();
+        }
+        return rowBuffer.getDouble();
+    }
+
     /**
      * SwingUtilities
      */
@@ -1149,17 +1200,10 @@ public class GrassRasterReader extends MapReader {
                 tmpBuffer.get(cell.array());
 
                 /*
-                 * Integers can be of 1, 2, or 4 bytes. As rasterBuffer expects 4 byte integers we
-                 * need to pad them with 0's. The order of the padding is determined by the
-                 * ByteOrder of the buffer.
+                 * Integers can be of 1 to 4 bytes. As rasterBuffer expects 4 byte integers we
+                 * need to pad them with 0's.
                  */
-                if (bytespervalue == 1) {
-                    cellValue = (cell.get(0) & 0xff);
-                } else if (bytespervalue == 2) {
-                    cellValue = cell.getShort(0);
-                } else if (bytespervalue == 4) {
-                    cellValue = cell.getInt(0);
-                }
+                cellValue = getInteger(cell.array(), 0, bytespervalue);
                 // if (logger.isDebugEnabled()) logger.debug("tmpint=" + tmpint
                 // );
                 rowdata.putInt(cellValue);
@@ -1181,17 +1225,10 @@ public class GrassRasterReader extends MapReader {
                 tmpBuffer.get(cell.array());
 
                 /*
-                 * Integers can be of 1, 2, or 4 bytes. As rasterBuffer expects 4 byte integers we
-                 * need to pad them with 0's. The order of the padding is determined by the
-                 * ByteOrder of the buffer.
+                 * Integers can be of 1 to 4 bytes. As rasterBuffer expects 4 byte integers we
+                 * need to pad them with 0's.
                  */
-                if (bytespervalue == 1) {
-                    cellValue = (cell.get(0) & 0xff);
-                } else if (bytespervalue == 2) {
-                    cellValue = cell.getShort(0);
-                } else if (bytespervalue == 4) {
-                    cellValue = cell.getInt(0);
-                }
+                cellValue = getInteger(cell.array(), 0, bytespervalue);
                 /*
                  * Now write the cell value the required number of times to the raster row data
                  * buffer.
@@ -1237,23 +1274,338 @@ public class GrassRasterReader extends MapReader {
             tmpBuffer.get(cell.array());
 
             /*
-             * Integers can be of 1, 2, or 4 bytes. As rasterBuffer expects 4 byte integers we need
-             * to pad them with 0's. The order of the padding is determined by the ByteOrder of the
-             * buffer.
+             * Integers can be of 1 to 4 bytes. As rasterBuffer expects 4 byte integers we need
+             * to pad them with 0's.
              */
-            if (rasterMapType == 1) {
-                cellValue = (cell.get(0) & 0xff);
-            } else if (rasterMapType == 2) {
-                cellValue = cell.getShort(0);
-            } else if (rasterMapType == 4) {
-                cellValue = cell.getInt(0);
-            }
+            cellValue = getInteger(cell.array(), 0, rasterMapType);
             // if (logger.isDebugEnabled()) logger.debug("tmpint=" + cellValue
             // );
             rowdata.putInt(cellValue);
         }
     }
 
+    /**
+     * @return <code>true</code> if the map files can be memory mapped for the parallel read.
+     * @throws IOException
+     */
+    private boolean canMapFiles() throws IOException {
+        if (cellFile == null || cellFile.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        return nullFile == null || nullFile.length() <= Integer.MAX_VALUE;
+    }
+
+    private static ByteBuffer mapFile( RandomAccessFile file ) throws IOException {
+        FileChannel channel = file.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Reads the data window decoding the rows of the memory mapped map files in parallel.
+     * 
+     * @param monitor the progress monitor.
+     * @return <code>false</code> if the read has been canceled.
+     * @throws Exception
+     */
+    private boolean readDataParallel( IJGTProgressMonitor monitor ) throws Exception {
+        final int dataRows = dataWindow.getRows();
+        final int dataCols = dataWindow.getCols();
+        int fileRows = fileWindow.getRows();
+        final int fileCols = fileWindow.getCols();
+
+        /*
+         * The map file row and col of every row and col of the data window, -1 if outside of the
+         * map. The number of data rows that use a file row tells if it is worth caching it.
+         */
+        final int[] fileRowOfRow = new int[dataRows];
+        final int[] fileRowUses = new int[fileRows];
+        double filenorth = fileWindow.getNorth();
+        double filensres = fileWindow.getNSResolution();
+        double datanorth = dataWindow.getNorth();
+        double datansres = dataWindow.getNSResolution();
+        for( int row = 0; row < dataRows; row++ ) {
+            double filerow = Math.floor((filenorth - (datanorth - (row * datansres))) / filensres);
+            if (filerow < 0 || filerow >= fileRows) {
+                fileRowOfRow[row] = -1;
+            } else {
+                fileRowOfRow[row] = (int) filerow;
+                fileRowUses[(int) filerow]++;
+            }
+        }
+        final int[] fileColOfCol = new int[dataCols];
+        double filewest = fileWindow.getWest();
+        double fileewres = fileWindow.getWEResolution();
+        double datawest = dataWindow.getWest();
+        double dataewres = dataWindow.getWEResolution();
+        for( int col = 0; col < dataCols; col++ ) {
+            double filecol = Math.floor(((datawest + (col * dataewres)) - filewest) / fileewres);
+            fileColOfCol[col] = (filecol < 0 || filecol >= fileCols) ? -1 : (int) filecol;
+        }
+
+        final ByteBuffer cellBuffer = mapFile(cellFile);
+        final ByteBuffer nullBuffer = nullFile != null ? mapFile(nullFile) : null;
+        final RowCache fileRowsCache = new RowCache(CACHED_ROWS_PER_WORKER * JGTExecutor.getParallelism());
+        final double[][] data = new double[dataRows][dataCols];
+
+        String taskName = GearsMessageHandler.getInstance().message("grass.legacy.reading") + filename; //$NON-NLS-1$
+        boolean isDone = JGTExecutor.forEachRowBand(dataRows, 0, taskName, monitor, new JGTExecutor.RowsProcessor(){
+            public void process( int fromRow, int toRow ) throws Exception {
+                RowDecoder decoder = new RowDecoder(cellBuffer, nullBuffer);
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                try {
+                    for( int row = fromRow; row < toRow; row++ ) {
+                        double[] dataRow = data[row];
+                        int fileRow = fileRowOfRow[row];
+                        if (fileRow == -1) {
+                            Arrays.fill(dataRow, Double.NaN);
+                            continue;
+                        }
+
+                        double[] fileRowValues;
+                        if (fileRowUses[fileRow] > 1) {
+                            /* The row is resampled into more data rows, keep it. */
+                            fileRowValues = fileRowsCache.getRow(fileRow);
+                            if (fileRowValues == null) {
+                                fileRowValues = decoder.decodeRow(fileRow).clone();
+                                fileRowsCache.putRow(fileRow, fileRowValues);
+                            }
+                        } else {
+                            fileRowValues = decoder.decodeRow(fileRow);
+                        }
+
+                        for( int col = 0; col < dataCols; col++ ) {
+                            int fileCol = fileColOfCol[col];
+                            double value = fileCol == -1 ? Double.NaN : fileRowValues[fileCol];
+                            dataRow[col] = value;
+                            if (value < min) {
+                                min = value;
+                            }
+                            if (value > max) {
+                                max = value;
+                            }
+                        }
+                    }
+                } finally {
+                    decoder.end();
+                }
+                synchronized (dataRange) {
+                    dataRange[0] = Math.min(dataRange[0], min);
+                    dataRange[1] = Math.max(dataRange[1], max);
+                }
+            }
+        });
+        outputData = data;
+        return isDone;
+    }
+
+    /**
+     * Decoder of the rows of the memory mapped map files. Every worker uses its own decoder, so
+     * that the {@link Inflater} and the buffers are reused from row to row.
+     */
+    private class RowDecoder {
+        private final ByteBuffer cellBuffer;
+        private final ByteBuffer nullBuffer;
+        private final int fileCols;
+        private final Inflater inflater = new Inflater();
+        /* The bytes of the row as they are stored in the file */
+        private byte[] fileBytes = new byte[0];
+        /* The uncompressed floating point row */
+        private final byte[] rowBytes;
+        private final ByteBuffer rowBytesBuffer;
+        private final byte[] nullBytes;
+        private final double[] values;
+
+        RowDecoder( ByteBuffer cellBuffer, ByteBuffer nullBuffer ) {
+            this.cellBuffer = cellBuffer.duplicate();
+            this.nullBuffer = nullBuffer != null ? nullBuffer.duplicate() : null;
+            fileCols = fileWindow.getCols();
+            rowBytes = new byte[fileCols * numberOfBytesPerValue];
+            rowBytesBuffer = ByteBuffer.wrap(rowBytes);
+            nullBytes = new byte[(fileCols + 7) / 8];
+            values = new double[fileCols];
+        }
+
+        /**
+         * Decodes a row of the map, the novalues are set to NaN.
+         * 
+         * @param fileRow the row of the map file.
+         * @return the values of the row. The array is reused by the next call.
+         * @throws DataFormatException
+         */
+        double[] decodeRow( int fileRow ) throws DataFormatException {
+            if (nullBuffer != null) {
+                readBytes(nullBuffer, (long) fileRow * nullBytes.length, nullBytes, nullBytes.length);
+            }
+            if (rasterMapType < 0) {
+                readFPRow(fileRow);
+                for( int col = 0; col < fileCols; col++ ) {
+                    if (isNull(col)) {
+                        values[col] = Double.NaN;
+                        continue;
+                    }
+                    double cell;
+                    if (rasterMapType == -2) {
+                        cell = rowBytesBuffer.getDouble(col * 8);
+                    } else {
+                        cell = rowBytesBuffer.getFloat(col * 4);
+                    }
+                    if (reclassTable != null) {
+                        cell = ((Integer) reclassTable.elementAt((int) cell)).doubleValue();
+                    }
+                    values[col] = cell;
+                }
+            } else {
+                readIntegerRow(fileRow);
+            }
+            return values;
+        }
+
+        private void readFPRow( int fileRow ) throws DataFormatException {
+            int rowLength = rowBytes.length;
+            if (compressed != 1) {
+                readBytes(cellBuffer, (long) fileRow * rowLength, rowBytes, rowLength);
+                return;
+            }
+            int start = (int) addressesofrows[fileRow];
+            int length = (int) (addressesofrows[fileRow + 1] - addressesofrows[fileRow]) - 1;
+            /*
+             * If the first byte is 49 the row is compressed, if it is 48 the row is stored in
+             * simple XDR uncompressed format.
+             */
+            int firstbyte = (cellBuffer.get(start) & 0xff);
+            int read = 0;
+            if (firstbyte == 49) {
+                byte[] tmp = getFileBytes(length);
+                readBytes(cellBuffer, start + 1, tmp, length);
+                inflater.reset();
+                inflater.setInput(tmp, 0, length);
+                while( read < rowLength && !inflater.finished() ) {
+                    int inflated = inflater.inflate(rowBytes, read, rowLength - read);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    read += inflated;
+                }
+            } else if (firstbyte == 48) {
+                read = Math.min(length, rowLength);
+                readBytes(cellBuffer, start + 1, rowBytes, read);
+            }
+            Arrays.fill(rowBytes, read, rowLength, (byte) 0);
+        }
+
+        private void readIntegerRow( int fileRow ) {
+            if (compressed != 1) {
+                int length = fileCols * rasterMapType;
+                byte[] tmp = getFileBytes(length);
+                readBytes(cellBuffer, (long) fileRow * length, tmp, length);
+                for( int col = 0; col < fileCols; col++ ) {
+                    setIntegerValue(col, getInteger(tmp, col * rasterMapType, rasterMapType));
+                }
+                return;
+            }
+            int start = (int) addressesofrows[fileRow];
+            int length = (int) (addressesofrows[fileRow + 1] - addressesofrows[fileRow]) - 1;
+            /* The first byte tells how many bytes the values are */
+            int bytespervalue = (cellBuffer.get(start) & 0xff);
+            byte[] tmp = getFileBytes(length);
+            readBytes(cellBuffer, start + 1, tmp, length);
+            if (length == bytespervalue * fileCols) {
+                /* There is no compression in this row */
+                for( int col = 0; col < fileCols; col++ ) {
+                    setIntegerValue(col, getInteger(tmp, col * bytespervalue, bytespervalue));
+                }
+            } else {
+                /* The values appear in couples of count and value */
+                int couples = length / (1 + bytespervalue);
+                int col = 0;
+                for( int i = 0; i < couples; i++ ) {
+                    int position = i * (1 + bytespervalue);
+                    int count = (tmp[position] & 0xff);
+                    int cell = getInteger(tmp, position + 1, bytespervalue);
+                    for( int j = 0; j < count && col < fileCols; j++ ) {
+                        setIntegerValue(col++, cell);
+                    }
+                }
+                while( col < fileCols ) {
+                    setIntegerValue(col++, 0);
+                }
+            }
+        }
+
+        private void setIntegerValue( int col, int cell ) {
+            if (isNull(col) || (cell == 0 && isOldIntegerMap)) {
+                values[col] = Double.NaN;
+                return;
+            }
+            /* If map is a reclass then get the reclassed value */
+            if (reclassTable != null) {
+                cell = ((Integer) reclassTable.elementAt(cell)).intValue();
+            }
+            values[col] = cell;
+        }
+
+        private boolean isNull( int col ) {
+            return nullBuffer != null && ((nullBytes[col >> 3] >> (7 - (col & 7))) & 1) != 0;
+        }
+
+        private byte[] getFileBytes( int length ) {
+            if (fileBytes.length < length) {
+                fileBytes = new byte[length];
+            }
+            return fileBytes;
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+
+    private static void readBytes( ByteBuffer buffer, long position, byte[] bytes, int length ) {
+        buffer.position((int) position);
+        buffer.get(bytes, 0, length);
+    }
+
+    /**
+     * Reads a big endian integer of 1 to 4 bytes, the 2 bytes ones are signed.
+     */
+    private static int getInteger( byte[] bytes, int position, int bytesPerValue ) {
+        if (bytesPerValue == 2) {
+            return (short) (((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff));
+        }
+        int value = 0;
+        for( int i = 0; i < bytesPerValue; i++ ) {
+            value = (value << 8) | (bytes[position + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * LRU cache of decoded map file rows, shared by the workers of the parallel read.
+     */
+    private static class RowCache extends LinkedHashMap<Integer, double[]> {
+        private static final long serialVersionUID = 1L;
+        private final int maxRows;
+
+        RowCache( int maxRows ) {
+            super(16, 0.75f, true);
+            this.maxRows = maxRows;
+        }
+
+        synchronized double[] getRow( int fileRow ) {
+            return get(fileRow);
+        }
+
+        synchronized void putRow( int fileRow, double[] rowValues ) {
+            put(fileRow, rowValues);
+        }
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Integer, double[]> eldest ) {
+            return size() > maxRows;
+        }
+    }
+
     /**
      * read the null value from the null file (if it exists) and returns the information about the
      * particular cell (true if it is novalue, false if it is not a novalue
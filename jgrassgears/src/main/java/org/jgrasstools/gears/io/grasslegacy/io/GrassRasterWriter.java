@@ -60,6 +60,14 @@ public class GrassRasterWriter extends MapWriter {
      */
     private int outputToDiskType = 2;
 
+    /*
+     * the state of a map written by rows.
+     */
+    private RandomAccessFile rowsFile = null;
+    private RandomAccessFile rowsNullFile = null;
+    private CompressesRasterWriter rowsWriter = null;
+    private int writtenRows = 0;
+
 
     /**
      * 
@@ -133,6 +141,64 @@ public class GrassRasterWriter extends MapWriter {
         return true;
     }
 
+    /**
+     * Prepares the map to be written row by row through {@link #writeRow(double[])}. The map is
+     * complete after {@link #endRows()}.
+     * 
+     * @throws Exception
+     */
+    public void beginRows() throws Exception {
+        rowsFile = new RandomAccessFile(new File(fcellFilePath), "rw"); //$NON-NLS-1$
+        File ds2 = new File(mapsetPath + File.separator + GrassLegacyConstans.CELL_MISC + File.separator + name + File.separator
+                + GrassLegacyConstans.CELLMISC_NULL);
+        rowsNullFile = new RandomAccessFile(ds2, "rw"); //$NON-NLS-1$
+        rowsWriter = new CompressesRasterWriter(outputToDiskType, range, pointerInFilePosition, rowaddresses, dataWindow);
+        writtenRows = 0;
+    }
+
+    /**
+     * Writes the next row of the map.
+     * 
+     * @param row the values of the row, novalues as NaN.
+     * @throws Exception
+     */
+    public void writeRow( double[] row ) throws Exception {
+        if (rowsWriter == null) {
+            throw new IllegalStateException("The writing of the rows has not been started.");
+        }
+        if (writtenRows >= dataWindow.getRows()) {
+            throw new RasterWritingFailureException(ERROR_IN_WRITING_RASTER + "all the rows have already been written.");
+        }
+        rowsWriter.compressAndWriteRow(rowsFile, rowsNullFile, writtenRows, row);
+        writtenRows++;
+    }
+
+    /**
+     * Completes a map written by rows, writing the row addresses and the support files.
+     * 
+     * @throws Exception
+     */
+    public void endRows() throws Exception {
+        if (rowsWriter == null) {
+            return;
+        }
+        try {
+            if (writtenRows < dataWindow.getRows()) {
+                throw new RasterWritingFailureException(ERROR_IN_WRITING_RASTER + "only " + writtenRows + " of "
+                        + dataWindow.getRows() + " rows have been written.");
+            }
+            rowsWriter.writeRowAddresses(rowsFile);
+            range = rowsWriter.getRange();
+            pointerInFilePosition = rowsWriter.getPointerInFilePosition();
+            rowaddresses = rowsWriter.getRowaddresses();
+        } finally {
+            rowsWriter = null;
+            rowsFile.close();
+            rowsNullFile.close();
+        }
+        createUtilityFiles();
+    }
+
     /**
      * check if the needed folders are there (they could be missing if the mapset has just been
      * created and this is the first file that gets into it
@@ -54,6 +54,7 @@ public class JGrassRasterMapReader {
      * <li>the number to use internally instead of the map novalues</li>
      * <li>the raster map type to read (ex. {@link GrassLegacyConstans#GRASSBINARYRASTERMAP})</li>
      * <li>a monitor object</li>
+     * <li>the parallel read of the map rows</li>
      * </ul>
      * </p>
      */
@@ -65,6 +66,7 @@ public class JGrassRasterMapReader {
         private double novalue = GrassLegacyConstans.defaultNovalue;
         private String maptype = GrassLegacyConstans.GRASSBINARYRASTERMAP;
         private IJGTProgressMonitor monitor = new LogProgressMonitor();
+        private boolean parallel = false;
 
         /**
          * Constructor for the {@link BuilderFromGeoresource} with the required parameters.
@@ -110,6 +112,18 @@ public class JGrassRasterMapReader {
             return this;
         }
 
+        /**
+         * Sets the optional parallel read, in which the map files are memory mapped
+         * and the rows are decoded in parallel.
+         * 
+         * @param parallel if <code>true</code>, the rows are read in parallel.
+         * @return the builder object to allow chaining.
+         */
+        public BuilderFromMapPath parallel( boolean parallel ) {
+            this.parallel = parallel;
+            return this;
+        }
+
         /**
          * Builds the {@link JGrassRasterMapReader}.
          * 
@@ -137,6 +151,7 @@ public class JGrassRasterMapReader {
      * <li>the number to use internally instead of the map novalues</li>
      * <li>the raster map type to read (ex. {@link GrassLegacyConstans#GRASSBINARYRASTERMAP})</li>
      * <li>a monitor object</li>
+     * <li>the parallel read of the map rows</li>
      * </ul>
      * </p>
      */
@@ -150,6 +165,7 @@ public class JGrassRasterMapReader {
         private double novalue = GrassLegacyConstans.defaultNovalue;
         private String maptype = GrassLegacyConstans.GRASSBINARYRASTERMAP;
         private IJGTProgressMonitor monitor = new LogProgressMonitor();
+        private boolean parallel = false;
 
         /**
          * Constructor for the {@link BuilderFromGeoresource} with the required paraeters.
@@ -197,6 +213,18 @@ public class JGrassRasterMapReader {
             return this;
         }
 
+        /**
+         * Sets the optional parallel read, in which the map files are memory mapped
+         * and the rows are decoded in parallel.
+         * 
+         * @param parallel if <code>true</code>, the rows are read in parallel.
+         * @return the builder object to allow chaining.
+         */
+        public BuilderFromPathAndNames parallel( boolean parallel ) {
+            this.parallel = parallel;
+            return this;
+        }
+
         /**
          * Builds the {@link JGrassRasterMapReader}.
          * 
@@ -229,6 +257,7 @@ public class JGrassRasterMapReader {
         this.locationPath = builder.locationPath;
         reader = MapIOFactory.createGrassRasterMapReader(builder.maptype);
         reader.setParameter("novalue", (new Double(builder.novalue)));
+        reader.setParameter("parallel", Boolean.valueOf(builder.parallel));
         reader.setDataWindow(builder.readWindow);
         reader.setOutputDataObject(new double[0][0]);
 
@@ -247,6 +276,7 @@ public class JGrassRasterMapReader {
         this.mapPath = builder.mapPath;
         reader = MapIOFactory.createGrassRasterMapReader(builder.maptype);
         reader.setParameter("novalue", (new Double(builder.novalue)));
+        reader.setParameter("parallel", Boolean.valueOf(builder.parallel));
         reader.setDataWindow(builder.readWindow);
         reader.setOutputDataObject(new double[0][0]);
         fullMapPath = mapPath;
@@ -28,6 +28,7 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
@@ -122,12 +123,27 @@ public abstract class ALasDataManager implements AutoCloseable {
     /**
      * Get points inside a given geometry boundary.
      *
+     * <p>The points are copied into new records, for big areas
+     * {@link #getPointBlockInGeometry(Geometry, boolean)} needs a lot less memory.</p>
+     *
      * @param checkGeom the {@link com.vividsolutions.jts.geom.Geometry} to use to check.
      * @param doOnlyEnvelope check for the geom envelope instead of a intersection with it.
      * @return the list of points contained in the supplied geometry.
      * @throws Exception
      */
-    public abstract List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception;
+    public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+        return getPointBlockInGeometry(checkGeom, doOnlyEnvelope).toRecords();
+    }
+
+    /**
+     * Get points inside a given geometry boundary as {@link LasPointBlock}.
+     *
+     * @param checkGeom the {@link com.vividsolutions.jts.geom.Geometry} to use to check.
+     * @param doOnlyEnvelope check for the geom envelope instead of a intersection with it.
+     * @return the block of points contained in the supplied geometry.
+     * @throws Exception
+     */
+    public abstract LasPointBlock getPointBlockInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception;
 
     /**
      * Retrieve all the trees envelopes that intersect the geometry.
@@ -189,7 +205,7 @@ public abstract class ALasDataManager implements AutoCloseable {
      * @return the features of the envelopes contained in the supplied geometry.
      * @throws Exception
      */
-    public synchronized SimpleFeatureCollection getEnvelopeFeaturesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope,
+    public SimpleFeatureCollection getEnvelopeFeaturesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope,
             double[] minMaxZI, boolean doPoints ) throws Exception {
         List<Geometry> envelopesInGeometry = getEnvelopesInGeometry(checkGeom, doOnlyEnvelope, null);
 
@@ -258,12 +274,23 @@ public abstract class ALasDataManager implements AutoCloseable {
      * @return <code>true</code> if the point is accepted.
      */
     protected boolean doAccept( LasRecord lasDot ) {
+        if (!hasConstraint) {
+            return true;
+        }
+        return doAccept(lasDot.intensity, lasDot.returnNumber, lasDot.numberOfReturns, lasDot.classification);
+    }
+
+    /**
+     * Check the values of a point for constraints.
+     *
+     * @return <code>true</code> if the point is accepted.
+     */
+    protected boolean doAccept( short intensity, short returnNumber, short numberOfReturns, byte classification ) {
         if (!hasConstraint) {
             return true;
         }
         boolean takeIt = true;
         if (intensityRange != null) {
-            short intensity = lasDot.intensity;
             if (intensity >= intensityRange[0] && intensity <= intensityRange[1]) {
                 takeIt = true;
             } else {
@@ -271,7 +298,7 @@ public abstract class ALasDataManager implements AutoCloseable {
             }
         }
         if (impulses != null) {
-            int impulse = lasDot.returnNumber;
+            int impulse = returnNumber;
             takeIt = false;
             for( final double imp : impulses ) {
                 if (impulse == (int) imp) {
@@ -283,13 +310,11 @@ public abstract class ALasDataManager implements AutoCloseable {
                 return false;
         }
         if (impulsesNum != -1) {
-            int numOfReturns = lasDot.numberOfReturns;
-            if (numOfReturns != (int) impulsesNum) {
+            if (numberOfReturns != (int) impulsesNum) {
                 return false;
             }
         }
         if (classes != null) {
-            int classification = lasDot.classification;
             takeIt = false;
             for( final double classs : classes ) {
                 if (classification == (int) classs) {
@@ -19,6 +19,7 @@ package org.jgrasstools.gears.io.las;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -30,7 +31,8 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
 import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
@@ -46,7 +48,6 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
-import com.vividsolutions.jts.index.strtree.STRtree;
 
 /**
  * A class that manages las folder data.
@@ -66,7 +67,10 @@ class LasFileDataManager extends ALasDataManager {
     private ALasReader lasReader;
     private ILasHeader lasHeader;
     private boolean isOpen;
-    private STRtree pointsTree;
+    private LasPointBlock filePoints;
+    private PointsGrid pointsGrid;
+
+    private static final int BATCH_SIZE = 100000;
 
     /**
      * Constructor.
@@ -116,87 +120,92 @@ class LasFileDataManager extends ALasDataManager {
         isOpen = true;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+    public synchronized LasPointBlock getPointBlockInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
         checkOpen();
 
-        ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
         Envelope checkEnvelope = checkGeom.getEnvelopeInternal();
-        if (pointsTree != null) {
-            List<LasRecord> pointsList = pointsTree.query(checkEnvelope);
-            PreparedGeometry preparedGeometry = null;
-            if (!doOnlyEnvelope) {
-                preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
-            }
-            for( LasRecord lasDot : pointsList ) {
-                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                if (!checkEnvelope.contains(c)) {
-                    continue;
+        if (filePoints == null) {
+            // the accepted points of the file are read once and kept
+            LasPointBlock points = new LasPointBlock((int) Math.min(lasHeader.getRecordsCount(), Integer.MAX_VALUE - 8));
+            LasPointBatch batch = new LasPointBatch(BATCH_SIZE);
+            int read;
+            while( (read = lasReader.readNextBatch(batch)) > 0 ) {
+                for( int i = 0; i < read; i++ ) {
+                    if (doAccept(batch.intensity[i], batch.returnNumber[i], batch.numberOfReturns[i], batch.classification[i])) {
+                        points.add(batch, i);
+                    }
                 }
-                if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+            }
+            close();
+            filePoints = points;
+            pointsGrid = new PointsGrid(filePoints);
+        }
+
+        if (inDem == null && doOnlyEnvelope && checkEnvelope.covers(getOverallEnvelope())) {
+            // take it straight
+            return filePoints;
+        }
+
+        // only the cells touched by the envelope are visited
+        PreparedGeometry preparedGeometry = doOnlyEnvelope ? null : PreparedGeometryFactory.prepare(checkGeom);
+        Coordinate c = new Coordinate();
+        int[] accepted = new int[64];
+        int count = 0;
+        int[] order = pointsGrid.order;
+        int[] cellOffsets = pointsGrid.cellOffsets;
+        int cols = pointsGrid.cols;
+        int colFrom = pointsGrid.col(checkEnvelope.getMinX());
+        int colTo = pointsGrid.col(checkEnvelope.getMaxX());
+        int rowFrom = pointsGrid.row(checkEnvelope.getMinY());
+        int rowTo = pointsGrid.row(checkEnvelope.getMaxY());
+        for( int row = rowFrom; row <= rowTo; row++ ) {
+            int from = cellOffsets[row * cols + colFrom];
+            int to = cellOffsets[row * cols + colTo + 1];
+            for( int i = from; i < to; i++ ) {
+                int index = order[i];
+                double x = filePoints.getX(index);
+                double y = filePoints.getY(index);
+                if (!checkEnvelope.contains(x, y)) {
                     continue;
                 }
-                pointsListForTile.add(lasDot);
-            }
-        } else {
-            pointsTree = new STRtree();
-            ReferencedEnvelope overallEnvelope = getOverallEnvelope();
-            if (doOnlyEnvelope && checkEnvelope.covers(overallEnvelope)) {
-                // read it straight
-                while( lasReader.hasNextPoint() ) {
-                    LasRecord lasDot = lasReader.getNextPoint();
-                    if (!doAccept(lasDot)) {
+                if (preparedGeometry != null) {
+                    c.x = x;
+                    c.y = y;
+                    if (!preparedGeometry.contains(gf.createPoint(c))) {
                         continue;
                     }
-                    pointsTree.insert(new Envelope(new Coordinate(lasDot.x, lasDot.y)), lasDot);
-                    pointsListForTile.add(lasDot);
                 }
-            } else {
-
-                Envelope env = checkGeom.getEnvelopeInternal();
-                PreparedGeometry preparedGeometry = null;
-                if (!doOnlyEnvelope) {
-                    preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+                if (count == accepted.length) {
+                    accepted = Arrays.copyOf(accepted, count + (count >> 1));
                 }
+                accepted[count++] = index;
+            }
+        }
+        // keep the order of the file
+        Arrays.sort(accepted, 0, count);
 
-                while( lasReader.hasNextPoint() ) {
-                    LasRecord lasDot = lasReader.getNextPoint();
-                    if (!doAccept(lasDot)) {
-                        continue;
-                    }
-                    Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                    pointsTree.insert(new Envelope(c), lasDot);
-                    if (!env.contains(c)) {
-                        continue;
-                    }
-
-                    if (inDem != null) {
-                        // check geom instead of only envelope?
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                        if (JGTConstants.isNovalue(value)) {
-                            continue;
-                        }
-                        double height = lasDot.z - value;
-                        if (height > elevThreshold) {
-                            lasDot.groundElevation = height;
-                            pointsListForTile.add(lasDot);
-                        }
-                    } else {
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        pointsListForTile.add(lasDot);
-                    }
-                }
+        if (inDem == null) {
+            return filePoints.select(accepted, count);
+        }
 
+        // the ground elevations go in a copy, the kept points are shared by all the queries
+        LasPointBlock pointsForTile = new LasPointBlock(count);
+        for( int i = 0; i < count; i++ ) {
+            int index = accepted[i];
+            double x = filePoints.getX(index);
+            double y = filePoints.getY(index);
+            double value = CoverageUtilities.getValue(inDem, x, y);
+            if (JGTConstants.isNovalue(value)) {
+                continue;
+            }
+            double height = filePoints.getZ(index) - value;
+            if (height > elevThreshold) {
+                pointsForTile.add(filePoints, index);
+                pointsForTile.setGroundElevation(pointsForTile.size() - 1, height);
             }
-            close();
         }
-        return pointsListForTile;
+        return pointsForTile;
     }
 
     @Override
@@ -279,4 +288,105 @@ class LasFileDataManager extends ALasDataManager {
             lasReader.close();
     }
 
+    /**
+     * A grid over the points of the file.
+     *
+     * <p>
+     * The positions of the points are sorted by cell, row by row, and every cell
+     * knows where its positions start, so that a query only visits the cells
+     * touched by its envelope.
+     * </p>
+     */
+    private static class PointsGrid {
+        private static final int POINTS_PER_CELL = 32;
+
+        /**
+         * The positions of the points in the block, sorted by cell.
+         */
+        final int[] order;
+        /**
+         * The start of the positions of every cell in {@link #order}, plus the end of the last cell.
+         */
+        final int[] cellOffsets;
+        final int cols;
+        final int rows;
+        private final double minX;
+        private final double minY;
+        private final double cellSize;
+
+        PointsGrid( LasPointBlock points ) {
+            int size = points.size();
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for( int i = 0; i < size; i++ ) {
+                double x = points.getX(i);
+                double y = points.getY(i);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+            if (size == 0) {
+                minX = minY = maxX = maxY = 0;
+            }
+            double width = maxX - minX;
+            double height = maxY - minY;
+            // square cells holding some points each, also for very elongated data
+            double cellSize = Math.sqrt(width * height * POINTS_PER_CELL / Math.max(size, 1));
+            cellSize = Math.max(cellSize, Math.max(width, height) * POINTS_PER_CELL / Math.max(size, 1));
+            if (!(cellSize > 0)) {
+                cellSize = 1;
+            }
+            this.minX = minX;
+            this.minY = minY;
+            this.cellSize = cellSize;
+            cols = (int) (width / cellSize) + 1;
+            rows = (int) (height / cellSize) + 1;
+
+            // counting sort of the positions by cell
+            int[] cells = new int[size];
+            cellOffsets = new int[cols * rows + 1];
+            for( int i = 0; i < size; i++ ) {
+                cells[i] = row(points.getY(i)) * cols + col(points.getX(i));
+                cellOffsets[cells[i] + 1]++;
+            }
+            for( int cell = 0; cell < cols * rows; cell++ ) {
+                cellOffsets[cell + 1] += cellOffsets[cell];
+            }
+            int[] next = Arrays.copyOf(cellOffsets, cols * rows);
+            order = new int[size];
+            for( int i = 0; i < size; i++ ) {
+                order[next[cells[i]]++] = i;
+            }
+        }
+
+        /**
+         * @param x the easting.
+         * @return the column of the cell, clamped to the grid.
+         */
+        int col( double x ) {
+            return clamp((x - minX) / cellSize, cols);
+        }
+
+        /**
+         * @param y the northing.
+         * @return the row of the cell, clamped to the grid.
+         */
+        int row( double y ) {
+            return clamp((y - minY) / cellSize, rows);
+        }
+
+        private static int clamp( double value, int count ) {
+            if (value < 0) {
+                return 0;
+            }
+            if (value >= count) {
+                return count - 1;
+            }
+            return (int) value;
+        }
+    }
+
 }
@@ -18,9 +18,14 @@
 package org.jgrasstools.gears.io.las;
 
 import java.io.File;
-import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -29,14 +34,17 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
-import org.geotools.util.WeakValueHashMap;
+import org.jgrasstools.gears.io.disktree.DiskTreeReader;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
 import org.jgrasstools.gears.io.las.index.LasIndexer;
-import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
+import org.jgrasstools.gears.libs.logging.JGTLogger;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
+import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
@@ -50,30 +58,78 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
-import com.vividsolutions.jts.index.strtree.AbstractSTRtree;
-import com.vividsolutions.jts.index.strtree.ItemBoundable;
 
 /**
  * A class that manages las folder data.
  * 
+ * <p>The queries are thread safe and do not lock while reading: readers are pooled per las
+ * file, so that each thread works on its own reader instance, and the per file indexes
+ * are opened once and shared. The indexes are memory mapped {@link DiskTreeReader disktree}
+ * files, queried without loading them on heap. Queries that touch more than one las file are split 
+ * by file and run in parallel on the {@link JGTExecutor}.</p>
+ * 
+ * <p>The idle readers and the per file indexes are kept in LRU caches of limited size,
+ * readers and indexes evicted from the cache are closed. On {@link #close()} the readers
+ * still in use by running queries are closed once they are given back, and the next
+ * query opens the manager again.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
-class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable {
-    private WeakValueHashMap<String, Pair> fileName2LasReaderMap;
-    private WeakValueHashMap<String, STRtreeJGT> fileName2IndexMap;
-    private List<String> fileName4LasReaderMapSupport;
-    // private int READERCACHE = 5;
+public class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable {
+    /**
+     * The default maximum number of idle readers kept open.
+     */
+    public static final int DEFAULT_IDLE_READERS = 32;
+
+    /**
+     * The default maximum number of las file indexes kept in memory.
+     */
+    public static final int DEFAULT_CACHED_INDEXES = 64;
+
+    /*
+     * the idle readers per las file, in least recently used order
+     */
+    private final LinkedHashMap<String, ArrayDeque<ALasReader>> fileName2IdleReadersMap = new LinkedHashMap<String, ArrayDeque<ALasReader>>(
+            16, 0.75f, true);
+    private int idleReadersCount = 0;
+    /*
+     * the generation of the manager, increased on every close, guarded by the idle readers map
+     */
+    private int generation = 0;
+    /*
+     * the open readers with the generation they have been opened in
+     */
+    private final Map<ALasReader, Integer> openReaders = new ConcurrentHashMap<ALasReader, Integer>();
+    private final LinkedHashMap<String, DiskTreeReader> fileName2IndexMap = new LinkedHashMap<String, DiskTreeReader>(16, 0.75f,
+            true){
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, DiskTreeReader> eldest ) {
+            if (size() > maxCachedIndexes) {
+                // queries still running on the index are not affected
+                closeIndex(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Set<String> filesWithoutIndex = ConcurrentHashMap.newKeySet();
     private File lasFolderIndexFile;
     private File lasFolder;
-    private STRtreeJGT mainLasFolderIndex;
+    private volatile DiskTreeReader mainLasFolderIndex;
     private GridCoverage2D inDem;
     private double elevThreshold;
 
-    private SimpleFeatureCollection overviewFeatures;
-    private ReferencedEnvelope referencedEnvelope2D;
+    private int threadsNum = JGTModel.getDefaultThreadsNum();
+    private int maxIdleReaders = DEFAULT_IDLE_READERS;
+    private int maxCachedIndexes = DEFAULT_CACHED_INDEXES;
+
+    private volatile SimpleFeatureCollection overviewFeatures;
+    private volatile ReferencedEnvelope referencedEnvelope2D;
     private List<ReferencedEnvelope> referencedEnvelope2DList = new ArrayList<ReferencedEnvelope>();
     private List<String> fileNamesList = new ArrayList<String>();
-    private ReferencedEnvelope3D referencedEnvelope3D;
+    private volatile ReferencedEnvelope3D referencedEnvelope3D;
 
     /**
      * Constructor.
@@ -103,15 +159,6 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         } else {
             throw new IllegalArgumentException("The Crs can't be null.");
         }
-        // indexMap = new LinkedHashMap<String, Pair>() {
-        // @Override
-        // protected boolean removeEldestEntry(Entry<String, Pair> eldest) {
-        // return size() > READERCACHE;
-        // }
-        // };
-        fileName2LasReaderMap = new WeakValueHashMap<String, Pair>();
-        fileName2IndexMap = new WeakValueHashMap<String, STRtreeJGT>();
-        fileName4LasReaderMapSupport = new ArrayList<String>();
     }
 
     @Override
@@ -119,14 +166,42 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         return lasFolderIndexFile;
     }
 
+    /**
+     * Set the number of threads used to query multiple las files in parallel.
+     * 
+     * <p>Defaults to {@link JGTModel#getDefaultThreadsNum()}. Needs to be called
+     * before the first query.</p>
+     * 
+     * @param threadsNum the number of threads. If 1, files are queried sequentially.
+     */
+    public void setThreadsNum( int threadsNum ) {
+        this.threadsNum = Math.max(1, threadsNum);
+    }
+
+    /**
+     * Set the size of the caches of the readers and of the las file indexes.
+     * 
+     * <p>Needs to be called before the first query.</p>
+     * 
+     * @param maxIdleReaders the maximum number of idle readers kept open, over all the las files.
+     *          The readers in use by running queries are not counted.
+     * @param maxCachedIndexes the maximum number of las file indexes kept in memory.
+     */
+    public void setCacheSizes( int maxIdleReaders, int maxCachedIndexes ) {
+        this.maxIdleReaders = Math.max(0, maxIdleReaders);
+        this.maxCachedIndexes = Math.max(1, maxCachedIndexes);
+    }
+
     /**
      * Open the main folder file and read the main index.
      *
      * @throws Exception
      */
     @Override
-    public void open() throws Exception {
-        mainLasFolderIndex = OmsLasIndexReader.readIndex(lasFolderIndexFile.getAbsolutePath());
+    public synchronized void open() throws Exception {
+        if (mainLasFolderIndex == null) {
+            mainLasFolderIndex = OmsLasIndexReader.openIndex(lasFolderIndexFile.getAbsolutePath());
+        }
     }
 
     /**
@@ -134,88 +209,106 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      *
      * @param checkGeom the {@link com.vividsolutions.jts.geom.Geometry} to use to check.
      * @param doOnlyEnvelope check for the geom envelope instead of a intersection with it.
-     * @return the list of points contained in the supplied geometry.
+     * @return the block of points contained in the supplied geometry.
      * @throws Exception
      */
     @Override
-    @SuppressWarnings("rawtypes")
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
-        checkOpen();
-        ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
+    public LasPointBlock getPointBlockInGeometry( final Geometry checkGeom, final boolean doOnlyEnvelope ) throws Exception {
+        DiskTreeReader mainIndex = checkOpen();
+        final Envelope env = checkGeom.getEnvelopeInternal();
+        final List<String> filesList = getFileNames(mainIndex.queryGeometries(env));
+
+        LasPointBlock pointsForTile = new LasPointBlock();
+        if (filesList.size() < 2 || threadsNum < 2) {
+            for( String name : filesList ) {
+                getPointsInFile(name, checkGeom, env, doOnlyEnvelope, pointsForTile);
+            }
+            return pointsForTile;
+        }
 
-        Envelope env = checkGeom.getEnvelopeInternal();
+        // fan out on the files, results are merged in file order
+        final LasPointBlock[] filesPoints = new LasPointBlock[filesList.size()];
+        JGTExecutor.forEachIndex(filesList.size(), threadsNum, null, null, new JGTExecutor.IndexProcessor(){
+            public void process( int index ) throws Exception {
+                LasPointBlock filePoints = new LasPointBlock();
+                getPointsInFile(filesList.get(index), checkGeom, env, doOnlyEnvelope, filePoints);
+                filesPoints[index] = filePoints;
+            }
+        });
+        for( LasPointBlock filePoints : filesPoints ) {
+            pointsForTile.addAll(filePoints);
+        }
+        return pointsForTile;
+    }
+
+    /**
+     * Reads the points of a single las file that are inside the query geometry.
+     * 
+     * <p>A reader is borrowed from the pool of the file for the time of the read.</p>
+     */
+    private void getPointsInFile( String name, Geometry checkGeom, Envelope env, boolean doOnlyEnvelope,
+            LasPointBlock pointsBlock ) throws Exception {
+        DiskTreeReader lasIndex = getFileIndex(name);
+        if (lasIndex == null) {
+            return;
+        }
+        List<Geometry> addressesList = lasIndex.queryGeometries(env);
+        if (addressesList.size() == 0) {
+            return;
+        }
         PreparedGeometry preparedGeometry = null;
         if (!doOnlyEnvelope) {
             preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
         }
 
-        List filesList = mainLasFolderIndex.query(env);
-        for( Object fileName : filesList ) {
-            if (fileName instanceof String) {
-                String name = (String) fileName;
-
-                Pair pair = fileName2LasReaderMap.get(name);
-                if (pair == null) {
-                    File lasFile = new File(lasFolder, name);
-                    File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                    if (lasIndexFile.exists()) {
-                        pair = getIndexPair(lasFile);
-                        if (pair != null) {
-                            fileName2LasReaderMap.put(name, pair);
-                            fileName4LasReaderMapSupport.add(name);
+        ALasReader reader = borrowReader(name);
+        try {
+            for( Geometry cell : addressesList ) {
+                Object obj = cell.getUserData();
+                if (obj instanceof double[]) {
+                    double[] addresses = (double[]) obj;
+                    long from = (long) addresses[0];
+                    long to = (long) addresses[1];
+                    for( long pointNum = from; pointNum < to; pointNum++ ) {
+                        LasRecord lasDot = reader.getPointAt(pointNum);
+                        if (!doAccept(lasDot)) {
+                            continue;
                         }
-                    } else {
-                        continue;
-                    }
-                }
-
-                List addressesList = pair.strTree.query(env);
-                for( Object obj : addressesList ) {
-                    if (obj instanceof double[]) {
-                        double[] addresses = (double[]) obj;
-                        long from = (long) addresses[0];
-                        long to = (long) addresses[1];
-                        for( long pointNum = from; pointNum < to; pointNum++ ) {
-                            LasRecord lasDot = pair.reader.getPointAt(pointNum);
-                            if (!doAccept(lasDot)) {
-                                continue;
-                            }
-                            if (inDem != null) {
-                                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                                if (env.contains(c)) {
-                                    // check geom instead of only envelope?
-                                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                                        continue;
-                                    }
-                                    double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                                    if (JGTConstants.isNovalue(value)) {
-                                        continue;
-                                    }
-                                    double height = lasDot.z - value;
-                                    if (height > elevThreshold) {
-                                        // lasDot.z = height;
-                                        lasDot.groundElevation = height;
-                                        pointsListForTile.add(lasDot);
-                                    }
+                        if (inDem != null) {
+                            Coordinate c = new Coordinate(lasDot.x, lasDot.y);
+                            if (env.contains(c)) {
+                                // check geom instead of only envelope?
+                                if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+                                    continue;
+                                }
+                                double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
+                                if (JGTConstants.isNovalue(value)) {
+                                    continue;
                                 }
-                            } else {
-                                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                                if (env.contains(c)) {
-                                    // check geom instead of only envelope?
-                                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                                        continue;
-                                    }
-                                    pointsListForTile.add(lasDot);
+                                double height = lasDot.z - value;
+                                if (height > elevThreshold) {
+                                    // lasDot.z = height;
+                                    lasDot.groundElevation = height;
+                                    pointsBlock.add(lasDot);
                                 }
                             }
-
+                        } else {
+                            Coordinate c = new Coordinate(lasDot.x, lasDot.y);
+                            if (env.contains(c)) {
+                                // check geom instead of only envelope?
+                                if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+                                    continue;
+                                }
+                                pointsBlock.add(lasDot);
+                            }
                         }
+
                     }
                 }
             }
+        } finally {
+            returnReader(name, reader);
         }
-        return pointsListForTile;
     }
 
     /**
@@ -228,9 +321,9 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      * @throws Exception
      */
     @Override
-    public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+    public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
-        checkOpen();
+        DiskTreeReader mainIndex = checkOpen();
         ArrayList<Geometry> envelopeListForTile = new ArrayList<Geometry>();
 
         Envelope env = checkGeom.getEnvelopeInternal();
@@ -240,38 +333,29 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         }
         double min = Double.POSITIVE_INFINITY;
         double max = Double.NEGATIVE_INFINITY;
-        List< ? > filesList = mainLasFolderIndex.query(env);
-        for( Object fileName : filesList ) {
-            if (fileName instanceof String) {
-                String name = (String) fileName;
-                File lasFile = new File(lasFolder, name);
-                File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                String absolutePath = lasIndexFile.getAbsolutePath();
-                STRtreeJGT lasIndex = fileName2IndexMap.get(absolutePath);
-                if (lasIndex == null) {
-                    lasIndex = OmsLasIndexReader.readIndex(absolutePath);
-                    fileName2IndexMap.put(absolutePath, lasIndex);
-                }
-                List< ? > queryBoundables = lasIndex.queryBoundables(env);
-                for( Object object : queryBoundables ) {
-                    if (object instanceof ItemBoundable) {
-                        ItemBoundable itemBoundable = (ItemBoundable) object;
-                        double[] item = (double[]) itemBoundable.getItem();
-                        if (item.length > 0) {
-                            Envelope bounds = (Envelope) itemBoundable.getBounds();
-                            Polygon envelopePolygon = LasIndexer.envelopeToPolygon(bounds);
-                            envelopePolygon.setUserData(new double[]{item[2], item[3]});
-                            if (minMaxZ != null) {
-                                min = Math.min(min, item[2]);
-                                max = Math.max(max, item[2]);
-                            }
-                            if (doOnlyEnvelope) {
+        List<String> filesList = getFileNames(mainIndex.queryGeometries(env));
+        for( String name : filesList ) {
+            DiskTreeReader lasIndex = getFileIndex(name);
+            if (lasIndex == null) {
+                continue;
+            }
+            List<Geometry> cells = lasIndex.queryGeometries(env);
+            for( Geometry cell : cells ) {
+                if (cell.getUserData() instanceof double[]) {
+                    double[] item = (double[]) cell.getUserData();
+                    if (item.length > 0) {
+                        Envelope bounds = cell.getEnvelopeInternal();
+                        Polygon envelopePolygon = LasIndexer.envelopeToPolygon(bounds);
+                        envelopePolygon.setUserData(new double[]{item[2], item[3]});
+                        if (minMaxZ != null) {
+                            min = Math.min(min, item[2]);
+                            max = Math.max(max, item[2]);
+                        }
+                        if (doOnlyEnvelope) {
+                            envelopeListForTile.add(envelopePolygon);
+                        } else {
+                            if (preparedGeometry.intersects(envelopePolygon)) {
                                 envelopeListForTile.add(envelopePolygon);
-                            } else {
-                                if (preparedGeometry.intersects(envelopePolygon)) {
-                                    envelopeListForTile.add(envelopePolygon);
-                                }
                             }
                         }
                     }
@@ -286,35 +370,36 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     }
 
     @Override
-    @SuppressWarnings("rawtypes")
-    public synchronized ReferencedEnvelope getOverallEnvelope() throws Exception {
+    public ReferencedEnvelope getOverallEnvelope() throws Exception {
         if (referencedEnvelope2D == null) {
-            checkOpen();
-            Class<AbstractSTRtree> class1 = AbstractSTRtree.class;
-            Field f1 = class1.getDeclaredField("itemBoundables");
-            f1.setAccessible(true);
-            ArrayList boundablesList = (ArrayList) f1.get(mainLasFolderIndex);
-            Envelope env = null;
-            for( Object item : boundablesList ) {
-                if (item instanceof ItemBoundable) {
-                    ItemBoundable boundable = (ItemBoundable) item;
-                    Envelope envelope = (Envelope) boundable.getBounds();
-                    ReferencedEnvelope tmp = new ReferencedEnvelope(envelope, crs);
-                    referencedEnvelope2DList.add(tmp);
-                    String name = (String) boundable.getItem();
-                    fileNamesList.add(name);
-
-                    if (env == null) {
-                        env = envelope;
-                    } else {
-                        env.expandToInclude(envelope.getMinX(), envelope.getMinY());
-                        env.expandToInclude(envelope.getMaxX(), envelope.getMaxY());
-                    }
+            initOverallEnvelope();
+        }
+        return referencedEnvelope2D;
+    }
+
+    private synchronized void initOverallEnvelope() throws Exception {
+        if (referencedEnvelope2D != null) {
+            return;
+        }
+        DiskTreeReader mainIndex = checkOpen();
+        Envelope env = null;
+        for( Geometry fileBounds : mainIndex.getGeometries() ) {
+            if (fileBounds.getUserData() instanceof String) {
+                Envelope envelope = fileBounds.getEnvelopeInternal();
+                ReferencedEnvelope tmp = new ReferencedEnvelope(envelope, crs);
+                referencedEnvelope2DList.add(tmp);
+                String name = (String) fileBounds.getUserData();
+                fileNamesList.add(name);
+
+                if (env == null) {
+                    env = new Envelope(envelope);
+                } else {
+                    env.expandToInclude(envelope.getMinX(), envelope.getMinY());
+                    env.expandToInclude(envelope.getMaxX(), envelope.getMaxY());
                 }
             }
-            referencedEnvelope2D = new ReferencedEnvelope(env, crs);
         }
-        return referencedEnvelope2D;
+        referencedEnvelope2D = new ReferencedEnvelope(env, crs);
     }
 
     @Override
@@ -324,147 +409,278 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     }
 
     @Override
-    public synchronized ReferencedEnvelope3D getEnvelope3D() throws Exception {
+    public ReferencedEnvelope3D getEnvelope3D() throws Exception {
         if (referencedEnvelope3D == null) {
-            checkReadersMap();
-
-            for( String key : fileName4LasReaderMapSupport ) {
-                Pair pair = fileName2LasReaderMap.get(key);
-                if (pair == null) {
-                    File lasFile = new File(lasFolder, key);
-                    pair = getIndexPair(lasFile);
-                    if (pair == null) {
-                        System.err.println("Null reader pair: " + lasFile);
-                        continue;
-                    }
-                }
-                ILasHeader header = pair.reader.getHeader();
+            initEnvelope3D();
+        }
+        return referencedEnvelope3D;
+    }
+
+    private synchronized void initEnvelope3D() throws Exception {
+        if (referencedEnvelope3D != null) {
+            return;
+        }
+        DiskTreeReader mainIndex = checkOpen();
+        ReferencedEnvelope3D envelope3D = null;
+        List<String> filesList = getFileNames(mainIndex.getGeometries());
+        for( String name : filesList ) {
+            if (getFileIndex(name) == null) {
+                continue;
+            }
+            ALasReader reader = borrowReader(name);
+            try {
+                ILasHeader header = reader.getHeader();
                 ReferencedEnvelope3D envelope = header.getDataEnvelope();
-                if (referencedEnvelope3D == null) {
-                    referencedEnvelope3D = envelope;
+                if (envelope3D == null) {
+                    envelope3D = new ReferencedEnvelope3D(envelope);
                 } else {
-                    referencedEnvelope3D.expandToInclude(envelope.getMinX(), envelope.getMinY(), envelope.getMinZ());
-                    referencedEnvelope3D.expandToInclude(envelope.getMaxX(), envelope.getMaxY(), envelope.getMaxZ());
+                    envelope3D.expandToInclude(envelope.getMinX(), envelope.getMinY(), envelope.getMinZ());
+                    envelope3D.expandToInclude(envelope.getMaxX(), envelope.getMaxY(), envelope.getMaxZ());
                 }
+            } finally {
+                returnReader(name, reader);
             }
         }
-        return referencedEnvelope3D;
+        referencedEnvelope3D = envelope3D;
     }
 
     @Override
-    public synchronized SimpleFeatureCollection getOverviewFeatures() throws Exception {
+    public SimpleFeatureCollection getOverviewFeatures() throws Exception {
         if (overviewFeatures == null) {
-            List<ReferencedEnvelope> envelopeList = getEnvelopeList();
-
-            SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
-            b.setName("overview");
-            b.setCRS(crs);
-            b.add("the_geom", Polygon.class);
-            b.add("name", String.class);
-            SimpleFeatureType type = b.buildFeatureType();
-            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-
-            overviewFeatures = new DefaultFeatureCollection();
-
-            for( int i = 0; i < envelopeList.size(); i++ ) {
-                String name = fileNamesList.get(i);
-                ReferencedEnvelope envelope = envelopeList.get(i);
-                Polygon polygon = OmsLasIndexReader.envelopeToPolygon(envelope);
-                Object[] objs = new Object[]{polygon, name};
-                builder.addAll(objs);
-                SimpleFeature feature = builder.buildFeature(null);
-                ((DefaultFeatureCollection) overviewFeatures).add(feature);
-            }
+            initOverviewFeatures();
         }
         return overviewFeatures;
     }
 
-    @SuppressWarnings("rawtypes")
-    private void checkReadersMap() throws Exception {
-        checkOpen();
-        if (fileName2LasReaderMap.size() == 0) {
-            List filesList = mainLasFolderIndex.itemsTree();
-            for( Object fileName : filesList ) {
-                if (fileName instanceof String) {
-                    String name = (String) fileName;
-                    getReader(name);
-                } else if (fileName instanceof List) {
-                    List filesList2 = (List) fileName;
-                    for( Object fileName2 : filesList2 ) {
-                        if (fileName2 instanceof String) {
-                            String name2 = (String) fileName2;
-                            getReader(name2);
-                        }
-                    }
-                } else {
-                    throw new RuntimeException();
-                }
+    private synchronized void initOverviewFeatures() throws Exception {
+        if (overviewFeatures != null) {
+            return;
+        }
+        List<ReferencedEnvelope> envelopeList = getEnvelopeList();
+
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("overview");
+        b.setCRS(crs);
+        b.add("the_geom", Polygon.class);
+        b.add("name", String.class);
+        SimpleFeatureType type = b.buildFeatureType();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+
+        DefaultFeatureCollection newOverviewFeatures = new DefaultFeatureCollection();
+        for( int i = 0; i < envelopeList.size(); i++ ) {
+            String name = fileNamesList.get(i);
+            ReferencedEnvelope envelope = envelopeList.get(i);
+            Polygon polygon = OmsLasIndexReader.envelopeToPolygon(envelope);
+            Object[] objs = new Object[]{polygon, name};
+            builder.addAll(objs);
+            SimpleFeature feature = builder.buildFeature(null);
+            newOverviewFeatures.add(feature);
+        }
+        overviewFeatures = newOverviewFeatures;
+    }
+
+    /**
+     * Extracts the las file names from the result of a main index query.
+     */
+    private List<String> getFileNames( List<Geometry> filesList ) {
+        List<String> names = new ArrayList<String>(filesList.size());
+        for( Geometry fileBounds : filesList ) {
+            if (fileBounds.getUserData() instanceof String) {
+                names.add((String) fileBounds.getUserData());
             }
         }
+        return names;
     }
 
-    private void getReader( String name ) throws Exception {
-        Pair pair = fileName2LasReaderMap.get(name);
-        if (pair == null) {
+    /**
+     * Get the index of a las file, reading it if not already cached.
+     * 
+     * @param name the las file name.
+     * @return the index or <code>null</code>, if the las file has no index.
+     * @throws Exception
+     */
+    private DiskTreeReader getFileIndex( String name ) throws Exception {
+        DiskTreeReader lasIndex;
+        synchronized (fileName2IndexMap) {
+            lasIndex = fileName2IndexMap.get(name);
+        }
+        if (lasIndex == null) {
+            if (filesWithoutIndex.contains(name)) {
+                return null;
+            }
             File lasFile = new File(lasFolder, name);
-            pair = getIndexPair(lasFile);
-            if (pair != null) {
-                fileName2LasReaderMap.put(name, pair);
-                fileName4LasReaderMapSupport.add(name);
+            File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
+            if (!lasIndexFile.exists()) {
+                if (filesWithoutIndex.add(name)) {
+                    JGTLogger.logInfo(this, "Skipping las file without index: " + lasIndexFile);
+                }
+                return null;
+            }
+            lasIndex = OmsLasIndexReader.openIndex(lasIndexFile.getAbsolutePath());
+            synchronized (fileName2IndexMap) {
+                // another thread might have been faster, use its index
+                DiskTreeReader previous = fileName2IndexMap.get(name);
+                if (previous != null) {
+                    closeIndex(lasIndex);
+                    lasIndex = previous;
+                } else {
+                    fileName2IndexMap.put(name, lasIndex);
+                }
             }
-            // System.out.println("Added: " + lasIndexFile);
-            // } else {
-
         }
+        return lasIndex;
     }
 
-    private Pair getIndexPair( File lasFile ) throws Exception {
-        File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-        if (lasIndexFile.exists()) {
-            ALasReader reader = ALasReader.getReader(lasFile, crs);
+    /**
+     * Get a reader for exclusive use of the current thread.
+     * 
+     * <p>The reader needs to be given back through {@link #returnReader(String, ALasReader)}.</p>
+     * 
+     * @param name the name of the las file.
+     * @return the reader, opened if no idle one is available.
+     * @throws Exception
+     */
+    public ALasReader borrowReader( String name ) throws Exception {
+        synchronized (fileName2IdleReadersMap) {
+            ArrayDeque<ALasReader> idleReaders = fileName2IdleReadersMap.get(name);
+            if (idleReaders != null) {
+                ALasReader reader = idleReaders.pollFirst();
+                if (idleReaders.isEmpty()) {
+                    fileName2IdleReadersMap.remove(name);
+                }
+                idleReadersCount--;
+                return reader;
+            }
+        }
+        File lasFile = new File(lasFolder, name);
+        ALasReader reader = ALasReader.getReader(lasFile, crs);
+        synchronized (fileName2IdleReadersMap) {
+            openReaders.put(reader, generation);
+        }
+        try {
             reader.open();
             reader.getHeader();
-            STRtreeJGT lasIndex = OmsLasIndexReader.readIndex(lasIndexFile.getAbsolutePath());
-            Pair pair = new Pair();
-            pair.reader = reader;
-            pair.strTree = lasIndex;
-            return pair;
-        } else {
-            System.err.println("Doesn't exist: " + lasIndexFile);
+        } catch (Exception e) {
+            closeReader(reader);
+            throw e;
         }
-        return null;
+        return reader;
     }
 
-    private void checkOpen() throws Exception {
-        if (mainLasFolderIndex == null) {
-            open();
+    /**
+     * Give back a reader to the idle readers, closing the least recently used idle
+     * readers if there are too many.
+     * 
+     * <p>Readers opened before the last {@link #close()} are closed instead.</p>
+     * 
+     * @param name the name of the las file.
+     * @param reader the reader got from {@link #borrowReader(String)}.
+     */
+    public void returnReader( String name, ALasReader reader ) {
+        List<ALasReader> evictedReaders = new ArrayList<ALasReader>();
+        synchronized (fileName2IdleReadersMap) {
+            Integer readerGeneration = openReaders.get(reader);
+            if (readerGeneration == null || readerGeneration != generation) {
+                evictedReaders.add(reader);
+            } else {
+                ArrayDeque<ALasReader> idleReaders = fileName2IdleReadersMap.get(name);
+                if (idleReaders == null) {
+                    idleReaders = new ArrayDeque<ALasReader>();
+                    fileName2IdleReadersMap.put(name, idleReaders);
+                }
+                idleReaders.addFirst(reader);
+                idleReadersCount++;
+
+                Iterator<ArrayDeque<ALasReader>> iterator = fileName2IdleReadersMap.values().iterator();
+                while( idleReadersCount > maxIdleReaders && iterator.hasNext() ) {
+                    ArrayDeque<ALasReader> lruReaders = iterator.next();
+                    while( idleReadersCount > maxIdleReaders && !lruReaders.isEmpty() ) {
+                        evictedReaders.add(lruReaders.pollLast());
+                        idleReadersCount--;
+                    }
+                    if (lruReaders.isEmpty()) {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        for( ALasReader evictedReader : evictedReaders ) {
+            closeReader(evictedReader);
         }
     }
 
-    @Override
-    public void close() throws Exception {
-        for( String key : fileName4LasReaderMapSupport ) {
-            Pair pair = fileName2LasReaderMap.get(key);
-            if (pair != null)
-                pair.close();
-        }
-        fileName4LasReaderMapSupport.clear();
-        fileName2LasReaderMap.clear();
-        fileName2LasReaderMap = null;
+    private void closeReader( ALasReader reader ) {
+        if (openReaders.remove(reader) != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                JGTLogger.logError(this, "Error closing las reader.", e);
+            }
+        }
     }
 
-    private class Pair {
-        ALasReader reader;
-        STRtreeJGT strTree;
-        public void close() {
-            if (reader != null)
-                try {
-                    reader.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            reader = null;
-            strTree = null;
+    private void closeIndex( DiskTreeReader index ) {
+        try {
+            index.close();
+        } catch (Exception e) {
+            JGTLogger.logError(this, "Error closing las index.", e);
+        }
+    }
+
+    /**
+     * @return the number of las readers currently open, idle or in use.
+     */
+    public int getOpenReadersCount() {
+        return openReaders.size();
+    }
+
+    /**
+     * @return the main index, opened if necessary.
+     */
+    private DiskTreeReader checkOpen() throws Exception {
+        DiskTreeReader mainIndex = mainLasFolderIndex;
+        if (mainIndex == null) {
+            synchronized (this) {
+                open();
+                mainIndex = mainLasFolderIndex;
+            }
+        }
+        return mainIndex;
+    }
+
+    /**
+     * Close the idle readers and the indexes.
+     * 
+     * <p>The readers in use by running queries are closed when given back.</p>
+     */
+    @Override
+    public void close() throws Exception {
+        List<ALasReader> idleReaders = new ArrayList<ALasReader>();
+        synchronized (fileName2IdleReadersMap) {
+            for( ArrayDeque<ALasReader> readers : fileName2IdleReadersMap.values() ) {
+                idleReaders.addAll(readers);
+            }
+            fileName2IdleReadersMap.clear();
+            idleReadersCount = 0;
+            generation++;
+        }
+        for( ALasReader reader : idleReaders ) {
+            closeReader(reader);
+        }
+        synchronized (fileName2IndexMap) {
+            for( DiskTreeReader index : fileName2IndexMap.values() ) {
+                closeIndex(index);
+            }
+            fileName2IndexMap.clear();
+        }
+        filesWithoutIndex.clear();
+        DiskTreeReader mainIndex;
+        synchronized (this) {
+            mainIndex = mainLasFolderIndex;
+            mainLasFolderIndex = null;
+        }
+        if (mainIndex != null) {
+            closeIndex(mainIndex);
         }
     }
 
@@ -70,6 +70,33 @@ public abstract class ALasReader extends Las implements AutoCloseable{
      */
     public abstract LasRecord getNextPoint() throws IOException;
 
+    /**
+     * Read the next records into a columnar {@link LasPointBatch}.
+     *
+     * <p>The batch is filled with at most {@link LasPointBatch#getCapacity()} points,
+     * its size is set to the number of points actually read. Readers that
+     * are able to decode records in bulk override this, the default implementation
+     * reads the points one by one through {@link #getNextPoint()}.</p>
+     *
+     * @param batch the batch to fill.
+     * @return the number of read points, 0 if no more points are available.
+     * @throws IOException
+     */
+    public int readNextBatch( LasPointBatch batch ) throws IOException {
+        int capacity = batch.getCapacity();
+        int count = 0;
+        while( count < capacity && hasNextPoint() ) {
+            LasRecord record = getNextPoint();
+            if (record == null) {
+                break;
+            }
+            batch.set(count, record);
+            count++;
+        }
+        batch.setSize(count);
+        return count;
+    }
+
     /**
      * Reads a dot at a given address.
      * 
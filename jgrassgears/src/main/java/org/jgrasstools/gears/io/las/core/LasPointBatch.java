@@ -0,0 +1,205 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.core;
+
+/**
+ * A columnar batch of las points.
+ *
+ * <p>The points are kept in primitive arrays (one per record field), so that
+ * large amounts of data can be read without creating a {@link LasRecord} per point.
+ * The batch is meant to be reused between subsequent reads.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPointBatch {
+    /**
+     * The x coordinates, with scale and offset already applied.
+     */
+    public final double[] x;
+    /**
+     * The y coordinates, with scale and offset already applied.
+     */
+    public final double[] y;
+    /**
+     * The z coordinates, with scale and offset already applied.
+     */
+    public final double[] z;
+    /**
+     * The intensity values.
+     */
+    public final short[] intensity;
+    /**
+     * The return numbers.
+     */
+    public final short[] returnNumber;
+    /**
+     * The number of returns (given pulse).
+     */
+    public final short[] numberOfReturns;
+    /**
+     * The classifications.
+     */
+    public final byte[] classification;
+    /**
+     * The gps timestamps (-1 if not available in the point format).
+     */
+    public final double[] gpsTime;
+    /**
+     * The red component of the color (defaults to gray as in {@link LasRecord}).
+     */
+    public final short[] red;
+    /**
+     * The green component of the color (defaults to gray as in {@link LasRecord}).
+     */
+    public final short[] green;
+    /**
+     * The blue component of the color (defaults to gray as in {@link LasRecord}).
+     */
+    public final short[] blue;
+
+    private int size = 0;
+
+    /**
+     * Create a new batch.
+     *
+     * @param capacity the maximum number of points the batch can hold.
+     */
+    public LasPointBatch( int capacity ) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The batch capacity needs to be positive.");
+        }
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        intensity = new short[capacity];
+        returnNumber = new short[capacity];
+        numberOfReturns = new short[capacity];
+        classification = new byte[capacity];
+        gpsTime = new double[capacity];
+        red = new short[capacity];
+        green = new short[capacity];
+        blue = new short[capacity];
+    }
+
+    /**
+     * @return the maximum number of points the batch can hold.
+     */
+    public int getCapacity() {
+        return x.length;
+    }
+
+    /**
+     * @return the number of valid points currently in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Set the number of valid points in the batch.
+     *
+     * <p>This is meant to be used by readers after filling the arrays.</p>
+     *
+     * @param size the new size.
+     */
+    public void setSize( int size ) {
+        if (size < 0 || size > x.length) {
+            throw new IllegalArgumentException("Size out of the batch capacity: " + size);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Set the values of a point in the batch from a record.
+     *
+     * @param index the position in the batch.
+     * @param record the record to copy the values from.
+     */
+    public void set( int index, LasRecord record ) {
+        x[index] = record.x;
+        y[index] = record.y;
+        z[index] = record.z;
+        intensity[index] = record.intensity;
+        returnNumber[index] = record.returnNumber;
+        numberOfReturns[index] = record.numberOfReturns;
+        classification[index] = record.classification;
+        gpsTime[index] = record.gpsTime;
+        red[index] = record.color[0];
+        green[index] = record.color[1];
+        blue[index] = record.color[2];
+    }
+
+    /**
+     * Copy the values of a point into another batch.
+     *
+     * <p>The size of the target batch is not changed.</p>
+     *
+     * @param index the position in this batch.
+     * @param target the batch to copy to.
+     * @param targetIndex the position in the target batch.
+     */
+    public void copy( int index, LasPointBatch target, int targetIndex ) {
+        target.x[targetIndex] = x[index];
+        target.y[targetIndex] = y[index];
+        target.z[targetIndex] = z[index];
+        target.intensity[targetIndex] = intensity[index];
+        target.returnNumber[targetIndex] = returnNumber[index];
+        target.numberOfReturns[targetIndex] = numberOfReturns[index];
+        target.classification[targetIndex] = classification[index];
+        target.gpsTime[targetIndex] = gpsTime[index];
+        target.red[targetIndex] = red[index];
+        target.green[targetIndex] = green[index];
+        target.blue[targetIndex] = blue[index];
+    }
+
+    /**
+     * Get a point of the batch as {@link LasRecord}.
+     *
+     * @param index the position in the batch.
+     * @return a new record holding the values of the point.
+     */
+    public LasRecord getRecord( int index ) {
+        return getRecord(index, new LasRecord());
+    }
+
+    /**
+     * Copy a point of the batch into an existing {@link LasRecord}.
+     *
+     * @param index the position in the batch.
+     * @param record the record to fill.
+     * @return the filled record.
+     */
+    public LasRecord getRecord( int index, LasRecord record ) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of batch size " + size);
+        }
+        record.x = x[index];
+        record.y = y[index];
+        record.z = z[index];
+        record.intensity = intensity[index];
+        record.returnNumber = returnNumber[index];
+        record.numberOfReturns = numberOfReturns[index];
+        record.classification = classification[index];
+        record.gpsTime = gpsTime[index];
+        record.color[0] = red[index];
+        record.color[1] = green[index];
+        record.color[2] = blue[index];
+        return record;
+    }
+
+}
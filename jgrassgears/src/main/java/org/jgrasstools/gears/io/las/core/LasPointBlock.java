@@ -0,0 +1,564 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A block of las points, as returned by the las data queries.
+ *
+ * <p>
+ * The values are kept in primitive arrays (one per record field), so that
+ * no object is created per point. Filtering, sorting and taking a part of a block
+ * create views, that share the values with the block they come from and
+ * only hold the positions of their points.
+ * </p>
+ *
+ * <p>
+ * Points can be added only to blocks created through the constructors, not to views.
+ * Blocks are not thread safe while points are added.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPointBlock {
+
+    /**
+     * A filter of the points of a block.
+     */
+    public static interface Filter {
+        /**
+         * @param block the block.
+         * @param index the position of the point in the block.
+         * @return <code>true</code> if the point is kept.
+         */
+        public boolean accept( LasPointBlock block, int index );
+    }
+
+    /**
+     * A comparator of the points of a block.
+     */
+    public static interface PointComparator {
+        /**
+         * @param block the block.
+         * @param index1 the position of the first point in the block.
+         * @param index2 the position of the second point in the block.
+         * @return a negative number, zero or a positive number, if the first point comes
+         *          before, together or after the second.
+         */
+        public int compare( LasPointBlock block, int index1, int index2 );
+    }
+
+    private static class Storage {
+        double[] x;
+        double[] y;
+        double[] z;
+        short[] intensity;
+        short[] returnNumber;
+        short[] numberOfReturns;
+        byte[] classification;
+        double[] gpsTime;
+        short[] red;
+        short[] green;
+        short[] blue;
+        double[] groundElevation;
+        int size;
+
+        Storage( int capacity ) {
+            allocate(Math.max(capacity, 16));
+        }
+
+        private void allocate( int capacity ) {
+            x = resize(x, capacity);
+            y = resize(y, capacity);
+            z = resize(z, capacity);
+            intensity = resize(intensity, capacity);
+            returnNumber = resize(returnNumber, capacity);
+            numberOfReturns = resize(numberOfReturns, capacity);
+            classification = resize(classification, capacity);
+            gpsTime = resize(gpsTime, capacity);
+            red = resize(red, capacity);
+            green = resize(green, capacity);
+            blue = resize(blue, capacity);
+            groundElevation = resize(groundElevation, capacity);
+        }
+
+        /**
+         * Make room for one more point.
+         *
+         * @return the position of the new point.
+         */
+        int next() {
+            if (size == x.length) {
+                int capacity = x.length + (x.length >> 1);
+                if (capacity < 0) {
+                    capacity = Integer.MAX_VALUE - 8;
+                }
+                allocate(capacity);
+            }
+            return size++;
+        }
+
+        private double[] resize( double[] array, int capacity ) {
+            double[] newArray = new double[capacity];
+            if (array != null)
+                System.arraycopy(array, 0, newArray, 0, size);
+            return newArray;
+        }
+
+        private short[] resize( short[] array, int capacity ) {
+            short[] newArray = new short[capacity];
+            if (array != null)
+                System.arraycopy(array, 0, newArray, 0, size);
+            return newArray;
+        }
+
+        private byte[] resize( byte[] array, int capacity ) {
+            byte[] newArray = new byte[capacity];
+            if (array != null)
+                System.arraycopy(array, 0, newArray, 0, size);
+            return newArray;
+        }
+    }
+
+    private final Storage storage;
+    /**
+     * The positions of the points in the storage, <code>null</code> for consecutive points.
+     */
+    private final int[] indexes;
+    private final int offset;
+    private final int viewSize;
+    private final boolean isView;
+
+    /**
+     * Create a new empty block.
+     */
+    public LasPointBlock() {
+        this(1024);
+    }
+
+    /**
+     * Create a new empty block.
+     *
+     * @param capacity the expected number of points.
+     */
+    public LasPointBlock( int capacity ) {
+        storage = new Storage(capacity);
+        indexes = null;
+        offset = 0;
+        viewSize = 0;
+        isView = false;
+    }
+
+    private LasPointBlock( Storage storage, int[] indexes, int offset, int size ) {
+        this.storage = storage;
+        this.indexes = indexes;
+        this.offset = offset;
+        this.viewSize = size;
+        isView = true;
+    }
+
+    /**
+     * @return the number of points in the block.
+     */
+    public int size() {
+        return isView ? viewSize : storage.size;
+    }
+
+    /**
+     * @return <code>true</code> if the block has no points.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private int at( int index ) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of block size " + size());
+        }
+        return indexes == null ? offset + index : indexes[offset + index];
+    }
+
+    private int next() {
+        if (isView) {
+            throw new IllegalStateException("Points can't be added to a view of a block.");
+        }
+        return storage.next();
+    }
+
+    /**
+     * Add a point.
+     *
+     * @param record the record to copy the values from.
+     */
+    public void add( LasRecord record ) {
+        int p = next();
+        Storage s = storage;
+        s.x[p] = record.x;
+        s.y[p] = record.y;
+        s.z[p] = record.z;
+        s.intensity[p] = record.intensity;
+        s.returnNumber[p] = record.returnNumber;
+        s.numberOfReturns[p] = record.numberOfReturns;
+        s.classification[p] = record.classification;
+        s.gpsTime[p] = record.gpsTime;
+        s.red[p] = record.color[0];
+        s.green[p] = record.color[1];
+        s.blue[p] = record.color[2];
+        s.groundElevation[p] = record.groundElevation;
+    }
+
+    /**
+     * Add a point of a batch.
+     *
+     * @param batch the batch.
+     * @param index the position of the point in the batch.
+     */
+    public void add( LasPointBatch batch, int index ) {
+        int p = next();
+        Storage s = storage;
+        s.x[p] = batch.x[index];
+        s.y[p] = batch.y[index];
+        s.z[p] = batch.z[index];
+        s.intensity[p] = batch.intensity[index];
+        s.returnNumber[p] = batch.returnNumber[index];
+        s.numberOfReturns[p] = batch.numberOfReturns[index];
+        s.classification[p] = batch.classification[index];
+        s.gpsTime[p] = batch.gpsTime[index];
+        s.red[p] = batch.red[index];
+        s.green[p] = batch.green[index];
+        s.blue[p] = batch.blue[index];
+        s.groundElevation[p] = Double.NaN;
+    }
+
+    /**
+     * Add a point of another block.
+     *
+     * @param block the block to copy the point from.
+     * @param index the position of the point in the block.
+     */
+    public void add( LasPointBlock block, int index ) {
+        int q = block.at(index);
+        Storage from = block.storage;
+        int p = next();
+        Storage s = storage;
+        s.x[p] = from.x[q];
+        s.y[p] = from.y[q];
+        s.z[p] = from.z[q];
+        s.intensity[p] = from.intensity[q];
+        s.returnNumber[p] = from.returnNumber[q];
+        s.numberOfReturns[p] = from.numberOfReturns[q];
+        s.classification[p] = from.classification[q];
+        s.gpsTime[p] = from.gpsTime[q];
+        s.red[p] = from.red[q];
+        s.green[p] = from.green[q];
+        s.blue[p] = from.blue[q];
+        s.groundElevation[p] = from.groundElevation[q];
+    }
+
+    /**
+     * Add all the points of another block.
+     *
+     * @param block the block to copy the points from.
+     */
+    public void addAll( LasPointBlock block ) {
+        int size = block.size();
+        for( int i = 0; i < size; i++ ) {
+            add(block, i);
+        }
+    }
+
+    public double getX( int index ) {
+        return storage.x[at(index)];
+    }
+
+    public double getY( int index ) {
+        return storage.y[at(index)];
+    }
+
+    public double getZ( int index ) {
+        return storage.z[at(index)];
+    }
+
+    public short getIntensity( int index ) {
+        return storage.intensity[at(index)];
+    }
+
+    public short getReturnNumber( int index ) {
+        return storage.returnNumber[at(index)];
+    }
+
+    public short getNumberOfReturns( int index ) {
+        return storage.numberOfReturns[at(index)];
+    }
+
+    public byte getClassification( int index ) {
+        return storage.classification[at(index)];
+    }
+
+    public double getGpsTime( int index ) {
+        return storage.gpsTime[at(index)];
+    }
+
+    public short getRed( int index ) {
+        return storage.red[at(index)];
+    }
+
+    public short getGreen( int index ) {
+        return storage.green[at(index)];
+    }
+
+    public short getBlue( int index ) {
+        return storage.blue[at(index)];
+    }
+
+    /**
+     * @param index the position of the point.
+     * @return the height over the ground, if available, else <code>NaN</code>.
+     */
+    public double getGroundElevation( int index ) {
+        return storage.groundElevation[at(index)];
+    }
+
+    /**
+     * Set the height over the ground of a point.
+     *
+     * <p>The value is shared with the blocks and views holding the same point.</p>
+     *
+     * @param index the position of the point.
+     * @param groundElevation the height over the ground.
+     */
+    public void setGroundElevation( int index, double groundElevation ) {
+        storage.groundElevation[at(index)] = groundElevation;
+    }
+
+    /**
+     * Get a point as {@link LasRecord}.
+     *
+     * @param index the position of the point.
+     * @return a new record holding the values of the point.
+     */
+    public LasRecord getRecord( int index ) {
+        return getRecord(index, new LasRecord());
+    }
+
+    /**
+     * Copy a point into an existing {@link LasRecord}.
+     *
+     * @param index the position of the point.
+     * @param record the record to fill.
+     * @return the filled record.
+     */
+    public LasRecord getRecord( int index, LasRecord record ) {
+        int p = at(index);
+        Storage s = storage;
+        record.x = s.x[p];
+        record.y = s.y[p];
+        record.z = s.z[p];
+        record.intensity = s.intensity[p];
+        record.returnNumber = s.returnNumber[p];
+        record.numberOfReturns = s.numberOfReturns[p];
+        record.classification = s.classification[p];
+        record.gpsTime = s.gpsTime[p];
+        record.color[0] = s.red[p];
+        record.color[1] = s.green[p];
+        record.color[2] = s.blue[p];
+        record.groundElevation = s.groundElevation[p];
+        return record;
+    }
+
+    /**
+     * Create a record per point.
+     *
+     * <p>This is meant as adapter for code working on lists of records.</p>
+     *
+     * @return the list of new records.
+     */
+    public List<LasRecord> toRecords() {
+        int size = size();
+        List<LasRecord> records = new ArrayList<LasRecord>(size);
+        for( int i = 0; i < size; i++ ) {
+            records.add(getRecord(i));
+        }
+        return records;
+    }
+
+    /**
+     * Get a view on a range of the points.
+     *
+     * @param from the position of the first point, inclusive.
+     * @param to the position of the last point, exclusive.
+     * @return the view.
+     */
+    public LasPointBlock subBlock( int from, int to ) {
+        if (from < 0 || to > size() || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + " out of block size " + size());
+        }
+        return new LasPointBlock(storage, indexes, offset + from, to - from);
+    }
+
+    /**
+     * Get a view on some of the points.
+     *
+     * @param positions the positions of the points in the block, in the order of the view.
+     * @param count the number of positions used.
+     * @return the view.
+     */
+    public LasPointBlock select( int[] positions, int count ) {
+        if (count < 0 || count > positions.length) {
+            throw new IndexOutOfBoundsException("Count " + count + " out of positions size " + positions.length);
+        }
+        int[] selected = new int[count];
+        for( int i = 0; i < count; i++ ) {
+            selected[i] = at(positions[i]);
+        }
+        return new LasPointBlock(storage, selected, 0, count);
+    }
+
+    /**
+     * Get a view on the points accepted by a filter.
+     *
+     * @param filter the filter.
+     * @return the view.
+     */
+    public LasPointBlock filter( Filter filter ) {
+        int size = size();
+        int[] accepted = new int[size];
+        int count = 0;
+        for( int i = 0; i < size; i++ ) {
+            if (filter.accept(this, i)) {
+                accepted[count++] = at(i);
+            }
+        }
+        if (count < size) {
+            int[] tmp = new int[count];
+            System.arraycopy(accepted, 0, tmp, 0, count);
+            accepted = tmp;
+        }
+        return new LasPointBlock(storage, accepted, 0, count);
+    }
+
+    /**
+     * Get a view on the points contained in a vertical range.
+     *
+     * @param min the min value of the range.
+     * @param max the max value of the range.
+     * @param isGroundElev if <code>true</code>, ground elevation is used instead of z.
+     * @return the view.
+     */
+    public LasPointBlock getPointsInVerticalRange( final double min, final double max, final boolean isGroundElev ) {
+        final double[] values = isGroundElev ? storage.groundElevation : storage.z;
+        return filter(new Filter(){
+            public boolean accept( LasPointBlock block, int index ) {
+                double value = values[block.at(index)];
+                return value >= min && value <= max;
+            }
+        });
+    }
+
+    /**
+     * Get a view on the points contained in a height from ground range.
+     *
+     * @param min the min value of the range.
+     * @param max the max value of the range.
+     * @return the view.
+     */
+    public LasPointBlock getPointsInHeightRange( double min, double max ) {
+        return getPointsInVerticalRange(min, max, true);
+    }
+
+    /**
+     * Get a view on the points in sorted order.
+     *
+     * <p>The sort is stable.</p>
+     *
+     * @param comparator the comparator of the points.
+     * @return the view.
+     */
+    public LasPointBlock sort( PointComparator comparator ) {
+        int size = size();
+        int[] order = new int[size];
+        for( int i = 0; i < size; i++ ) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[size], 0, size, comparator);
+        int[] sorted = new int[size];
+        for( int i = 0; i < size; i++ ) {
+            sorted[i] = at(order[i]);
+        }
+        return new LasPointBlock(storage, sorted, 0, size);
+    }
+
+    /**
+     * Get a view on the points sorted by elevation.
+     *
+     * @return the view.
+     */
+    public LasPointBlock sortByZ() {
+        return sort(new PointComparator(){
+            public int compare( LasPointBlock block, int index1, int index2 ) {
+                return Double.compare(block.getZ(index1), block.getZ(index2));
+            }
+        });
+    }
+
+    private void mergeSort( int[] order, int[] tmp, int from, int to, PointComparator comparator ) {
+        int length = to - from;
+        if (length < 2) {
+            return;
+        }
+        if (length < 16) {
+            // insertion sort for small ranges
+            for( int i = from + 1; i < to; i++ ) {
+                int value = order[i];
+                int j = i - 1;
+                while( j >= from && comparator.compare(this, order[j], value) > 0 ) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = value;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, tmp, from, middle, comparator);
+        mergeSort(order, tmp, middle, to, comparator);
+        if (comparator.compare(this, order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, tmp, from, length);
+        int i = from;
+        int j = middle;
+        int k = from;
+        while( i < middle && j < to ) {
+            if (comparator.compare(this, tmp[j], tmp[i]) < 0) {
+                order[k++] = tmp[j++];
+            } else {
+                order[k++] = tmp[i++];
+            }
+        }
+        while( i < middle ) {
+            order[k++] = tmp[i++];
+        }
+        while( j < to ) {
+            order[k++] = tmp[j++];
+        }
+    }
+
+}
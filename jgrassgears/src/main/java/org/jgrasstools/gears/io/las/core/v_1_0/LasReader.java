@@ -22,10 +22,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.utils.ByteUtilities;
 import org.jgrasstools.gears.utils.CrsUtilities;
@@ -297,6 +300,69 @@ public class LasReader extends ALasReader {
         return dot;
     }
 
+    /**
+     * Reads the next records into the batch by memory mapping the file region 
+     * that contains them and decoding them in bulk.
+     * 
+     * <p>No {@link LasRecord} is created in the process.</p>
+     */
+    @Override
+    public int readNextBatch( LasPointBatch batch ) throws IOException {
+        checkOpen();
+        long position = fc.position();
+        long dataEnd = offset + records * recordLength;
+        long available = (dataEnd - position) / recordLength;
+        long maxByBytes = Integer.MAX_VALUE / recordLength;
+        int count = (int) Math.max(0, Math.min(Math.min(batch.getCapacity(), available), maxByBytes));
+        if (count == 0) {
+            batch.setSize(0);
+            return 0;
+        }
+
+        int bytes = count * recordLength;
+        MappedByteBuffer mapped = fc.map(MapMode.READ_ONLY, position, bytes);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte pointDataFormat = header.pointDataFormat;
+        boolean hasGpsTime = pointDataFormat == 1 || pointDataFormat == 3;
+        boolean hasColor = pointDataFormat == 2 || pointDataFormat == 3;
+        int colorPosition = pointDataFormat == 3 ? 28 : 20;
+
+        double[] xArray = batch.x;
+        double[] yArray = batch.y;
+        double[] zArray = batch.z;
+        for( int i = 0; i < count; i++ ) {
+            int base = i * recordLength;
+            xArray[i] = (mapped.getInt(base) & 0xFFFFFFFFL) * xScale + xOffset;
+            yArray[i] = (mapped.getInt(base + 4) & 0xFFFFFFFFL) * yScale + yOffset;
+            zArray[i] = (mapped.getInt(base + 8) & 0xFFFFFFFFL) * zScale + zOffset;
+            batch.intensity[i] = mapped.getShort(base + 12);
+            byte b = mapped.get(base + 14);
+            batch.returnNumber[i] = (short) (b & 0x07);
+            batch.numberOfReturns[i] = (short) ((b >> 3) & 0x07);
+            batch.classification[i] = mapped.get(base + 15);
+            if (hasGpsTime) {
+                batch.gpsTime[i] = mapped.getDouble(base + 20);
+            } else {
+                batch.gpsTime[i] = -1;
+            }
+            if (hasColor) {
+                batch.red[i] = mapped.getShort(base + colorPosition);
+                batch.green[i] = mapped.getShort(base + colorPosition + 2);
+                batch.blue[i] = mapped.getShort(base + colorPosition + 4);
+            } else {
+                batch.red[i] = 100;
+                batch.green[i] = 100;
+                batch.blue[i] = 100;
+            }
+        }
+
+        fc.position(position + bytes);
+        readRecords = readRecords + count;
+        batch.setSize(count);
+        return count;
+    }
+
     public LasRecord getPointAtAddress( long address ) throws IOException {
         fc.position(address);
         return getPoint();
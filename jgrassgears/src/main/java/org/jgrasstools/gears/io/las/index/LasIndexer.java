@@ -19,18 +19,24 @@ package org.jgrasstools.gears.io.las.index;
 
 import static java.lang.Math.round;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -44,41 +50,38 @@ import oms3.annotations.Name;
 import oms3.annotations.Status;
 import oms3.annotations.UI;
 
-import org.geotools.coverage.grid.GridCoordinates2D;
-import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geometry.DirectPosition2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.CRS;
+import org.jgrasstools.gears.io.disktree.DiskTreeReader;
+import org.jgrasstools.gears.io.disktree.DiskTreeWriter;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ALasWriter;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
-import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.modules.utils.fileiterator.OmsFileIterator;
 import org.jgrasstools.gears.utils.CrsUtilities;
-import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.geometry.DirectPosition;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.algorithm.ConvexHull;
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.CoordinateList;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LinearRing;
-import com.vividsolutions.jts.geom.MultiPoint;
 import com.vividsolutions.jts.geom.Polygon;
 
 @Description("Creates indexes for Las files.")
@@ -92,6 +95,12 @@ public class LasIndexer extends JGTModel {
 
     public static final String INDEX_LASFOLDER = "index.lasfolder";
 
+    /**
+     * The extension of the file, next to the main index, that keeps the state
+     * of the indexed files, used to rebuild only the new or changed ones.
+     */
+    public static final String INDEX_FILES_EXTENSION = ".files";
+
     @Description("The folder containing the las files to index.")
     @UI(JGTConstants.FOLDERIN_UI_HINT)
     @In
@@ -110,6 +119,10 @@ public class LasIndexer extends JGTModel {
     @In
     public double pCellsize = 5;
 
+    @Description("The maximum number of points of a file kept in memory while sorting them into cells. Bigger files are read twice and their points are copied once to a temporary file next to the indexed file, to be sorted a chunk at a time.")
+    @In
+    public int pChunksize = 2000000;
+
     @Description("Create overview shapefile (this creates a convexhull of the points).")
     @In
     public boolean doOverview = false;
@@ -121,6 +134,43 @@ public class LasIndexer extends JGTModel {
     private CoordinateReferenceSystem crs;
     private ConcurrentLinkedQueue<Polygon> envelopesQueue;
 
+    /**
+     * The state of an indexed file.
+     */
+    private static class IndexedFile {
+        String name;
+        long size;
+        long lastModified;
+        long checksum;
+        double[] bounds;
+
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(name).append(';').append(size).append(';').append(lastModified).append(';').append(checksum);
+            for( double bound : bounds ) {
+                sb.append(';').append(bound);
+            }
+            return sb.toString();
+        }
+
+        static IndexedFile fromLine( String line ) {
+            String[] split = line.split(";");
+            if (split.length != 10) {
+                return null;
+            }
+            IndexedFile indexedFile = new IndexedFile();
+            indexedFile.name = split[0];
+            indexedFile.size = Long.parseLong(split[1]);
+            indexedFile.lastModified = Long.parseLong(split[2]);
+            indexedFile.checksum = Long.parseLong(split[3]);
+            indexedFile.bounds = new double[6];
+            for( int i = 0; i < 6; i++ ) {
+                indexedFile.bounds[i] = Double.parseDouble(split[4 + i]);
+            }
+            return indexedFile;
+        }
+    }
+
     @Execute
     public void process() throws Exception {
         checkNull(inFolder, pIndexname);
@@ -128,6 +178,9 @@ public class LasIndexer extends JGTModel {
         if (pCellsize <= 0) {
             throw new ModelsIllegalargumentException("The cell size parameter needs to be > 0.", this);
         }
+        if (pChunksize <= 0) {
+            throw new ModelsIllegalargumentException("The chunk size parameter needs to be > 0.", this);
+        }
 
         if (!new File(inFolder).exists()) {
             throw new ModelsIllegalargumentException("The inFolder parameter has to be valid.", this);
@@ -160,62 +213,93 @@ public class LasIndexer extends JGTModel {
         iter.process();
 
         List<File> filesList = iter.filesList;
-        pm.beginTask("Creating readers index...", filesList.size());
-        STRtreeJGT mainTree = new STRtreeJGT();
-        for( File file : filesList ) {
-            try (ALasReader reader = ALasReader.getReader(file, crs)) {
+        if (crs == null && filesList.size() > 0) {
+            try (ALasReader reader = ALasReader.getReader(filesList.get(0), crs)) {
                 reader.open();
-                ILasHeader header = reader.getHeader();
-                if (crs == null) {
-                    crs = header.getCrs();
-                }
-                ReferencedEnvelope3D envelope = header.getDataEnvelope();
-                File newLasFile = getNewLasFile(file);
-                mainTree.insert(envelope, newLasFile.getName());
+                crs = reader.getHeader().getCrs();
             }
-            pm.worked(1);
         }
-        pm.done();
 
         File mainIndex = new File(inFolder, pIndexname);
-        byte[] mainIndexBytes = serialize(mainTree);
-        dumpBytes(mainIndex, mainIndexBytes);
+        File indexedFilesFile = new File(inFolder, pIndexname + INDEX_FILES_EXTENSION);
+        Map<String, IndexedFile> previousFiles = readIndexedFiles(indexedFilesFile);
 
-        // write prj file
-        CrsUtilities.writeProjectionFile(mainIndex.getAbsolutePath(), "lasfolder", crs);
+        /*
+         * the index of the files removed since the last run is removed too
+         */
+        Set<String> fileNames = new HashSet<>();
+        for( File file : filesList ) {
+            fileNames.add(file.getName());
+        }
+        for( String previousName : previousFiles.keySet() ) {
+            if (!fileNames.contains(previousName)) {
+                File previousFile = new File(inFolder, previousName);
+                pm.message("Removing the index of the removed file: " + previousName);
+                getNewLasFile(previousFile).delete();
+                getNetIndexFile(previousFile).delete();
+            }
+        }
 
         /*
-         * now the single files
+         * index the single files, only the new or changed ones
          */
         if (doOverview)
             envelopesQueue = new ConcurrentLinkedQueue<>();
-        if (pThreads > 1) {
-            ExecutorService fixedThreadPool = Executors.newFixedThreadPool(pThreads);
-            for( final File file : filesList ) {
-                Runnable runner = new Runnable(){
-                    public void run() {
+        final Map<String, IndexedFile> indexedFiles = new ConcurrentHashMap<>();
+        final Map<String, IndexedFile> upToDateFiles = new HashMap<>();
+        for( File file : filesList ) {
+            IndexedFile indexedFile = getUpToDate(file, previousFiles.get(file.getName()));
+            if (indexedFile != null) {
+                pm.message("Index existing already for file: " + file.getName());
+                upToDateFiles.put(file.getName(), indexedFile);
+                indexedFiles.put(file.getName(), indexedFile);
+            }
+        }
+        final boolean isMultiThreaded = pThreads > 1;
+        JGTExecutor.forEach(filesList, pThreads, "Indexing files...", pm,
+                new JGTExecutor.ItemProcessor<File>(){
+                    public void process( File file ) throws Exception {
                         try {
-                            processFile(file, true);
+                            if (upToDateFiles.containsKey(file.getName())) {
+                                if (doOverview) {
+                                    addOverview(file);
+                                }
+                                return;
+                            }
+                            IndexedFile indexedFile = processFile(file, isMultiThreaded);
+                            if (indexedFile != null) {
+                                indexedFiles.put(file.getName(), indexedFile);
+                            }
                         } catch (Exception e) {
+                            if (!isMultiThreaded) {
+                                throw e;
+                            }
                             pm.errorMessage("Problems indexing file: " + file.getName());
                             e.printStackTrace();
                         }
                     }
-                };
-                fixedThreadPool.execute(runner);
-            }
-            try {
-                fixedThreadPool.shutdown();
-                fixedThreadPool.awaitTermination(30, TimeUnit.DAYS);
-                fixedThreadPool.shutdownNow();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        } else {
-            for( final File file : filesList ) {
-                processFile(file, false);
+                });
+        checkCancel();
+
+        /*
+         * the folder index, rebuilt from the state of the indexed files
+         */
+        List<Geometry> filesBounds = new ArrayList<>();
+        for( File file : filesList ) {
+            IndexedFile indexedFile = indexedFiles.get(file.getName());
+            if (indexedFile == null) {
+                continue;
             }
+            double[] b = indexedFile.bounds;
+            Polygon bounds = envelopeToPolygon(new Envelope(b[0], b[1], b[2], b[3]));
+            bounds.setUserData(getNewLasFile(file).getName());
+            filesBounds.add(bounds);
         }
+        new DiskTreeWriter(mainIndex.getAbsolutePath()).writeGeometries(filesBounds.toArray(new Geometry[filesBounds.size()]));
+        writeIndexedFiles(indexedFilesFile, filesList, indexedFiles);
+
+        // write prj file
+        CrsUtilities.writeProjectionFile(mainIndex.getAbsolutePath(), "lasfolder", crs);
 
         if (doOverview) {
             File overviewFile = FileUtilities.substituteExtention(mainIndex, "shp");
@@ -238,37 +322,44 @@ public class LasIndexer extends JGTModel {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void processFile( File file, boolean isMultiThreaded ) throws Exception {
+    /**
+     * Index a file.
+     *
+     * <p>
+     * The first pass over the points counts the points of every cell, sums their values
+     * and computes the checksum of the file. The cells are then grouped in windows of at
+     * most {@link #pChunksize} points. Files with less points are sorted in memory after
+     * reading them only once. Bigger files are read a second time, copying every point
+     * into the part of a temporary file that belongs to its window, after which one window
+     * at a time is read back and sorted into its cells.
+     * </p>
+     */
+    private IndexedFile processFile( File file, boolean isMultiThreaded ) throws Exception {
         String name = file.getName();
         File newLasFile = getNewLasFile(file);
         File indexFile = getNetIndexFile(file);
-        if (indexFile.exists() && newLasFile.exists()) {
-            pm.message("Index existing already for file: " + name);
-            return;
-        }
         if (indexFile.exists() || newLasFile.exists()) {
             indexFile.delete();
             newLasFile.delete();
         }
         pm.message("Processing file: " + name);
+        IndexedFile indexedFile = new IndexedFile();
+        indexedFile.name = name;
+        indexedFile.size = file.length();
+        indexedFile.lastModified = file.lastModified();
 
-        /*
-         * create also a bounds geometry.
-         * The geometry is calculated form the most external 
-         * points in the 4 directions.
-         */
-        CoordinateList pointsList = new CoordinateList();
-
+        Geometry hull = null;
         try (ALasReader reader = ALasReader.getReader(file, crs)) {
             reader.open();
             ILasHeader header = reader.getHeader();
             long recordsCount = header.getRecordsCount();
             if (recordsCount == 0) {
                 pm.errorMessage("No points found in: " + name);
-                return;
+                return null;
             }
             ReferencedEnvelope3D envelope = header.getDataEnvelope();
+            indexedFile.bounds = new double[]{envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(),
+                    envelope.getMinZ(), envelope.getMaxZ()};
             ReferencedEnvelope env2d = new ReferencedEnvelope(envelope);
             Envelope2D e = new Envelope2D(env2d);
 
@@ -295,97 +386,569 @@ public class LasIndexer extends JGTModel {
             rows = (int) round(height / pCellsize);
             xRes = width / cols;
             yRes = height / rows;
+            if ((long) cols * rows > Integer.MAX_VALUE) {
+                throw new ModelsIllegalargumentException("The cell size is too small for the extent of: " + name, this);
+            }
+            CellGrid grid = new CellGrid(west, north, xRes, yRes, cols, rows);
 
             pm.message("Splitting " + name + " into tiles of " + (float) xRes + " x " + (float) yRes + ".");
-            GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(north, south, east, west, cols, rows,
-                    reader.getHeader().getCrs());
 
-            List<LasRecord>[][] dotOnMatrix = new ArrayList[cols][rows];
+            /*
+             * first pass: count the points of the cells
+             */
+            int cellsCount = cols * rows;
+            int[] counts = new int[cellsCount];
+            double[] elevSums = new double[cellsCount];
+            double[] intensitySums = new double[cellsCount];
+            boolean isInMemory = recordsCount <= pChunksize;
+            LasPointBatch batch = new LasPointBatch((int) Math.min(recordsCount, pChunksize));
+            PointsChecksum checksum = new PointsChecksum();
             if (!isMultiThreaded) {
                 pm.beginTask("Sorting points for " + name, (int) recordsCount);
             } else {
                 pm.message("Sorting points for " + name + "...");
             }
-            while( reader.hasNextPoint() ) {
-                LasRecord dot = reader.getNextPoint();
-                DirectPosition wPoint = new DirectPosition2D(dot.x, dot.y);
-                GridCoordinates2D gridCoord = gridGeometry.worldToGrid(wPoint);
-                int x = gridCoord.x;
-                int y = gridCoord.y;
-                if (dotOnMatrix[x][y] == null) {
-                    dotOnMatrix[x][y] = new ArrayList<>();
+            int read;
+            while( (read = reader.readNextBatch(batch)) > 0 ) {
+                for( int i = 0; i < read; i++ ) {
+                    int cell = grid.getCell(batch.x[i], batch.y[i]);
+                    counts[cell]++;
+                    elevSums[cell] += batch.z[i];
+                    intensitySums[cell] += batch.intensity[i];
                 }
-                dotOnMatrix[x][y].add(dot);
+                checksum.update(batch);
                 if (doOverview) {
-                    pointsList.add(new Coordinate(dot.x, dot.y));
+                    hull = updateHull(hull, batch);
                 }
                 if (!isMultiThreaded)
-                    pm.worked(1);
+                    pm.worked(read);
+                if (isInMemory) {
+                    if (read == recordsCount) {
+                        break;
+                    }
+                    isInMemory = false;
+                }
             }
             if (!isMultiThreaded)
                 pm.done();
+            indexedFile.checksum = checksum.getValue();
+            int[] windowEnds = getWindowEnds(counts);
 
             /*
              * now write indexed file plus index
              */
+            File spillFile = null;
+            PointsSpill spill = null;
             try (ALasWriter writer = ALasWriter.getWriter(newLasFile, reader.getHeader().getCrs())) {
+                if (!isInMemory) {
+                    pm.message("Copying the points of " + name + " to " + windowEnds.length + " chunks...");
+                    spillFile = File.createTempFile(FileUtilities.getNameWithoutExtention(file), ".spill",
+                            newLasFile.getAbsoluteFile().getParentFile());
+                    spill = new PointsSpill(spillFile, counts, windowEnds);
+                    try (ALasReader spillReader = ALasReader.getReader(file, crs)) {
+                        spillReader.open();
+                        while( spillReader.readNextBatch(batch) > 0 ) {
+                            spill.add(batch, grid);
+                        }
+                    }
+                    spill.flush();
+                }
+
                 writer.setBounds(reader.getHeader());
                 writer.open();
 
-                int addedTiles = 0;
-                STRtreeJGT tree = new STRtreeJGT();
+                List<Geometry> cells = new ArrayList<>();
                 if (!isMultiThreaded) {
-                    pm.beginTask("Write and index new las...", cols);
+                    pm.beginTask("Write and index new las...", cellsCount);
                 } else {
                     pm.message("Write and index new las...");
                 }
                 long pointCount = 0;
-                for( int c = 0; c < cols; c++ ) {
-                    for( int r = 0; r < rows; r++ ) {
-                        List<LasRecord> dotsList = dotOnMatrix[c][r];
-                        if (dotsList == null || dotsList.size() == 0) {
-                            continue;
+                LasRecord dot = new LasRecord();
+                LasPointBatch window = isInMemory ? null : new LasPointBatch(getMaxWindowSize(counts));
+                int[] positions = new int[cellsCount];
+                int fromCell = 0;
+                for( int w = 0; w < windowEnds.length; w++ ) {
+                    // the window of the next cells, all the points of a cell are in the same window
+                    int toCell = windowEnds[w];
+                    int windowSize = 0;
+                    for( int cell = fromCell; cell < toCell; cell++ ) {
+                        positions[cell] = windowSize;
+                        windowSize = windowSize + counts[cell];
+                    }
+                    if (windowSize > 0) {
+                        LasPointBatch sorted;
+                        if (isInMemory) {
+                            sorted = new LasPointBatch(windowSize);
+                            fillWindow(batch, grid, fromCell, toCell, positions, sorted);
+                        } else {
+                            sorted = window;
+                            spill.read(w, grid, positions, sorted);
                         }
-                        Coordinate coord = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
-                        Envelope env = new Envelope(coord);
-                        env.expandBy(xRes / 2.0, yRes / 2.0);
-                        long tmpCount = pointCount;
-                        double avgElevValue = 0.0;
-                        double avgIntensityValue = 0.0;
-                        int count = 0;
-
-                        for( LasRecord dot : dotsList ) {
-                            writer.addPoint(dot);
-                            pointCount++;
-                            avgElevValue += dot.z;
-                            avgIntensityValue += dot.intensity;
-                            count++;
+                        sorted.setSize(windowSize);
+
+                        int index = 0;
+                        for( int cell = fromCell; cell < toCell; cell++ ) {
+                            int count = counts[cell];
+                            if (count == 0) {
+                                continue;
+                            }
+                            int c = cell / rows;
+                            int r = cell % rows;
+                            Coordinate coord = grid.getCenter(c, r);
+                            Envelope env = new Envelope(coord);
+                            env.expandBy(xRes / 2.0, yRes / 2.0);
+                            long tmpCount = pointCount;
+                            for( int i = 0; i < count; i++ ) {
+                                writer.addPoint(sorted.getRecord(index++, dot));
+                            }
+                            pointCount = pointCount + count;
+                            double avgElevValue = elevSums[cell] / count;
+                            double avgIntensityValue = intensitySums[cell] / count;
+                            Polygon cellPolygon = envelopeToPolygon(env);
+                            cellPolygon.setUserData(new double[]{tmpCount, pointCount, avgElevValue, avgIntensityValue});
+                            cells.add(cellPolygon);
                         }
-                        avgElevValue /= count;
-                        avgIntensityValue /= count;
-                        tree.insert(env, new double[]{tmpCount, pointCount, avgElevValue, avgIntensityValue});
-                        addedTiles++;
                     }
                     if (!isMultiThreaded)
-                        pm.worked(1);
+                        pm.worked(toCell - fromCell);
+                    fromCell = toCell;
                 }
                 if (!isMultiThreaded)
                     pm.done();
 
-                byte[] serialized = serialize(tree);
-                dumpBytes(indexFile, serialized);
+                new DiskTreeWriter(indexFile.getAbsolutePath()).writeGeometries(cells.toArray(new Geometry[cells.size()]));
 
-                pm.message("Tiles added for " + name + ": " + addedTiles);
+                pm.message("Tiles added for " + name + ": " + cells.size());
+            } finally {
+                if (spill != null) {
+                    spill.close();
+                }
+                if (spillFile != null) {
+                    spillFile.delete();
+                }
             }
         }
         if (doOverview) {
             pm.message("Create overview for " + name);
-            MultiPoint multiPoint = gf.createMultiPoint(pointsList.toCoordinateArray());
-            Geometry polygon = multiPoint.convexHull();
-            polygon.setUserData(name);
-            envelopesQueue.add((Polygon) polygon);
+            addOverview(hull, name);
+        }
+        return indexedFile;
+    }
+
+    /**
+     * Copy the points of a batch that fall in a window of cells to their sorted position.
+     */
+    private static void fillWindow( LasPointBatch batch, CellGrid grid, int fromCell, int toCell, int[] positions,
+            LasPointBatch window ) {
+        int size = batch.size();
+        for( int i = 0; i < size; i++ ) {
+            int cell = grid.getCell(batch.x[i], batch.y[i]);
+            if (cell >= fromCell && cell < toCell) {
+                batch.copy(i, window, positions[cell]++);
+            }
+        }
+    }
+
+    /**
+     * Group the cells in windows of at most {@link #pChunksize} points, unless a
+     * single cell has more.
+     *
+     * @return the cell after the last one of each window.
+     */
+    private int[] getWindowEnds( int[] counts ) {
+        List<Integer> ends = new ArrayList<>();
+        int toCell = 0;
+        while( toCell < counts.length ) {
+            int fromCell = toCell;
+            long windowSize = 0;
+            while( toCell < counts.length && (toCell == fromCell || windowSize + counts[toCell] <= pChunksize) ) {
+                windowSize = windowSize + counts[toCell];
+                toCell++;
+            }
+            ends.add(toCell);
+        }
+        int[] windowEnds = new int[ends.size()];
+        for( int i = 0; i < windowEnds.length; i++ ) {
+            windowEnds[i] = ends.get(i);
+        }
+        return windowEnds;
+    }
+
+    private int getMaxWindowSize( int[] counts ) {
+        int max = pChunksize;
+        for( int count : counts ) {
+            if (count > max) {
+                max = count;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The cells into which a file is split, numbered by column and then by row.
+     */
+    private static class CellGrid {
+        private final double west;
+        private final double north;
+        private final double xRes;
+        private final double yRes;
+        private final int cols;
+        private final int rows;
+
+        CellGrid( double west, double north, double xRes, double yRes, int cols, int rows ) {
+            this.west = west;
+            this.north = north;
+            this.xRes = xRes;
+            this.yRes = yRes;
+            this.cols = cols;
+            this.rows = rows;
         }
 
+        int getCell( double x, double y ) {
+            int c = (int) ((x - west) / xRes);
+            int r = (int) ((north - y) / yRes);
+            if (c < 0) {
+                c = 0;
+            } else if (c >= cols) {
+                c = cols - 1;
+            }
+            if (r < 0) {
+                r = 0;
+            } else if (r >= rows) {
+                r = rows - 1;
+            }
+            return c * rows + r;
+        }
+
+        Coordinate getCenter( int c, int r ) {
+            return new Coordinate(west + (c + 0.5) * xRes, north - (r + 0.5) * yRes);
+        }
+    }
+
+    /**
+     * Write a point of a batch to a buffer, in the layout of {@link PointsSpill#POINT_BYTES} bytes.
+     */
+    private static void putPoint( LasPointBatch batch, int i, ByteBuffer buffer ) {
+        buffer.putDouble(batch.x[i]);
+        buffer.putDouble(batch.y[i]);
+        buffer.putDouble(batch.z[i]);
+        buffer.putDouble(batch.gpsTime[i]);
+        buffer.putShort(batch.intensity[i]);
+        buffer.putShort(batch.returnNumber[i]);
+        buffer.putShort(batch.numberOfReturns[i]);
+        buffer.putShort(batch.red[i]);
+        buffer.putShort(batch.green[i]);
+        buffer.putShort(batch.blue[i]);
+        buffer.put(batch.classification[i]);
+    }
+
+    private static void getPoint( ByteBuffer buffer, LasPointBatch batch, int i ) {
+        batch.x[i] = buffer.getDouble();
+        batch.y[i] = buffer.getDouble();
+        batch.z[i] = buffer.getDouble();
+        batch.gpsTime[i] = buffer.getDouble();
+        batch.intensity[i] = buffer.getShort();
+        batch.returnNumber[i] = buffer.getShort();
+        batch.numberOfReturns[i] = buffer.getShort();
+        batch.red[i] = buffer.getShort();
+        batch.green[i] = buffer.getShort();
+        batch.blue[i] = buffer.getShort();
+        batch.classification[i] = buffer.get();
+    }
+
+    /**
+     * The checksum of the values of the points of a file, in the order they are read.
+     *
+     * <p>It is computed while the points are counted, so that indexing a file doesn't
+     * need a further read of its bytes.</p>
+     */
+    private static class PointsChecksum {
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer buffer = ByteBuffer.allocate(PointsSpill.POINT_BYTES * 4096);
+
+        void update( LasPointBatch batch ) {
+            int size = batch.size();
+            for( int i = 0; i < size; i++ ) {
+                if (buffer.remaining() < PointsSpill.POINT_BYTES) {
+                    flush();
+                }
+                putPoint(batch, i, buffer);
+            }
+        }
+
+        long getValue() {
+            flush();
+            return crc.getValue();
+        }
+
+        private void flush() {
+            buffer.flip();
+            crc.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * A temporary file holding the points of a las file grouped by window of cells.
+     *
+     * <p>Every window has its own part of the file, sized on the points counted in its
+     * cells, so that the points are copied in a single read of the las file and every
+     * window can be read back on its own. The points of a window keep the order of the
+     * las file.</p>
+     */
+    private static class PointsSpill implements AutoCloseable {
+        static final int POINT_BYTES = 4 * 8 + 6 * 2 + 1;
+        /**
+         * The memory used by the write buffers of all the windows.
+         */
+        private static final int BUFFERS_BYTES = 16 * 1024 * 1024;
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int[] cellWindows;
+        private final long[] windowStarts;
+        private final long[] windowPositions;
+        private final ByteBuffer[] buffers;
+
+        PointsSpill( File file, int[] counts, int[] windowEnds ) throws IOException {
+            int windowsCount = windowEnds.length;
+            cellWindows = new int[counts.length];
+            windowStarts = new long[windowsCount + 1];
+            windowPositions = new long[windowsCount];
+            long position = 0;
+            int cell = 0;
+            for( int w = 0; w < windowsCount; w++ ) {
+                windowStarts[w] = position;
+                windowPositions[w] = position;
+                for( ; cell < windowEnds[w]; cell++ ) {
+                    cellWindows[cell] = w;
+                    position = position + (long) counts[cell] * POINT_BYTES;
+                }
+            }
+            windowStarts[windowsCount] = position;
+
+            int bufferPoints = Math.max(64, Math.min(4096, BUFFERS_BYTES / POINT_BYTES / windowsCount));
+            buffers = new ByteBuffer[windowsCount];
+            for( int w = 0; w < windowsCount; w++ ) {
+                buffers[w] = ByteBuffer.allocate(bufferPoints * POINT_BYTES);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        /**
+         * Copy the points of a batch to the part of their window.
+         */
+        void add( LasPointBatch batch, CellGrid grid ) throws IOException {
+            int size = batch.size();
+            for( int i = 0; i < size; i++ ) {
+                int w = cellWindows[grid.getCell(batch.x[i], batch.y[i])];
+                ByteBuffer buffer = buffers[w];
+                if (buffer.remaining() < POINT_BYTES) {
+                    flush(w);
+                }
+                putPoint(batch, i, buffer);
+            }
+        }
+
+        void flush() throws IOException {
+            for( int w = 0; w < buffers.length; w++ ) {
+                flush(w);
+            }
+        }
+
+        private void flush( int w ) throws IOException {
+            ByteBuffer buffer = buffers[w];
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                windowPositions[w] = windowPositions[w] + channel.write(buffer, windowPositions[w]);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Read the points of a window into their sorted position.
+         *
+         * @param w the window to read.
+         * @param grid the cells grid.
+         * @param positions the next position in the sorted batch of every cell of the window.
+         * @param sorted the batch to fill.
+         */
+        void read( int w, CellGrid grid, int[] positions, LasPointBatch sorted ) throws IOException {
+            ByteBuffer buffer = buffers[w];
+            LasPointBatch point = new LasPointBatch(1);
+            point.setSize(1);
+            long position = windowStarts[w];
+            long end = windowStarts[w + 1];
+            while( position < end ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                while( buffer.hasRemaining() ) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of the temporary points file.");
+                    }
+                }
+                position = position + buffer.limit();
+                buffer.flip();
+                while( buffer.hasRemaining() ) {
+                    getPoint(buffer, point, 0);
+                    int cell = grid.getCell(point.x[0], point.y[0]);
+                    point.copy(0, sorted, positions[cell]++);
+                }
+            }
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    /**
+     * Check if the index of a file is still valid.
+     *
+     * <p>A file is considered unchanged if size and modification time are the same as when
+     * it was indexed, or if only the modification time changed but not the checksum of the
+     * content. Indexes created before the state of the files was kept are considered valid if
+     * newer than the file. Indexes written in the old serialized format are always rebuilt.</p>
+     *
+     * @return the state of the file or <code>null</code> if the file needs to be indexed.
+     */
+    private IndexedFile getUpToDate( File file, IndexedFile previous ) throws Exception {
+        File newLasFile = getNewLasFile(file);
+        File indexFile = getNetIndexFile(file);
+        if (!indexFile.exists() || !newLasFile.exists() || !isCurrentFormat(indexFile)) {
+            return null;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (previous != null) {
+            if (previous.size != size) {
+                return null;
+            }
+            if (previous.lastModified != lastModified) {
+                if (checksum(file) != previous.checksum) {
+                    return null;
+                }
+                previous.lastModified = lastModified;
+            }
+            return previous;
+        }
+        if (indexFile.lastModified() < lastModified || newLasFile.lastModified() < lastModified) {
+            return null;
+        }
+        IndexedFile indexedFile = new IndexedFile();
+        indexedFile.name = file.getName();
+        indexedFile.size = size;
+        indexedFile.lastModified = lastModified;
+        indexedFile.checksum = checksum(file);
+        try (ALasReader reader = ALasReader.getReader(file, crs)) {
+            reader.open();
+            ReferencedEnvelope3D envelope = reader.getHeader().getDataEnvelope();
+            indexedFile.bounds = new double[]{envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(),
+                    envelope.getMinZ(), envelope.getMaxZ()};
+        }
+        return indexedFile;
+    }
+
+    private static boolean isCurrentFormat( File indexFile ) {
+        DiskTreeReader reader = new DiskTreeReader(indexFile.getAbsolutePath());
+        try {
+            return !reader.isLegacyFormat();
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static Map<String, IndexedFile> readIndexedFiles( File indexedFilesFile ) throws IOException {
+        Map<String, IndexedFile> indexedFiles = new HashMap<>();
+        if (!indexedFilesFile.exists()) {
+            return indexedFiles;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(indexedFilesFile))) {
+            String line;
+            while( (line = br.readLine()) != null ) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                IndexedFile indexedFile = IndexedFile.fromLine(line);
+                if (indexedFile != null) {
+                    indexedFiles.put(indexedFile.name, indexedFile);
+                }
+            }
+        }
+        return indexedFiles;
+    }
+
+    private static void writeIndexedFiles( File indexedFilesFile, List<File> filesList, Map<String, IndexedFile> indexedFiles )
+            throws IOException {
+        try (PrintWriter pw = new PrintWriter(indexedFilesFile)) {
+            pw.println("#name;size;lastmodified;checksum;minx;maxx;miny;maxy;minz;maxz");
+            for( File file : filesList ) {
+                IndexedFile indexedFile = indexedFiles.get(file.getName());
+                if (indexedFile != null) {
+                    pw.println(indexedFile.toLine());
+                }
+            }
+        }
+    }
+
+    /**
+     * The checksum of the points of a file, as computed while indexing it.
+     */
+    private long checksum( File file ) throws IOException {
+        PointsChecksum checksum = new PointsChecksum();
+        try (ALasReader reader = ALasReader.getReader(file, crs)) {
+            reader.open();
+            LasPointBatch batch = new LasPointBatch((int) Math.max(1, Math.min(reader.getHeader().getRecordsCount(), 100000)));
+            while( reader.readNextBatch(batch) > 0 ) {
+                checksum.update(batch);
+            }
+        }
+        return checksum.getValue();
+    }
+
+    private Geometry updateHull( Geometry hull, LasPointBatch batch ) {
+        Coordinate[] hullCoordinates = hull == null ? new Coordinate[0] : hull.getCoordinates();
+        int size = batch.size();
+        Coordinate[] coordinates = new Coordinate[hullCoordinates.length + size];
+        System.arraycopy(hullCoordinates, 0, coordinates, 0, hullCoordinates.length);
+        for( int i = 0; i < size; i++ ) {
+            coordinates[hullCoordinates.length + i] = new Coordinate(batch.x[i], batch.y[i]);
+        }
+        return new ConvexHull(coordinates, gf).getConvexHull();
+    }
+
+    /**
+     * Add the overview of a file that has been indexed already.
+     */
+    private void addOverview( File file ) throws Exception {
+        Geometry hull = null;
+        try (ALasReader reader = ALasReader.getReader(file, crs)) {
+            reader.open();
+            long recordsCount = reader.getHeader().getRecordsCount();
+            LasPointBatch batch = new LasPointBatch((int) Math.max(1, Math.min(recordsCount, pChunksize)));
+            while( reader.readNextBatch(batch) > 0 ) {
+                hull = updateHull(hull, batch);
+            }
+        }
+        addOverview(hull, file.getName());
+    }
+
+    private void addOverview( Geometry hull, String name ) {
+        if (hull instanceof Polygon) {
+            hull.setUserData(name);
+            envelopesQueue.add((Polygon) hull);
+        }
     }
 
     private File getNetIndexFile( File file ) {
@@ -423,20 +986,4 @@ public class LasIndexer extends JGTModel {
     public void close() throws Exception {
     }
 
-    private static byte[] serialize( Object obj ) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeObject(obj);
-            out.close();
-            return bos.toByteArray();
-        }
-    }
-
-    private static void dumpBytes( File file, byte[] bytes ) throws Exception {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.write(bytes);
-        }
-    }
-
-
 }
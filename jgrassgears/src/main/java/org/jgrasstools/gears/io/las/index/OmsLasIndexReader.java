@@ -43,10 +43,10 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.CRS;
+import org.jgrasstools.gears.io.disktree.DiskTreeReader;
 import org.jgrasstools.gears.io.las.core.ALasReader;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
-import org.jgrasstools.gears.io.las.index.strtree.STRtreeJGT;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -58,7 +58,8 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -100,7 +101,6 @@ public class OmsLasIndexReader extends JGTModel {
     public boolean doInternal = false;
     public List<LasRecord> lasPoints = new ArrayList<LasRecord>();
 
-    @SuppressWarnings("rawtypes")
     @Execute
     public void process() throws Exception {
         checkNull(inFile);
@@ -122,8 +122,16 @@ public class OmsLasIndexReader extends JGTModel {
         GeometryFactory gf = GeometryUtilities.gf();
 
         File parentFolder = new File(inFile).getParentFile();
-        STRtreeJGT mainIndexTree = readIndex(inFile);
+        DiskTreeReader mainIndex = openIndex(inFile);
+        try {
+            readData(mainIndex, parentFolder, crs, gf);
+        } finally {
+            mainIndex.close();
+        }
+    }
 
+    private void readData( DiskTreeReader mainIndex, File parentFolder, CoordinateReferenceSystem crs, GeometryFactory gf )
+            throws Exception {
         List<Geometry> boundsList;
         if (!doBounds) {
             boundsList = FeatureUtilities.featureCollectionToGeometriesList(inBounds, true, null);
@@ -164,8 +172,9 @@ public class OmsLasIndexReader extends JGTModel {
 
         for( Geometry boundGeom : boundsList ) {
             Envelope env = boundGeom.getEnvelopeInternal();
-            List filesList = mainIndexTree.query(env);
-            for( Object fileName : filesList ) {
+            List<Geometry> filesList = mainIndex.queryGeometries(env);
+            for( Geometry fileBounds : filesList ) {
+                Object fileName = fileBounds.getUserData();
                 if (fileName instanceof String) {
                     pm.message("Processing: " + fileName);
                     String name = (String) fileName;
@@ -181,10 +190,16 @@ public class OmsLasIndexReader extends JGTModel {
 
                         if (!doBounds) {
                             // TODO check files
-                            STRtreeJGT lasIndex = readIndex(lasIndexFile.getAbsolutePath());
-                            List lasIndexStoreInfoList = lasIndex.query(env);
+                            DiskTreeReader lasIndex = openIndex(lasIndexFile.getAbsolutePath());
+                            List<Geometry> lasIndexStoreInfoList;
+                            try {
+                                lasIndexStoreInfoList = lasIndex.queryGeometries(env);
+                            } finally {
+                                lasIndex.close();
+                            }
                             pm.beginTask("Read data...", lasIndexStoreInfoList.size());
-                            for( Object obj : lasIndexStoreInfoList ) {
+                            for( Geometry cell : lasIndexStoreInfoList ) {
+                                Object obj = cell.getUserData();
                                 if (obj instanceof double[]) {
                                     double[] addresses = (double[]) obj;
                                     long from = (long) addresses[0];
@@ -231,26 +246,25 @@ public class OmsLasIndexReader extends JGTModel {
         }
     }
 
-    public static STRtreeJGT readIndex( String path ) throws Exception {
-        File file = new File(path);
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(file, "r");
-            long length = raf.length();
-            // System.out.println(length + "/" + (int) length);
-            byte[] bytes = new byte[(int) length];
-            int read = raf.read(bytes);
-            if (read != length) {
-                throw new IOException();
-            }
-            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
-            Object readObject = in.readObject();
-            STRtreeJGT indexObj = (STRtreeJGT) readObject;
-            return indexObj;
-        } finally {
-            if (raf != null)
-                raf.close();
+    /**
+     * Open a las index, the folder one or the one of a single las file.
+     * 
+     * <p>The indexes are {@link DiskTreeReader disktree} files. The geometries are the
+     * bounds of the files, with the file name as user data, or the bounds of the cells,
+     * with the [from, to, average elevation, average intensity] array as user data.</p>
+     * 
+     * @param path the path of the index file.
+     * @return the reader of the index, to be closed after use.
+     * @throws IOException if the index has been created by an older version of the {@link LasIndexer}.
+     */
+    public static DiskTreeReader openIndex( String path ) throws IOException {
+        DiskTreeReader reader = new DiskTreeReader(path);
+        if (reader.isLegacyFormat()) {
+            reader.close();
+            throw new IOException("The las index has been created with an older version, the LasIndexer needs to be run again: "
+                    + path);
         }
+        return reader;
     }
 
     public static Polygon envelopeToPolygon( Envelope envelope ) {
@@ -22,6 +22,9 @@ import com.vividsolutions.jts.geom.Polygon;
 /**
  * A cell of las data.
  * 
+ * <p>The point data are kept in blobs as encoded by {@link LasCellCodec} and decoded
+ * only when needed through the <code>getCell*</code> methods of {@link LasCellsTable}.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class LasCell {
@@ -42,7 +45,7 @@ public class LasCell {
     public double maxElev;
 
     /**
-     * The byte array containing [x1,y1,z1,x2,y2,z2,...] in amount of pointsCount. 
+     * The encoded positions of the points. 
      */
     public byte[] xyzs;
 
@@ -51,12 +54,12 @@ public class LasCell {
     public short maxIntensity;
 
     /**
-     * The array containing [intensities1, classification1, ...] in amount of pointsCount. 
+     * The encoded intensities and classifications of the points. 
      */
     public byte[] intensitiesClassifications;
 
     /**
-     * The array containing [returnNumber1,numberOfReturns1,returnNumber2,numberOfReturns2,...]  in amount of pointsCount. 
+     * The encoded return numbers and numbers of returns of the points. 
      */
     public byte[] returns;
 
@@ -64,12 +67,12 @@ public class LasCell {
     public double maxGpsTime;
 
     /**
-     * The array containing [gpsTime1, gpsTime2, ...] in amount of pointsCount. 
+     * The encoded gps times of the points. 
      */
     public byte[] gpsTimes;
 
     /**
-     * The array containing [r1, g1, b1, r2, g2, b2, ...]  rgb info for stylings.
+     * The encoded rgb colors of the points, for stylings.
      */
     public byte[] colors;
 
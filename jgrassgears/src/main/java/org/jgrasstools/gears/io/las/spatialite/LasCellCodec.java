@@ -0,0 +1,493 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.spatialite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jgrasstools.gears.utils.CompressionUtilities;
+
+/**
+ * Encoding and decoding of the data blobs of a {@link LasCell}.
+ *
+ * <p>
+ * Every blob starts with a version byte and a flags byte and stores its values
+ * column by column:
+ * <ul>
+ * <li>positions: per axis the las scale, the las offset and the quantized cell origin,
+ *      followed by the quantized distances of the points from the origin as varints.
+ *      Values that are not on the grid of the las scale are stored as raw doubles
+ *      instead;</li>
+ * <li>intensities and classifications: intensities as varints, then one byte per classification;</li>
+ * <li>returns: return number and number of returns packed in one byte;</li>
+ * <li>gps times: the difference between the bits of subsequent times as zigzag varints;</li>
+ * <li>colors: per channel the difference from the previous value as zigzag varints.</li>
+ * </ul>
+ * The values after the flags can optionally be compressed with deflate.
+ * </p>
+ *
+ * <p>
+ * Blobs written before the encoding existed are plain arrays of doubles and shorts.
+ * They are recognized by their length, which is always a multiple of the number of
+ * points. Encoded blobs that happen to have the same length get a padding byte.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasCellCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_RAW_POSITIONS = 2;
+
+    private static final int HEADER_SIZE = 2;
+
+    private LasCellCodec() {
+    }
+
+    /**
+     * Encode the positions of the points of a cell.
+     *
+     * @param xs the x coordinates.
+     * @param ys the y coordinates.
+     * @param zs the elevations.
+     * @param count the number of points.
+     * @param scale the las scale of x, y and z, if <code>null</code> raw doubles are stored.
+     * @param offset the las offset of x, y and z.
+     * @param compress if <code>true</code>, the blob is compressed.
+     * @return the blob.
+     */
+    public static byte[] encodePositions( double[] xs, double[] ys, double[] zs, int count, double[] scale, double[] offset,
+            boolean compress ) {
+        BlobWriter writer = new BlobWriter(count * 6 + 64);
+        int flags = 0;
+        long[][] quantized = null;
+        if (scale != null && offset != null) {
+            quantized = new long[3][];
+            quantized[0] = quantize(xs, count, scale[0], offset[0]);
+            quantized[1] = quantize(ys, count, scale[1], offset[1]);
+            quantized[2] = quantize(zs, count, scale[2], offset[2]);
+            if (quantized[0] == null || quantized[1] == null || quantized[2] == null) {
+                quantized = null;
+            }
+        }
+        if (quantized == null) {
+            flags |= FLAG_RAW_POSITIONS;
+            double[][] values = {xs, ys, zs};
+            for( double[] axis : values ) {
+                for( int i = 0; i < count; i++ ) {
+                    writer.writeDouble(axis[i]);
+                }
+            }
+        } else {
+            for( int axis = 0; axis < 3; axis++ ) {
+                long[] q = quantized[axis];
+                long origin = Long.MAX_VALUE;
+                for( int i = 0; i < count; i++ ) {
+                    origin = Math.min(origin, q[i]);
+                }
+                writer.writeDouble(scale[axis]);
+                writer.writeDouble(offset[axis]);
+                writer.writeVarLong(zigzag(origin));
+                for( int i = 0; i < count; i++ ) {
+                    writer.writeVarLong(q[i] - origin);
+                }
+            }
+        }
+        return writer.toBlob(flags, compress, 8 * 3 * count);
+    }
+
+    /**
+     * Decode the positions of the points of a cell.
+     *
+     * @param blob the blob.
+     * @param count the number of points.
+     * @return the positions as [x, y, z] per point.
+     * @throws IOException if the blob is not valid.
+     */
+    public static double[][] decodePositions( byte[] blob, int count ) throws IOException {
+        double[][] xyz = new double[count][3];
+        if (blob.length == 8 * 3 * count) {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            for( int i = 0; i < count; i++ ) {
+                xyz[i][0] = buffer.getDouble();
+                xyz[i][1] = buffer.getDouble();
+                xyz[i][2] = buffer.getDouble();
+            }
+            return xyz;
+        }
+        BlobReader reader = new BlobReader(blob);
+        if ((reader.flags & FLAG_RAW_POSITIONS) != 0) {
+            for( int axis = 0; axis < 3; axis++ ) {
+                for( int i = 0; i < count; i++ ) {
+                    xyz[i][axis] = reader.readDouble();
+                }
+            }
+        } else {
+            for( int axis = 0; axis < 3; axis++ ) {
+                double scale = reader.readDouble();
+                double offset = reader.readDouble();
+                long origin = unzigzag(reader.readVarLong());
+                for( int i = 0; i < count; i++ ) {
+                    // same formula as the las readers, to get the same values
+                    xyz[i][axis] = (origin + reader.readVarLong()) * scale + offset;
+                }
+            }
+        }
+        return xyz;
+    }
+
+    /**
+     * Encode the intensities and classifications of the points of a cell.
+     *
+     * @param intensities the intensities.
+     * @param classifications the classifications.
+     * @param count the number of points.
+     * @param compress if <code>true</code>, the blob is compressed.
+     * @return the blob.
+     */
+    public static byte[] encodeIntensitiesClassifications( short[] intensities, byte[] classifications, int count,
+            boolean compress ) {
+        BlobWriter writer = new BlobWriter(count * 3 + 16);
+        for( int i = 0; i < count; i++ ) {
+            writer.writeVarLong(intensities[i] & 0xFFFF);
+        }
+        for( int i = 0; i < count; i++ ) {
+            writer.writeByte(classifications[i]);
+        }
+        return writer.toBlob(0, compress, 2 * 2 * count);
+    }
+
+    /**
+     * Decode the intensities and classifications of the points of a cell.
+     *
+     * @param blob the blob.
+     * @param count the number of points.
+     * @return the values as [intensity, classification] per point.
+     * @throws IOException if the blob is not valid.
+     */
+    public static short[][] decodeIntensitiesClassifications( byte[] blob, int count ) throws IOException {
+        short[][] intensClass = new short[count][2];
+        if (blob.length == 2 * 2 * count) {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            for( int i = 0; i < count; i++ ) {
+                intensClass[i][0] = buffer.getShort();
+                intensClass[i][1] = buffer.getShort();
+            }
+            return intensClass;
+        }
+        BlobReader reader = new BlobReader(blob);
+        for( int i = 0; i < count; i++ ) {
+            intensClass[i][0] = (short) reader.readVarLong();
+        }
+        for( int i = 0; i < count; i++ ) {
+            intensClass[i][1] = reader.readByte();
+        }
+        return intensClass;
+    }
+
+    /**
+     * Encode the returns of the points of a cell.
+     *
+     * @param returnNumbers the return numbers.
+     * @param numberOfReturns the numbers of returns.
+     * @param count the number of points.
+     * @param compress if <code>true</code>, the blob is compressed.
+     * @return the blob.
+     */
+    public static byte[] encodeReturns( short[] returnNumbers, short[] numberOfReturns, int count, boolean compress ) {
+        BlobWriter writer = new BlobWriter(count + 16);
+        for( int i = 0; i < count; i++ ) {
+            writer.writeByte((byte) ((returnNumbers[i] & 0x0F) | (numberOfReturns[i] & 0x0F) << 4));
+        }
+        return writer.toBlob(0, compress, 2 * 2 * count);
+    }
+
+    /**
+     * Decode the returns of the points of a cell.
+     *
+     * @param blob the blob.
+     * @param count the number of points.
+     * @return the values as [return number, number of returns] per point.
+     * @throws IOException if the blob is not valid.
+     */
+    public static short[][] decodeReturns( byte[] blob, int count ) throws IOException {
+        short[][] returns = new short[count][2];
+        if (blob.length == 2 * 2 * count) {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            for( int i = 0; i < count; i++ ) {
+                returns[i][0] = buffer.getShort();
+                returns[i][1] = buffer.getShort();
+            }
+            return returns;
+        }
+        BlobReader reader = new BlobReader(blob);
+        for( int i = 0; i < count; i++ ) {
+            byte b = reader.readByte();
+            returns[i][0] = (short) (b & 0x0F);
+            returns[i][1] = (short) ((b >> 4) & 0x0F);
+        }
+        return returns;
+    }
+
+    /**
+     * Encode the gps times of the points of a cell.
+     *
+     * @param gpsTimes the gps times.
+     * @param count the number of points.
+     * @param compress if <code>true</code>, the blob is compressed.
+     * @return the blob.
+     */
+    public static byte[] encodeGpsTimes( double[] gpsTimes, int count, boolean compress ) {
+        BlobWriter writer = new BlobWriter(count * 4 + 16);
+        long previous = 0;
+        for( int i = 0; i < count; i++ ) {
+            long bits = Double.doubleToRawLongBits(gpsTimes[i]);
+            writer.writeVarLong(zigzag(bits - previous));
+            previous = bits;
+        }
+        return writer.toBlob(0, compress, 8 * count);
+    }
+
+    /**
+     * Decode the gps times of the points of a cell.
+     *
+     * @param blob the blob.
+     * @param count the number of points.
+     * @return the gps times.
+     * @throws IOException if the blob is not valid.
+     */
+    public static double[] decodeGpsTimes( byte[] blob, int count ) throws IOException {
+        double[] gpsTimes = new double[count];
+        if (blob.length == 8 * count) {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            for( int i = 0; i < count; i++ ) {
+                gpsTimes[i] = buffer.getDouble();
+            }
+            return gpsTimes;
+        }
+        BlobReader reader = new BlobReader(blob);
+        long bits = 0;
+        for( int i = 0; i < count; i++ ) {
+            bits = bits + unzigzag(reader.readVarLong());
+            gpsTimes[i] = Double.longBitsToDouble(bits);
+        }
+        return gpsTimes;
+    }
+
+    /**
+     * Encode the colors of the points of a cell.
+     *
+     * @param reds the red components.
+     * @param greens the green components.
+     * @param blues the blue components.
+     * @param count the number of points.
+     * @param compress if <code>true</code>, the blob is compressed.
+     * @return the blob.
+     */
+    public static byte[] encodeColors( short[] reds, short[] greens, short[] blues, int count, boolean compress ) {
+        BlobWriter writer = new BlobWriter(count * 3 + 16);
+        short[][] channels = {reds, greens, blues};
+        for( short[] channel : channels ) {
+            int previous = 0;
+            for( int i = 0; i < count; i++ ) {
+                writer.writeVarLong(zigzag(channel[i] - previous));
+                previous = channel[i];
+            }
+        }
+        return writer.toBlob(0, compress, 2 * 3 * count);
+    }
+
+    /**
+     * Decode the colors of the points of a cell.
+     *
+     * @param blob the blob.
+     * @param count the number of points.
+     * @return the colors as [r, g, b] per point.
+     * @throws IOException if the blob is not valid.
+     */
+    public static short[][] decodeColors( byte[] blob, int count ) throws IOException {
+        short[][] colors = new short[count][3];
+        if (blob.length == 2 * 3 * count) {
+            ByteBuffer buffer = ByteBuffer.wrap(blob);
+            for( int i = 0; i < count; i++ ) {
+                colors[i][0] = buffer.getShort();
+                colors[i][1] = buffer.getShort();
+                colors[i][2] = buffer.getShort();
+            }
+            return colors;
+        }
+        BlobReader reader = new BlobReader(blob);
+        for( int c = 0; c < 3; c++ ) {
+            int value = 0;
+            for( int i = 0; i < count; i++ ) {
+                value = value + (int) unzigzag(reader.readVarLong());
+                colors[i][c] = (short) value;
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Quantize values to the las grid.
+     *
+     * @return the quantized values or <code>null</code> if a value is not exactly on the grid.
+     */
+    private static long[] quantize( double[] values, int count, double scale, double offset ) {
+        if (!(scale > 0)) {
+            return null;
+        }
+        long[] quantized = new long[count];
+        for( int i = 0; i < count; i++ ) {
+            long q = Math.round((values[i] - offset) / scale);
+            if (q * scale + offset != values[i]) {
+                return null;
+            }
+            quantized[i] = q;
+        }
+        return quantized;
+    }
+
+    private static long zigzag( long value ) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag( long value ) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class BlobWriter {
+        private byte[] bytes;
+        private int size = HEADER_SIZE;
+
+        BlobWriter( int capacity ) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        private void ensure( int more ) {
+            if (size + more > bytes.length) {
+                byte[] tmp = new byte[Math.max(bytes.length * 2, size + more)];
+                System.arraycopy(bytes, 0, tmp, 0, size);
+                bytes = tmp;
+            }
+        }
+
+        void writeByte( byte value ) {
+            ensure(1);
+            bytes[size++] = value;
+        }
+
+        void writeVarLong( long value ) {
+            ensure(10);
+            while( (value & ~0x7FL) != 0 ) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeDouble( double value ) {
+            ensure(8);
+            long bits = Double.doubleToRawLongBits(value);
+            for( int shift = 56; shift >= 0; shift -= 8 ) {
+                bytes[size++] = (byte) (bits >>> shift);
+            }
+        }
+
+        /**
+         * Create the blob, making sure its length doesn't match the one of the legacy encoding.
+         */
+        byte[] toBlob( int flags, boolean compress, int legacyLength ) {
+            byte[] blob = null;
+            if (compress) {
+                byte[] deflated = CompressionUtilities.deflate(bytes, HEADER_SIZE, size - HEADER_SIZE);
+                if (deflated.length + 4 < size - HEADER_SIZE) {
+                    blob = new byte[HEADER_SIZE + 4 + deflated.length];
+                    ByteBuffer buffer = ByteBuffer.wrap(blob);
+                    buffer.put(VERSION);
+                    buffer.put((byte) (flags | FLAG_COMPRESSED));
+                    buffer.putInt(size - HEADER_SIZE);
+                    buffer.put(deflated);
+                }
+            }
+            if (blob == null) {
+                bytes[0] = VERSION;
+                bytes[1] = (byte) flags;
+                blob = new byte[size];
+                System.arraycopy(bytes, 0, blob, 0, size);
+            }
+            if (blob.length == legacyLength) {
+                byte[] padded = new byte[blob.length + 1];
+                System.arraycopy(blob, 0, padded, 0, blob.length);
+                blob = padded;
+            }
+            return blob;
+        }
+    }
+
+    private static class BlobReader {
+        private final byte[] bytes;
+        private int position;
+        final int flags;
+
+        BlobReader( byte[] blob ) throws IOException {
+            if (blob.length < HEADER_SIZE || blob[0] != VERSION) {
+                throw new IOException("Unsupported las cell encoding.");
+            }
+            flags = blob[1];
+            if ((flags & FLAG_COMPRESSED) != 0) {
+                int length = ByteBuffer.wrap(blob, HEADER_SIZE, 4).getInt();
+                bytes = CompressionUtilities.inflate(blob, HEADER_SIZE + 4, blob.length - HEADER_SIZE - 4, length);
+                position = 0;
+            } else {
+                bytes = blob;
+                position = HEADER_SIZE;
+            }
+        }
+
+        byte readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Las cell data are shorter than expected.");
+            }
+            return bytes[position++];
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            while( true ) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for( int i = 0; i < 8; i++ ) {
+                bits = (bits << 8) | (readByte() & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.las.spatialite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.jgrasstools.gears.libs.modules.SingleWriterQueue;
+import org.jgrasstools.gears.spatialite.SpatialiteDb;
+
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * A bulk loader of {@link LasCell}s into the {@link LasCellsTable}.
+ *
+ * <p>
+ * The cells are added to a {@link SingleWriterQueue} by any number of builder threads and
+ * inserted by its writer through one prepared statement, in large transactions.
+ * While loading, the database is switched to WAL journaling with relaxed syncing and
+ * in memory temporary storage, and the spatial index of the cells is dropped. Both are
+ * restored on {@link #close()}, where the spatial index is created again in one go.
+ * </p>
+ *
+ * <p>
+ * If the writer fails, its open transaction is rolled back, while the cells of the
+ * transactions committed before the failure stay in the table.
+ * </p>
+ *
+ * <p>
+ * The database connection is used by the writer thread, so it should not be used
+ * by others while cells are being loaded, other than after a {@link #flush()}.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasCellsBulkLoader implements AutoCloseable {
+
+    private static final int STATEMENT_BATCH_SIZE = 1000;
+
+    private final SpatialiteDb db;
+    private final Connection conn;
+    private final PreparedStatement pStmt;
+    private final SingleWriterQueue<LasCell> queue;
+
+    private final boolean autoCommit;
+    private final String journalMode;
+    private final int synchronous;
+    private final int tempStore;
+
+    private boolean isClosed = false;
+
+    /**
+     * Prepare the database for the bulk load and start the writer.
+     *
+     * @param db the database, with the {@link LasCellsTable} already created.
+     * @param srid the srid of the cell geometries.
+     * @param capacity the max number of cells waiting to be inserted.
+     * @param transactionSize the number of cells inserted in a single transaction.
+     * @throws SQLException
+     */
+    public LasCellsBulkLoader( SpatialiteDb db, int srid, int capacity, final int transactionSize ) throws SQLException {
+        this.db = db;
+        conn = db.getConnection();
+        autoCommit = conn.getAutoCommit();
+        // the journal mode can't be changed inside a transaction
+        conn.setAutoCommit(true);
+        journalMode = getPragma("journal_mode");
+        synchronous = Integer.parseInt(getPragma("synchronous"));
+        tempStore = Integer.parseInt(getPragma("temp_store"));
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("PRAGMA temp_store=MEMORY");
+        }
+        db.dropSpatialIndex(LasCellsTable.TABLENAME, LasCellsTable.COLUMN_GEOM);
+        conn.setAutoCommit(false);
+        pStmt = conn.prepareStatement(LasCellsTable.getInsertSql(srid));
+
+        queue = new SingleWriterQueue<LasCell>("lascells-writer", capacity, STATEMENT_BATCH_SIZE,
+                new SingleWriterQueue.ItemsWriter<LasCell>(){
+                    private final WKBWriter wkbWriter = new WKBWriter();
+                    private int inTransaction = 0;
+
+                    public void write( List<LasCell> cells ) throws Exception {
+                        for( LasCell cell : cells ) {
+                            LasCellsTable.setInsertValues(pStmt, wkbWriter, cell);
+                            pStmt.addBatch();
+                        }
+                        pStmt.executeBatch();
+                        inTransaction = inTransaction + cells.size();
+                        if (inTransaction >= transactionSize) {
+                            commit();
+                        }
+                    }
+
+                    public void commit() throws Exception {
+                        conn.commit();
+                        inTransaction = 0;
+                    }
+                });
+    }
+
+    /**
+     * Add a cell, waiting if the queue is full.
+     *
+     * @param cell the cell to insert.
+     * @throws Exception if the writer failed.
+     */
+    public void insert( LasCell cell ) throws Exception {
+        queue.add(cell);
+    }
+
+    /**
+     * Wait for all the cells added so far to be committed.
+     *
+     * <p>Until the next {@link #insert(LasCell)} the connection is not used by the writer.</p>
+     *
+     * @throws Exception if the writer failed.
+     */
+    public void flush() throws Exception {
+        queue.flush();
+    }
+
+    /**
+     * @return the number of cells inserted so far.
+     */
+    public long getInsertedCount() {
+        return queue.getWrittenCount();
+    }
+
+    /**
+     * Insert the remaining cells, stop the writer, recreate the spatial index
+     * and restore the database settings, leaving the database open.
+     *
+     * <p>The index and the settings are restored also if the writer failed, in which case
+     * its open transaction is rolled back.</p>
+     *
+     * @throws Exception if the writer failed.
+     */
+    public void close() throws Exception {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        Exception writerError = null;
+        try {
+            queue.close();
+            conn.commit();
+        } catch (Exception e) {
+            writerError = e;
+            try {
+                conn.rollback();
+            } catch (SQLException re) {
+                e.addSuppressed(re);
+            }
+        }
+
+        // also after a failed load, so that the table doesn't lose its index
+        try {
+            pStmt.close();
+            db.createSpatialIndex(LasCellsTable.TABLENAME, LasCellsTable.COLUMN_GEOM);
+            conn.setAutoCommit(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode=" + journalMode);
+                stmt.execute("PRAGMA synchronous=" + synchronous);
+                stmt.execute("PRAGMA temp_store=" + tempStore);
+            }
+            conn.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            if (writerError == null) {
+                throw e;
+            }
+            // don't hide the error of the writer
+            writerError.addSuppressed(e);
+        }
+        if (writerError != null) {
+            throw writerError;
+        }
+    }
+
+    private String getPragma( String name ) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA " + name)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+}
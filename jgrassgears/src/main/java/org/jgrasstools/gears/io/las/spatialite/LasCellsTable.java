@@ -17,7 +17,7 @@
  */
 package org.jgrasstools.gears.io.las.spatialite;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -32,6 +32,7 @@ import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
 
 /**
  * Table to hold all the table sources.
@@ -102,56 +103,37 @@ public class LasCellsTable {
      * 
      */
     public static void insertLasCell( SpatialiteDb db, int srid, LasCell cell ) throws SQLException {
-        String sql = "INSERT INTO " + TABLENAME//
-                + " (" + //
-                COLUMN_GEOM + "," + //
-                COLUMN_SOURCE_ID + "," + //
-                COLUMN_POINTS_COUNT + "," + //
-                COLUMN_AVG_ELEV + "," + //
-                COLUMN_MIN_ELEV + "," + //
-                COLUMN_MAX_ELEV + "," + //
-                COLUMN_POSITION_BLOB + "," + //
-                COLUMN_AVG_INTENSITY + "," + //
-                COLUMN_MIN_INTENSITY + "," + //
-                COLUMN_MAX_INTENSITY + "," + //
-                COLUMN_INTENS_CLASS_BLOB + "," + //
-                COLUMN_RETURNS_BLOB + "," + //
-                COLUMN_MIN_GPSTIME + "," + //
-                COLUMN_MAX_GPSTIME + "," + //
-                COLUMN_GPSTIME_BLOB + "," + //
-                COLUMN_COLORS_BLOB + //
-                ") VALUES (GeomFromText(?, " + srid + "),?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
-
         Connection conn = db.getConnection();
-        try (PreparedStatement pStmt = conn.prepareStatement(sql)) {
-            int i = 1;
-            pStmt.setString(i++, cell.polygon.toText());
-            pStmt.setLong(i++, cell.sourceId);
-            pStmt.setInt(i++, cell.pointsCount);
-            pStmt.setDouble(i++, cell.avgElev);
-            pStmt.setDouble(i++, cell.minElev);
-            pStmt.setDouble(i++, cell.maxElev);
-            pStmt.setBytes(i++, cell.xyzs);
-
-            pStmt.setShort(i++, cell.avgIntensity);
-            pStmt.setShort(i++, cell.minIntensity);
-            pStmt.setShort(i++, cell.maxIntensity);
-            pStmt.setBytes(i++, cell.intensitiesClassifications);
-
-            pStmt.setBytes(i++, cell.returns);
-
-            pStmt.setDouble(i++, cell.minGpsTime);
-            pStmt.setDouble(i++, cell.maxGpsTime);
-            pStmt.setBytes(i++, cell.gpsTimes);
-
-            pStmt.setBytes(i++, cell.colors);
-
+        try (PreparedStatement pStmt = conn.prepareStatement(getInsertSql(srid))) {
+            setInsertValues(pStmt, new WKBWriter(), cell);
             pStmt.executeUpdate();
         }
     }
 
     public static void insertLasCells( SpatialiteDb db, int srid, List<LasCell> cells ) throws SQLException {
-        String sql = "INSERT INTO " + TABLENAME//
+        Connection conn = db.getConnection();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement pStmt = conn.prepareStatement(getInsertSql(srid))) {
+            WKBWriter wkbWriter = new WKBWriter();
+            for( LasCell cell : cells ) {
+                setInsertValues(pStmt, wkbWriter, cell);
+                pStmt.addBatch();
+            }
+            pStmt.executeBatch();
+            conn.commit();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Get the sql to insert a cell.
+     * 
+     * @param srid the srid of the cell geometries.
+     * @return the sql for a prepared statement.
+     */
+    static String getInsertSql( int srid ) {
+        return "INSERT INTO " + TABLENAME//
                 + " (" + //
                 COLUMN_GEOM + "," + //
                 COLUMN_SOURCE_ID + "," + //
@@ -169,40 +151,39 @@ public class LasCellsTable {
                 COLUMN_MAX_GPSTIME + "," + //
                 COLUMN_GPSTIME_BLOB + "," + //
                 COLUMN_COLORS_BLOB + //
-                ") VALUES (GeomFromText(?, " + srid + "),?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+                ") VALUES (GeomFromWKB(?, " + srid + "),?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+    }
 
-        Connection conn = db.getConnection();
-        boolean autoCommit = conn.getAutoCommit();
-        conn.setAutoCommit(false);
-        try (PreparedStatement pStmt = conn.prepareStatement(sql)) {
-            for( LasCell cell : cells ) {
-                int i = 1;
-                pStmt.setString(i++, cell.polygon.toText());
-                pStmt.setLong(i++, cell.sourceId);
-                pStmt.setInt(i++, cell.pointsCount);
-                pStmt.setDouble(i++, cell.avgElev);
-                pStmt.setDouble(i++, cell.minElev);
-                pStmt.setDouble(i++, cell.maxElev);
-                pStmt.setBytes(i++, cell.xyzs);
-
-                pStmt.setShort(i++, cell.avgIntensity);
-                pStmt.setShort(i++, cell.minIntensity);
-                pStmt.setShort(i++, cell.maxIntensity);
-                pStmt.setBytes(i++, cell.intensitiesClassifications);
-
-                pStmt.setBytes(i++, cell.returns);
-
-                pStmt.setDouble(i++, cell.minGpsTime);
-                pStmt.setDouble(i++, cell.maxGpsTime);
-                pStmt.setBytes(i++, cell.gpsTimes);
-
-                pStmt.setBytes(i++, cell.colors);
-                pStmt.addBatch();
-            }
-            pStmt.executeBatch();
-            conn.commit();
-            conn.setAutoCommit(autoCommit);
-        }
+    /**
+     * Set the values of a cell in a statement created with {@link #getInsertSql(int)}.
+     * 
+     * @param pStmt the statement.
+     * @param wkbWriter the writer of the cell geometry, not shared between threads.
+     * @param cell the cell to insert.
+     * @throws SQLException
+     */
+    static void setInsertValues( PreparedStatement pStmt, WKBWriter wkbWriter, LasCell cell ) throws SQLException {
+        int i = 1;
+        pStmt.setBytes(i++, wkbWriter.write(cell.polygon));
+        pStmt.setLong(i++, cell.sourceId);
+        pStmt.setInt(i++, cell.pointsCount);
+        pStmt.setDouble(i++, cell.avgElev);
+        pStmt.setDouble(i++, cell.minElev);
+        pStmt.setDouble(i++, cell.maxElev);
+        pStmt.setBytes(i++, cell.xyzs);
+
+        pStmt.setShort(i++, cell.avgIntensity);
+        pStmt.setShort(i++, cell.minIntensity);
+        pStmt.setShort(i++, cell.maxIntensity);
+        pStmt.setBytes(i++, cell.intensitiesClassifications);
+
+        pStmt.setBytes(i++, cell.returns);
+
+        pStmt.setDouble(i++, cell.minGpsTime);
+        pStmt.setDouble(i++, cell.maxGpsTime);
+        pStmt.setBytes(i++, cell.gpsTimes);
+
+        pStmt.setBytes(i++, cell.colors);
     }
 
     /**
@@ -397,42 +378,59 @@ public class LasCellsTable {
         }
     }
 
-    public static double[][] getCellPositions( LasCell cell ) {
-        int points = cell.pointsCount;
-        double[][] xyzPoints = new double[points][3];
-        ByteBuffer buffer = ByteBuffer.wrap(cell.xyzs);
+    /**
+     * Decode the positions of the points of a cell.
+     * 
+     * @param cell the cell, queried with position info.
+     * @return the positions as [x, y, z] per point.
+     * @throws IOException
+     */
+    public static double[][] getCellPositions( LasCell cell ) throws IOException {
+        return LasCellCodec.decodePositions(cell.xyzs, cell.pointsCount);
+    }
 
-        for( int i = 0; i < points; i++ ) {
-            xyzPoints[i][0] = buffer.getDouble();
-            xyzPoints[i][1] = buffer.getDouble();
-            xyzPoints[i][2] = buffer.getDouble();
-        }
-        return xyzPoints;
+    /**
+     * Decode the intensities and classifications of the points of a cell.
+     * 
+     * @param cell the cell, queried with intensity info.
+     * @return the values as [intensity, classification] per point.
+     * @throws IOException
+     */
+    public static short[][] getCellIntensityClass( LasCell cell ) throws IOException {
+        return LasCellCodec.decodeIntensitiesClassifications(cell.intensitiesClassifications, cell.pointsCount);
     }
 
-    public static short[][] getCellIntensityClass( LasCell cell ) {
-        int points = cell.pointsCount;
-        short[][] intensClassPoints = new short[points][2];
-        ByteBuffer buffer = ByteBuffer.wrap(cell.intensitiesClassifications);
+    /**
+     * Decode the returns of the points of a cell.
+     * 
+     * @param cell the cell, queried with returns info.
+     * @return the values as [return number, number of returns] per point.
+     * @throws IOException
+     */
+    public static short[][] getCellReturns( LasCell cell ) throws IOException {
+        return LasCellCodec.decodeReturns(cell.returns, cell.pointsCount);
+    }
 
-        for( int i = 0; i < points; i++ ) {
-            intensClassPoints[i][0] = buffer.getShort();
-            intensClassPoints[i][1] = buffer.getShort();
-        }
-        return intensClassPoints;
+    /**
+     * Decode the gps times of the points of a cell.
+     * 
+     * @param cell the cell, queried with time info.
+     * @return the gps times.
+     * @throws IOException
+     */
+    public static double[] getCellGpsTimes( LasCell cell ) throws IOException {
+        return LasCellCodec.decodeGpsTimes(cell.gpsTimes, cell.pointsCount);
     }
 
-    public static short[][] getCellColors( LasCell cell ) {
-        int points = cell.pointsCount;
-        short[][] colorPoints = new short[points][3];
-        ByteBuffer buffer = ByteBuffer.wrap(cell.colors);
-        
-        for( int i = 0; i < points; i++ ) {
-            colorPoints[i][0] = buffer.getShort();
-            colorPoints[i][1] = buffer.getShort();
-            colorPoints[i][2] = buffer.getShort();
-        }
-        return colorPoints;
+    /**
+     * Decode the colors of the points of a cell.
+     * 
+     * @param cell the cell, queried with color info.
+     * @return the colors as [r, g, b] per point.
+     * @throws IOException
+     */
+    public static short[][] getCellColors( LasCell cell ) throws IOException {
+        return LasCellCodec.decodeColors(cell.colors, cell.pointsCount);
     }
 
 }
@@ -25,14 +25,13 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -62,6 +61,7 @@ import org.jgrasstools.gears.io.las.core.ILasHeader;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.modules.utils.fileiterator.OmsFileIterator;
@@ -121,6 +121,24 @@ public class SpatialiteLasWriter extends JGTModel {
     @In
     public int pFactor = 5;
 
+    @Description("Compress the point data of the cells.")
+    @In
+    public boolean doCompress = true;
+
+    @Description("The number of threads to use for the process.")
+    @In
+    public int pThreads = 1;
+
+    /**
+     * The max number of built cells waiting to be inserted.
+     */
+    private static final int CELLS_QUEUE_SIZE = 10000;
+
+    /**
+     * The number of cells inserted in a single transaction.
+     */
+    private static final int CELLS_TRANSACTION_SIZE = 200000;
+
     private CoordinateReferenceSystem crs;
 
     private int srid = -9999;
@@ -222,32 +240,89 @@ public class SpatialiteLasWriter extends JGTModel {
             for( LasSource lasSource : lasSources ) {
                 existingLasSourcesNames.add(lasSource.name);
             }
+            List<File> newFilesList = new ArrayList<>();
             for( File lasFile : filesList ) {
                 String lasName = FileUtilities.getNameWithoutExtention(lasFile);
                 if (existingLasSourcesNames.contains(lasName)) {
                     pm.errorMessage("Not inserting already existing file in database: " + lasName);
                     continue;
                 }
-                try (ALasReader reader = ALasReader.getReader(lasFile, crs)) {
-                    reader.open();
-                    ILasHeader header = reader.getHeader();
-                    ReferencedEnvelope3D envelope = header.getDataEnvelope();
-                    Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(envelope);
-
-                    GridCoverage2D ortoGC = null;
-                    if (ortoReader != null) {
-                        double west = envelope.getMinX();
-                        double east = envelope.getMaxX();
-                        double south = envelope.getMinY();
-                        double north = envelope.getMaxY();
-                        GeneralParameterValue[] readGeneralParameterValues = CoverageUtilities
-                                .createGridGeometryGeneralParameter(ortoXRes, ortoYRes, north, south, east, west, crs);
-                        ortoGC = ortoReader.read(readGeneralParameterValues);
+                newFilesList.add(lasFile);
+            }
+            if (newFilesList.size() == 0) {
+                return;
+            }
+
+            /*
+             * the cells are bulk loaded, the levels are created once the
+             * spatial index of the cells is available again
+             */
+            Map<Long, Envelope> insertedSources = new LinkedHashMap<>();
+            List<Long> addedSourceIds = new ArrayList<>();
+            try (LasCellsBulkLoader cellsLoader = new LasCellsBulkLoader(spatialiteDb, srid, CELLS_QUEUE_SIZE,
+                    CELLS_TRANSACTION_SIZE)) {
+                for( File lasFile : newFilesList ) {
+                    String lasName = FileUtilities.getNameWithoutExtention(lasFile);
+                    try (ALasReader reader = ALasReader.getReader(lasFile, crs)) {
+                        reader.open();
+                        ILasHeader header = reader.getHeader();
+                        ReferencedEnvelope3D envelope = header.getDataEnvelope();
+                        Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(envelope);
+
+                        GridCoverage2D ortoGC = null;
+                        if (ortoReader != null) {
+                            double west = envelope.getMinX();
+                            double east = envelope.getMaxX();
+                            double south = envelope.getMinY();
+                            double north = envelope.getMaxY();
+                            GeneralParameterValue[] readGeneralParameterValues = CoverageUtilities
+                                    .createGridGeometryGeneralParameter(ortoXRes, ortoYRes, north, south, east, west, crs);
+                            ortoGC = ortoReader.read(readGeneralParameterValues);
+                        }
+
+                        // the database is used here, wait for the loader to be idle
+                        cellsLoader.flush();
+                        long id = LasSourcesTable.insertLasSource(spatialiteDb, srid, pLevels, pCellsize, pFactor, polygon,
+                                lasName, envelope.getMinZ(), envelope.getMaxZ());
+                        addedSourceIds.add(id);
+                        if (processFile(lasFile, id, ortoGC, cellsLoader)) {
+                            insertedSources.put(id, envelope);
+                        }
                     }
+                }
+                pm.beginTask("Creating spatial index of the cells...", IJGTProgressMonitor.UNKNOWN);
+            } catch (Exception e) {
+                /*
+                 * part of the cells may have been committed, remove the sources
+                 * of this run, else they would be skipped the next time
+                 */
+                try {
+                    deleteLasSources(spatialiteDb, addedSourceIds);
+                } catch (SQLException de) {
+                    e.addSuppressed(de);
+                }
+                throw e;
+            }
+            pm.done();
 
-                    long id = LasSourcesTable.insertLasSource(spatialiteDb, srid, pLevels, pCellsize, pFactor, polygon, lasName,
-                            envelope.getMinZ(), envelope.getMaxZ());
-                    processFile(spatialiteDb, lasFile, id, ortoGC);
+            if (pLevels > 0) {
+                for( int level = 1; level <= pLevels; level++ ) {
+                    LasLevelsTable.createTable(spatialiteDb, srid, level);
+                }
+                for( Entry<Long, Envelope> entry : insertedSources.entrySet() ) {
+                    long sourceID = entry.getKey();
+                    Envelope envelope = entry.getValue();
+                    double north = envelope.getMaxY();
+                    double south = envelope.getMinY();
+                    double east = envelope.getMaxX();
+                    double west = envelope.getMinX();
+                    for( int level = 1; level <= pLevels; level++ ) {
+                        if (level == 1) {
+                            insertFirstLevel(spatialiteDb, sourceID, north, south, east, west, level);
+                        } else {
+                            insertLevel(spatialiteDb, sourceID, north, south, east, west, level);
+                        }
+                    }
                 }
             }
 
@@ -255,8 +330,8 @@ public class SpatialiteLasWriter extends JGTModel {
     }
 
     @SuppressWarnings("unchecked")
-    private void processFile( final SpatialiteDb spatialiteDb, File file, long sourceID, GridCoverage2D ortoGC )
-            throws Exception {
+    private boolean processFile( File file, final long sourceID, final GridCoverage2D ortoGC,
+            final LasCellsBulkLoader cellsLoader ) throws Exception {
         String name = file.getName();
         pm.message("Processing file: " + name);
 
@@ -266,11 +341,13 @@ public class SpatialiteLasWriter extends JGTModel {
             long recordsCount = header.getRecordsCount();
             if (recordsCount == 0) {
                 pm.errorMessage("No points found in: " + name);
-                return;
+                return false;
             }
             ReferencedEnvelope3D envelope = header.getDataEnvelope();
             ReferencedEnvelope env2d = new ReferencedEnvelope(envelope);
             Envelope2D e = new Envelope2D(env2d);
+            final double[] xyzScale = header.getXYZScale();
+            final double[] xyzOffset = header.getXYZOffset();
 
             double north = e.getMaxY();
             double south = e.getMinY();
@@ -279,16 +356,15 @@ public class SpatialiteLasWriter extends JGTModel {
 
             double[] xRanges = NumericsUtilities.range2Bins(west, east, pCellsize, true);
             double[] yRanges = NumericsUtilities.range2Bins(south, north, pCellsize, true);
-            int cols = xRanges.length - 1;
-            int rows = yRanges.length - 1;
+            final int cols = xRanges.length - 1;
+            final int rows = yRanges.length - 1;
             int tilesCount = cols * rows;
 
             pm.message("Splitting " + name + " into " + tilesCount + " tiles.");
-            GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(north, south, east, west, cols, rows,
+            final GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(north, south, east, west, cols, rows,
                     reader.getHeader().getCrs());
 
-            List<LasRecord>[][] dotOnMatrixXY = new ArrayList[cols][rows];
-            LasCell[][] lasCellsOnMatrixXY = new LasCell[cols][rows];
+            final List<LasRecord>[][] dotOnMatrixXY = new ArrayList[cols][rows];
             pm.beginTask("Sorting points for " + name, (int) recordsCount);
             while( reader.hasNextPoint() ) {
                 LasRecord dot = reader.getNextPoint();
@@ -312,171 +388,121 @@ public class SpatialiteLasWriter extends JGTModel {
             }
             pm.done();
 
-            ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
-            List<LasCell> cellsList = new ArrayList<>();
-            final Point2D.Double pos = new Point2D.Double();
-            final int[] ortoValues = new int[3];
-            pm.beginTask("Write las data...", cols * rows);
-            for( int c = 0; c < cols; c++ ) {
-                for( int r = 0; r < rows; r++ ) {
-                    List<LasRecord> dotsList = dotOnMatrixXY[c][r];
-                    if (dotsList == null || dotsList.size() == 0) {
-                        continue;
-                    }
-                    int pointCount = dotsList.size();
-                    Coordinate coord = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
-
-                    Envelope env = new Envelope(coord);
-                    env.expandBy(pCellsize / 2.0, pCellsize / 2.0);
-                    Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(env);
-
-                    double avgElev = 0.0;
-                    double minElev = Double.POSITIVE_INFINITY;
-                    double maxElev = Double.NEGATIVE_INFINITY;
-                    byte[] position = new byte[8 * 3 * pointCount];
-                    ByteBuffer positionBuffer = ByteBuffer.wrap(position);
-
-                    double avgIntensity = 0.0;
-
-                    short minIntensity = 30000;
-                    short maxIntensity = -1;
-                    byte[] intensClass = new byte[2 * 2 * pointCount];
-                    ByteBuffer intensClassBuffer = ByteBuffer.wrap(intensClass);
-                    byte[] returns = new byte[2 * 2 * pointCount];
-                    ByteBuffer returnsBuffer = ByteBuffer.wrap(returns);
-                    double minGpsTime = Double.POSITIVE_INFINITY;
-                    double maxGpsTime = Double.NEGATIVE_INFINITY;
-                    byte[] gpsTimes = new byte[8 * pointCount];
-                    ByteBuffer gpsTimesBuffer = ByteBuffer.wrap(gpsTimes);
-                    byte[] colors = new byte[2 * 3 * pointCount];
-                    ByteBuffer colorsBuffer = ByteBuffer.wrap(colors);
-
-                    int count = 0;
-
-                    for( LasRecord dot : dotsList ) {
-                        avgElev += dot.z;
-                        minElev = min(dot.z, minElev);
-                        maxElev = max(dot.z, maxElev);
-                        positionBuffer.putDouble(dot.x);
-                        positionBuffer.putDouble(dot.y);
-                        positionBuffer.putDouble(dot.z);
-
-                        avgIntensity += dot.intensity;
-                        minIntensity = (short) min(dot.intensity, minIntensity);
-                        maxIntensity = (short) max(dot.intensity, maxIntensity);
-                        intensClassBuffer.putShort(dot.intensity);
-                        intensClassBuffer.putShort(dot.classification);
-
-                        returnsBuffer.putShort(dot.returnNumber);
-                        returnsBuffer.putShort(dot.numberOfReturns);
-
-                        minGpsTime = min(dot.gpsTime, minGpsTime);
-                        maxGpsTime = max(dot.gpsTime, maxGpsTime);
-
-                        gpsTimesBuffer.putDouble(dot.gpsTime);
-
-                        if (ortoGC != null) {
-                            pos.setLocation(dot.x, dot.y);
-                            try {
-                                ortoGC.evaluate(pos, ortoValues);
-                                colorsBuffer.putShort((short) ortoValues[0]);
-                                colorsBuffer.putShort((short) ortoValues[1]);
-                                colorsBuffer.putShort((short) ortoValues[2]);
-                            } catch (PointOutsideCoverageException poce) {
-                                // insert white
-                                colorsBuffer.putShort((short) 255);
-                                colorsBuffer.putShort((short) 255);
-                                colorsBuffer.putShort((short) 255);
-                            }
-
-                        } else if (dot.color != null) {
-                            colorsBuffer.putShort(dot.color[0]);
-                            colorsBuffer.putShort(dot.color[1]);
-                            colorsBuffer.putShort(dot.color[2]);
+            // the columns of cells are built in parallel and handed to the bulk loader
+            JGTExecutor.forEachIndex(cols, pThreads, "Write las data...", pm, new JGTExecutor.IndexProcessor(){
+                public void process( int c ) throws Exception {
+                    final Point2D.Double pos = new Point2D.Double();
+                    final int[] ortoValues = new int[3];
+                    for( int r = 0; r < rows; r++ ) {
+                        List<LasRecord> dotsList = dotOnMatrixXY[c][r];
+                        if (dotsList == null || dotsList.size() == 0) {
+                            continue;
                         }
-
-                        count++;
-                    }
-                    avgElev /= count;
-                    avgIntensity /= count;
-
-                    final LasCell lasCell = new LasCell();
-                    lasCell.polygon = polygon;
-                    lasCell.sourceId = sourceID;
-
-                    lasCell.pointsCount = pointCount;
-                    lasCell.avgElev = avgElev;
-                    lasCell.minElev = minElev;
-                    lasCell.maxElev = maxElev;
-                    lasCell.xyzs = position;
-                    lasCell.avgIntensity = (short) Math.round(avgIntensity);
-                    lasCell.minIntensity = minIntensity;
-                    lasCell.maxIntensity = maxIntensity;
-                    lasCell.intensitiesClassifications = intensClass;
-                    lasCell.returns = returns;
-                    lasCell.minGpsTime = minGpsTime;
-                    lasCell.maxGpsTime = maxGpsTime;
-                    lasCell.gpsTimes = gpsTimes;
-                    lasCell.colors = colors;
-
-                    cellsList.add(lasCell);
-                    lasCellsOnMatrixXY[c][r] = lasCell;
-
-                    if (cellsList.size() > 100000) {
-                        // add data to db in a thread to fasten up things
-                        final List<LasCell> processCells = cellsList;
-                        singleThreadExecutor.execute(new Runnable(){
-                            public void run() {
+                        int pointCount = dotsList.size();
+                        Coordinate coord = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
+
+                        Envelope env = new Envelope(coord);
+                        env.expandBy(pCellsize / 2.0, pCellsize / 2.0);
+                        Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(env);
+
+                        double avgElev = 0.0;
+                        double minElev = Double.POSITIVE_INFINITY;
+                        double maxElev = Double.NEGATIVE_INFINITY;
+                        double[] xs = new double[pointCount];
+                        double[] ys = new double[pointCount];
+                        double[] zs = new double[pointCount];
+
+                        double avgIntensity = 0.0;
+
+                        short minIntensity = 30000;
+                        short maxIntensity = -1;
+                        short[] intensities = new short[pointCount];
+                        byte[] classifications = new byte[pointCount];
+                        short[] returnNumbers = new short[pointCount];
+                        short[] numberOfReturns = new short[pointCount];
+                        double minGpsTime = Double.POSITIVE_INFINITY;
+                        double maxGpsTime = Double.NEGATIVE_INFINITY;
+                        double[] gpsTimes = new double[pointCount];
+                        short[] reds = new short[pointCount];
+                        short[] greens = new short[pointCount];
+                        short[] blues = new short[pointCount];
+
+                        int count = 0;
+
+                        for( LasRecord dot : dotsList ) {
+                            avgElev += dot.z;
+                            minElev = min(dot.z, minElev);
+                            maxElev = max(dot.z, maxElev);
+                            xs[count] = dot.x;
+                            ys[count] = dot.y;
+                            zs[count] = dot.z;
+
+                            avgIntensity += dot.intensity;
+                            minIntensity = (short) min(dot.intensity, minIntensity);
+                            maxIntensity = (short) max(dot.intensity, maxIntensity);
+                            intensities[count] = dot.intensity;
+                            classifications[count] = dot.classification;
+
+                            returnNumbers[count] = dot.returnNumber;
+                            numberOfReturns[count] = dot.numberOfReturns;
+
+                            minGpsTime = min(dot.gpsTime, minGpsTime);
+                            maxGpsTime = max(dot.gpsTime, maxGpsTime);
+
+                            gpsTimes[count] = dot.gpsTime;
+
+                            if (ortoGC != null) {
+                                pos.setLocation(dot.x, dot.y);
                                 try {
-                                    LasCellsTable.insertLasCells(spatialiteDb, srid, processCells);
-                                    pm.worked(processCells.size());
-                                } catch (SQLException e) {
-                                    e.printStackTrace();
+                                    ortoGC.evaluate(pos, ortoValues);
+                                    reds[count] = (short) ortoValues[0];
+                                    greens[count] = (short) ortoValues[1];
+                                    blues[count] = (short) ortoValues[2];
+                                } catch (PointOutsideCoverageException poce) {
+                                    // insert white
+                                    reds[count] = 255;
+                                    greens[count] = 255;
+                                    blues[count] = 255;
                                 }
-                            }
-                        });
-                        cellsList = new ArrayList<>();
-                    }
-                }
-            }
-            if (cellsList.size() > 0) {
-                // add data to db in a thread to fasten up things
-                final List<LasCell> processCells = cellsList;
-                singleThreadExecutor.execute(new Runnable(){
-                    public void run() {
-                        try {
-                            LasCellsTable.insertLasCells(spatialiteDb, srid, processCells);
-                            pm.worked(processCells.size());
-                        } catch (SQLException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-                cellsList = new ArrayList<>();
-            }
 
-            try {
-                singleThreadExecutor.shutdown();
-                singleThreadExecutor.awaitTermination(30, TimeUnit.DAYS);
-                singleThreadExecutor.shutdownNow();
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
-            pm.done();
+                            } else if (dot.color != null) {
+                                reds[count] = dot.color[0];
+                                greens[count] = dot.color[1];
+                                blues[count] = dot.color[2];
+                            }
 
-            if (pLevels > 0) {
-                for( int level = 1; level <= pLevels; level++ ) {
-                    LasLevelsTable.createTable(spatialiteDb, srid, level);
-                    if (level == 1) {
-                        insertFirstLevel(spatialiteDb, sourceID, north, south, east, west, level);
-                    } else {
-                        insertLevel(spatialiteDb, sourceID, north, south, east, west, level);
+                            count++;
+                        }
+                        avgElev /= count;
+                        avgIntensity /= count;
+
+                        final LasCell lasCell = new LasCell();
+                        lasCell.polygon = polygon;
+                        lasCell.sourceId = sourceID;
+
+                        lasCell.pointsCount = pointCount;
+                        lasCell.avgElev = avgElev;
+                        lasCell.minElev = minElev;
+                        lasCell.maxElev = maxElev;
+                        lasCell.xyzs = LasCellCodec.encodePositions(xs, ys, zs, count, xyzScale, xyzOffset, doCompress);
+                        lasCell.avgIntensity = (short) Math.round(avgIntensity);
+                        lasCell.minIntensity = minIntensity;
+                        lasCell.maxIntensity = maxIntensity;
+                        lasCell.intensitiesClassifications = LasCellCodec.encodeIntensitiesClassifications(intensities,
+                                classifications, count, doCompress);
+                        lasCell.returns = LasCellCodec.encodeReturns(returnNumbers, numberOfReturns, count, doCompress);
+                        lasCell.minGpsTime = minGpsTime;
+                        lasCell.maxGpsTime = maxGpsTime;
+                        lasCell.gpsTimes = LasCellCodec.encodeGpsTimes(gpsTimes, count, doCompress);
+                        lasCell.colors = LasCellCodec.encodeColors(reds, greens, blues, count, doCompress);
+
+                        cellsLoader.insert(lasCell);
                     }
                 }
-            }
-
+            });
+            checkCancel();
         }
-
+        return true;
     }
 
     private void insertFirstLevel( final SpatialiteDb spatialiteDb, long sourceID, double north, double south, double east,
@@ -620,6 +646,23 @@ public class SpatialiteLasWriter extends JGTModel {
         pm.done();
     }
 
+    private static void deleteLasSources( SpatialiteDb db, List<Long> sourceIds ) throws SQLException {
+        if (sourceIds.size() == 0) {
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for( Long id : sourceIds ) {
+            if (ids.length() > 0) {
+                ids.append(",");
+            }
+            ids.append(id);
+        }
+        db.executeInsertUpdateDeleteSql("DELETE FROM " + LasCellsTable.TABLENAME + " WHERE "
+                + LasCellsTable.COLUMN_SOURCE_ID + " IN (" + ids + ")");
+        db.executeInsertUpdateDeleteSql("DELETE FROM " + LasSourcesTable.TABLENAME + " WHERE "
+                + LasSourcesTable.COLUMN_ID + " IN (" + ids + ")");
+    }
+
     @Finalize
     public void close() throws Exception {
     }
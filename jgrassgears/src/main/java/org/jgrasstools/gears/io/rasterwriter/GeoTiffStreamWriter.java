@@ -0,0 +1,736 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.rasterwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.jgrasstools.gears.utils.CompressionUtilities;
+
+/**
+ * A GeoTIFF writer that writes an internally tiled single band raster while the
+ * data are produced.
+ *
+ * <p>The data are passed either in rows (see {@link IStreamingRasterWriter}), of which
+ * only the current row of tiles is kept in memory, or directly as tiles in any order
+ * through {@link #writeTile(int, int, double[])}. Each tile is written to the file
+ * as soon as it is complete, optionally compressed with deflate.</p>
+ *
+ * <p>If overviews are requested, every written tile is also reduced (mean of 2x2 cells)
+ * into the tile of the next overview level, which is written as soon as all of its
+ * source tiles arrived. The directories are written at the end of the file on
+ * {@link #close()}. A BigTIFF is written if the file grows beyond the 4GB of
+ * classic TIFF.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GeoTiffStreamWriter implements IStreamingRasterWriter {
+
+    /**
+     * The default width and height of the tiles.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    // the space reserved for the header, enough for a BigTIFF header
+    private static final int HEADER_SIZE = 16;
+
+    private static final int TIFF_ASCII = 2;
+    private static final int TIFF_SHORT = 3;
+    private static final int TIFF_LONG = 4;
+    private static final int TIFF_DOUBLE = 12;
+    private static final int TIFF_LONG8 = 16;
+
+    private final File file;
+    private final int cols;
+    private final int rows;
+    private final double west;
+    private final double north;
+    private final double xRes;
+    private final double yRes;
+
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private boolean doCompress = false;
+    private boolean doFloat = false;
+    private int overviewsNum = 0;
+    private double novalue = Double.NaN;
+    private int epsg = -1;
+    private boolean isGeographic = false;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long position = HEADER_SIZE;
+    private Level[] levels;
+
+    /*
+     * the current row of tiles in row mode.
+     */
+    private double[] band;
+    private int writtenRows = 0;
+    private boolean isTileMode = false;
+    private boolean isClosed = false;
+
+    /**
+     * A resolution level of the image.
+     */
+    private class Level {
+        final int cols;
+        final int rows;
+        final int tilesAcross;
+        final int tilesDown;
+        final long[] offsets;
+        final long[] byteCounts;
+        /*
+         * the tiles of this level that wait for some of their source tiles.
+         */
+        final HashMap<Integer, PendingTile> pending = new HashMap<Integer, PendingTile>();
+
+        Level( int cols, int rows ) {
+            this.cols = cols;
+            this.rows = rows;
+            tilesAcross = (cols + tileSize - 1) / tileSize;
+            tilesDown = (rows + tileSize - 1) / tileSize;
+            offsets = new long[tilesAcross * tilesDown];
+            byteCounts = new long[tilesAcross * tilesDown];
+        }
+    }
+
+    private static class PendingTile {
+        final double[] data;
+        final int expected;
+        int received = 0;
+
+        PendingTile( int size, int expected ) {
+            data = new double[size];
+            Arrays.fill(data, Double.NaN);
+            this.expected = expected;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file the file to write.
+     * @param cols the columns of the raster.
+     * @param rows the rows of the raster.
+     * @param west the west bound of the raster.
+     * @param north the north bound of the raster.
+     * @param xRes the x resolution.
+     * @param yRes the y resolution.
+     */
+    public GeoTiffStreamWriter( File file, int cols, int rows, double west, double north, double xRes, double yRes ) {
+        if (cols < 1 || rows < 1) {
+            throw new IllegalArgumentException("The raster needs at least one row and one column.");
+        }
+        this.file = file;
+        this.cols = cols;
+        this.rows = rows;
+        this.west = west;
+        this.north = north;
+        this.xRes = xRes;
+        this.yRes = yRes;
+    }
+
+    /**
+     * Set the size of the tiles, needs to be a multiple of 16 (default is {@value #DEFAULT_TILE_SIZE}).
+     *
+     * @param tileSize the width and height of the tiles.
+     */
+    public void setTileSize( int tileSize ) {
+        checkNotStarted();
+        if (tileSize < 16 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("The tile size needs to be a positive multiple of 16.");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @param doCompress if <code>true</code>, the tiles are compressed with deflate.
+     */
+    public void setCompress( boolean doCompress ) {
+        checkNotStarted();
+        this.doCompress = doCompress;
+    }
+
+    /**
+     * @param doFloat if <code>true</code>, the values are written as 32 bit floats instead of doubles.
+     */
+    public void setFloat( boolean doFloat ) {
+        checkNotStarted();
+        this.doFloat = doFloat;
+    }
+
+    /**
+     * Set the number of overviews to build, each one with half of the resolution
+     * of the previous one.
+     *
+     * <p>No further level is created once a level fits in a single tile.</p>
+     *
+     * @param overviewsNum the number of overviews.
+     */
+    public void setOverviews( int overviewsNum ) {
+        checkNotStarted();
+        this.overviewsNum = overviewsNum;
+    }
+
+    /**
+     * Set the value written for the novalues (<code>NaN</code> in the data).
+     *
+     * @param novalue the novalue of the file.
+     */
+    public void setNovalue( double novalue ) {
+        checkNotStarted();
+        this.novalue = novalue;
+    }
+
+    /**
+     * Set the EPSG code of the reference system.
+     *
+     * @param epsg the EPSG code.
+     * @param isGeographic <code>true</code> if the reference system is geographic, else it is projected.
+     */
+    public void setEpsg( int epsg, boolean isGeographic ) {
+        checkNotStarted();
+        this.epsg = epsg;
+        this.isGeographic = isGeographic;
+    }
+
+    /**
+     * @return the width and height of the tiles.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public int getWrittenRows() {
+        return writtenRows;
+    }
+
+    @Override
+    public void writeRow( double[] row ) throws IOException {
+        if (row.length != cols) {
+            throw new IllegalArgumentException("The row has " + row.length + " values instead of " + cols);
+        }
+        if (writtenRows >= rows) {
+            throw new IOException("All the rows of the raster have already been written.");
+        }
+        start(false);
+        int bandRow = writtenRows % tileSize;
+        System.arraycopy(row, 0, band, bandRow * cols, cols);
+        writtenRows++;
+        if (bandRow == tileSize - 1 || writtenRows == rows) {
+            flushBand(bandRow + 1);
+        }
+    }
+
+    @Override
+    public void writeRows( double[][] rows ) throws IOException {
+        for( double[] row : rows ) {
+            writeRow(row);
+        }
+    }
+
+    /**
+     * Write a tile of the raster.
+     *
+     * <p>The tiles can be written in any order, but can't be mixed with rows.</p>
+     *
+     * @param tileCol the column of the tile.
+     * @param tileRow the row of the tile.
+     * @param data the values of the tile by rows, tileSize*tileSize values. The
+     *          values outside of the raster are ignored.
+     * @throws IOException
+     */
+    public void writeTile( int tileCol, int tileRow, double[] data ) throws IOException {
+        start(true);
+        Level level = levels[0];
+        if (tileCol < 0 || tileCol >= level.tilesAcross || tileRow < 0 || tileRow >= level.tilesDown) {
+            throw new IllegalArgumentException("Tile out of the raster: " + tileCol + "/" + tileRow);
+        }
+        if (data.length != tileSize * tileSize) {
+            throw new IllegalArgumentException("The tile needs to have " + tileSize * tileSize + " values.");
+        }
+        if (level.byteCounts[tileRow * level.tilesAcross + tileCol] != 0) {
+            throw new IOException("Tile already written: " + tileCol + "/" + tileRow);
+        }
+        int width = Math.min(tileSize, cols - tileCol * tileSize);
+        int height = Math.min(tileSize, rows - tileRow * tileSize);
+        if (width < tileSize || height < tileSize) {
+            // the values outside of the raster must not get into the overviews
+            double[] tile = new double[tileSize * tileSize];
+            Arrays.fill(tile, Double.NaN);
+            for( int r = 0; r < height; r++ ) {
+                System.arraycopy(data, r * tileSize, tile, r * tileSize, width);
+            }
+            data = tile;
+        }
+        addTile(0, tileCol, tileRow, data);
+    }
+
+    /**
+     * Complete the file.
+     *
+     * <p>If not all the rows or tiles have been written, the written ones are kept
+     * and the missing ones are written as novalues.</p>
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        if (raf == null) {
+            // nothing written, the file is made of novalues only
+            start(false);
+        }
+        isClosed = true;
+        try {
+            if (!isTileMode && writtenRows % tileSize != 0 && writtenRows < rows) {
+                // incomplete raster, keep what has been written
+                flushBand(writtenRows % tileSize);
+            }
+            /*
+             * missing tiles as novalues, so that every tile has its data in the
+             * file and the pending tiles of the overviews get complete.
+             */
+            Level level = levels[0];
+            double[] emptyTile = null;
+            for( int tileIndex = 0; tileIndex < level.byteCounts.length; tileIndex++ ) {
+                if (level.byteCounts[tileIndex] == 0) {
+                    if (emptyTile == null) {
+                        emptyTile = new double[tileSize * tileSize];
+                        Arrays.fill(emptyTile, Double.NaN);
+                    }
+                    addTile(0, tileIndex % level.tilesAcross, tileIndex / level.tilesAcross, emptyTile);
+                }
+            }
+            writeDirectories();
+        } finally {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void checkNotStarted() {
+        if (raf != null) {
+            throw new IllegalStateException("The writer settings can't be changed once writing started.");
+        }
+    }
+
+    private void start( boolean tileMode ) throws IOException {
+        if (isClosed && raf == null) {
+            throw new IOException("The writer has already been closed.");
+        }
+        if (raf == null) {
+            List<Level> levelsList = new ArrayList<Level>();
+            int levelCols = cols;
+            int levelRows = rows;
+            levelsList.add(new Level(levelCols, levelRows));
+            for( int i = 0; i < overviewsNum; i++ ) {
+                if (levelCols <= tileSize && levelRows <= tileSize) {
+                    break;
+                }
+                levelCols = (levelCols + 1) / 2;
+                levelRows = (levelRows + 1) / 2;
+                levelsList.add(new Level(levelCols, levelRows));
+            }
+            levels = levelsList.toArray(new Level[levelsList.size()]);
+            isTileMode = tileMode;
+            if (!tileMode) {
+                band = new double[tileSize * cols];
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to overwrite the file: " + file);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            position = HEADER_SIZE;
+        } else if (tileMode != isTileMode) {
+            throw new IllegalStateException("Rows and tiles can't be mixed in the same raster.");
+        }
+    }
+
+    /**
+     * Cut the current row band into tiles and write them.
+     */
+    private void flushBand( int bandRows ) throws IOException {
+        int tileRow = (writtenRows - 1) / tileSize;
+        Level level = levels[0];
+        for( int tileCol = 0; tileCol < level.tilesAcross; tileCol++ ) {
+            double[] tile = new double[tileSize * tileSize];
+            Arrays.fill(tile, Double.NaN);
+            int firstCol = tileCol * tileSize;
+            int width = Math.min(tileSize, cols - firstCol);
+            for( int r = 0; r < bandRows; r++ ) {
+                System.arraycopy(band, r * cols + firstCol, tile, r * tileSize, width);
+            }
+            addTile(0, tileCol, tileRow, tile);
+        }
+    }
+
+    /**
+     * Write a tile of a level and pass it to the next overview level.
+     */
+    private void addTile( int levelIndex, int tileCol, int tileRow, double[] data ) throws IOException {
+        Level level = levels[levelIndex];
+        int tileIndex = tileRow * level.tilesAcross + tileCol;
+        byte[] bytes = encode(data);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long tilePosition = position;
+        while( buffer.hasRemaining() ) {
+            position += channel.write(buffer, position);
+        }
+        level.offsets[tileIndex] = tilePosition;
+        level.byteCounts[tileIndex] = bytes.length;
+
+        if (levelIndex + 1 < levels.length) {
+            Level next = levels[levelIndex + 1];
+            int nextCol = tileCol / 2;
+            int nextRow = tileRow / 2;
+            int nextIndex = nextRow * next.tilesAcross + nextCol;
+            PendingTile pendingTile = next.pending.get(nextIndex);
+            if (pendingTile == null) {
+                int across = Math.min(2, level.tilesAcross - nextCol * 2);
+                int down = Math.min(2, level.tilesDown - nextRow * 2);
+                pendingTile = new PendingTile(tileSize * tileSize, across * down);
+                next.pending.put(nextIndex, pendingTile);
+            }
+            reduce(data, pendingTile.data, (tileCol % 2) * tileSize / 2, (tileRow % 2) * tileSize / 2);
+            pendingTile.received++;
+            if (pendingTile.received == pendingTile.expected) {
+                next.pending.remove(nextIndex);
+                addTile(levelIndex + 1, nextCol, nextRow, pendingTile.data);
+            }
+        }
+    }
+
+    /**
+     * Reduce a tile to a quarter of tile with the mean of each 2x2 block of valid values.
+     */
+    private void reduce( double[] source, double[] target, int targetCol, int targetRow ) {
+        int half = tileSize / 2;
+        for( int r = 0; r < half; r++ ) {
+            int sourceOffset = 2 * r * tileSize;
+            int targetOffset = (targetRow + r) * tileSize + targetCol;
+            for( int c = 0; c < half; c++ ) {
+                int s = sourceOffset + 2 * c;
+                double sum = 0;
+                int count = 0;
+                double value = source[s];
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+                value = source[s + 1];
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+                value = source[s + tileSize];
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+                value = source[s + tileSize + 1];
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+                target[targetOffset + c] = count == 0 ? Double.NaN : sum / count;
+            }
+        }
+    }
+
+    private byte[] encode( double[] data ) {
+        int bytesPerValue = doFloat ? 4 : 8;
+        ByteBuffer buffer = ByteBuffer.allocate(data.length * bytesPerValue).order(ByteOrder.BIG_ENDIAN);
+        boolean hasNovalue = !Double.isNaN(novalue);
+        for( double value : data ) {
+            if (hasNovalue && Double.isNaN(value)) {
+                value = novalue;
+            }
+            if (doFloat) {
+                buffer.putFloat((float) value);
+            } else {
+                buffer.putDouble(value);
+            }
+        }
+        byte[] bytes = buffer.array();
+        if (doCompress) {
+            bytes = CompressionUtilities.deflate(bytes, 0, bytes.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the directories of all the levels and the header.
+     */
+    private void writeDirectories() throws IOException {
+        List<Directory> directories = new ArrayList<Directory>();
+        for( int l = 0; l < levels.length; l++ ) {
+            directories.add(createDirectory(l));
+        }
+        long directoriesSize = 0;
+        for( Directory directory : directories ) {
+            directoriesSize += directory.getSize(true) + 8;
+        }
+        boolean isBig = position + directoriesSize > 0xFFFFFFFFL;
+
+        long firstDirectory = 0;
+        for( int i = 0; i < directories.size(); i++ ) {
+            // word aligned
+            position += position % 2;
+            long directoryPosition = position;
+            if (i == 0) {
+                firstDirectory = directoryPosition;
+            }
+            Directory directory = directories.get(i);
+            long nextPosition = directoryPosition + directory.getSize(isBig);
+            nextPosition += nextPosition % 2;
+            ByteBuffer buffer = directory.toBytes(directoryPosition, isBig, i < directories.size() - 1 ? nextPosition : 0);
+            while( buffer.hasRemaining() ) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.put((byte) 'M').put((byte) 'M');
+        if (isBig) {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(firstDirectory);
+        } else {
+            header.putShort((short) 42).putInt((int) firstDirectory);
+        }
+        header.flip();
+        long headerPosition = 0;
+        while( header.hasRemaining() ) {
+            headerPosition += channel.write(header, headerPosition);
+        }
+    }
+
+    private Directory createDirectory( int levelIndex ) {
+        Level level = levels[levelIndex];
+        Directory directory = new Directory();
+        directory.addLong(254, levelIndex == 0 ? 0 : 1); // NewSubfileType, reduced resolution
+        directory.addLong(256, level.cols); // ImageWidth
+        directory.addLong(257, level.rows); // ImageLength
+        directory.addShort(258, doFloat ? 32 : 64); // BitsPerSample
+        directory.addShort(259, doCompress ? 8 : 1); // Compression
+        directory.addShort(262, 1); // PhotometricInterpretation, black is zero
+        directory.addShort(277, 1); // SamplesPerPixel
+        directory.addShort(284, 1); // PlanarConfiguration
+        directory.addLong(322, tileSize); // TileWidth
+        directory.addLong(323, tileSize); // TileLength
+        directory.addOffsets(324, level.offsets); // TileOffsets
+        directory.addOffsets(325, level.byteCounts); // TileByteCounts
+        directory.addShort(339, 3); // SampleFormat, floating point
+        if (levelIndex == 0) {
+            // ModelPixelScale
+            directory.addDoubles(33550, new double[]{xRes, yRes, 0});
+            // ModelTiepoint
+            directory.addDoubles(33922, new double[]{0, 0, 0, west, north, 0});
+            // GeoKeyDirectory
+            List<Integer> keys = new ArrayList<Integer>();
+            keys.addAll(Arrays.asList(1, 1, 0, 0));
+            keys.addAll(Arrays.asList(1024, 0, 1, isGeographic ? 2 : 1)); // GTModelType
+            keys.addAll(Arrays.asList(1025, 0, 1, 1)); // GTRasterType, pixel is area
+            if (epsg > 0) {
+                // GeographicType or ProjectedCSType
+                keys.addAll(Arrays.asList(isGeographic ? 2048 : 3072, 0, 1, epsg));
+            }
+            keys.set(3, keys.size() / 4 - 1);
+            int[] geoKeys = new int[keys.size()];
+            for( int i = 0; i < geoKeys.length; i++ ) {
+                geoKeys[i] = keys.get(i);
+            }
+            directory.addShorts(34735, geoKeys);
+        }
+        // GDAL_NODATA
+        String novalueString = Double.isNaN(novalue) ? "nan" : Double.toString(novalue);
+        directory.addAscii(42113, novalueString);
+        return directory;
+    }
+
+    /**
+     * An image file directory, with its entries ordered by tag.
+     */
+    private static class Directory {
+        private final List<Object[]> entries = new ArrayList<Object[]>();
+
+        void addShort( int tag, int value ) {
+            addShorts(tag, new int[]{value});
+        }
+
+        void addShorts( int tag, int[] values ) {
+            entries.add(new Object[]{tag, TIFF_SHORT, values});
+        }
+
+        void addLong( int tag, long value ) {
+            entries.add(new Object[]{tag, TIFF_LONG, new long[]{value}});
+        }
+
+        void addOffsets( int tag, long[] values ) {
+            // LONG or LONG8 depending on the file type
+            entries.add(new Object[]{tag, TIFF_LONG8, values});
+        }
+
+        void addDoubles( int tag, double[] values ) {
+            entries.add(new Object[]{tag, TIFF_DOUBLE, values});
+        }
+
+        void addAscii( int tag, String value ) {
+            entries.add(new Object[]{tag, TIFF_ASCII, (value + '\0').getBytes(StandardCharsets.US_ASCII)});
+        }
+
+        private static int count( Object[] entry ) {
+            Object values = entry[2];
+            if (values instanceof int[]) {
+                return ((int[]) values).length;
+            } else if (values instanceof long[]) {
+                return ((long[]) values).length;
+            } else if (values instanceof double[]) {
+                return ((double[]) values).length;
+            }
+            return ((byte[]) values).length;
+        }
+
+        private static int typeSize( int type, boolean isBig ) {
+            switch( type ) {
+            case TIFF_ASCII:
+                return 1;
+            case TIFF_SHORT:
+                return 2;
+            case TIFF_LONG:
+                return 4;
+            case TIFF_LONG8:
+                return isBig ? 8 : 4;
+            default:
+                return 8;
+            }
+        }
+
+        private static int dataSize( Object[] entry, boolean isBig ) {
+            return count(entry) * typeSize((Integer) entry[1], isBig);
+        }
+
+        long getSize( boolean isBig ) {
+            int entrySize = isBig ? 20 : 12;
+            int inlineSize = isBig ? 8 : 4;
+            long size = (isBig ? 8 : 2) + entries.size() * entrySize + (isBig ? 8 : 4);
+            for( Object[] entry : entries ) {
+                int dataSize = dataSize(entry, isBig);
+                if (dataSize > inlineSize) {
+                    size += dataSize + dataSize % 2;
+                }
+            }
+            return size;
+        }
+
+        ByteBuffer toBytes( long directoryPosition, boolean isBig, long nextDirectory ) {
+            Collections.sort(entries, new Comparator<Object[]>(){
+                public int compare( Object[] e1, Object[] e2 ) {
+                    return Integer.compare((Integer) e1[0], (Integer) e2[0]);
+                }
+            });
+            int entrySize = isBig ? 20 : 12;
+            int inlineSize = isBig ? 8 : 4;
+            ByteBuffer buffer = ByteBuffer.allocate((int) getSize(isBig)).order(ByteOrder.BIG_ENDIAN);
+            int dataPosition = (isBig ? 8 : 2) + entries.size() * entrySize + (isBig ? 8 : 4);
+            if (isBig) {
+                buffer.putLong(entries.size());
+            } else {
+                buffer.putShort((short) entries.size());
+            }
+            for( Object[] entry : entries ) {
+                int type = (Integer) entry[1];
+                if (type == TIFF_LONG8 && !isBig) {
+                    type = TIFF_LONG;
+                }
+                buffer.putShort((short) (int) (Integer) entry[0]);
+                buffer.putShort((short) type);
+                if (isBig) {
+                    buffer.putLong(count(entry));
+                } else {
+                    buffer.putInt(count(entry));
+                }
+                int dataSize = dataSize(entry, isBig);
+                int valuePosition = buffer.position();
+                if (dataSize > inlineSize) {
+                    if (isBig) {
+                        buffer.putLong(directoryPosition + dataPosition);
+                    } else {
+                        buffer.putInt((int) (directoryPosition + dataPosition));
+                    }
+                    buffer.position(dataPosition);
+                    putValues(buffer, entry, type);
+                    dataPosition += dataSize + dataSize % 2;
+                    buffer.position(valuePosition + inlineSize);
+                } else {
+                    putValues(buffer, entry, type);
+                    buffer.position(valuePosition + inlineSize);
+                }
+            }
+            if (isBig) {
+                buffer.putLong(nextDirectory);
+            } else {
+                buffer.putInt((int) nextDirectory);
+            }
+            buffer.position(0);
+            return buffer;
+        }
+
+        private static void putValues( ByteBuffer buffer, Object[] entry, int type ) {
+            Object values = entry[2];
+            switch( type ) {
+            case TIFF_SHORT:
+                for( int value : (int[]) values ) {
+                    buffer.putShort((short) value);
+                }
+                break;
+            case TIFF_LONG:
+                for( long value : (long[]) values ) {
+                    buffer.putInt((int) value);
+                }
+                break;
+            case TIFF_LONG8:
+                for( long value : (long[]) values ) {
+                    buffer.putLong(value);
+                }
+                break;
+            case TIFF_DOUBLE:
+                for( double value : (double[]) values ) {
+                    buffer.putDouble(value);
+                }
+                break;
+            default:
+                buffer.put((byte[]) values);
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.rasterwriter;
+
+import java.io.IOException;
+
+import org.jgrasstools.gears.io.grasslegacy.io.GrassRasterWriter;
+import org.jgrasstools.gears.io.grasslegacy.utils.Window;
+
+/**
+ * A GRASS raster writer that compresses and writes each row as it arrives.
+ * 
+ * <p>GRASS rasters are made of rows compressed one by one, so no data
+ * need to be kept in memory.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GrassStreamWriter implements IStreamingRasterWriter {
+
+    private final GrassRasterWriter writer;
+    private int writtenRows = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param cellPath the path of the map in the cell folder of the mapset.
+     * @param window the region of the map.
+     * @throws IOException
+     */
+    public GrassStreamWriter( String cellPath, Window window ) throws IOException {
+        writer = new GrassRasterWriter();
+        writer.setOutputDataObject(new double[0][0]);
+        writer.setDataWindow(window);
+        if (!writer.open(cellPath)) {
+            throw new IOException("Unable to create the GRASS raster: " + cellPath);
+        }
+        try {
+            writer.beginRows();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void writeRow( double[] row ) throws IOException {
+        try {
+            writer.writeRow(row);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        writtenRows++;
+    }
+
+    @Override
+    public void writeRows( double[][] rows ) throws IOException {
+        for( double[] row : rows ) {
+            writeRow(row);
+        }
+    }
+
+    @Override
+    public int getWrittenRows() {
+        return writtenRows;
+    }
+
+    /**
+     * Complete the map.
+     *
+     * <p>A GRASS map needs all of its rows, so the map is not completed and an
+     * exception is thrown if some rows are missing.</p>
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            writer.endRows();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            writer.close();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.rasterwriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A raster writer that receives the data in rows as they are produced.
+ * 
+ * <p>The rows are written from north to south. Only the rows that are not yet
+ * written are kept in memory, so a raster can be written without ever holding
+ * all of its data. The raster is complete once {@link #close()} is called. What
+ * happens to the missing rows of an incomplete raster depends on the format.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IStreamingRasterWriter extends Closeable {
+
+    /**
+     * Write the next row of the raster.
+     * 
+     * @param row the values of the row, novalues as <code>NaN</code>.
+     * @throws IOException
+     */
+    public void writeRow( double[] row ) throws IOException;
+
+    /**
+     * Write the next rows of the raster.
+     * 
+     * @param rows the rows to write, as rows[row][col].
+     * @throws IOException
+     */
+    public void writeRows( double[][] rows ) throws IOException;
+
+    /**
+     * @return the number of rows written so far.
+     */
+    public int getWrittenRows();
+
+}
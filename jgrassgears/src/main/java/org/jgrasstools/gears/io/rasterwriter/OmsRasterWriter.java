@@ -59,16 +59,21 @@ import org.geotools.gce.grassraster.JGrassMapEnvironment;
 import org.geotools.gce.grassraster.JGrassRegion;
 import org.geotools.gce.grassraster.format.GrassCoverageFormat;
 import org.geotools.gce.grassraster.format.GrassCoverageFormatFactory;
+import org.geotools.referencing.CRS;
 import org.jgrasstools.gears.io.grasslegacy.GrassLegacyGridCoverage2D;
 import org.jgrasstools.gears.io.grasslegacy.OmsGrassLegacyWriter;
 import org.jgrasstools.gears.io.grasslegacy.utils.GrassLegacyUtilities;
+import org.jgrasstools.gears.io.grasslegacy.utils.Window;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
 
 @Description(OMSRASTERWRITER_DESCRIPTION)
 @Author(name = OMSRASTERWRITER_AUTHORNAMES, contact = OMSRASTERWRITER_AUTHORCONTACTS)
@@ -194,4 +199,40 @@ public class OmsRasterWriter extends JGTModel {
         writer.file = path;
         writer.process();
     }
+
+    /**
+     * Get a writer to which the raster can be passed row by row while it is produced.
+     * 
+     * <p>Supported are tiff, written as deflate compressed tiled GeoTIFF, and
+     * GRASS rasters.</p>
+     * 
+     * @param path the path of the raster to write.
+     * @param region the region of the raster.
+     * @param crs the reference system of the raster.
+     * @return the writer, which has to be closed once all the rows are written.
+     * @throws Exception
+     */
+    public static IStreamingRasterWriter getStreamingWriter( String path, RegionMap region, CoordinateReferenceSystem crs )
+            throws Exception {
+        String lowerPath = path.toLowerCase();
+        if (lowerPath.endsWith(GEOTIFF) || lowerPath.endsWith(GEOTIF)) {
+            GeoTiffStreamWriter writer = new GeoTiffStreamWriter(new File(path), region.getCols(), region.getRows(),
+                    region.getWest(), region.getNorth(), region.getXres(), region.getYres());
+            writer.setCompress(true);
+            if (crs != null) {
+                Integer epsg = CRS.lookupEpsgCode(crs, true);
+                if (epsg != null) {
+                    writer.setEpsg(epsg, crs instanceof GeographicCRS);
+                }
+            }
+            return writer;
+        } else if (CoverageUtilities.isGrass(path)) {
+            JGrassMapEnvironment mapEnvironment = new JGrassMapEnvironment(new File(path));
+            Window window = new Window(region.getWest(), region.getEast(), region.getSouth(), region.getNorth(),
+                    region.getRows(), region.getCols());
+            return new GrassStreamWriter(mapEnvironment.getCELL().getAbsolutePath(), window);
+        }
+        throw new ModelsIllegalargumentException("Streaming writing is supported only for tiff and grass rasters.",
+                OmsRasterWriter.class.getSimpleName());
+    }
 }
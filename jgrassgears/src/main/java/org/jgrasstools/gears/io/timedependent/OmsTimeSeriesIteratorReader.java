@@ -25,6 +25,8 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREAD
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_LICENSE;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_NAME;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_STATUS;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_doCache_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_doFast_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_fileNovalue_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_file_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTIMESERIESITERATORREADER_idfield_DESCRIPTION;
@@ -42,6 +44,7 @@ import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -102,6 +105,14 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
     @In
     public int pAggregation = 0;
 
+    @Description(OMSTIMESERIESITERATORREADER_doFast_DESCRIPTION)
+    @In
+    public boolean doFast = false;
+
+    @Description(OMSTIMESERIESITERATORREADER_doCache_DESCRIPTION)
+    @In
+    public boolean doCache = false;
+
     @Description(OMSTIMESERIESITERATORREADER_tStart_DESCRIPTION)
     @In
     @Out
@@ -137,6 +148,15 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
 
     private DateTime expectedTimestamp = null;
 
+    private TimeSeriesFastReader fastReader;
+    private int fastRow = 0;
+    private HashMap<Integer, double[]> fastData;
+    private double[][] fastGroups;
+    private int[] fastGroupStarts;
+    private double[] fastValues;
+    private double[] fastRowValues;
+    private boolean[] fastHasValue;
+
     @Initialize
     public void initProcess() {
         // activate time
@@ -146,6 +166,10 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
     private void ensureOpen() throws IOException {
         if (table == null) {
             table = DataIO.table(new File(file), null);
+            if (doFast || doCache) {
+                openFast();
+                return;
+            }
             rowsIterator = (TableIterator<String[]>) table.rows().iterator();
             /*
              * If tStart is null then the reader try to read all the value in the file, nb time step constant.
@@ -186,11 +210,66 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
             expectedTimestamp = expectedTimestamp.plusMinutes(tTimestep);
             tCurrent = expectedTimestamp.toString(formatter);
         }
+        if (fastReader != null) {
+            readFastRecord();
+        } else {
+            readRecord();
+        }
+
+        // time ran out
+        if (tEnd != null && tCurrent.equals(tEnd)) {
+            doProcess = false;
+        }
+        // data ran out
+        if (fastReader != null ? fastRow >= fastReader.getRowsCount() : !rowsIterator.hasNext()) {
+            doProcess = false;
+        }
+    }
+
+    private void readRecord() throws IOException {
         outData = new HashMap<Integer, double[]>();
 
-        int columnCount = table.getColumnCount();
         List<Integer> idList = new ArrayList<Integer>();
         List<Integer> idCountList = new ArrayList<Integer>();
+        collectIds(idList, idCountList);
+
+        if (rowsIterator.hasNext()) {
+            String[] row = getExpectedRow(rowsIterator, expectedTimestamp);
+
+            int idCountIndex = 0;
+            for( int i = 2; i < row.length; i++ ) {
+                Integer id = idList.get(i - 2);
+                Integer idCount = idCountList.get(idCountIndex);
+                double[] values = outData.get(id);
+                if (values == null) {
+                    values = new double[idCount];
+                    outData.put(id, values);
+                }
+                for( int j = 0; j < idCount; j++, i++ ) {
+                    if (row[i] == null || row[i].length() == 0) {
+                        values[j] = novalue;
+                    } else {
+                        String valueStr = row[i].trim();
+                        if (valueStr.equals(fileNovalue)) {
+                            values[j] = novalue;
+                        } else {
+                            values[j] = Double.parseDouble(valueStr);
+                        }
+                    }
+                }
+                idCountIndex++;
+                i--;
+            }
+        } else {
+            outData = null;
+        }
+    }
+
+    /**
+     * Collect the ids of the data columns and the number of consecutive columns per id.
+     */
+    private void collectIds( List<Integer> idList, List<Integer> idCountList ) {
+        int columnCount = table.getColumnCount();
         int count = 0;
         Integer previousIdInteger = null;
         for( int i = 2; i <= columnCount; i++ ) {
@@ -217,46 +296,106 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
                         .getSimpleName(), pm);
             }
         }
+    }
 
-        if (rowsIterator.hasNext()) {
-            String[] row = getExpectedRow(rowsIterator, expectedTimestamp);
+    /**
+     * Open the byte level reader and prepare the output map, which is reused for all the steps.
+     */
+    private void openFast() throws IOException {
+        int columns = table.getColumnCount() - 1;
+        fastReader = new TimeSeriesFastReader(new File(file), columns, fileNovalue, formatter, doCache);
 
-            int idCountIndex = 0;
-            for( int i = 2; i < row.length; i++ ) {
-                Integer id = idList.get(i - 2);
-                Integer idCount = idCountList.get(idCountIndex);
-                double[] values = outData.get(id);
-                if (values == null) {
-                    values = new double[idCount];
-                    outData.put(id, values);
+        List<Integer> idList = new ArrayList<Integer>();
+        List<Integer> idCountList = new ArrayList<Integer>();
+        collectIds(idList, idCountList);
+
+        fastData = new HashMap<Integer, double[]>();
+        fastGroups = new double[idCountList.size()][];
+        fastGroupStarts = new int[idCountList.size()];
+        int start = 0;
+        for( int g = 0; g < fastGroups.length; g++ ) {
+            Integer id = idList.get(start);
+            double[] values = fastData.get(id);
+            if (values == null) {
+                values = new double[idCountList.get(g)];
+                fastData.put(id, values);
+            }
+            fastGroups[g] = values;
+            fastGroupStarts[g] = start;
+            start = start + idCountList.get(g);
+        }
+        fastValues = new double[columns];
+        fastRowValues = new double[columns];
+        fastHasValue = new boolean[columns];
+
+        if (tStart == null && fastReader.getRowsCount() > 1) {
+            DateTime first = new DateTime(fastReader.getTimestamp(0), formatter.getZone());
+            DateTime second = new DateTime(fastReader.getTimestamp(1), formatter.getZone());
+            tStart = first.toString(formatter);
+            // the dt is equal to the fifference of the time of 2 rows.
+            tTimestep = second.getMinuteOfDay() - first.getMinuteOfDay();
+        }
+    }
+
+    /**
+     * Read the expected record through the byte level reader, filling the reused output arrays.
+     */
+    private void readFastRecord() throws IOException {
+        int rowsCount = fastReader.getRowsCount();
+        long expected = expectedTimestamp.getMillis();
+        while( fastRow < rowsCount && fastReader.getTimestamp(fastRow) < expected ) {
+            fastRow++;
+        }
+        if (fastRow >= rowsCount) {
+            outData = null;
+            return;
+        }
+        long current = fastReader.getTimestamp(fastRow);
+        if (current > expected) {
+            DateTime currentTimestamp = new DateTime(current, expectedTimestamp.getZone());
+            String message = "The data are not aligned with the simulation interval (" + currentTimestamp + "/"
+                    + expectedTimestamp + "). Check your data file: " + file;
+            throw new IOException(message);
+        }
+
+        if (pNum == 1) {
+            fastReader.readRow(fastRow, fastValues);
+            fastRow++;
+            for( int c = 0; c < fastValues.length; c++ ) {
+                if (Double.isNaN(fastValues[c])) {
+                    fastValues[c] = novalue;
                 }
-                for( int j = 0; j < idCount; j++, i++ ) {
-                    if (row[i] == null || row[i].length() == 0) {
-                        values[j] = novalue;
-                    } else {
-                        String valueStr = row[i].trim();
-                        if (valueStr.equals(fileNovalue)) {
-                            values[j] = novalue;
-                        } else {
-                            values[j] = Double.parseDouble(valueStr);
-                        }
+            }
+        } else {
+            int rowNum = Math.min(pNum, rowsCount - fastRow);
+            Arrays.fill(fastValues, 0.0);
+            Arrays.fill(fastHasValue, false);
+            for( int r = 0; r < rowNum; r++ ) {
+                fastReader.readRow(fastRow + r, fastRowValues);
+                for( int c = 0; c < fastRowValues.length; c++ ) {
+                    if (!Double.isNaN(fastRowValues[c])) {
+                        fastValues[c] = fastValues[c] + fastRowValues[c];
+                        fastHasValue[c] = true;
                     }
                 }
-                idCountIndex++;
-                i--;
             }
-        } else {
-            outData = null;
+            fastRow = fastRow + rowNum;
+            for( int c = 0; c < fastValues.length; c++ ) {
+                if (!fastHasValue[c]) {
+                    fastValues[c] = doubleNovalue;
+                } else if (pAggregation == 1) {
+                    fastValues[c] = fastValues[c] / pNum;
+                } else if (pAggregation != 0) {
+                    fastValues[c] = novalue;
+                }
+            }
         }
 
-        // time ran out
-        if (tEnd != null && tCurrent.equals(tEnd)) {
-            doProcess = false;
-        }
-        // data ran out
-        if (!rowsIterator.hasNext()) {
-            doProcess = false;
+        for( int g = 0; g < fastGroups.length; g++ ) {
+            double[] values = fastGroups[g];
+            System.arraycopy(fastValues, fastGroupStarts[g], values, 0, values.length);
         }
+        outData = fastData;
     }
 
     /**
@@ -352,6 +491,11 @@ public class OmsTimeSeriesIteratorReader extends JGTModel {
 
     @Finalize
     public void close() throws IOException {
-        rowsIterator.close();
+        if (rowsIterator != null) {
+            rowsIterator.close();
+        }
+        if (fastReader != null) {
+            fastReader.close();
+        }
     }
 }
@@ -0,0 +1,593 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.io.timedependent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Random access reader for the data rows of an OMS formatted csv time series.
+ *
+ * <p>
+ * The csv is scanned once as raw bytes, keeping only the timestamp and the file
+ * offset of every data row. Rows are then decoded on demand directly from the bytes,
+ * without creating strings for the single values.
+ * </p>
+ * <p>
+ * Optionally the decoded data are converted into a binary columnar cache file
+ * (the csv path plus {@link #CACHE_EXTENSION}), which is memory mapped and reused by
+ * later runs as long as the csv is not modified.
+ * </p>
+ * <p>
+ * Missing values (empty cells and cells equal to the file novalue) are returned as
+ * {@link Double#NaN}.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TimeSeriesFastReader {
+
+    /**
+     * The extension added to the csv path for the binary cache.
+     */
+    public static final String CACHE_EXTENSION = ".tscache";
+
+    private static final long MAGIC = 0x4A47544354534331L; // JGTCTSC1
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int CACHE_BLOCK_VALUES = 1 << 22;
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for( int i = 1; i < POW10.length; i++ ) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private final File csvFile;
+    private final int columns;
+    private final byte[] novalueBytes;
+    private final DateTimeFormatter formatter;
+    private final boolean isUtcMinutesFormatter;
+
+    private int rows;
+    private long[] timestamps;
+
+    // csv mode
+    private long[] rowOffsets;
+    private RandomAccessFile csvRaf;
+    private byte[] rowBuffer = new byte[256];
+
+    // cache mode
+    private RandomAccessFile cacheRaf;
+    private MappedByteBuffer[] segments;
+    private long valuesPosition;
+
+    /**
+     * Open a csv time series.
+     *
+     * @param csvFile the csv file.
+     * @param columns the number of value columns after the timestamp.
+     * @param fileNovalue the string used as novalue in the file.
+     * @param formatter the formatter of the timestamps. If it is 
+     *              {@link JGTConstants#utcDateFormatterYYYYMMDDHHMM}, the timestamps
+     *              are decoded directly from the bytes.
+     * @param useCache if <code>true</code>, the binary cache is used (and created
+     *              if missing or outdated).
+     * @throws IOException
+     */
+    public TimeSeriesFastReader( File csvFile, int columns, String fileNovalue, DateTimeFormatter formatter, boolean useCache )
+            throws IOException {
+        this.csvFile = csvFile;
+        this.columns = columns;
+        this.formatter = formatter;
+        isUtcMinutesFormatter = formatter == JGTConstants.utcDateFormatterYYYYMMDDHHMM;
+        novalueBytes = fileNovalue == null ? new byte[0] : fileNovalue.trim().getBytes("UTF-8");
+
+        File cacheFile = new File(csvFile.getAbsolutePath() + CACHE_EXTENSION);
+        if (useCache && openCache(cacheFile)) {
+            return;
+        }
+        indexCsv();
+        if (useCache) {
+            writeCache(cacheFile);
+            closeCsv();
+            if (!openCache(cacheFile)) {
+                throw new IOException("Unable to read the time series cache: " + cacheFile);
+            }
+        }
+    }
+
+    /**
+     * @return the number of data rows.
+     */
+    public int getRowsCount() {
+        return rows;
+    }
+
+    /**
+     * @return the number of value columns.
+     */
+    public int getColumnsCount() {
+        return columns;
+    }
+
+    /**
+     * @param row the row index.
+     * @return the timestamp of the row in milliseconds (UTC).
+     */
+    public long getTimestamp( int row ) {
+        return timestamps[row];
+    }
+
+    /**
+     * Read the values of a row.
+     *
+     * @param row the row index.
+     * @param values the array to fill, of size {@link #getColumnsCount()}.
+     * @throws IOException
+     */
+    public void readRow( int row, double[] values ) throws IOException {
+        if (segments != null) {
+            long position = valuesPosition + (long) row * 8;
+            long columnSize = (long) rows * 8;
+            for( int c = 0; c < columns; c++, position += columnSize ) {
+                values[c] = segments[(int) (position >>> SEGMENT_SHIFT)].getDouble((int) (position & SEGMENT_MASK));
+            }
+            return;
+        }
+
+        int length = (int) (rowOffsets[row + 1] - rowOffsets[row]);
+        if (rowBuffer.length < length) {
+            rowBuffer = new byte[Math.max(length, rowBuffer.length * 2)];
+        }
+        csvRaf.seek(rowOffsets[row]);
+        csvRaf.readFully(rowBuffer, 0, length);
+        decodeRow(rowBuffer, length, values);
+    }
+
+    public void close() throws IOException {
+        closeCsv();
+        segments = null;
+        if (cacheRaf != null) {
+            cacheRaf.close();
+            cacheRaf = null;
+        }
+    }
+
+    private void closeCsv() throws IOException {
+        if (csvRaf != null) {
+            csvRaf.close();
+            csvRaf = null;
+        }
+    }
+
+    /**
+     * Scan the csv and index the data rows, i.e. the lines starting with a comma
+     * that follow the <code>@H</code> header of the first table.
+     */
+    private void indexCsv() throws IOException {
+        timestamps = new long[1024];
+        rowOffsets = new long[1025];
+        rows = 0;
+
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        InputStream in = new FileInputStream(csvFile);
+        try {
+            boolean inData = false;
+            boolean isEof = false;
+            // file offset of the first byte in the buffer
+            long bufferOffset = 0;
+            int filled = 0;
+            int scanFrom = 0;
+            scan: while( !isEof ) {
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read == -1) {
+                    isEof = true;
+                } else {
+                    filled += read;
+                }
+
+                int lineFrom = 0;
+                int scanTo = isEof ? filled + 1 : filled;
+                for( int i = scanFrom; i < scanTo; i++ ) {
+                    if (i < filled && buffer[i] != '\n') {
+                        continue;
+                    }
+                    int length = i - lineFrom;
+                    if (length > 0) {
+                        byte first = buffer[lineFrom];
+                        if (!inData) {
+                            inData = startsWith(buffer, lineFrom, length, "@H");
+                        } else if (first == '@') {
+                            // next table
+                            rowOffsets[rows] = bufferOffset + lineFrom;
+                            break scan;
+                        } else if (first == ',') {
+                            if (rows == timestamps.length) {
+                                timestamps = Arrays.copyOf(timestamps, rows * 2);
+                                rowOffsets = Arrays.copyOf(rowOffsets, rows * 2 + 1);
+                            }
+                            rowOffsets[rows] = bufferOffset + lineFrom;
+                            timestamps[rows] = decodeTimestamp(buffer, lineFrom, i);
+                            rows++;
+                        }
+                    }
+                    lineFrom = i + 1;
+                }
+                lineFrom = Math.min(lineFrom, filled);
+                rowOffsets[rows] = bufferOffset + lineFrom;
+
+                // keep the incomplete line at the start of the buffer
+                System.arraycopy(buffer, lineFrom, buffer, 0, filled - lineFrom);
+                bufferOffset += lineFrom;
+                filled -= lineFrom;
+                scanFrom = filled;
+            }
+        } finally {
+            in.close();
+        }
+
+        csvRaf = new RandomAccessFile(csvFile, "r");
+    }
+
+    private static boolean startsWith( byte[] line, int from, int length, String prefix ) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for( int i = 0; i < prefix.length(); i++ ) {
+            if (line[from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode the timestamp in the second field of a data row.
+     */
+    private long decodeTimestamp( byte[] line, int lineFrom, int lineTo ) {
+        int from = lineFrom + 1;
+        int to = from;
+        while( to < lineTo && line[to] != ',' && line[to] != '\r' ) {
+            to++;
+        }
+        while( from < to && line[from] == ' ' ) {
+            from++;
+        }
+        while( to > from && line[to - 1] == ' ' ) {
+            to--;
+        }
+        // yyyy-MM-dd HH:mm in UTC
+        if (isUtcMinutesFormatter && to - from == 16 && line[from + 4] == '-' && line[from + 7] == '-' && line[from + 10] == ' '
+                && line[from + 13] == ':') {
+            int year = digits(line, from, 4);
+            int month = digits(line, from + 5, 2);
+            int day = digits(line, from + 8, 2);
+            int hour = digits(line, from + 11, 2);
+            int minute = digits(line, from + 14, 2);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24 && minute >= 0
+                    && minute < 60) {
+                long days = daysFromCivil(year, month, day);
+                return ((days * 24 + hour) * 60 + minute) * 60000L;
+            }
+        }
+        return formatter.parseMillis(new String(line, from, to - from));
+    }
+
+    private static int digits( byte[] line, int from, int count ) {
+        int value = 0;
+        for( int i = from; i < from + count; i++ ) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 of a proleptic gregorian date.
+     */
+    private static long daysFromCivil( int year, int month, int day ) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Decode the values of a data row, skipping the empty first field and the timestamp.
+     */
+    private void decodeRow( byte[] line, int length, double[] values ) {
+        // the bytes up to the next data row can contain the line terminator and empty lines
+        for( int i = 0; i < length; i++ ) {
+            if (line[i] == '\n' || line[i] == '\r') {
+                length = i;
+                break;
+            }
+        }
+        int pos = 0;
+        int skipFields = 2;
+        while( skipFields > 0 && pos < length ) {
+            if (line[pos++] == ',') {
+                skipFields--;
+            }
+        }
+        for( int c = 0; c < columns; c++ ) {
+            if (skipFields > 0 || pos >= length) {
+                values[c] = Double.NaN;
+                continue;
+            }
+            int end = pos;
+            while( end < length && line[end] != ',' ) {
+                end++;
+            }
+            values[c] = decodeValue(line, pos, end);
+            pos = end + 1;
+        }
+    }
+
+    private double decodeValue( byte[] line, int from, int to ) {
+        while( from < to && line[from] == ' ' ) {
+            from++;
+        }
+        while( to > from && line[to - 1] == ' ' ) {
+            to--;
+        }
+        if (to - from >= 2 && line[from] == '"' && line[to - 1] == '"') {
+            from++;
+            to--;
+        }
+        if (from == to) {
+            return Double.NaN;
+        }
+        if (to - from == novalueBytes.length) {
+            boolean isNovalue = true;
+            for( int i = 0; i < novalueBytes.length; i++ ) {
+                if (line[from + i] != novalueBytes[i]) {
+                    isNovalue = false;
+                    break;
+                }
+            }
+            if (isNovalue) {
+                return Double.NaN;
+            }
+        }
+        return parseDouble(line, from, to);
+    }
+
+    /**
+     * Parse a decimal number from bytes.
+     *
+     * <p>Numbers with up to 15 significant digits and a decimal exponent within
+     * +-22 are computed with a single (correctly rounded) floating point operation,
+     * all the others are delegated to {@link Double#parseDouble(String)}, so that
+     * the result is always identical to it.</p>
+     */
+    static double parseDouble( byte[] line, int from, int to ) {
+        int i = from;
+        boolean negative = false;
+        if (line[i] == '-' || line[i] == '+') {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        for( ; i < to; i++ ) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9) {
+                break;
+            }
+            hasDigits = true;
+            if (significant < 18) {
+                mantissa = mantissa * 10 + d;
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (i < to && line[i] == '.') {
+            i++;
+            for( ; i < to; i++ ) {
+                int d = line[i] - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                hasDigits = true;
+                if (significant < 18) {
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                    exponent--;
+                }
+            }
+        }
+        if (hasDigits && i < to && (line[i] == 'e' || line[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < to && (line[i] == '-' || line[i] == '+')) {
+                negativeExp = line[i] == '-';
+                i++;
+            }
+            int exp = 0;
+            boolean hasExpDigits = false;
+            for( ; i < to; i++ ) {
+                int d = line[i] - '0';
+                if (d < 0 || d > 9 || exp > 100000) {
+                    break;
+                }
+                exp = exp * 10 + d;
+                hasExpDigits = true;
+            }
+            if (!hasExpDigits) {
+                hasDigits = false;
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (hasDigits && i == to && significant <= 15 && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(new String(line, from, to - from));
+    }
+
+    /**
+     * Write the binary columnar cache: a header, the timestamps and then
+     * the values column by column.
+     */
+    private void writeCache( File cacheFile ) throws IOException {
+        File tmpFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            raf.setLength(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(columns);
+            header.putInt(rows);
+            header.putInt(Arrays.hashCode(novalueBytes));
+            header.putLong(csvFile.length());
+            header.putLong(csvFile.lastModified());
+            header.putLong(0);
+            header.flip();
+            channel.write(header, 0);
+
+            ByteBuffer timesBuffer = ByteBuffer.allocate(rows * 8).order(ByteOrder.nativeOrder());
+            timesBuffer.asLongBuffer().put(timestamps, 0, rows);
+            channel.write(timesBuffer, HEADER_SIZE);
+
+            long valuesStart = HEADER_SIZE + (long) rows * 8;
+            int blockRows = Math.max(1, Math.min(rows, CACHE_BLOCK_VALUES / Math.max(1, columns)));
+            double[] rowValues = new double[columns];
+            double[][] block = new double[columns][blockRows];
+            ByteBuffer columnBuffer = ByteBuffer.allocate(blockRows * 8).order(ByteOrder.nativeOrder());
+            for( int fromRow = 0; fromRow < rows; fromRow += blockRows ) {
+                int toRow = Math.min(rows, fromRow + blockRows);
+                for( int r = fromRow; r < toRow; r++ ) {
+                    readRow(r, rowValues);
+                    for( int c = 0; c < columns; c++ ) {
+                        block[c][r - fromRow] = rowValues[c];
+                    }
+                }
+                for( int c = 0; c < columns; c++ ) {
+                    columnBuffer.clear();
+                    columnBuffer.asDoubleBuffer().put(block[c], 0, toRow - fromRow);
+                    columnBuffer.limit((toRow - fromRow) * 8);
+                    long position = valuesStart + ((long) c * rows + fromRow) * 8;
+                    while( columnBuffer.hasRemaining() ) {
+                        position += channel.write(columnBuffer, position);
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            throw new IOException("Unable to replace the time series cache: " + cacheFile);
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            throw new IOException("Unable to create the time series cache: " + cacheFile);
+        }
+    }
+
+    /**
+     * Open and map the cache, if it exists and is valid for the current csv.
+     */
+    private boolean openCache( File cacheFile ) throws IOException {
+        if (!cacheFile.exists() || cacheFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        boolean isValid = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+            header.flip();
+            if (header.getLong() != MAGIC || header.getInt() != VERSION || header.getInt() != columns) {
+                return false;
+            }
+            int cacheRows = header.getInt();
+            if (header.getInt() != Arrays.hashCode(novalueBytes) || header.getLong() != csvFile.length()
+                    || header.getLong() != csvFile.lastModified()) {
+                return false;
+            }
+            long size = HEADER_SIZE + (long) cacheRows * 8 * (columns + 1);
+            if (raf.length() != size) {
+                return false;
+            }
+
+            int segmentsNum = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[segmentsNum];
+            for( int i = 0; i < segmentsNum; i++ ) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(size - start, 1L << SEGMENT_SHIFT);
+                mapped[i] = channel.map(MapMode.READ_ONLY, start, length);
+                mapped[i].order(ByteOrder.nativeOrder());
+            }
+
+            long[] times = new long[cacheRows];
+            for( int r = 0; r < cacheRows; r++ ) {
+                long position = HEADER_SIZE + (long) r * 8;
+                times[r] = mapped[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+            }
+
+            rows = cacheRows;
+            timestamps = times;
+            segments = mapped;
+            valuesPosition = HEADER_SIZE + (long) cacheRows * 8;
+            cacheRaf = raf;
+            isValid = true;
+            return true;
+        } finally {
+            if (!isValid) {
+                raf.close();
+            }
+        }
+    }
+}
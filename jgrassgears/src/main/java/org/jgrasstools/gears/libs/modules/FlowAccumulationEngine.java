@@ -0,0 +1,230 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.media.jai.iterator.RandomIter;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Engine for the quantities that are accumulated along the drainage directions.
+ *
+ * <p>The drainage topology is taken from a {@link FlowGraph}, which can be
+ * shared with other modules. The cells are addressed by their index
+ * <code>row * cols + col</code>.</p>
+ *
+ * <p>The accumulation visits every cell exactly once, in topological order: a cell
+ * is visited only after all its donors have been visited. Every worker starts from the
+ * sources of a band of rows and follows the drainage directions downstream. When a
+ * worker reaches a cell that still has donors to be visited, it stops there and the
+ * worker visiting the last donor goes on, so independent sub-basins are processed in
+ * parallel and the confluences are never processed twice.</p>
+ *
+ * <p>Cells that are part of a loop in the flow map, and the cells downstream of them,
+ * are never visited.</p>
+ *
+ * <p>Everything is kept in heap: the graph and the counters of the donors still to be
+ * visited take about 13 bytes per cell, the values of the visitors come on top.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class FlowAccumulationEngine {
+
+    /**
+     * The index used for cells that have no downstream cell.
+     */
+    public static final int NONE = FlowGraph.NONE;
+
+    /**
+     * The flow code used for novalues.
+     */
+    public static final int NOVALUE_FLOW = FlowGraph.NOVALUE_FLOW;
+
+    /**
+     * Visitor of the cells in topological order.
+     */
+    public static interface CellVisitor {
+        /**
+         * Visit a cell.
+         *
+         * <p>All the donors have already been visited when this is called. The visitor is
+         * called from many threads, but only once per cell.</p>
+         *
+         * @param index the index of the cell.
+         * @param donors the indexes of the donors of the cell.
+         * @param donorsNum the number of donors, i.e. of valid positions in <code>donors</code>.
+         * @throws Exception
+         */
+        public void visit( int index, int[] donors, int donorsNum ) throws Exception;
+    }
+
+    private final FlowGraph flowGraph;
+
+    /**
+     * Constructor.
+     *
+     * @param flowIter the iterator over the map of flow directions.
+     * @param cols the cols of the map.
+     * @param rows the rows of the map.
+     */
+    public FlowAccumulationEngine( RandomIter flowIter, int cols, int rows ) {
+        this(new FlowGraph(flowIter, cols, rows));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param flowGraph the drainage topology.
+     */
+    public FlowAccumulationEngine( FlowGraph flowGraph ) {
+        this.flowGraph = flowGraph;
+    }
+
+    /**
+     * @return the drainage topology.
+     */
+    public FlowGraph getFlowGraph() {
+        return flowGraph;
+    }
+
+    /**
+     * @return the cols of the map.
+     */
+    public int getCols() {
+        return flowGraph.getCols();
+    }
+
+    /**
+     * @return the rows of the map.
+     */
+    public int getRows() {
+        return flowGraph.getRows();
+    }
+
+    /**
+     * Get the flow code of a cell.
+     *
+     * @param index the index of the cell.
+     * @return the integer flow value or {@link #NOVALUE_FLOW}.
+     */
+    public int getFlow( int index ) {
+        return flowGraph.getFlow(index);
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return <code>true</code> if the cell has a valid flow value.
+     */
+    public boolean isValid( int index ) {
+        return flowGraph.isValid(index);
+    }
+
+    /**
+     * @param col the col of the cell.
+     * @param row the row of the cell.
+     * @return <code>true</code> if the cell is inside the map and has a valid flow value.
+     */
+    public boolean isValid( int col, int row ) {
+        return flowGraph.isValid(col, row);
+    }
+
+    /**
+     * Get the cell into which a cell drains.
+     *
+     * @param index the index of the cell.
+     * @return the index of the downstream cell or {@link #NONE} if the cell doesn't
+     *          drain into a valid cell of the map.
+     */
+    public int getDownstream( int index ) {
+        return flowGraph.getDownstream(index);
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return the number of cells draining into the cell.
+     */
+    public int getDonorsNum( int index ) {
+        return flowGraph.getDonorsNum(index);
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return <code>true</code> if the cell is valid and no cell drains into it.
+     */
+    public boolean isSource( int index ) {
+        return flowGraph.isSource(index);
+    }
+
+    /**
+     * Get the cells draining into a cell.
+     *
+     * @param index the index of the cell.
+     * @param donors the array to fill with the indexes of the donors (at least 8 positions).
+     * @return the number of donors.
+     */
+    public int getDonors( int index, int[] donors ) {
+        return flowGraph.getDonors(index, donors);
+    }
+
+    /**
+     * Visit all the valid cells in topological order.
+     *
+     * @param taskName the name of the task for the progress monitor.
+     * @param pm the progress monitor, can be <code>null</code>.
+     * @param visitor the visitor to call for every cell.
+     * @return <code>false</code> if the progress monitor has been canceled.
+     * @throws Exception the first exception thrown by the visitor.
+     */
+    public boolean accumulate( String taskName, IJGTProgressMonitor pm, final CellVisitor visitor ) throws Exception {
+        final int cols = flowGraph.getCols();
+        int rows = flowGraph.getRows();
+        final AtomicIntegerArray pendingDonors = new AtomicIntegerArray(cols * rows);
+        for( int i = 0; i < cols * rows; i++ ) {
+            int donorsNum = flowGraph.getDonorsNum(i);
+            if (donorsNum != 0) {
+                pendingDonors.set(i, donorsNum);
+            }
+        }
+        return JGTExecutor.forEachRowBand(rows, 0, taskName, pm, new JGTExecutor.RowsProcessor(){
+            public void process( int fromRow, int toRow ) throws Exception {
+                int[] donors = new int[8];
+                int toIndex = toRow * cols;
+                int index = fromRow * cols;
+                while( (index = flowGraph.nextSource(index)) != NONE && index < toIndex ) {
+                    int current = index++;
+                    while( true ) {
+                        int donorsNum = flowGraph.getDonors(current, donors);
+                        visitor.visit(current, donors, donorsNum);
+                        int next = flowGraph.getDownstream(current);
+                        /*
+                         * the last donor to be visited goes on downstream,
+                         * the atomic decrement also publishes the visited values
+                         */
+                        if (next == NONE || pendingDonors.decrementAndGet(next) != 0) {
+                            break;
+                        }
+                        current = next;
+                    }
+                }
+            }
+        });
+    }
+
+}
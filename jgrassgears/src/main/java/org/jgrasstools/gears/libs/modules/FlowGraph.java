@@ -0,0 +1,313 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import javax.media.jai.iterator.RandomIter;
+
+import org.jgrasstools.gears.utils.BitMatrix;
+
+/**
+ * The drainage topology of a map of flow directions.
+ *
+ * <p>The flow map is read once and kept as one byte per cell. The cells that drain
+ * into every cell (the donors) are kept in a compressed index and the sources and
+ * the cells in which the drainage ends are kept as bitmaps, so that the graph can be
+ * built once and shared by the modules that need to move downstream or upstream,
+ * instead of reading the neighbourhood of every cell through {@link FlowNode}s.</p>
+ *
+ * <p>The cells are addressed by their index <code>row * cols + col</code>. The
+ * traversal methods don't create objects and can be used from many threads.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class FlowGraph {
+
+    /**
+     * The index used for cells that don't exist, as the downstream cell of an outlet.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * The flow code used for novalues.
+     */
+    public static final int NOVALUE_FLOW = -1;
+
+    private static final int[] FLOW_COLS = new int[9];
+    private static final int[] FLOW_ROWS = new int[9];
+    static {
+        for( int flow = 1; flow <= 8; flow++ ) {
+            Direction direction = Direction.forFlow(flow);
+            FLOW_COLS[flow] = direction.col;
+            FLOW_ROWS[flow] = direction.row;
+        }
+    }
+
+    private final int cols;
+    private final int rows;
+    private final byte[] flows;
+    /*
+     * the donors of cell i are donors[donorsStart[i]] to donors[donorsStart[i + 1] - 1]
+     */
+    private final int[] donorsStart;
+    private final int[] donors;
+    private final BitMatrix sources;
+    private final BitMatrix outlets;
+
+    /**
+     * Constructor.
+     *
+     * @param flowIter the iterator over the map of flow directions.
+     * @param cols the cols of the map.
+     * @param rows the rows of the map.
+     */
+    public FlowGraph( RandomIter flowIter, int cols, int rows ) {
+        this.cols = cols;
+        this.rows = rows;
+        int cellsNum = cols * rows;
+        flows = new byte[cellsNum];
+        int index = 0;
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                double flow = flowIter.getSampleDouble(c, r, 0);
+                if (JGTConstants.isNovalue(flow)) {
+                    flows[index] = NOVALUE_FLOW;
+                } else {
+                    int code = (int) flow;
+                    flows[index] = (byte) (code >= 0 && code <= Byte.MAX_VALUE ? code : 0);
+                }
+                index++;
+            }
+        }
+
+        donorsStart = new int[cellsNum + 1];
+        outlets = new BitMatrix(cols, rows);
+        for( int i = 0; i < cellsNum; i++ ) {
+            if (flows[i] == NOVALUE_FLOW) {
+                continue;
+            }
+            int next = getDownstream(i);
+            if (next == NONE) {
+                outlets.mark(i);
+            } else {
+                donorsStart[next + 1]++;
+            }
+        }
+        for( int i = 0; i < cellsNum; i++ ) {
+            donorsStart[i + 1] += donorsStart[i];
+        }
+
+        // the donors of a cell are kept in the order of Direction#getOrderedDirs()
+        donors = new int[donorsStart[cellsNum]];
+        sources = new BitMatrix(cols, rows);
+        Direction[] orderedDirs = Direction.getOrderedDirs();
+        index = 0;
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                int position = donorsStart[index];
+                if (position == donorsStart[index + 1]) {
+                    if (flows[index] != NOVALUE_FLOW) {
+                        sources.mark(index);
+                    }
+                } else {
+                    for( Direction direction : orderedDirs ) {
+                        int donorCol = c + direction.col;
+                        int donorRow = r + direction.row;
+                        if (donorCol >= 0 && donorCol < cols && donorRow >= 0 && donorRow < rows) {
+                            int donorIndex = donorRow * cols + donorCol;
+                            if (getDownstream(donorIndex) == index) {
+                                donors[position++] = donorIndex;
+                            }
+                        }
+                    }
+                }
+                index++;
+            }
+        }
+    }
+
+    /**
+     * @return the cols of the map.
+     */
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * @return the rows of the map.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @param col the col of the cell.
+     * @param row the row of the cell.
+     * @return the index of the cell.
+     */
+    public int getIndex( int col, int row ) {
+        return row * cols + col;
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return the col of the cell.
+     */
+    public int getCol( int index ) {
+        return index % cols;
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return the row of the cell.
+     */
+    public int getRow( int index ) {
+        return index / cols;
+    }
+
+    /**
+     * Get the flow code of a cell.
+     *
+     * @param index the index of the cell.
+     * @return the integer flow value or {@link #NOVALUE_FLOW}.
+     */
+    public int getFlow( int index ) {
+        return flows[index];
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return <code>true</code> if the cell has a valid flow value.
+     */
+    public boolean isValid( int index ) {
+        return flows[index] != NOVALUE_FLOW;
+    }
+
+    /**
+     * @param col the col of the cell.
+     * @param row the row of the cell.
+     * @return <code>true</code> if the cell is inside the map and has a valid flow value.
+     */
+    public boolean isValid( int col, int row ) {
+        return col >= 0 && col < cols && row >= 0 && row < rows && flows[row * cols + col] != NOVALUE_FLOW;
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return <code>true</code> if the cell is marked as outlet in the flow map.
+     */
+    public boolean isMarkedAsOutlet( int index ) {
+        return flows[index] == (int) FlowNode.OUTLET;
+    }
+
+    /**
+     * Get the cell into which a cell drains.
+     *
+     * @param index the index of the cell.
+     * @return the index of the downstream cell or {@link #NONE} if the cell doesn't
+     *          drain into a valid cell of the map.
+     */
+    public int getDownstream( int index ) {
+        int flow = flows[index];
+        // only the 8 directions have a downstream cell, outlets and other values don't
+        if (flow < 1 || flow > 8) {
+            return NONE;
+        }
+        int nextCol = index % cols + FLOW_COLS[flow];
+        int nextRow = index / cols + FLOW_ROWS[flow];
+        if (nextCol < 0 || nextCol >= cols || nextRow < 0 || nextRow >= rows) {
+            return NONE;
+        }
+        int nextIndex = nextRow * cols + nextCol;
+        if (flows[nextIndex] == NOVALUE_FLOW) {
+            return NONE;
+        }
+        return nextIndex;
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return the number of cells draining into the cell.
+     */
+    public int getDonorsNum( int index ) {
+        return donorsStart[index + 1] - donorsStart[index];
+    }
+
+    /**
+     * Get one of the cells draining into a cell.
+     *
+     * @param index the index of the cell.
+     * @param i the position of the donor, from 0 to {@link #getDonorsNum(int)} - 1.
+     * @return the index of the donor.
+     */
+    public int getDonor( int index, int i ) {
+        return donors[donorsStart[index] + i];
+    }
+
+    /**
+     * Get the cells draining into a cell.
+     *
+     * <p>The donors are given in the order of {@link Direction#getOrderedDirs()}.</p>
+     *
+     * @param index the index of the cell.
+     * @param donors the array to fill with the indexes of the donors (at least 8 positions).
+     * @return the number of donors.
+     */
+    public int getDonors( int index, int[] donors ) {
+        int start = donorsStart[index];
+        int num = donorsStart[index + 1] - start;
+        System.arraycopy(this.donors, start, donors, 0, num);
+        return num;
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return <code>true</code> if the cell is valid and no cell drains into it.
+     */
+    public boolean isSource( int index ) {
+        return sources.isMarked(index);
+    }
+
+    /**
+     * @param index the index of the cell.
+     * @return <code>true</code> if the cell is valid and doesn't drain into a valid cell of the map.
+     */
+    public boolean isOutlet( int index ) {
+        return outlets.isMarked(index);
+    }
+
+    /**
+     * Get the first source starting from a given cell.
+     *
+     * @param fromIndex the index to start from (inclusive).
+     * @return the index of the source or {@link #NONE}.
+     */
+    public int nextSource( int fromIndex ) {
+        return sources.nextMarked(fromIndex);
+    }
+
+    /**
+     * Get the first outlet starting from a given cell.
+     *
+     * @param fromIndex the index to start from (inclusive).
+     * @return the index of the outlet or {@link #NONE}.
+     */
+    public int nextOutlet( int fromIndex ) {
+        return outlets.nextMarked(fromIndex);
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Precomputed horizon of every cell of an elevation raster for a set of azimuth sectors.
+ *
+ * <p>
+ * For every sector the tangent of the horizon elevation angle seen from the cells is
+ * calculated once. The shadow of a sun position then becomes a lookup (interpolated
+ * between the two nearest sectors) instead of a march along the sun rays over the
+ * whole raster, which is what {@link ModelsEngine#calculateFactor(int, int, double[], double[], double[], WritableRaster, double)}
+ * does for every sun position.
+ * </p>
+ * <p>
+ * The rays are traced along the same lines used by the shadow calculation, starting
+ * from the border towards the sun. The horizon of each point of a line is found through
+ * the upper convex hull of the previous points, so every sector costs a single pass
+ * over the raster.
+ * </p>
+ * <p>
+ * Directions are in raster space and follow the sun vectors of the modules: the azimuth
+ * is clockwise from the top of the raster (north), the x component of the sun vector
+ * grows with the columns and the y component with the rows.
+ * </p>
+ * <p>
+ * The horizon needs 4 bytes per cell and sector.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class HorizonAngles {
+
+    /**
+     * Tangent used for the cells that have no terrain between them and the raster border.
+     */
+    private static final float NO_HORIZON = -Float.MAX_VALUE;
+
+    private static final Map<Object, HorizonAngles> cache = new WeakHashMap<Object, HorizonAngles>();
+
+    private final int cols;
+    private final int rows;
+    private final double res;
+    private final int sectors;
+    private final float[][] horizons;
+
+    /**
+     * Get the horizon of a raster, reusing the one previously calculated for the same key.
+     *
+     * <p>The horizons are kept as long as the key is referenced, so that modules working on the
+     * same elevation coverage can share them.</p>
+     *
+     * @param key the key the horizon is cached for, usually the elevation coverage.
+     * @param demWR the elevation raster.
+     * @param res the resolution of the raster.
+     * @param sectors the number of azimuth sectors.
+     * @param threads the number of threads to use.
+     * @param pm the progress monitor.
+     * @return the horizon.
+     * @throws Exception
+     */
+    public static HorizonAngles getCached( Object key, Raster demWR, double res, int sectors, int threads,
+            IJGTProgressMonitor pm ) throws Exception {
+        synchronized (cache) {
+            HorizonAngles horizon = cache.get(key);
+            if (horizon != null && horizon.sectors == sectors && horizon.res == res && horizon.cols == demWR.getWidth()
+                    && horizon.rows == demWR.getHeight()) {
+                return horizon;
+            }
+        }
+        HorizonAngles horizon = new HorizonAngles(demWR, res, sectors, threads, pm);
+        synchronized (cache) {
+            cache.put(key, horizon);
+        }
+        return horizon;
+    }
+
+    /**
+     * Calculate the horizon of a raster.
+     *
+     * @param demWR the elevation raster.
+     * @param res the resolution of the raster.
+     * @param sectors the number of azimuth sectors.
+     * @param threads the number of threads to use.
+     * @param pm the progress monitor.
+     * @throws Exception
+     */
+    public HorizonAngles( Raster demWR, double res, int sectors, int threads, IJGTProgressMonitor pm ) throws Exception {
+        if (sectors < 1) {
+            throw new IllegalArgumentException("The number of sectors has to be positive: " + sectors);
+        }
+        this.cols = demWR.getWidth();
+        this.rows = demWR.getHeight();
+        this.res = res;
+        this.sectors = sectors;
+
+        final double[] elevations = demWR.getSamples(demWR.getMinX(), demWR.getMinY(), cols, rows, 0, new double[cols * rows]);
+        horizons = new float[sectors][];
+        JGTExecutor.forEachIndex(sectors, threads, "Calculating horizon", pm, new JGTExecutor.IndexProcessor(){
+            public void process( int sector ) throws Exception {
+                horizons[sector] = calculateSector(sector, elevations);
+            }
+        });
+    }
+
+    /**
+     * @return the number of azimuth sectors.
+     */
+    public int getSectors() {
+        return sectors;
+    }
+
+    /**
+     * Get the tangent of the horizon angle of a cell.
+     *
+     * @param col the column of the cell.
+     * @param row the row of the cell.
+     * @param azimuth the azimuth in radians, clockwise from north.
+     * @return the tangent of the horizon, interpolated between the nearest sectors.
+     */
+    public double getHorizonTangent( int col, int row, double azimuth ) {
+        double position = azimuth / (2.0 * Math.PI) * sectors;
+        position = position - Math.floor(position / sectors) * sectors;
+        int sector = (int) position;
+        if (sector >= sectors) {
+            sector = 0;
+        }
+        double weight = position - sector;
+        int index = row * cols + col;
+        double first = horizons[sector][index];
+        if (weight == 0) {
+            return first;
+        }
+        double second = horizons[(sector + 1) % sectors][index];
+        return first * (1.0 - weight) + second * weight;
+    }
+
+    /**
+     * Get the horizon elevation angle of a cell.
+     *
+     * @param col the column of the cell.
+     * @param row the row of the cell.
+     * @param azimuth the azimuth in radians, clockwise from north.
+     * @return the horizon angle in radians, negative if the horizon is below the cell.
+     */
+    public double getHorizonAngle( int col, int row, double azimuth ) {
+        return Math.atan(getHorizonTangent(col, row, azimuth));
+    }
+
+    /**
+     * Check if a cell is lit by the sun (shadows of the terrain only).
+     *
+     * @param col the column of the cell.
+     * @param row the row of the cell.
+     * @param sunVector the sun vector.
+     * @return <code>true</code> if the sun is above the horizon of the cell.
+     */
+    public boolean isLit( int col, int row, double[] sunVector ) {
+        double horizontal = Math.sqrt(sunVector[0] * sunVector[0] + sunVector[1] * sunVector[1]);
+        if (horizontal == 0) {
+            return sunVector[2] > 0;
+        }
+        double azimuth = getAzimuth(sunVector);
+        return getHorizonTangent(col, row, azimuth) * horizontal <= sunVector[2];
+    }
+
+    /**
+     * Calculate the shadow map of a sun position, the equivalent of
+     * {@link ModelsEngine#calculateFactor(int, int, double[], double[], double[], WritableRaster, double)}.
+     *
+     * @param sunVector the sun vector.
+     * @return the map with 1 for lit cells and 0 for cells in shadow.
+     */
+    public WritableRaster calculateFactor( double[] sunVector ) {
+        WritableRaster sOmbraWR = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, 1.0);
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                if (!isLit(c, r, sunVector)) {
+                    sOmbraWR.setSample(c, r, 0, 0.0);
+                }
+            }
+        }
+        return sOmbraWR;
+    }
+
+    /**
+     * @param sunVector the sun vector.
+     * @return the azimuth of the sun vector in radians, clockwise from north.
+     */
+    public static double getAzimuth( double[] sunVector ) {
+        double azimuth = Math.atan2(sunVector[0], -sunVector[1]);
+        if (azimuth < 0) {
+            azimuth = azimuth + 2.0 * Math.PI;
+        }
+        return azimuth;
+    }
+
+    /**
+     * Calculate the horizon tangents of a sector.
+     */
+    private float[] calculateSector( int sector, double[] elevations ) {
+        double azimuth = 2.0 * Math.PI * sector / sectors;
+        double sunX = Math.sin(azimuth);
+        double sunY = -Math.cos(azimuth);
+        double max = Math.max(Math.abs(sunX), Math.abs(sunY));
+        // step towards the sun, 1 cell along the main direction
+        double stepX = sunX / max;
+        double stepY = sunY / max;
+        double stepLength = res / max;
+
+        float[] horizon = new float[cols * rows];
+        Arrays.fill(horizon, Float.NaN);
+
+        int maxPoints = Math.max(cols, rows) + 1;
+        int[] lineCells = new int[maxPoints];
+        double[] lineZ = new double[maxPoints];
+        int[] hull = new int[maxPoints];
+
+        // the lines start from the borders towards the sun, as in the shadow calculation
+        int startCol = stepX > 0 ? cols - 1 : 0;
+        int startRow = stepY > 0 ? rows - 1 : 0;
+        for( int c = 0; c < cols; c++ ) {
+            traceLine(c, startRow, stepX, stepY, stepLength, elevations, horizon, lineCells, lineZ, hull);
+        }
+        for( int r = 0; r < rows; r++ ) {
+            traceLine(startCol, r, stepX, stepY, stepLength, elevations, horizon, lineCells, lineZ, hull);
+        }
+
+        // cells missed by the lines because of the rounding
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                int index = r * cols + c;
+                if (Float.isNaN(horizon[index])) {
+                    horizon[index] = traceCell(c, r, stepX, stepY, stepLength, elevations);
+                }
+            }
+        }
+        return horizon;
+    }
+
+    /**
+     * Trace a line going away from the sun and set the horizon of its cells.
+     */
+    private void traceLine( int col, int row, double stepX, double stepY, double stepLength, double[] elevations,
+            float[] horizon, int[] lineCells, double[] lineZ, int[] hull ) {
+        int points = 0;
+        int x = col;
+        int y = row;
+        while( x >= 0 && x < cols && y >= 0 && y < rows && points < lineCells.length ) {
+            int index = y * cols + x;
+            lineCells[points] = index;
+            lineZ[points] = elevations[index];
+            points++;
+            x = (int) Math.round(col - points * stepX);
+            y = (int) Math.round(row - points * stepY);
+        }
+
+        for( int k = 0; k < points; k++ ) {
+            double z = lineZ[k];
+            float tangent = NO_HORIZON;
+            if (k == 0) {
+                hull[k] = -1;
+            } else {
+                // walk the horizons of the previous points along the upper hull
+                int candidate = k - 1;
+                double slope = (lineZ[candidate] - z) / (k - candidate);
+                while( hull[candidate] >= 0 ) {
+                    int next = hull[candidate];
+                    double nextSlope = (lineZ[next] - z) / (k - next);
+                    if (nextSlope < slope) {
+                        break;
+                    }
+                    candidate = next;
+                    slope = nextSlope;
+                }
+                hull[k] = candidate;
+                tangent = (float) (slope / stepLength);
+            }
+            int index = lineCells[k];
+            if (Float.isNaN(horizon[index]) || horizon[index] < tangent) {
+                horizon[index] = tangent;
+            }
+        }
+    }
+
+    /**
+     * Trace the ray from a single cell towards the sun.
+     */
+    private float traceCell( int col, int row, double stepX, double stepY, double stepLength, double[] elevations ) {
+        double z = elevations[row * cols + col];
+        double maxSlope = Double.NEGATIVE_INFINITY;
+        for( int n = 1;; n++ ) {
+            int x = (int) Math.round(col + n * stepX);
+            int y = (int) Math.round(row + n * stepY);
+            if (x < 0 || x >= cols || y < 0 || y >= rows) {
+                break;
+            }
+            double slope = (elevations[y * cols + x] - z) / n;
+            if (slope > maxSlope) {
+                maxSlope = slope;
+            }
+        }
+        if (maxSlope == Double.NEGATIVE_INFINITY) {
+            return NO_HORIZON;
+        }
+        return (float) (maxSlope / stepLength);
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+/**
+ * Shared parallel executor for the modules.
+ *
+ * <p>All the work is run on a single JVM wide {@link ForkJoinPool}, sized through
+ * {@link JGTModel#getDefaultThreadsNum()}, instead of creating a new thread pool
+ * for every module run.</p>
+ *
+ * <p>The loops are split into units of work (single indexes, row bands, tiles or
+ * items of a list). The units are recursively split into halves, so that idle
+ * workers can steal the pending halves of the busy ones. If a maximum parallelism
+ * smaller than the pool is requested, that many workers pull the units one after
+ * the other instead.</p>
+ *
+ * <p>The workers only increment an atomic counter of the completed units, the
+ * {@link IJGTProgressMonitor} is updated only from the calling thread, which
+ * also checks it for cancelation while waiting. If the monitor is canceled or a
+ * unit fails, the units not yet started are skipped.</p>
+ *
+ * <p>Example usage:
+ * <pre>
+ * boolean done = JGTExecutor.forEachRowBand(rows, 0, "Processing...", pm, new JGTExecutor.RowsProcessor(){
+ *     public void process( int fromRow, int toRow ) throws Exception {
+ *         for( int r = fromRow; r &lt; toRow; r++ ) {
+ *             ...
+ *         }
+ *     }
+ * });
+ * </pre>
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class JGTExecutor {
+
+    /**
+     * Milliseconds between two progress updates of the monitor.
+     */
+    private static final long PROGRESS_INTERVAL = 200;
+
+    /**
+     * Number of row bands created per worker when the band size is not given.
+     */
+    private static final int BANDS_PER_WORKER = 4;
+
+    private static ForkJoinPool pool;
+
+    /**
+     * Processor of single indexes.
+     */
+    public static interface IndexProcessor {
+        /**
+         * @param index the index to process.
+         * @throws Exception
+         */
+        public void process( int index ) throws Exception;
+    }
+
+    /**
+     * Processor of bands of rows.
+     */
+    public static interface RowsProcessor {
+        /**
+         * @param fromRow the first row of the band.
+         * @param toRow the row after the last of the band.
+         * @throws Exception
+         */
+        public void process( int fromRow, int toRow ) throws Exception;
+    }
+
+    /**
+     * Processor of tiles.
+     */
+    public static interface TileProcessor {
+        /**
+         * @param fromCol the first column of the tile.
+         * @param fromRow the first row of the tile.
+         * @param toCol the column after the last of the tile.
+         * @param toRow the row after the last of the tile.
+         * @throws Exception
+         */
+        public void process( int fromCol, int fromRow, int toCol, int toRow ) throws Exception;
+    }
+
+    /**
+     * Processor of the items of a list.
+     */
+    public static interface ItemProcessor<T> {
+        /**
+         * @param item the item to process.
+         * @throws Exception
+         */
+        public void process( T item ) throws Exception;
+    }
+
+    private JGTExecutor() {
+    }
+
+    /**
+     * @return the shared pool, created at the first use.
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            ForkJoinWorkerThreadFactory factory = new ForkJoinWorkerThreadFactory(){
+                public ForkJoinWorkerThread newThread( ForkJoinPool forkJoinPool ) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                    thread.setName("jgt-executor-" + thread.getPoolIndex());
+                    return thread;
+                }
+            };
+            pool = new ForkJoinPool(JGTModel.getDefaultThreadsNum(), factory, null, false);
+        }
+        return pool;
+    }
+
+    /**
+     * @return the number of workers of the shared pool.
+     */
+    public static int getParallelism() {
+        return getPool().getParallelism();
+    }
+
+    /**
+     * Process the indexes from 0 to count - 1.
+     *
+     * @param count the number of indexes.
+     * @param parallelism the maximum number of indexes processed at the same time. If
+     *              smaller than 1, all the workers of the pool are used.
+     * @param taskName the name of the task for the progress monitor.
+     * @param pm the progress monitor, can be <code>null</code>.
+     * @param processor the processor.
+     * @return <code>false</code> if the progress monitor has been canceled.
+     * @throws Exception the first exception thrown by the processor.
+     */
+    public static boolean forEachIndex( int count, int parallelism, String taskName, IJGTProgressMonitor pm,
+            IndexProcessor processor ) throws Exception {
+        if (taskName == null) {
+            taskName = "Processing...";
+        }
+        if (pm != null) {
+            pm.beginTask(taskName, count);
+        }
+        if (count <= 0) {
+            if (pm != null) {
+                pm.done();
+            }
+            return true;
+        }
+
+        ForkJoinPool forkJoinPool = getPool();
+        Execution execution = new Execution(processor);
+        ForkJoinTask< ? > root;
+        if (parallelism < 1 || parallelism >= forkJoinPool.getParallelism()) {
+            root = new SplitTask(execution, 0, count);
+        } else {
+            root = new PullTask(execution, count, Math.min(parallelism, count));
+        }
+
+        long reported = 0;
+        Thread currentThread = Thread.currentThread();
+        if (currentThread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) currentThread).getPool() == forkJoinPool) {
+            // nested use, blocking would waste a worker, so join the work
+            root.invoke();
+        } else {
+            forkJoinPool.execute(root);
+            while( true ) {
+                try {
+                    root.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    reported = report(pm, execution, reported);
+                    if (pm != null && pm.isCanceled()) {
+                        execution.canceled.set(true);
+                    }
+                } catch (InterruptedException e) {
+                    execution.canceled.set(true);
+                    throw e;
+                }
+            }
+        }
+        report(pm, execution, reported);
+
+        Throwable error = execution.error.get();
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (pm != null) {
+            pm.done();
+        }
+        return !execution.canceled.get();
+    }
+
+    /**
+     * Process the rows of a raster in bands.
+     *
+     * @param rows the number of rows.
+     * @param bandRows the number of rows of each band. If smaller than 1, the rows are
+     *              split in a few bands per worker.
+     * @param taskName the name of the task for the progress monitor.
+     * @param pm the progress monitor, can be <code>null</code>.
+     * @param processor the processor.
+     * @return <code>false</code> if the progress monitor has been canceled.
+     * @throws Exception the first exception thrown by the processor.
+     */
+    public static boolean forEachRowBand( final int rows, int bandRows, String taskName, IJGTProgressMonitor pm,
+            final RowsProcessor processor ) throws Exception {
+        if (bandRows < 1) {
+            bandRows = Math.max(1, rows / (getParallelism() * BANDS_PER_WORKER));
+        }
+        final int band = bandRows;
+        int bandsNum = (rows + band - 1) / band;
+        return forEachIndex(bandsNum, 0, taskName, pm, new IndexProcessor(){
+            public void process( int index ) throws Exception {
+                int fromRow = index * band;
+                processor.process(fromRow, Math.min(rows, fromRow + band));
+            }
+        });
+    }
+
+    /**
+     * Process a raster in tiles.
+     *
+     * @param cols the number of columns.
+     * @param rows the number of rows.
+     * @param tileCols the number of columns of each tile.
+     * @param tileRows the number of rows of each tile.
+     * @param taskName the name of the task for the progress monitor.
+     * @param pm the progress monitor, can be <code>null</code>.
+     * @param processor the processor.
+     * @return <code>false</code> if the progress monitor has been canceled.
+     * @throws Exception the first exception thrown by the processor.
+     */
+    public static boolean forEachTile( final int cols, final int rows, final int tileCols, final int tileRows, String taskName,
+            IJGTProgressMonitor pm, final TileProcessor processor ) throws Exception {
+        if (tileCols < 1 || tileRows < 1) {
+            throw new IllegalArgumentException("The tile size needs to be positive.");
+        }
+        final int tilesX = (cols + tileCols - 1) / tileCols;
+        int tilesY = (rows + tileRows - 1) / tileRows;
+        return forEachIndex(tilesX * tilesY, 0, taskName, pm, new IndexProcessor(){
+            public void process( int index ) throws Exception {
+                int tileY = index / tilesX;
+                int fromCol = (index - tileY * tilesX) * tileCols;
+                int fromRow = tileY * tileRows;
+                processor.process(fromCol, fromRow, Math.min(cols, fromCol + tileCols), Math.min(rows, fromRow + tileRows));
+            }
+        });
+    }
+
+    /**
+     * Process the items of a list.
+     *
+     * @param items the items.
+     * @param parallelism the maximum number of items processed at the same time. If
+     *              smaller than 1, all the workers of the pool are used.
+     * @param taskName the name of the task for the progress monitor.
+     * @param pm the progress monitor, can be <code>null</code>.
+     * @param processor the processor.
+     * @return <code>false</code> if the progress monitor has been canceled.
+     * @throws Exception the first exception thrown by the processor.
+     */
+    public static <T> boolean forEach( final List<T> items, int parallelism, String taskName, IJGTProgressMonitor pm,
+            final ItemProcessor<T> processor ) throws Exception {
+        return forEachIndex(items.size(), parallelism, taskName, pm, new IndexProcessor(){
+            public void process( int index ) throws Exception {
+                processor.process(items.get(index));
+            }
+        });
+    }
+
+    private static long report( IJGTProgressMonitor pm, Execution execution, long reported ) {
+        long done = execution.done.get();
+        if (pm != null && done > reported) {
+            pm.worked((int) (done - reported));
+        }
+        return done;
+    }
+
+    /**
+     * The state shared by the tasks of a loop.
+     */
+    private static class Execution {
+        final IndexProcessor processor;
+        final AtomicLong done = new AtomicLong();
+        final AtomicBoolean canceled = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Execution( IndexProcessor processor ) {
+            this.processor = processor;
+        }
+
+        boolean isStopped() {
+            return canceled.get() || error.get() != null;
+        }
+
+        void execute( int index ) {
+            if (isStopped()) {
+                return;
+            }
+            try {
+                processor.process(index);
+                done.incrementAndGet();
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            }
+        }
+    }
+
+    /**
+     * Splits the range of indexes in halves until single indexes are reached.
+     */
+    private static class SplitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Execution execution;
+        private final int from;
+        private final int to;
+
+        SplitTask( Execution execution, int from, int to ) {
+            this.execution = execution;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                execution.execute(from);
+            } else if (!execution.isStopped()) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SplitTask(execution, from, middle), new SplitTask(execution, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Runs a limited number of workers that pull the indexes in order.
+     */
+    private static class PullTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Execution execution;
+        private final int count;
+        private final int workers;
+
+        PullTask( Execution execution, int count, int workers ) {
+            this.execution = execution;
+            this.count = count;
+            this.workers = workers;
+        }
+
+        @Override
+        protected void compute() {
+            final AtomicInteger next = new AtomicInteger();
+            RecursiveAction[] tasks = new RecursiveAction[workers];
+            for( int i = 0; i < workers; i++ ) {
+                tasks[i] = new RecursiveAction(){
+                    private static final long serialVersionUID = 1L;
+                    protected void compute() {
+                        int index;
+                        while( (index = next.getAndIncrement()) < count && !execution.isStopped() ) {
+                            execution.execute(index);
+                        }
+                    }
+                };
+            }
+            invokeAll(tasks);
+        }
+    }
+
+}
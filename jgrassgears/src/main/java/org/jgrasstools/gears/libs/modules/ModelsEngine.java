@@ -59,6 +59,7 @@ import org.geotools.geometry.Envelope2D;
 import org.jgrasstools.gears.i18n.GearsMessageHandler;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+import org.jgrasstools.gears.utils.BitMatrix;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
@@ -720,14 +721,17 @@ public class ModelsEngine {
         if (tcaGC != null)
             tcaIter = CoverageUtilities.getRandomIterator(tcaGC);
 
+        FlowGraph flowGraph = new FlowGraph(flowIter, cols, rows);
+
         /*
          * split nodes are points that create new numbering:
          * - first points upstream on net
          * - confluences
          * - supplied points
          */
-        List<FlowNode> splitNodes = new ArrayList<FlowNode>();
+        List<Integer> splitNodes = new ArrayList<Integer>();
         List<Boolean> splitNodesIsNetStart = new ArrayList<Boolean>();
+        BitMatrix splitNodesMatrix = new BitMatrix(cols, rows);
         // SUPPLIED POINTS
         if (pointsFC != null) {
             Envelope envelope = regionMap.toEnvelope();
@@ -741,18 +745,17 @@ public class ModelsEngine {
 
                     GridCoordinates2D gridCoordinate = gridGeometry.worldToGrid(new DirectPosition2D(pointCoordinate.x,
                             pointCoordinate.y));
-
-                    GridNode netNode = new GridNode(netIter, cols, rows, -1, -1, gridCoordinate.x, gridCoordinate.y);
-                    FlowNode flowNode = new FlowNode(flowIter, cols, rows, gridCoordinate.x, gridCoordinate.y);
-                    while( !netNode.isValid() ) {
-                        flowNode = flowNode.goDownstream();
-                        if (flowNode == null)
-                            break;
-                        netNode = new GridNode(netIter, cols, rows, -1, -1, flowNode.col, flowNode.row);
+                    if (gridCoordinate.x < 0 || gridCoordinate.x >= cols || gridCoordinate.y < 0 || gridCoordinate.y >= rows) {
+                        continue;
                     }
-                    if (flowNode != null) {
-                        splitNodes.add(flowNode);
+                    int index = flowGraph.getIndex(gridCoordinate.x, gridCoordinate.y);
+                    while( index != FlowGraph.NONE && isNovalue(getValue(netIter, flowGraph, index)) ) {
+                        index = flowGraph.getDownstream(index);
+                    }
+                    if (index != FlowGraph.NONE) {
+                        splitNodes.add(index);
                         splitNodesIsNetStart.add(false);
+                        splitNodesMatrix.mark(index);
                     }
                 }
             }
@@ -762,21 +765,19 @@ public class ModelsEngine {
         pm.beginTask("Find confluences...", rows);
         for( int r = 0; r < rows; r++ ) {
             for( int c = 0; c < cols; c++ ) {
-                GridNode netNode = new GridNode(netIter, cols, rows, -1, -1, c, r);
-                if (netNode.isValid()) {
-                    List<GridNode> validSurroundingNodes = netNode.getValidSurroundingNodes();
-                    FlowNode currentflowNode = new FlowNode(flowIter, cols, rows, c, r);
+                if (!isNovalue(netIter.getSampleDouble(c, r, 0))) {
+                    int index = flowGraph.getIndex(c, r);
                     int enteringCount = 0;
-                    for( GridNode gridNode : validSurroundingNodes ) {
-                        FlowNode tmpNode = new FlowNode(flowIter, cols, rows, gridNode.col, gridNode.row);
-                        List<FlowNode> enteringNodes = currentflowNode.getEnteringNodes();
-                        if (enteringNodes.contains(tmpNode)) {
+                    int donorsNum = flowGraph.getDonorsNum(index);
+                    for( int i = 0; i < donorsNum; i++ ) {
+                        if (!isNovalue(getValue(netIter, flowGraph, flowGraph.getDonor(index, i)))) {
                             enteringCount++;
                         }
                     }
                     if (enteringCount != 1) {
                         // starting (==0) + confluences (>1)
-                        splitNodes.add(currentflowNode);
+                        splitNodes.add(index);
+                        splitNodesMatrix.mark(index);
                         if (enteringCount == 0) {
                             splitNodesIsNetStart.add(true);
                         } else {
@@ -793,30 +794,30 @@ public class ModelsEngine {
         int channel = 1;
         pm.beginTask("Numbering network...", splitNodes.size());
         for( int i = 0; i < splitNodes.size(); i++ ) {
-            FlowNode splitNode = splitNodes.get(i);
+            int splitNode = splitNodes.get(i);
             boolean isNetStart = splitNodesIsNetStart.get(i);
 
             // we simply go down to the next split with one number
-            splitNode.setValueInMap(netnumIter, channel);
+            netnumIter.setSample(flowGraph.getCol(splitNode), flowGraph.getRow(splitNode), 0, channel);
 
             // if it is a net start, check the tca if it exists
             if (isNetStart) {
-                double netStartTca = splitNode.getValueFromMap(tcaIter);
+                double netStartTca = getValue(tcaIter, flowGraph, splitNode);
                 if (!isNovalue(netStartTca) && netStartTca > tcaThreshold) {
                     channel++;
                 }
             }
 
-            FlowNode nextNode = splitNode.goDownstream();
+            int nextNode = flowGraph.getDownstream(splitNode);
             double startTca = doubleNovalue;
-            if (nextNode != null)
-                startTca = nextNode.getValueFromMap(tcaIter);
-            while( nextNode != null && !splitNodes.contains(nextNode) ) {
-                nextNode.setValueInMap(netnumIter, channel);
-                nextNode = nextNode.goDownstream();
+            if (nextNode != FlowGraph.NONE)
+                startTca = getValue(tcaIter, flowGraph, nextNode);
+            while( nextNode != FlowGraph.NONE && !splitNodesMatrix.isMarked(nextNode) ) {
+                netnumIter.setSample(flowGraph.getCol(nextNode), flowGraph.getRow(nextNode), 0, channel);
+                nextNode = flowGraph.getDownstream(nextNode);
                 double endTca = doubleNovalue;
-                if (nextNode != null)
-                    endTca = nextNode.getValueFromMap(tcaIter);
+                if (nextNode != FlowGraph.NONE)
+                    endTca = getValue(tcaIter, flowGraph, nextNode);
                 if (!isNovalue(startTca) && !isNovalue(endTca)) {
                     double diffTca = endTca - startTca;
                     if (diffTca > tcaThreshold) {
@@ -832,6 +833,21 @@ public class ModelsEngine {
         return netnumWR;
     }
 
+    /**
+     * Read the value of a map in a cell of a {@link FlowGraph}.
+     *
+     * @param iter the map, can be <code>null</code>.
+     * @param flowGraph the graph.
+     * @param index the index of the cell.
+     * @return the value or novalue if there is no map.
+     */
+    private static double getValue( RandomIter iter, FlowGraph flowGraph, int index ) {
+        if (iter == null) {
+            return doubleNovalue;
+        }
+        return iter.getSampleDouble(flowGraph.getCol(index), flowGraph.getRow(index), 0);
+    }
+
     /**
      * Extract the subbasins of a raster map.
      *
@@ -1109,7 +1125,8 @@ public class ModelsEngine {
     /**
      * Calculates the sum of the values of a specified quantity from every point to the outlet.
      *
-     * <p>During the calculation the drainage directions are followed.</p>
+     * <p>During the calculation the drainage directions are followed. The values are
+     * accumulated in a single topological pass through the {@link FlowAccumulationEngine}.</p>
      *
      * @param flowIter the map of flowdirections.
      * @param mapToSumIter the map for which to sum downstream.
@@ -1118,14 +1135,11 @@ public class ModelsEngine {
      * @param upperThreshold the upper threshold, values above that are excluded.
      * @param lowerThreshold the lower threshold, values below that are excluded.
      * @param pm the monitor.
-     * @return The map of downstream summed values.
+     * @return The map of downstream summed values or <code>null</code> if the monitor has been canceled.
+     * @throws Exception
      */
     public static WritableRaster sumDownstream( RandomIter flowIter, RandomIter mapToSumIter, int width, int height,
-            Double upperThreshold, Double lowerThreshold, IJGTProgressMonitor pm ) {
-        final int[] point = new int[2];
-        WritableRaster summedMapWR = CoverageUtilities.createDoubleWritableRaster(width, height, null, null, null);
-        WritableRandomIter summedMapIter = RandomIterFactory.createWritable(summedMapWR, null);
-
+            Double upperThreshold, Double lowerThreshold, IJGTProgressMonitor pm ) throws Exception {
         double uThres = Double.POSITIVE_INFINITY;
         if (upperThreshold != null) {
             uThres = upperThreshold;
@@ -1135,41 +1149,54 @@ public class ModelsEngine {
             lThres = lowerThreshold;
         }
 
-        pm.beginTask("Calculating downstream sum...", height);
+        FlowAccumulationEngine engine = new FlowAccumulationEngine(flowIter, width, height);
+
+        /*
+         * every cell starts with its own value, novalue if it is
+         * excluded, and receives the sums of the donors that are not excluded
+         */
+        final double[] summed = new double[width * height];
+        int index = 0;
         for( int r = 0; r < height; r++ ) {
             for( int c = 0; c < width; c++ ) {
                 double mapToSumValue = mapToSumIter.getSampleDouble(c, r, 0);
-                if (!isNovalue(flowIter.getSampleDouble(c, r, 0)) && //
-                        mapToSumValue < uThres && //
-                        mapToSumValue > lThres //
-                ) {
-                    point[0] = c;
-                    point[1] = r;
-                    while( flowIter.getSampleDouble(point[0], point[1], 0) < 9
-                            && //
-                            !isNovalue(flowIter.getSampleDouble(point[0], point[1], 0))
-                            && (checkRange(mapToSumIter.getSampleDouble(point[0], point[1], 0), uThres, lThres)) ) {
-
-                        double sumValue = summedMapIter.getSampleDouble(point[0], point[1], 0)
-                                + mapToSumIter.getSampleDouble(c, r, 0);
-
-                        summedMapIter.setSample(point[0], point[1], 0, sumValue);
-
-                        if (!go_downstream(point, flowIter.getSampleDouble(point[0], point[1], 0)))
-                            return null;
-                    }
-
-                    double sumValue = summedMapIter.getSampleDouble(point[0], point[1], 0)
-                            + mapToSumIter.getSampleDouble(c, r, 0);
-                    summedMapIter.setSample(point[0], point[1], 0, sumValue);
+                if (engine.isValid(index) && checkRange(mapToSumValue, uThres, lThres)) {
+                    summed[index] = mapToSumValue;
                 } else {
-                    summedMapIter.setSample(c, r, 0, doubleNovalue);
+                    summed[index] = doubleNovalue;
                 }
+                index++;
             }
-            pm.worked(1);
         }
-        pm.done();
 
+        boolean isDone = engine.accumulate("Calculating downstream sum...", pm, new FlowAccumulationEngine.CellVisitor(){
+            public void visit( int index, int[] donors, int donorsNum ) {
+                double sumValue = summed[index];
+                if (isNovalue(sumValue)) {
+                    return;
+                }
+                for( int i = 0; i < donorsNum; i++ ) {
+                    double donorValue = summed[donors[i]];
+                    if (!isNovalue(donorValue)) {
+                        sumValue += donorValue;
+                    }
+                }
+                summed[index] = sumValue;
+            }
+        });
+        if (!isDone) {
+            return null;
+        }
+
+        WritableRaster summedMapWR = CoverageUtilities.createDoubleWritableRaster(width, height, null, null, null);
+        WritableRandomIter summedMapIter = RandomIterFactory.createWritable(summedMapWR, null);
+        index = 0;
+        for( int r = 0; r < height; r++ ) {
+            for( int c = 0; c < width; c++ ) {
+                summedMapIter.setSample(c, r, 0, summed[index++]);
+            }
+        }
+        summedMapIter.done();
         return summedMapWR;
     }
 
@@ -1481,13 +1508,26 @@ public class ModelsEngine {
      */
     public static void topologicalOutletdistance( RandomIter flowIter, RandomIter pitIter, WritableRandomIter distanceToOutIter,
             RegionMap region, IJGTProgressMonitor pm ) {
+        FlowGraph flowGraph = new FlowGraph(flowIter, region.getCols(), region.getRows());
+        topologicalOutletdistance(flowGraph, pitIter, distanceToOutIter, region, pm);
+    }
+
+    /**
+     * Calculates the distance of every pixel of the basin from the outlet (in meter),
+     * calculated along the drainage directions
+     *
+     * @param flowGraph the drainage topology of the flow map.
+     * @param pitIter the pit map (if available distance is calculated in 3d).
+     * @param distanceToOutIter the resulting outlet distance map.
+     * @param region the region parameters.
+     * @param pm the monitor.
+     */
+    public static void topologicalOutletdistance( FlowGraph flowGraph, RandomIter pitIter, WritableRandomIter distanceToOutIter,
+            RegionMap region, IJGTProgressMonitor pm ) {
         int activeCols = region.getCols();
         int activeRows = region.getRows();
         double dx = region.getXres();
         double dy = region.getYres();
-        int[] flow = new int[2];
-        int[] flow_p = new int[2];
-        double oldir = 0.0;
         double[] grid = new double[11];
         double count = 0.0;
 
@@ -1497,87 +1537,43 @@ public class ModelsEngine {
         grid[2] = grid[4] = grid[6] = grid[8] = sqrt(dx * dx + dy * dy);
 
         pm.beginTask("Calculating topological outlet distance...", activeRows);
+        int index = 0;
         for( int r = 0; r < activeRows; r++ ) {
-            for( int c = 0; c < activeCols; c++ ) {
-                flow[0] = c;
-                flow[1] = r;
-                if (isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))) {
-                    distanceToOutIter.setSample(flow[0], flow[1], 0, doubleNovalue);
-                } else {
-                    if (isSourcePixel(flowIter, flow[0], flow[1])) {
-                        count = 0;
-                        oldir = flowIter.getSampleDouble(flow[0], flow[1], 0);
-                        flow_p[0] = flow[0];
-                        flow_p[1] = flow[1];
-                        go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        while( !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                                && !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                                && flowIter.getSampleDouble(flow[0], flow[1], 0) != 10.0
-                                && distanceToOutIter.getSampleDouble(flow[0], flow[1], 0) <= 0 ) {
-
-                            if (pitIter != null) {
-                                double dz = pitIter.getSampleDouble(flow_p[0], flow_p[1], 0)
-                                        - pitIter.getSampleDouble(flow[0], flow[1], 0);
-                                count += sqrt(pow(grid[(int) oldir], 2) + pow(dz, 2));
-                            } else {
-                                count += grid[(int) oldir];
-                            }
-                            oldir = flowIter.getSampleDouble(flow[0], flow[1], 0);
-                            flow_p[0] = flow[0];
-                            flow_p[1] = flow[1];
-                            go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        }
-                        if (distanceToOutIter.getSampleDouble(flow[0], flow[1], 0) > 0) {
-                            if (pitIter != null) {
-                                double dz = pitIter.getSampleDouble(flow_p[0], flow_p[1], 0)
-                                        - pitIter.getSampleDouble(flow[0], flow[1], 0);
-                                count += sqrt(pow(grid[(int) oldir], 2) + pow(dz, 2))
-                                        + distanceToOutIter.getSampleDouble(flow[0], flow[1], 0);
-                            } else {
-                                count += grid[(int) oldir] + distanceToOutIter.getSampleDouble(flow[0], flow[1], 0);
-                            }
+            for( int c = 0; c < activeCols; c++, index++ ) {
+                if (!flowGraph.isValid(index)) {
+                    distanceToOutIter.setSample(c, r, 0, doubleNovalue);
+                } else if (isDistanceSource(flowGraph, index)) {
+                    count = 0;
+                    int previous = index;
+                    int current = flowGraph.getDownstream(index);
+                    while( isDistanceToCalculate(flowGraph, current, distanceToOutIter) ) {
+                        count += getDistance(flowGraph, previous, current, pitIter, grid);
+                        previous = current;
+                        current = flowGraph.getDownstream(current);
+                    }
+                    if (current != FlowGraph.NONE) {
+                        double currentDistance = getValue(distanceToOutIter, flowGraph, current);
+                        if (currentDistance > 0) {
+                            count += getDistance(flowGraph, previous, current, pitIter, grid) + currentDistance;
                             distanceToOutIter.setSample(c, r, 0, count);
-                        } else if (flowIter.getSampleDouble(flow[0], flow[1], 0) > 9) {
-                            distanceToOutIter.setSample(flow[0], flow[1], 0, 0);
-
-                            if (pitIter != null) {
-                                double dz = pitIter.getSampleDouble(flow_p[0], flow_p[1], 0)
-                                        - pitIter.getSampleDouble(flow[0], flow[1], 0);
-                                count += sqrt(pow(grid[(int) oldir], 2) + pow(dz, 2));
-                            } else {
-                                count += grid[(int) oldir];
-                            }
+                        } else if (flowGraph.getFlow(current) > 9) {
+                            distanceToOutIter.setSample(flowGraph.getCol(current), flowGraph.getRow(current), 0, 0);
+                            count += getDistance(flowGraph, previous, current, pitIter, grid);
                             distanceToOutIter.setSample(c, r, 0, count);
                         }
+                    }
 
-                        flow[0] = c;
-                        flow[1] = r;
-                        oldir = flowIter.getSampleDouble(flow[0], flow[1], 0);
-                        flow_p[0] = flow[0];
-                        flow_p[1] = flow[1];
-                        go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        while( !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                                && !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                                && flowIter.getSampleDouble(flow[0], flow[1], 0) != 10.0
-                                && distanceToOutIter.getSampleDouble(flow[0], flow[1], 0) <= 0 ) {
-                            if (pitIter != null) {
-                                double dz = pitIter.getSampleDouble(flow_p[0], flow_p[1], 0)
-                                        - pitIter.getSampleDouble(flow[0], flow[1], 0);
-                                count -= sqrt(pow(grid[(int) oldir], 2) + pow(dz, 2));
-                            } else {
-                                count -= grid[(int) oldir];
-                            }
-                            if (count < 0) {
-                                distanceToOutIter.setSample(flow[0], flow[1], 0, 0);
-                            } else {
-                                distanceToOutIter.setSample(flow[0], flow[1], 0, count);
-                            }
-                            oldir = flowIter.getSampleDouble(flow[0], flow[1], 0);
-                            flow_p[0] = flow[0];
-                            flow_p[1] = flow[1];
-
-                            go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
+                    previous = index;
+                    current = flowGraph.getDownstream(index);
+                    while( isDistanceToCalculate(flowGraph, current, distanceToOutIter) ) {
+                        count -= getDistance(flowGraph, previous, current, pitIter, grid);
+                        if (count < 0) {
+                            distanceToOutIter.setSample(flowGraph.getCol(current), flowGraph.getRow(current), 0, 0);
+                        } else {
+                            distanceToOutIter.setSample(flowGraph.getCol(current), flowGraph.getRow(current), 0, count);
                         }
+                        previous = current;
+                        current = flowGraph.getDownstream(current);
                     }
                 }
             }
@@ -1597,49 +1593,53 @@ public class ModelsEngine {
      */
     public static void outletdistance( RandomIter flowIter, WritableRandomIter distanceToOutIter, RegionMap region,
             IJGTProgressMonitor pm ) {
-        int cols = region.getCols();
-        int rows = region.getRows();
-        int[] flow = new int[2];
+        FlowGraph flowGraph = new FlowGraph(flowIter, region.getCols(), region.getRows());
+        outletdistance(flowGraph, distanceToOutIter, pm);
+    }
+
+    /**
+     * Calculates the distance of every pixel of the basin from the outlet (in map units),
+     * calculated along the drainage directions
+     *
+     * @param flowGraph the drainage topology of the flow map.
+     * @param distanceToOutIter the resulting outlet distance map.
+     * @param pm the monitor.
+     */
+    public static void outletdistance( FlowGraph flowGraph, WritableRandomIter distanceToOutIter, IJGTProgressMonitor pm ) {
+        int cols = flowGraph.getCols();
+        int rows = flowGraph.getRows();
         double count = 0.0;
 
         pm.beginTask("Calculating outlet distance...", rows);
+        int index = 0;
         for( int r = 0; r < rows; r++ ) {
-            for( int c = 0; c < cols; c++ ) {
-                flow[0] = c;
-                flow[1] = r;
-                if (isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))) {
-                    distanceToOutIter.setSample(flow[0], flow[1], 0, doubleNovalue);
-                } else {
-                    flow[0] = c;
-                    flow[1] = r;
-                    if (isSourcePixel(flowIter, flow[0], flow[1])) {
-                        count = 0;
-                        go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        while( !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                                && flowIter.getSampleDouble(flow[0], flow[1], 0) != 10.0
-                                && distanceToOutIter.getSampleDouble(flow[0], flow[1], 0) <= 0 ) {
-                            count += 1;
-                            go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        }
-                        if (distanceToOutIter.getSampleDouble(flow[0], flow[1], 0) > 0) {
-                            count += 1 + distanceToOutIter.getSampleDouble(flow[0], flow[1], 0);
+            for( int c = 0; c < cols; c++, index++ ) {
+                if (!flowGraph.isValid(index)) {
+                    distanceToOutIter.setSample(c, r, 0, doubleNovalue);
+                } else if (isDistanceSource(flowGraph, index)) {
+                    count = 0;
+                    int current = flowGraph.getDownstream(index);
+                    while( isDistanceToCalculate(flowGraph, current, distanceToOutIter) ) {
+                        count += 1;
+                        current = flowGraph.getDownstream(current);
+                    }
+                    if (current != FlowGraph.NONE) {
+                        double currentDistance = getValue(distanceToOutIter, flowGraph, current);
+                        if (currentDistance > 0) {
+                            count += 1 + currentDistance;
                             distanceToOutIter.setSample(c, r, 0, count);
-                        } else if (flowIter.getSampleDouble(flow[0], flow[1], 0) > 9) {
-                            distanceToOutIter.setSample(flow[0], flow[1], 0, 0);
+                        } else if (flowGraph.getFlow(current) > 9) {
+                            distanceToOutIter.setSample(flowGraph.getCol(current), flowGraph.getRow(current), 0, 0);
                             count += 1;
                             distanceToOutIter.setSample(c, r, 0, count);
                         }
+                    }
 
-                        flow[0] = c;
-                        flow[1] = r;
-                        go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        while( !isNovalue(flowIter.getSampleDouble(flow[0], flow[1], 0))
-                                && flowIter.getSampleDouble(flow[0], flow[1], 0) != 10.0
-                                && distanceToOutIter.getSampleDouble(flow[0], flow[1], 0) <= 0 ) {
-                            count -= 1;
-                            distanceToOutIter.setSample(flow[0], flow[1], 0, count);
-                            go_downstream(flow, flowIter.getSampleDouble(flow[0], flow[1], 0));
-                        }
+                    current = flowGraph.getDownstream(index);
+                    while( isDistanceToCalculate(flowGraph, current, distanceToOutIter) ) {
+                        count -= 1;
+                        distanceToOutIter.setSample(flowGraph.getCol(current), flowGraph.getRow(current), 0, count);
+                        current = flowGraph.getDownstream(current);
                     }
                 }
             }
@@ -1648,6 +1648,34 @@ public class ModelsEngine {
         pm.done();
     }
 
+    /**
+     * Checks if a cell is the start of a path to the outlet.
+     */
+    private static boolean isDistanceSource( FlowGraph flowGraph, int index ) {
+        int flow = flowGraph.getFlow(index);
+        return flow > 0 && flow < 9 && flowGraph.isSource(index);
+    }
+
+    /**
+     * Checks if the distance of a cell on a path still has to be calculated.
+     */
+    private static boolean isDistanceToCalculate( FlowGraph flowGraph, int index, RandomIter distanceToOutIter ) {
+        return index != FlowGraph.NONE && !flowGraph.isMarkedAsOutlet(index)
+                && getValue(distanceToOutIter, flowGraph, index) <= 0;
+    }
+
+    /**
+     * The (3d if the pit map is available) distance between two consecutive cells of a path.
+     */
+    private static double getDistance( FlowGraph flowGraph, int from, int to, RandomIter pitIter, double[] grid ) {
+        double distance = grid[flowGraph.getFlow(from)];
+        if (pitIter == null) {
+            return distance;
+        }
+        double dz = getValue(pitIter, flowGraph, from) - getValue(pitIter, flowGraph, to);
+        return sqrt(pow(distance, 2) + pow(dz, 2));
+    }
+
     /**
      * Approximate a value to a multiple of a divisor value.
      *
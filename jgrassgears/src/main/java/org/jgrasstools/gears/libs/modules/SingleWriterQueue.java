@@ -0,0 +1,218 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.libs.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded queue through which many producer threads feed a single writer thread.
+ *
+ * <p>
+ * Meant for resources that allow only one writer, as a sqlite database. The writer takes
+ * the items in batches of up to the given size, without waiting for a batch to be full,
+ * and passes them to an {@link ItemsWriter}. The producers wait when the queue is full.
+ * </p>
+ *
+ * <p>
+ * If the writer fails, the following items are discarded and the error is thrown
+ * to the producers by the next {@link #add(Object)}, {@link #flush()} or {@link #close()}.
+ * </p>
+ *
+ * @param <T> the type of the items.
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SingleWriterQueue<T> implements AutoCloseable {
+
+    /**
+     * The writer of the items, only called by the writer thread.
+     */
+    public static interface ItemsWriter<T> {
+        /**
+         * @param items the batch of items to write, not to be kept after the call.
+         * @throws Exception
+         */
+        public void write( List<T> items ) throws Exception;
+
+        /**
+         * Make the written items durable, called on {@link SingleWriterQueue#flush()}
+         * and {@link SingleWriterQueue#close()}.
+         *
+         * @throws Exception
+         */
+        public void commit() throws Exception;
+    }
+
+    private static final Object END = new Object();
+    private static final Object FLUSH = new Object();
+
+    private final ItemsWriter<T> itemsWriter;
+    private final int batchSize;
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+
+    private final Object lock = new Object();
+    private long flushRequests = 0;
+    private long flushes = 0;
+    private long writtenCount = 0;
+    private volatile Exception error;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Create the queue and start its writer thread.
+     *
+     * @param name the name of the writer thread.
+     * @param capacity the max number of items waiting to be written.
+     * @param batchSize the max number of items passed to a single write.
+     * @param itemsWriter the writer of the items.
+     */
+    public SingleWriterQueue( String name, int capacity, int batchSize, ItemsWriter<T> itemsWriter ) {
+        this.itemsWriter = itemsWriter;
+        this.batchSize = batchSize;
+        queue = new ArrayBlockingQueue<Object>(capacity);
+        writer = new Thread(new Runnable(){
+            public void run() {
+                write();
+            }
+        }, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Add an item, waiting if the queue is full.
+     *
+     * @param item the item to write.
+     * @throws Exception if the writer failed.
+     */
+    public void add( T item ) throws Exception {
+        checkError();
+        if (isClosed) {
+            throw new IllegalStateException("The queue has been closed.");
+        }
+        queue.put(item);
+    }
+
+    /**
+     * Wait for all the items added so far to be written and committed.
+     *
+     * <p>Until the next {@link #add(Object)} the writer is idle.</p>
+     *
+     * @throws Exception if the writer failed.
+     */
+    public void flush() throws Exception {
+        if (isClosed) {
+            throw new IllegalStateException("The queue has been closed.");
+        }
+        long target;
+        synchronized (lock) {
+            flushRequests++;
+            target = flushRequests;
+        }
+        queue.put(FLUSH);
+        synchronized (lock) {
+            while( flushes < target && writer.isAlive() ) {
+                lock.wait(100);
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * @return the number of items written so far.
+     */
+    public long getWrittenCount() {
+        synchronized (lock) {
+            return writtenCount;
+        }
+    }
+
+    /**
+     * Write and commit the remaining items and stop the writer.
+     *
+     * @throws Exception if the writer failed.
+     */
+    public void close() throws Exception {
+        if (!isClosed) {
+            isClosed = true;
+            queue.put(END);
+            writer.join();
+        }
+        checkError();
+    }
+
+    private void checkError() throws Exception {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write() {
+        List<T> batch = new ArrayList<T>(batchSize);
+        boolean isEnd = false;
+        while( !isEnd ) {
+            Object marker = null;
+            try {
+                Object next = queue.take();
+                while( true ) {
+                    if (next == END || next == FLUSH) {
+                        marker = next;
+                        break;
+                    }
+                    batch.add((T) next);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    next = queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                }
+                isEnd = marker == END;
+                // after an error the queue is still drained, so that the producers are not blocked
+                if (error == null) {
+                    if (batch.size() > 0) {
+                        itemsWriter.write(batch);
+                        synchronized (lock) {
+                            writtenCount = writtenCount + batch.size();
+                        }
+                    }
+                    if (marker != null) {
+                        itemsWriter.commit();
+                    }
+                }
+            } catch (Exception e) {
+                if (error == null) {
+                    error = e;
+                }
+            } finally {
+                batch.clear();
+                if (marker == FLUSH) {
+                    synchronized (lock) {
+                        flushes++;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -18,45 +18,134 @@
 package org.jgrasstools.gears.libs.modules;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 
 /**
  * Multithreading util class.
  * 
+ * <p>The runnables are executed on the shared pool of {@link JGTExecutor}, with
+ * at most the requested number of them running at the same time. Since they may
+ * block on I/O or locks, every runnable is run as a {@link ForkJoinPool.ManagedBlocker},
+ * so that the pool starts spare threads to keep its parallelism for the other
+ * tasks. The number of threads is therefore not capped by the parallelism of the
+ * pool, but only by its limit of spare threads. The work notified through
+ * {@link #worked(int)} is collected without locking and passed to the progress
+ * monitor from the thread that submits the runnables and waits for them, which
+ * can be a worker of the pool too.</p>
+ * 
+ * <p>For loops over rows, tiles or lists the methods of {@link JGTExecutor} should
+ * be preferred.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 public class ThreadedRunnable<E> {
 
-    private ExecutorService fixedThreadPool;
+    private static final long WAIT_INTERVAL = 200;
+
+    private final int numThreads;
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong unfinished = new AtomicLong();
+    private final AtomicLong workDone = new AtomicLong();
+    private final Object finishLock = new Object();
+    private long workReported = 0;
     private ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<E>();
     private IJGTProgressMonitor pm;
 
     public ThreadedRunnable( int numThreads, IJGTProgressMonitor pm ) {
         this.pm = pm;
-        fixedThreadPool = Executors.newFixedThreadPool(numThreads);
+        this.numThreads = Math.max(1, numThreads);
     }
 
     public void executeRunnable( Runnable runner ) {
-        fixedThreadPool.execute(runner);
+        unfinished.incrementAndGet();
+        pending.add(runner);
+        startWorker();
+        reportWork();
+    }
+
+    private void startWorker() {
+        while( true ) {
+            int active = activeWorkers.get();
+            if (active >= numThreads || pending.isEmpty()) {
+                return;
+            }
+            if (activeWorkers.compareAndSet(active, active + 1)) {
+                JGTExecutor.getPool().execute(new Runnable(){
+                    public void run() {
+                        drain();
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable runner;
+            while( (runner = pending.poll()) != null ) {
+                try {
+                    runBlocking(runner);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                } finally {
+                    if (unfinished.decrementAndGet() == 0) {
+                        synchronized (finishLock) {
+                            finishLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } finally {
+            activeWorkers.decrementAndGet();
+        }
+        // a runnable could have been added after the last poll
+        startWorker();
+    }
+
+    private static void runBlocking( Runnable runner ) {
+        RunnableBlocker blocker = new RunnableBlocker(runner);
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!blocker.isReleasable()) {
+            runner.run();
+        }
     }
 
     public void waitAndClose() {
         try {
-            fixedThreadPool.shutdown();
-            fixedThreadPool.awaitTermination(30, TimeUnit.DAYS);
-            fixedThreadPool.shutdownNow();
+            // the waiting thread can be a worker of the pool
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker(){
+                public boolean isReleasable() {
+                    return unfinished.get() == 0;
+                }
+
+                public boolean block() throws InterruptedException {
+                    synchronized (finishLock) {
+                        while( unfinished.get() > 0 ) {
+                            finishLock.wait(WAIT_INTERVAL);
+                            reportWork();
+                        }
+                    }
+                    return true;
+                }
+            });
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        reportWork();
         if (pm != null) {
             pm.done();
         }
     }
-
     public void addToQueue( E item ) {
         queue.add(item);
     }
@@ -74,8 +163,39 @@ public class ThreadedRunnable<E> {
         }
     }
 
-    public synchronized void worked( int process ) {
-        if (pm != null)
-            pm.worked(process);
+    public void worked( int process ) {
+        workDone.addAndGet(process);
+    }
+
+    /**
+     * Runs a runnable that may block as a managed blocker.
+     */
+    private static class RunnableBlocker implements ForkJoinPool.ManagedBlocker {
+        private final Runnable runner;
+        private volatile boolean isDone = false;
+
+        RunnableBlocker( Runnable runner ) {
+            this.runner = runner;
+        }
+
+        public boolean block() {
+            runner.run();
+            isDone = true;
+            return true;
+        }
+
+        public boolean isReleasable() {
+            return isDone;
+        }
+    }
+
+    private void reportWork() {
+        if (pm != null) {
+            long done = workDone.get();
+            if (done > workReported) {
+                pm.worked((int) (done - workReported));
+                workReported = done;
+            }
+        }
     }
 }
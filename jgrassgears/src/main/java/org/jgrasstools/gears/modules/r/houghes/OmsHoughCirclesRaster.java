@@ -47,6 +47,7 @@ import org.jgrasstools.gears.io.vectorwriter.OmsVectorWriter;
 import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
@@ -242,34 +243,36 @@ public class OmsHoughCirclesRaster extends JGTModel {
         return i;
     }
 
-    private double[][][] houghTransform() {
-        int lutSize = buildLookUpTable();
-        double[][][] houghValues = new double[width][height][depth];
-        int k = width - 1;
-        int l = height - 1;
-
-        pm.beginTask("Hough transform...", l);
-        for( int y = 1; y < l; y++ ) {
-            if (pm.isCanceled()) {
-                throw new ModelsRuntimeException("Module interrupted.", this);
-            }
-            for( int x = 1; x < k; x++ ) {
-                for( int radius = radiusMinPixel; radius <= radiusMaxPixel; radius = radius + radiusIncPixel ) {
-                    if (imageValues[(x + offx) + (y + offy) * offset] != 0) {// Edge pixel found
-                        int indexR = (radius - radiusMinPixel) / radiusIncPixel;
-                        for( int i = 0; i < lutSize; i++ ) {
-                            int a = x + lut[1][i][indexR];
-                            int b = y + lut[0][i][indexR];
-                            if ((b >= 0) & (b < height) & (a >= 0) & (a < width)) {
-                                houghValues[a][b][indexR] += 1;
+    private double[][][] houghTransform() throws Exception {
+        final int lutSize = buildLookUpTable();
+        final double[][][] houghValues = new double[width][height][depth];
+        final int k = width - 1;
+        final int l = height - 1;
+
+        /*
+         * each radius only writes its own slice of the hough space, 
+         * so the radii are processed in parallel.
+         */
+        boolean isDone = JGTExecutor.forEachIndex(depth, 0, "Hough transform...", pm, new JGTExecutor.IndexProcessor(){
+            public void process( int indexR ) {
+                for( int y = 1; y < l; y++ ) {
+                    for( int x = 1; x < k; x++ ) {
+                        if (imageValues[(x + offx) + (y + offy) * offset] != 0) {// Edge pixel found
+                            for( int i = 0; i < lutSize; i++ ) {
+                                int a = x + lut[1][i][indexR];
+                                int b = y + lut[0][i][indexR];
+                                if ((b >= 0) & (b < height) & (a >= 0) & (a < width)) {
+                                    houghValues[a][b][indexR] += 1;
+                                }
                             }
                         }
                     }
                 }
             }
-            pm.worked(1);
+        });
+        if (!isDone) {
+            throw new ModelsRuntimeException("Module interrupted.", this);
         }
-        pm.done();
 
         return houghValues;
 
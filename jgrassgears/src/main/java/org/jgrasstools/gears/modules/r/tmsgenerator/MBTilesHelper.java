@@ -6,6 +6,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -54,6 +55,42 @@ public class MBTilesHelper implements AutoCloseable {
             COL_TILES_TILE_DATA + " BLOB" + //
             ")";
 
+    // deduplicated layout: TABLE map (zoom_level, tile_column, tile_row, tile_id), TABLE images (tile_data, tile_id)
+    // and a tiles view joining them, as allowed by the mbtiles specification
+    public final static String TABLE_MAP = "map";
+    public final static String TABLE_IMAGES = "images";
+    public final static String COL_TILE_ID = "tile_id";
+
+    private final static String CREATE_MAP = //
+    "CREATE TABLE " + TABLE_MAP + "( " + //
+            COL_TILES_ZOOM_LEVEL + " INTEGER, " + //
+            COL_TILES_TILE_COLUMN + " INTEGER, " + //
+            COL_TILES_TILE_ROW + " INTEGER, " + //
+            COL_TILE_ID + " TEXT" + //
+            ")";
+
+    private final static String CREATE_IMAGES = //
+    "CREATE TABLE " + TABLE_IMAGES + "( " + //
+            COL_TILES_TILE_DATA + " BLOB, " + //
+            COL_TILE_ID + " TEXT" + //
+            ")";
+
+    private final static String CREATE_TILES_VIEW = //
+    "CREATE VIEW " + TABLE_TILES + " AS SELECT " + //
+            TABLE_MAP + "." + COL_TILES_ZOOM_LEVEL + " AS " + COL_TILES_ZOOM_LEVEL + ", " + //
+            TABLE_MAP + "." + COL_TILES_TILE_COLUMN + " AS " + COL_TILES_TILE_COLUMN + ", " + //
+            TABLE_MAP + "." + COL_TILES_TILE_ROW + " AS " + COL_TILES_TILE_ROW + ", " + //
+            TABLE_IMAGES + "." + COL_TILES_TILE_DATA + " AS " + COL_TILES_TILE_DATA + //
+            " FROM " + TABLE_MAP + " JOIN " + TABLE_IMAGES + //
+            " ON " + TABLE_MAP + "." + COL_TILE_ID + " = " + TABLE_IMAGES + "." + COL_TILE_ID;
+
+    private final static String INSERT_TILE = "INSERT INTO " + TABLE_TILES + " (" + COL_TILES_ZOOM_LEVEL + ","
+            + COL_TILES_TILE_COLUMN + "," + COL_TILES_TILE_ROW + "," + COL_TILES_TILE_DATA + ") values (?,?,?,?)";
+    private final static String INSERT_MAP = "INSERT INTO " + TABLE_MAP + " (" + COL_TILES_ZOOM_LEVEL + ","
+            + COL_TILES_TILE_COLUMN + "," + COL_TILES_TILE_ROW + "," + COL_TILE_ID + ") values (?,?,?,?)";
+    private final static String INSERT_IMAGE = "INSERT OR IGNORE INTO " + TABLE_IMAGES + " (" + COL_TILES_TILE_DATA + ","
+            + COL_TILE_ID + ") values (?,?)";
+
     // TABLE METADATA (name TEXT, value TEXT);
     public final static String TABLE_METADATA = "metadata";
     public final static String COL_METADATA_NAME = "name";
@@ -69,18 +106,40 @@ public class MBTilesHelper implements AutoCloseable {
     private final static String INDEX_TILES = "CREATE UNIQUE INDEX tile_index ON " + TABLE_TILES + " (" + COL_TILES_ZOOM_LEVEL
             + ", " + COL_TILES_TILE_COLUMN + ", " + COL_TILES_TILE_ROW + ")";
     private final static String INDEX_METADATA = "CREATE UNIQUE INDEX name ON " + TABLE_METADATA + "( " + COL_METADATA_NAME + ")";
+    private final static String INDEX_MAP = "CREATE UNIQUE INDEX map_index ON " + TABLE_MAP + " (" + COL_TILES_ZOOM_LEVEL + ", "
+            + COL_TILES_TILE_COLUMN + ", " + COL_TILES_TILE_ROW + ")";
+    // needed by the inserts of the deduplicated images, so it is created with the tables
+    private final static String INDEX_IMAGES = "CREATE UNIQUE INDEX images_id ON " + TABLE_IMAGES + " (" + COL_TILE_ID + ")";
+
+    /**
+     * The number of tiles inserted before the batch is executed and committed.
+     */
+    private final static int BATCH_SIZE = 500;
 
     private Connection connection;
 
-    private volatile int addedTiles = 0;
+    private boolean deduplicate = false;
+
+    private PreparedStatement tileStatement;
+    private PreparedStatement imageStatement;
+
+    private int batchedTiles = 0;
+    private int addedTiles = 0;
+    private int duplicatedTiles = 0;
 
     public void open( File dbFile ) throws SQLException {
         // create a database connection
         connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
     }
 
-    public void close() {
+    public synchronized void close() {
         try {
+            if (connection != null && !connection.isClosed())
+                commit();
+            if (tileStatement != null)
+                tileStatement.close();
+            if (imageStatement != null)
+                imageStatement.close();
             if (connection != null)
                 connection.close();
         } catch (SQLException e) {
@@ -90,29 +149,73 @@ public class MBTilesHelper implements AutoCloseable {
     }
 
     public void createTables( boolean makeIndexes ) throws SQLException {
+        createTables(makeIndexes, false);
+    }
+
+    /**
+     * Create the tables of the database, dropping existing ones.
+     * 
+     * @param makeIndexes if <code>true</code>, the indexes are created immediately.
+     * @param deduplicate if <code>true</code>, the images are stored in a separate table
+     *              and identical tiles share the same image. The tiles are then available 
+     *              through a view. The images are identified by the hash of their bytes and 
+     *              the unique index on it lets the database drop the repeated ones.
+     * @throws SQLException
+     */
+    public synchronized void createTables( boolean makeIndexes, boolean deduplicate ) throws SQLException {
+        this.deduplicate = deduplicate;
+        String tilesType = null;
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT type FROM sqlite_master WHERE name='" + TABLE_TILES
+                        + "'")) {
+            if (resultSet.next()) {
+                tilesType = resultSet.getString(1);
+            }
+        }
         try (Statement statement = connection.createStatement()) {
-            statement.addBatch("DROP TABLE IF EXISTS " + TABLE_TILES);
+            if ("view".equalsIgnoreCase(tilesType)) {
+                statement.addBatch("DROP VIEW IF EXISTS " + TABLE_TILES);
+            } else {
+                statement.addBatch("DROP TABLE IF EXISTS " + TABLE_TILES);
+            }
+            statement.addBatch("DROP TABLE IF EXISTS " + TABLE_MAP);
+            statement.addBatch("DROP TABLE IF EXISTS " + TABLE_IMAGES);
             statement.addBatch("DROP TABLE IF EXISTS " + TABLE_METADATA);
-            statement.addBatch(CREATE_TILES);
+            if (deduplicate) {
+                statement.addBatch(CREATE_MAP);
+                statement.addBatch(CREATE_IMAGES);
+                statement.addBatch(INDEX_IMAGES);
+                statement.addBatch(CREATE_TILES_VIEW);
+            } else {
+                statement.addBatch(CREATE_TILES);
+            }
             statement.addBatch(CREATE_METADATA);
             if (makeIndexes) {
-                statement.addBatch(INDEX_TILES);
-                statement.addBatch(INDEX_METADATA);
+                addIndexes(statement);
             }
             statement.executeBatch();
         }
         connection.setAutoCommit(false);
     }
 
-    public void createIndexes() throws SQLException {
+    public synchronized void createIndexes() throws SQLException {
+        commit();
         try (Statement statement = connection.createStatement()) {
-            statement.addBatch(INDEX_TILES);
-            statement.addBatch(INDEX_METADATA);
+            addIndexes(statement);
             statement.executeBatch();
         }
         connection.commit();
     }
 
+    private void addIndexes( Statement statement ) throws SQLException {
+        if (deduplicate) {
+            statement.addBatch(INDEX_MAP);
+        } else {
+            statement.addBatch(INDEX_TILES);
+        }
+        statement.addBatch(INDEX_METADATA);
+    }
+
     public void fillMetadata( float n, float s, float w, float e, String name, String format, int minZoom, int maxZoom )
             throws SQLException {
         // type = baselayer
@@ -160,42 +263,116 @@ public class MBTilesHelper implements AutoCloseable {
         return query;
     }
 
-    public void addTile( int x, int y, int z, BufferedImage image, String format ) throws Exception {
-        addedTiles++;
+    public synchronized void addTile( int x, int y, int z, BufferedImage image, String format ) throws Exception {
+        addTileBytes(x, y, z, encodeImage(image, format));
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, format, baos);
-        byte[] res = baos.toByteArray();
+    /**
+     * Add an already encoded tile to the database.
+     * 
+     * <p>The inserts are batched and committed every {@value #BATCH_SIZE} tiles, 
+     * use {@link #commit()} to write the pending ones.</p>
+     * 
+     * @param x the tile x.
+     * @param y the tile y.
+     * @param z the zoomlevel.
+     * @param imageBytes the encoded image.
+     * @throws Exception
+     */
+    public synchronized void addTileBytes( int x, int y, int z, byte[] imageBytes ) throws Exception {
+        addedTiles++;
+        if (deduplicate) {
+            String tileId = getTileId(imageBytes);
+            if (imageStatement == null) {
+                imageStatement = connection.prepareStatement(INSERT_IMAGE);
+            }
+            imageStatement.setBytes(1, imageBytes);
+            imageStatement.setString(2, tileId);
+            imageStatement.addBatch();
+            if (tileStatement == null) {
+                tileStatement = connection.prepareStatement(INSERT_MAP);
+            }
+            tileStatement.setInt(1, z);
+            tileStatement.setInt(2, x);
+            tileStatement.setInt(3, y);
+            tileStatement.setString(4, tileId);
+        } else {
+            if (tileStatement == null) {
+                tileStatement = connection.prepareStatement(INSERT_TILE);
+            }
+            tileStatement.setInt(1, z);
+            tileStatement.setInt(2, x);
+            tileStatement.setInt(3, y);
+            tileStatement.setBytes(4, imageBytes);
+        }
+        tileStatement.addBatch();
+        batchedTiles++;
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("INSERT INTO " + TABLE_TILES + " ");
-        sb.append("(");
-        sb.append(COL_TILES_ZOOM_LEVEL);
-        sb.append(",");
-        sb.append(COL_TILES_TILE_COLUMN);
-        sb.append(",");
-        sb.append(COL_TILES_TILE_ROW);
-        sb.append(",");
-        sb.append(COL_TILES_TILE_DATA);
-        sb.append(") values (");
-        sb.append(z);
-        sb.append(",");
-        sb.append(x);
-        sb.append(",");
-        sb.append(y);
-        sb.append(",");
-        sb.append("?");
-        sb.append(")");
-        String query = sb.toString();
+        if (batchedTiles >= BATCH_SIZE) {
+            commit();
+        }
+    }
 
-        try (PreparedStatement statement = connection.prepareStatement(query)) {
-            statement.setBytes(1, res);
-            statement.execute();
+    /**
+     * Write the pending tiles to the database.
+     * 
+     * @throws SQLException
+     */
+    public synchronized void commit() throws SQLException {
+        if (batchedTiles == 0) {
+            return;
         }
+        if (imageStatement != null) {
+            // the images already in the database are ignored and not counted as changes
+            int[] insertedImages = imageStatement.executeBatch();
+            for( int inserted : insertedImages ) {
+                if (inserted == 0) {
+                    duplicatedTiles++;
+                }
+            }
+        }
+        tileStatement.executeBatch();
+        connection.commit();
+        batchedTiles = 0;
+    }
+
+    /**
+     * @return the number of tiles added.
+     */
+    public synchronized int getAddedTilesCount() {
+        return addedTiles;
+    }
+
+    /**
+     * @return the number of tiles that reused the image of a previous tile.
+     */
+    public synchronized int getDuplicatedTilesCount() {
+        return duplicatedTiles;
+    }
+
+    /**
+     * Encode an image for the database.
+     * 
+     * @param image the image.
+     * @param format the image format (ex. png or jpg).
+     * @return the encoded bytes.
+     * @throws IOException
+     */
+    public static byte[] encodeImage( BufferedImage image, String format ) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, format, baos);
+        return baos.toByteArray();
+    }
 
-        if (addedTiles % 20 == 0) {
-            connection.commit();
+    private static String getTileId( byte[] imageBytes ) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte[] hash = digest.digest(imageBytes);
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for( byte b : hash ) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
         }
+        return sb.toString();
     }
 
     /**
@@ -207,7 +384,8 @@ public class MBTilesHelper implements AutoCloseable {
      * @return
      * @throws Exception
      */
-    public BufferedImage getTile( int x, int y, int z ) throws Exception {
+    public synchronized BufferedImage getTile( int x, int y, int z ) throws Exception {
+        commit();
         try (PreparedStatement statement = connection.prepareStatement(SELECTQUERY)) {
             statement.setInt(1, z);
             statement.setInt(2, x);
@@ -0,0 +1,96 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.r.tmsgenerator;
+
+import java.util.List;
+
+import org.jgrasstools.gears.libs.modules.SingleWriterQueue;
+
+/**
+ * A queue that lets many rendering threads feed a single writer of an {@link MBTilesHelper mbtiles database}.
+ *
+ * <p>
+ * Sqlite allows a single writer, so the tiles are taken from the queue by one thread and
+ * inserted in batches through a {@link SingleWriterQueue}.
+ * The queue is bounded, so that the renderers wait when the writer can't keep up.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class MBTilesWriteQueue implements AutoCloseable {
+
+    private static class Tile {
+        final int x;
+        final int y;
+        final int z;
+        final byte[] data;
+
+        Tile( int x, int y, int z, byte[] data ) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.data = data;
+        }
+    }
+
+    private final SingleWriterQueue<Tile> queue;
+
+    /**
+     * Create the queue and start its writer.
+     *
+     * @param mbtilesHelper the open database to write to.
+     * @param capacity the max number of tiles waiting to be written.
+     * @param batchSize the max number of tiles taken from the queue at once.
+     */
+    public MBTilesWriteQueue( final MBTilesHelper mbtilesHelper, int capacity, int batchSize ) {
+        queue = new SingleWriterQueue<Tile>("mbtiles-writer", capacity, batchSize, new SingleWriterQueue.ItemsWriter<Tile>(){
+            public void write( List<Tile> tiles ) throws Exception {
+                for( Tile tile : tiles ) {
+                    mbtilesHelper.addTileBytes(tile.x, tile.y, tile.z, tile.data);
+                }
+            }
+
+            public void commit() throws Exception {
+                mbtilesHelper.commit();
+            }
+        });
+    }
+
+    /**
+     * Add an encoded tile, waiting if the queue is full.
+     *
+     * @param x the tile x.
+     * @param y the tile y.
+     * @param z the zoomlevel.
+     * @param imageBytes the encoded image.
+     * @throws Exception if the writer failed.
+     */
+    public void addTile( int x, int y, int z, byte[] imageBytes ) throws Exception {
+        queue.add(new Tile(x, y, z, imageBytes));
+    }
+
+    /**
+     * Write the remaining tiles and stop the writer, the database stays open.
+     *
+     * @throws Exception if the writer failed.
+     */
+    public void close() throws Exception {
+        queue.close();
+    }
+
+}
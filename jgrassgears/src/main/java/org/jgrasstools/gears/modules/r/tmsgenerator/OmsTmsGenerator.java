@@ -27,8 +27,10 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_LABEL;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_LICENSE;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_NAME;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_STATUS;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_doDeduplicate_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_doLegacyGrass_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_doLenient_DESCRIPTION;
+import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_doPyramid_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_inPath_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_inRasterBounds_DESCRIPTION;
 import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_inRasterFile_DESCRIPTION;
@@ -47,9 +49,16 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSTMSGENERATOR_pWest_DES
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -74,6 +83,7 @@ import org.jgrasstools.gears.libs.exceptions.ModelsIOException;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.exceptions.ModelsUserCancelException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
@@ -188,6 +198,14 @@ public class OmsTmsGenerator extends JGTModel {
     @In
     public boolean doMbtiles = false;
 
+    @Description(OMSTMSGENERATOR_doPyramid_DESCRIPTION)
+    @In
+    public boolean doPyramid = false;
+
+    @Description(OMSTMSGENERATOR_doDeduplicate_DESCRIPTION)
+    @In
+    public boolean doDeduplicate = false;
+
     @Description(OMSTMSGENERATOR_inPath_DESCRIPTION)
     @In
     public String inPath;
@@ -199,6 +217,8 @@ public class OmsTmsGenerator extends JGTModel {
 
     private MBTilesHelper mbtilesHelper;
 
+    private MBTilesWriteQueue tilesQueue;
+
     public CoordinateReferenceSystem dataCrs;
 
     private volatile boolean cancelModule = false;
@@ -216,6 +236,8 @@ public class OmsTmsGenerator extends JGTModel {
                     dataCrs = CRS.parseWKT(wkt);
                 }
             }
+            int threads = getDefaultThreadsNum() * 5;
+
             String format = null;
             if (doMbtiles) {
                 mbtilesHelper = new MBTilesHelper();
@@ -233,12 +255,11 @@ public class OmsTmsGenerator extends JGTModel {
 
                 format = pImagetype == 0 ? "png" : "jpg";
                 mbtilesHelper.open(dbFile);
-                mbtilesHelper.createTables(false);
+                mbtilesHelper.createTables(false, doDeduplicate);
                 mbtilesHelper.fillMetadata(n, s, w, e, pName, format, pMinzoom, pMaxzoom);
+                tilesQueue = new MBTilesWriteQueue(mbtilesHelper, threads * 4, 500);
             }
 
-            int threads = getDefaultThreadsNum() * 5;
-
             String ext = "png";
             if (pImagetype == 1) {
                 ext = "jpg";
@@ -322,7 +343,12 @@ public class OmsTmsGenerator extends JGTModel {
 
             final GlobalMercator mercator = new GlobalMercator();
 
-            for( int z = pMinzoom; z <= pMaxzoom; z++ ) {
+            if (doPyramid) {
+                TilePyramid pyramid = new TilePyramid(imgGen, mercator, mercatorCrs, mercatorBounds, baseFolder, ext);
+                pyramid.build(threads);
+            }
+
+            for( int z = pMinzoom; !doPyramid && z <= pMaxzoom; z++ ) {
                 checkCancel();
 
                 // get ul and lr tile number
@@ -355,17 +381,9 @@ public class OmsTmsGenerator extends JGTModel {
                         levelBounds.expandToInclude(tmpBounds);
 
                         // if there is a zoom level geometry limitation, apply it
-                        if (zoomLimitGeometry != null && z > pZoomLimit) {
-                            double safeExtend = tmpBounds.getWidth() > tmpBounds.getHeight()
-                                    ? tmpBounds.getWidth()
-                                    : tmpBounds.getHeight();
-                            final ReferencedEnvelope tmp = new ReferencedEnvelope(tmpBounds);
-                            tmp.expandBy(safeExtend);
-                            Polygon polygon = FeatureUtilities.envelopeToPolygon(tmp);
-                            if (!zoomLimitGeometry.intersects(polygon)) {
-                                pm.worked(1);
-                                continue;
-                            }
+                        if (isOutsideZoomLimit(tmpBounds, z)) {
+                            pm.worked(1);
+                            continue;
                         }
 
                         if (mbtilesHelper != null) {
@@ -382,7 +400,7 @@ public class OmsTmsGenerator extends JGTModel {
                                             BufferedImage image = imgGen.getImageWithCheck(tmpBounds, TILESIZE, TILESIZE, 0.0,
                                                     pCheckcolor);
                                             if (image != null) {
-                                                mbtilesHelper.addTile(x, y, zz, image, fformat);
+                                                tilesQueue.addTile(x, y, zz, MBTilesHelper.encodeImage(image, fformat));
                                             }
                                         } catch (Exception e) {
                                             pm.errorMessage(e.getMessage());
@@ -451,7 +469,11 @@ public class OmsTmsGenerator extends JGTModel {
             }
 
             if (mbtilesHelper != null) {
+                tilesQueue.close();
                 mbtilesHelper.createIndexes();
+                if (doDeduplicate) {
+                    pm.message("Tiles sharing the image of another tile: " + mbtilesHelper.getDuplicatedTilesCount());
+                }
                 mbtilesHelper.close();
             } else {
                 CoordinateReferenceSystem latLongCrs = CRS.decode(EPSG_LATLONG);
@@ -474,4 +496,244 @@ public class OmsTmsGenerator extends JGTModel {
             pm.errorMessage(ModelsUserCancelException.DEFAULTMESSAGE);
         }
     }
+
+    /**
+     * Checks if a tile has to be skipped because of the zoom limit geometry.
+     */
+    private boolean isOutsideZoomLimit( ReferencedEnvelope tileBounds, int z ) {
+        if (zoomLimitGeometry != null && z > pZoomLimit) {
+            double safeExtend = tileBounds.getWidth() > tileBounds.getHeight() ? tileBounds.getWidth() : tileBounds.getHeight();
+            final ReferencedEnvelope tmp = new ReferencedEnvelope(tileBounds);
+            tmp.expandBy(safeExtend);
+            Polygon polygon = FeatureUtilities.envelopeToPolygon(tmp);
+            return !zoomLimitGeometry.intersects(polygon);
+        }
+        return false;
+    }
+
+    /**
+     * Builds the tiles of all the zoom levels rendering only the max zoom level from the data.
+     * 
+     * <p>The tile of a lower zoom level is the downsampling of its four children, so the maps
+     * are drawn once. The tiles are built depth first, each worker taking care of the subtree of a 
+     * tile of the first zoom level that has enough tiles to keep all the workers busy. The few tiles 
+     * of the levels above are then built from the kept tiles of that level.</p>
+     */
+    private class TilePyramid {
+        private final ImageGenerator imgGen;
+        private final GlobalMercator mercator;
+        private final CoordinateReferenceSystem mercatorCrs;
+        private final File baseFolder;
+        private final String ext;
+        // startX, startY, endX, endY of every zoom level
+        private final int[][] tileRanges;
+        private final AtomicInteger[] levelTiles;
+
+        TilePyramid( ImageGenerator imgGen, GlobalMercator mercator, CoordinateReferenceSystem mercatorCrs,
+                ReferencedEnvelope mercatorBounds, File baseFolder, String ext ) {
+            this.imgGen = imgGen;
+            this.mercator = mercator;
+            this.mercatorCrs = mercatorCrs;
+            this.baseFolder = baseFolder;
+            this.ext = ext;
+
+            int levels = pMaxzoom - pMinzoom + 1;
+            tileRanges = new int[levels][];
+            levelTiles = new AtomicInteger[levels];
+            for( int z = pMinzoom; z <= pMaxzoom; z++ ) {
+                int[] llTileNumber = mercator.MetersToTile(mercatorBounds.getMinX(), mercatorBounds.getMinY(), z);
+                int[] urTileNumber = mercator.MetersToTile(mercatorBounds.getMaxX(), mercatorBounds.getMaxY(), z);
+                tileRanges[z - pMinzoom] = new int[]{llTileNumber[0], llTileNumber[1], urTileNumber[0], urTileNumber[1]};
+                levelTiles[z - pMinzoom] = new AtomicInteger();
+            }
+        }
+
+        void build( int threads ) throws Exception {
+            int splitZoom = pMinzoom;
+            while( splitZoom < pMaxzoom && getTilesCount(splitZoom) < threads ) {
+                splitZoom++;
+            }
+            final int fSplitZoom = splitZoom;
+            final boolean keepImages = splitZoom > pMinzoom;
+            final Map<Long, BufferedImage> splitImages = new ConcurrentHashMap<Long, BufferedImage>();
+
+            int[] range = tileRanges[splitZoom - pMinzoom];
+            final int startX = range[0];
+            final int startY = range[1];
+            final int tilesY = range[3] - range[1] + 1;
+            boolean isDone = JGTExecutor.forEachIndex((int) getTilesCount(splitZoom), threads,
+                    "Generating tiles from zoom level " + pMaxzoom + " to " + pMinzoom, pm, new JGTExecutor.IndexProcessor(){
+                        public void process( int index ) throws Exception {
+                            int x = startX + index / tilesY;
+                            int y = startY + index % tilesY;
+                            BufferedImage image = buildTile(x, y, fSplitZoom, null);
+                            if (image != null && keepImages) {
+                                splitImages.put(getKey(x, y), image);
+                            }
+                        }
+                    });
+            if (!isDone) {
+                throw new ModelsUserCancelException();
+            }
+
+            Map<Long, BufferedImage> childImages = splitImages;
+            for( int z = splitZoom - 1; z >= pMinzoom; z-- ) {
+                checkCancel();
+                Map<Long, BufferedImage> images = new HashMap<Long, BufferedImage>();
+                range = tileRanges[z - pMinzoom];
+                for( int i = range[0]; i <= range[2]; i++ ) {
+                    for( int j = range[1]; j <= range[3]; j++ ) {
+                        BufferedImage image = buildTile(i, j, z, childImages);
+                        if (image != null) {
+                            images.put(getKey(i, j), image);
+                        }
+                    }
+                }
+                childImages = images;
+            }
+
+            for( int z = pMinzoom; z <= pMaxzoom; z++ ) {
+                pm.message("Zoom level: " + z + " has " + levelTiles[z - pMinzoom] + " tiles.");
+            }
+        }
+
+        /**
+         * Build a tile and write it.
+         * 
+         * @param childImages the images of the next zoom level or <code>null</code> 
+         *              to build them recursively.
+         * @return the image of the tile or <code>null</code> if the tile is empty.
+         */
+        private BufferedImage buildTile( int x, int y, int z, Map<Long, BufferedImage> childImages ) throws Exception {
+            checkCancel();
+            int[] range = tileRanges[z - pMinzoom];
+            if (x < range[0] || x > range[2] || y < range[1] || y > range[3]) {
+                return null;
+            }
+            double[] bounds = mercator.TileBounds(x, y, z);
+            ReferencedEnvelope tileBounds = new ReferencedEnvelope(bounds[0], bounds[2], bounds[1], bounds[3], mercatorCrs);
+            if (isOutsideZoomLimit(tileBounds, z)) {
+                return null;
+            }
+
+            File imageFile = null;
+            if (tilesQueue == null) {
+                imageFile = new File(baseFolder, z + "/" + x + "/" + y + "." + ext);
+                if (imageFile.exists()) {
+                    // existing tiles are kept, as when drawing all levels
+                    return ImageIO.read(imageFile);
+                }
+            }
+
+            BufferedImage image;
+            if (z == pMaxzoom) {
+                image = imgGen.getImageWithCheck(tileBounds, TILESIZE, TILESIZE, 0.0, pCheckcolor);
+            } else {
+                // tms rows grow northwards, the upper children have the higher row
+                BufferedImage[] children = new BufferedImage[4];
+                int[][] childTiles = {{2 * x, 2 * y + 1}, {2 * x + 1, 2 * y + 1}, {2 * x, 2 * y}, {2 * x + 1, 2 * y}};
+                for( int k = 0; k < 4; k++ ) {
+                    int childX = childTiles[k][0];
+                    int childY = childTiles[k][1];
+                    if (childImages == null) {
+                        children[k] = buildTile(childX, childY, z + 1, null);
+                    } else {
+                        children[k] = childImages.get(getKey(childX, childY));
+                    }
+                }
+                image = downsample(children);
+                if (image != null && pCheckcolor != null && isAllOfColor(image, pCheckcolor)) {
+                    image = null;
+                }
+            }
+            if (image == null) {
+                return null;
+            }
+
+            if (tilesQueue != null) {
+                tilesQueue.addTile(x, y, z, MBTilesHelper.encodeImage(image, ext));
+            } else {
+                File imageFolder = imageFile.getParentFile();
+                if (!imageFolder.exists() && !imageFolder.mkdirs() && !imageFolder.exists()) {
+                    throw new ModelsIOException("Unable to create folder:" + imageFolder, OmsTmsGenerator.this);
+                }
+                File ignoreMediaFile = new File(imageFolder, ".nomedia");
+                ignoreMediaFile.createNewFile();
+                ImageIO.write(image, ext, imageFile);
+            }
+            levelTiles[z - pMinzoom].incrementAndGet();
+            return image;
+        }
+
+        private long getTilesCount( int z ) {
+            int[] range = tileRanges[z - pMinzoom];
+            return (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+        }
+    }
+
+    private static long getKey( int x, int y ) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Downsample four tiles to the tile of the lower zoom level.
+     * 
+     * <p>Every pixel is the average of a block of 2x2 pixels of a child, 
+     * missing children are drawn white, as the background of the maps.</p>
+     * 
+     * @param children the top-left, top-right, bottom-left and bottom-right tiles.
+     * @return the downsampled tile or <code>null</code> if all the children are missing.
+     */
+    private static BufferedImage downsample( BufferedImage[] children ) {
+        int half = TILESIZE / 2;
+        int[] pixels = new int[TILESIZE * TILESIZE];
+        int[] childPixels = new int[TILESIZE * TILESIZE];
+        boolean hasData = false;
+        for( int k = 0; k < 4; k++ ) {
+            int offsetX = (k % 2) * half;
+            int offsetY = (k / 2) * half;
+            BufferedImage child = children[k];
+            if (child == null) {
+                for( int row = 0; row < half; row++ ) {
+                    int index = (offsetY + row) * TILESIZE + offsetX;
+                    Arrays.fill(pixels, index, index + half, 0xFFFFFF);
+                }
+                continue;
+            }
+            hasData = true;
+            child.getRGB(0, 0, TILESIZE, TILESIZE, childPixels, 0, TILESIZE);
+            for( int row = 0; row < half; row++ ) {
+                int upper = 2 * row * TILESIZE;
+                int lower = upper + TILESIZE;
+                int index = (offsetY + row) * TILESIZE + offsetX;
+                for( int col = 0; col < half; col++ ) {
+                    int p1 = childPixels[upper + 2 * col];
+                    int p2 = childPixels[upper + 2 * col + 1];
+                    int p3 = childPixels[lower + 2 * col];
+                    int p4 = childPixels[lower + 2 * col + 1];
+                    int r = (((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + ((p4 >> 16) & 0xFF) + 2) >> 2;
+                    int g = (((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF) + 2) >> 2;
+                    int b = ((p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + (p4 & 0xFF) + 2) >> 2;
+                    pixels[index + col] = (r << 16) | (g << 8) | b;
+                }
+            }
+        }
+        if (!hasData) {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(TILESIZE, TILESIZE, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, TILESIZE, TILESIZE, pixels, 0, TILESIZE);
+        return image;
+    }
+
+    private static boolean isAllOfColor( BufferedImage image, int[] rgbCheck ) {
+        int check = (rgbCheck[0] << 16) | (rgbCheck[1] << 8) | rgbCheck[2];
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        for( int pixel : pixels ) {
+            if ((pixel & 0xFFFFFF) != check) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
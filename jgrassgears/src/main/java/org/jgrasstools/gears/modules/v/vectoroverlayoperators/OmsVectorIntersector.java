@@ -43,6 +43,7 @@ import static org.jgrasstools.gears.modules.v.vectoroverlayoperators.OmsVectorOv
 import static org.jgrasstools.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators.OMSVECTOROVERLAYOPERATORS_inMap2_DESCRIPTION;
 import static org.jgrasstools.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators.OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import oms3.annotations.Author;
@@ -68,9 +69,6 @@ import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
-import com.vividsolutions.jts.geom.prep.PreparedGeometry;
-import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 @Description(OmsVectorIntersector.DESCRIPTION)
 @Author(name = OMSHYDRO_AUTHORNAMES, contact = OMSHYDRO_AUTHORCONTACTS)
@@ -93,6 +91,10 @@ public class OmsVectorIntersector extends JGTModel {
     @In
     public boolean doKeepFirstAttributes = true;
 
+    @Description(MAX_THREADS)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION)
     @Out
     public SimpleFeatureCollection outMap = null;
@@ -102,6 +104,7 @@ public class OmsVectorIntersector extends JGTModel {
     public static final String DESCRIPTION = "Vector layer intersector with maintaining of attributes.";
     public static final String KEYWORDS = "vector, intersect, attributes";
     public static final String KEEP_FIRST_ATTRIBUTES = "If enabled attributes of map 1 are kept, else of map 2.";
+    public static final String MAX_THREADS = "Max threads to use (default 1)";
     // END VARS DOC
 
     @Execute
@@ -116,10 +119,9 @@ public class OmsVectorIntersector extends JGTModel {
             inMap2 = inMapTmp;
         }
 
+        // the features of map 2 are indexed and only the ones touching a feature are dissolved
         List<Geometry> geometries = FeatureUtilities.featureCollectionToGeometriesList(inMap2, false, null);
-        GeometryCollection geometryCollection = new GeometryCollection(geometries.toArray(new Geometry[geometries.size()]), gf);
-        Geometry intersectionGeometry = geometryCollection.buffer(0);
-        PreparedGeometry preparedIntersectionGeometry = PreparedGeometryFactory.prepare(intersectionGeometry);
+        VectorOverlayEngine overlayEngine = new VectorOverlayEngine(geometries);
 
         List<SimpleFeature> mainFeatures = FeatureUtilities.featureCollectionToList(inMap1);
         if (mainFeatures.size() == 0) {
@@ -131,23 +133,36 @@ public class OmsVectorIntersector extends JGTModel {
         GeometryType newGeometryType = GeometryType.forClass(multiClazz);
         FeatureGeometrySubstitutor sub = new FeatureGeometrySubstitutor(inMap1.getSchema(), multiClazz);
 
-        pm.beginTask("Performing intersection...", mainFeatures.size());
+        List<Geometry> mainGeometries = new ArrayList<Geometry>(mainFeatures.size());
         for( SimpleFeature feature : mainFeatures ) {
-            Geometry geometry = (Geometry) feature.getDefaultGeometry();
-            if (preparedIntersectionGeometry.intersects(geometry)) {
-                Geometry intersection = geometry.intersection(intersectionGeometry);
-
-                GeometryType intersectionGeometryType = GeometryUtilities.getGeometryType(intersection);
-                if (intersectionGeometryType.isCompatibleWith(newGeometryType)) {
-                    SimpleFeature newFeature = sub.substituteGeometry(feature, intersection);
-                    ((DefaultFeatureCollection) outMap).add(newFeature);
-                } else {
-                    pm.errorMessage("Could not add intersection result geometry to layer due to incompatibility: " + intersection);
-                }
+            mainGeometries.add((Geometry) feature.getDefaultGeometry());
+        }
+        final Geometry[] intersections = new Geometry[mainGeometries.size()];
+        overlayEngine.intersection(mainGeometries, pMaxThreads, pm, new VectorOverlayEngine.GeometryCollector(){
+            public void collect( int index, Geometry geometry ) throws Exception {
+                intersections[index] = geometry;
+            }
+        });
+        checkCancel();
+        int droppedCount = overlayEngine.getDroppedPiecesCount();
+        if (droppedCount > 0) {
+            pm.errorMessage("Dropped " + droppedCount
+                    + " intersection pieces of lower dimension than the layer, as the lines where polygons touch.");
+        }
+
+        for( int i = 0; i < intersections.length; i++ ) {
+            Geometry intersection = intersections[i];
+            if (intersection == null) {
+                continue;
+            }
+            GeometryType intersectionGeometryType = GeometryUtilities.getGeometryType(intersection);
+            if (intersectionGeometryType.isCompatibleWith(newGeometryType)) {
+                SimpleFeature newFeature = sub.substituteGeometry(mainFeatures.get(i), intersection);
+                ((DefaultFeatureCollection) outMap).add(newFeature);
+            } else {
+                pm.errorMessage("Could not add intersection result geometry to layer due to incompatibility: " + intersection);
             }
-            pm.worked(1);
         }
-        pm.done();
 
     }
 
@@ -32,6 +32,7 @@ import static org.jgrasstools.gears.modules.v.vectoroverlayoperators.OmsVectorOv
 import static org.jgrasstools.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators.OMSVECTOROVERLAYOPERATORS_NAME;
 import static org.jgrasstools.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators.OMSVECTOROVERLAYOPERATORS_STATUS;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import oms3.annotations.Author;
@@ -54,7 +55,6 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.exceptions.ModelsRuntimeException;
 import org.jgrasstools.gears.libs.modules.JGTModel;
-import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.utils.features.FeatureUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -62,7 +62,6 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
@@ -95,6 +94,10 @@ public class OmsVectorOverlayOperators extends JGTModel {
     @In
     public boolean doAllowHoles = true;
 
+    @Description(OMSVECTOROVERLAYOPERATORS_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION)
     @Out
     public SimpleFeatureCollection outMap = null;
@@ -112,6 +115,7 @@ public class OmsVectorOverlayOperators extends JGTModel {
     public static final String OMSVECTOROVERLAYOPERATORS_inMap1_DESCRIPTION = "The first vector map.";
     public static final String OMSVECTOROVERLAYOPERATORS_inMap2_DESCRIPTION = "The second vector map.";
     public static final String OMSVECTOROVERLAYOPERATORS_pType_DESCRIPTION = "The overlay type to perform.";
+    public static final String OMSVECTOROVERLAYOPERATORS_pMaxThreads_DESCRIPTION = "Max threads to use (default 1)";
     public static final String OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION = "The resulting vector map.";
     private static final String doAllowHoles_DESCRIPTION = "Allow holes in the result.";
     // VARS DOCS STOP
@@ -133,39 +137,42 @@ public class OmsVectorOverlayOperators extends JGTModel {
         pm.message("Preparing geometry layers...");
 
         List<Geometry> geoms1 = FeatureUtilities.featureCollectionToGeometriesList(inMap1, false, null);
-        GeometryCollection geometryCollection1 = new GeometryCollection(geoms1.toArray(new Geometry[geoms1.size()]), gf);
-        Geometry g1 = geometryCollection1.buffer(0);
-
-        Geometry g2 = null;
+        List<Geometry> geoms2 = null;
         if (inMap2 != null) {
-            List<Geometry> geoms2 = FeatureUtilities.featureCollectionToGeometriesList(inMap2, false, null);
-            GeometryCollection geometryCollection2 = new GeometryCollection(geoms2.toArray(new Geometry[geoms2.size()]), gf);
-            g2 = geometryCollection2.buffer(0);
+            geoms2 = FeatureUtilities.featureCollectionToGeometriesList(inMap2, false, null);
         }
 
-        pm.beginTask("Performing overlay operation...", IJGTProgressMonitor.UNKNOWN);
-        Geometry resultingGeometryCollection = null;
-        switch (pType) {
-            case INTERSECTION:
-                resultingGeometryCollection = g1.intersection(g2);
-                break;
-            case UNION:
-                if (inMap2 != null) {
-                    resultingGeometryCollection = g1.union(g2);
-                } else {
-                    resultingGeometryCollection = g1.union();
-                }
-                break;
-            case DIFFERENCE:
-                resultingGeometryCollection = g1.difference(g2);
-                break;
-            case SYMDIFFERENCE:
-                resultingGeometryCollection = g1.symDifference(g2);
-                break;
-            default:
-                throw new ModelsIllegalargumentException("The overlay type is not supported: " + pType, this, pm);
+        /*
+         * the features are paired through a spatial index and overlaid one by one, 
+         * the pieces are then dissolved as the whole layers would have been
+         */
+        List<Geometry> pieces = new ArrayList<Geometry>();
+        switch( pType ) {
+        case INTERSECTION:
+            overlay(new VectorOverlayEngine(geoms2), geoms1, true, pieces);
+            break;
+        case UNION:
+            pieces.addAll(geoms1);
+            if (geoms2 != null) {
+                pieces.addAll(geoms2);
+            }
+            break;
+        case DIFFERENCE:
+            overlay(new VectorOverlayEngine(geoms2), geoms1, false, pieces);
+            break;
+        case SYMDIFFERENCE:
+            overlay(new VectorOverlayEngine(geoms2), geoms1, false, pieces);
+            overlay(new VectorOverlayEngine(geoms1), geoms2, false, pieces);
+            break;
+        default:
+            throw new ModelsIllegalargumentException("The overlay type is not supported: " + pType, this, pm);
+        }
+        pm.message("Dissolving the overlay result...");
+        Geometry resultingGeometryCollection = VectorOverlayEngine.union(pieces, pMaxThreads, pm);
+        checkCancel();
+        if (resultingGeometryCollection == null) {
+            resultingGeometryCollection = gf.createGeometryCollection(new Geometry[0]);
         }
-        pm.done();
 
         pm.message("Preparing final layer...");
         int numGeometries = resultingGeometryCollection.getNumGeometries();
@@ -213,4 +220,34 @@ public class OmsVectorOverlayOperators extends JGTModel {
 
     }
 
+    /**
+     * Overlay the geometries with the engine, keeping the results in the order of the geometries
+     * and reporting the dropped lower dimension pieces.
+     */
+    private void overlay( VectorOverlayEngine engine, List<Geometry> geometries, boolean doIntersection,
+            List<Geometry> pieces ) throws Exception {
+        final Geometry[] results = new Geometry[geometries.size()];
+        VectorOverlayEngine.GeometryCollector collector = new VectorOverlayEngine.GeometryCollector(){
+            public void collect( int index, Geometry geometry ) throws Exception {
+                results[index] = geometry;
+            }
+        };
+        if (doIntersection) {
+            engine.intersection(geometries, pMaxThreads, pm, collector);
+        } else {
+            engine.difference(geometries, pMaxThreads, pm, collector);
+        }
+        checkCancel();
+        for( Geometry result : results ) {
+            if (result != null) {
+                pieces.add(result);
+            }
+        }
+        int droppedCount = engine.getDroppedPiecesCount();
+        if (droppedCount > 0) {
+            pm.errorMessage("Dropped " + droppedCount
+                    + " overlay pieces of lower dimension than the layer, as the lines where polygons touch.");
+        }
+    }
+
 }
@@ -0,0 +1,360 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules.v.vectoroverlayoperators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.geom.util.LineStringExtracter;
+import com.vividsolutions.jts.geom.util.PointExtracter;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+
+/**
+ * Overlay of geometries with an overlay layer, pairing them through a spatial index.
+ *
+ * <p>
+ * Instead of dissolving both layers into single geometries, every geometry is overlaid only with
+ * the union of the geometries of the overlay layer that it intersects, which are found through an
+ * {@link STRtree}. The geometries are processed in parallel and passed to a {@link GeometryCollector}
+ * as soon as they are ready.
+ * </p>
+ * <p>
+ * If the geometries are invalid, the operations are repeated on the geometries fixed through a
+ * zero buffer, which is what the dissolving of whole layers does.
+ * </p>
+ * <p>
+ * The results keep only the pieces of the dimension of the input, the lower dimension pieces
+ * created where geometries just touch are dropped and counted, see {@link #getDroppedPiecesCount()}.
+ * </p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class VectorOverlayEngine {
+
+    /**
+     * The receiver of the overlay results.
+     *
+     * <p>Results are collected from several threads.</p>
+     */
+    public static interface GeometryCollector {
+        /**
+         * @param index the index of the processed geometry.
+         * @param geometry the non empty result.
+         * @throws Exception
+         */
+        public void collect( int index, Geometry geometry ) throws Exception;
+    }
+
+    private final List<Geometry> overlayGeometries;
+    private final STRtree tree;
+    private final AtomicInteger droppedPieces = new AtomicInteger();
+
+    /**
+     * @param overlayGeometries the geometries of the overlay layer.
+     */
+    public VectorOverlayEngine( List<Geometry> overlayGeometries ) {
+        this.overlayGeometries = overlayGeometries;
+        tree = new STRtree();
+        for( int i = 0; i < overlayGeometries.size(); i++ ) {
+            Geometry geometry = overlayGeometries.get(i);
+            if (geometry != null && !geometry.isEmpty()) {
+                tree.insert(geometry.getEnvelopeInternal(), i);
+            }
+        }
+        // build it now, queries are then thread safe
+        tree.build();
+    }
+
+    /**
+     * @return the number of lower dimension pieces, as the lines and points where geometries
+     *              touch, dropped from the results of the engine so far.
+     */
+    public int getDroppedPiecesCount() {
+        return droppedPieces.get();
+    }
+
+    /**
+     * Get the union of the overlay geometries that intersect a geometry.
+     *
+     * @param geometry the geometry.
+     * @return the union or <code>null</code> if no overlay geometry intersects.
+     */
+    public Geometry getIntersectingUnion( Geometry geometry ) {
+        List< ? > candidates = tree.query(geometry.getEnvelopeInternal());
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        PreparedGeometry preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+        List<Geometry> intersecting = new ArrayList<Geometry>();
+        for( Object candidate : candidates ) {
+            Geometry overlayGeometry = overlayGeometries.get((Integer) candidate);
+            if (preparedGeometry.intersects(overlayGeometry)) {
+                intersecting.add(overlayGeometry);
+            }
+        }
+        if (intersecting.isEmpty()) {
+            return null;
+        } else if (intersecting.size() == 1) {
+            return intersecting.get(0);
+        }
+        return union(intersecting);
+    }
+
+    /**
+     * Intersect a geometry with the overlay layer.
+     *
+     * @param geometry the geometry.
+     * @return the intersection, made of the components of the lowest dimension of the two,
+     *              or <code>null</code> if they don't intersect.
+     */
+    public Geometry intersection( Geometry geometry ) {
+        Geometry overlay = getIntersectingUnion(geometry);
+        if (overlay == null) {
+            return null;
+        }
+        Geometry intersection;
+        try {
+            intersection = geometry.intersection(overlay);
+        } catch (TopologyException e) {
+            intersection = geometry.buffer(0).intersection(overlay.buffer(0));
+        }
+        return extractDimension(intersection, Math.min(geometry.getDimension(), overlay.getDimension()));
+    }
+
+    /**
+     * Subtract the overlay layer from a geometry.
+     *
+     * @param geometry the geometry.
+     * @return the difference or <code>null</code> if nothing remains.
+     */
+    public Geometry difference( Geometry geometry ) {
+        Geometry overlay = getIntersectingUnion(geometry);
+        if (overlay == null) {
+            return geometry;
+        }
+        Geometry difference;
+        try {
+            difference = geometry.difference(overlay);
+        } catch (TopologyException e) {
+            difference = geometry.buffer(0).difference(overlay.buffer(0));
+        }
+        return extractDimension(difference, geometry.getDimension());
+    }
+
+    /**
+     * Intersect geometries with the overlay layer in parallel.
+     *
+     * @param geometries the geometries to intersect.
+     * @param threads the number of threads to use.
+     * @param pm the progress monitor.
+     * @param collector the receiver of the intersections.
+     * @return <code>false</code> if the process was canceled.
+     * @throws Exception
+     */
+    public boolean intersection( final List<Geometry> geometries, int threads, IJGTProgressMonitor pm,
+            final GeometryCollector collector ) throws Exception {
+        return JGTExecutor.forEachIndex(geometries.size(), threads, "Performing intersection...", pm,
+                new JGTExecutor.IndexProcessor(){
+                    public void process( int index ) throws Exception {
+                        Geometry geometry = geometries.get(index);
+                        if (geometry == null || geometry.isEmpty()) {
+                            return;
+                        }
+                        Geometry intersection = intersection(geometry);
+                        if (intersection != null && !intersection.isEmpty()) {
+                            collector.collect(index, intersection);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Subtract the overlay layer from geometries in parallel.
+     *
+     * @param geometries the geometries to subtract from.
+     * @param threads the number of threads to use.
+     * @param pm the progress monitor.
+     * @param collector the receiver of the differences.
+     * @return <code>false</code> if the process was canceled.
+     * @throws Exception
+     */
+    public boolean difference( final List<Geometry> geometries, int threads, IJGTProgressMonitor pm,
+            final GeometryCollector collector ) throws Exception {
+        return JGTExecutor.forEachIndex(geometries.size(), threads, "Performing difference...", pm,
+                new JGTExecutor.IndexProcessor(){
+                    public void process( int index ) throws Exception {
+                        Geometry geometry = geometries.get(index);
+                        if (geometry == null || geometry.isEmpty()) {
+                            return;
+                        }
+                        Geometry difference = difference(geometry);
+                        if (difference != null && !difference.isEmpty()) {
+                            collector.collect(index, difference);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Dissolve geometries through a cascaded union.
+     *
+     * @param geometries the geometries.
+     * @return the union or <code>null</code> if there are no geometries.
+     */
+    public static Geometry union( Collection<Geometry> geometries ) {
+        if (geometries.isEmpty()) {
+            return null;
+        }
+        try {
+            return UnaryUnionOp.union(geometries);
+        } catch (TopologyException e) {
+            // fall back on the slow but robust dissolve of the whole collection
+            GeometryFactory factory = geometries.iterator().next().getFactory();
+            return factory.buildGeometry(geometries).buffer(0);
+        }
+    }
+
+    /**
+     * Dissolve geometries through a cascaded union, splitting them in spatial chunks
+     * that are dissolved in parallel before the final union.
+     *
+     * @param geometries the geometries.
+     * @param threads the number of threads to use.
+     * @param pm the progress monitor.
+     * @return the union or <code>null</code> if there are no geometries or the process was canceled.
+     * @throws Exception
+     */
+    public static Geometry union( List<Geometry> geometries, int threads, IJGTProgressMonitor pm ) throws Exception {
+        if (threads < 1) {
+            threads = JGTExecutor.getParallelism();
+        }
+        int chunksCount = threads * 4;
+        if (threads < 2 || geometries.size() < chunksCount * 16) {
+            return union(geometries);
+        }
+
+        // split sort-tile-recursive like, in slices along x and then along y
+        int slicesCount = (int) Math.ceil(Math.sqrt(chunksCount));
+        List<Geometry> sorted = new ArrayList<Geometry>(geometries);
+        Collections.sort(sorted, new CentreComparator(true));
+        int sliceSize = (int) Math.ceil(sorted.size() / (double) slicesCount);
+        final List<List<Geometry>> chunks = new ArrayList<List<Geometry>>();
+        for( int from = 0; from < sorted.size(); from = from + sliceSize ) {
+            List<Geometry> slice = new ArrayList<Geometry>(sorted.subList(from, Math.min(from + sliceSize, sorted.size())));
+            Collections.sort(slice, new CentreComparator(false));
+            int chunkSize = (int) Math.ceil(slice.size() / (double) slicesCount);
+            for( int chunkFrom = 0; chunkFrom < slice.size(); chunkFrom = chunkFrom + chunkSize ) {
+                chunks.add(slice.subList(chunkFrom, Math.min(chunkFrom + chunkSize, slice.size())));
+            }
+        }
+
+        final Geometry[] chunkUnions = new Geometry[chunks.size()];
+        boolean isDone = JGTExecutor.forEachIndex(chunks.size(), threads, "Dissolving geometries...", pm,
+                new JGTExecutor.IndexProcessor(){
+                    public void process( int index ) throws Exception {
+                        chunkUnions[index] = union(chunks.get(index));
+                    }
+                });
+        if (!isDone) {
+            return null;
+        }
+        List<Geometry> partialUnions = new ArrayList<Geometry>(chunkUnions.length);
+        for( Geometry chunkUnion : chunkUnions ) {
+            if (chunkUnion != null && !chunkUnion.isEmpty()) {
+                partialUnions.add(chunkUnion);
+            }
+        }
+        return union(partialUnions);
+    }
+
+    private static class CentreComparator implements Comparator<Geometry> {
+        private final boolean isX;
+
+        CentreComparator( boolean isX ) {
+            this.isX = isX;
+        }
+
+        public int compare( Geometry g1, Geometry g2 ) {
+            Envelope e1 = g1.getEnvelopeInternal();
+            Envelope e2 = g2.getEnvelopeInternal();
+            if (isX) {
+                return Double.compare(e1.getMinX() + e1.getMaxX(), e2.getMinX() + e2.getMaxX());
+            }
+            return Double.compare(e1.getMinY() + e1.getMaxY(), e2.getMinY() + e2.getMaxY());
+        }
+    }
+
+    /**
+     * Keep only the components of a given dimension, dropping for example the lines
+     * created by polygons that touch. The dropped components are counted.
+     */
+    @SuppressWarnings("unchecked")
+    private Geometry extractDimension( Geometry geometry, int dimension ) {
+        if (geometry.isEmpty() || geometry.getDimension() == dimension && geometry.getNumGeometries() == 1) {
+            return geometry;
+        }
+        List<Geometry> components;
+        switch( dimension ) {
+        case 2:
+            components = PolygonExtracter.getPolygons(geometry);
+            break;
+        case 1:
+            components = LineStringExtracter.getLines(geometry);
+            break;
+        default:
+            components = PointExtracter.getPoints(geometry);
+            break;
+        }
+        int dropped = countParts(geometry) - components.size();
+        if (dropped > 0) {
+            droppedPieces.addAndGet(dropped);
+        }
+        if (components.isEmpty()) {
+            return null;
+        }
+        return geometry.getFactory().buildGeometry(components);
+    }
+
+    private static int countParts( Geometry geometry ) {
+        if (!(geometry instanceof GeometryCollection)) {
+            return geometry.isEmpty() ? 0 : 1;
+        }
+        int count = 0;
+        for( int i = 0; i < geometry.getNumGeometries(); i++ ) {
+            count += countParts(geometry.getGeometryN(i));
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.spatialite;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * A forward only cursor over the records of a query.
+ *
+ * <p>The records are read from the database only when the cursor is moved, so large
+ * results are never kept in memory and the first records can be processed while the
+ * query is still running. The geometry column is kept as WKB and decoded only when
+ * asked for, always with the same reader.</p>
+ *
+ * <p>The cursor can be canceled from another thread, it then stops at the next move.
+ * A running step of the query is not interrupted: the statement uses the connection
+ * of the database, and the sqlite driver would interrupt all of its statements,
+ * also the ones of other cursors and queries. The cursor needs to be closed to release
+ * the statement.</p>
+ *
+ * <pre>
+ * try (SpatialiteCursor cursor = db.queryGeometriesIn(tableName, envelope)) {
+ *     while( cursor.next() ) {
+ *         Geometry geometry = cursor.getGeometry();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteCursor implements AutoCloseable {
+
+    /**
+     * The number of rows the driver is hinted to fetch at a time.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Geometry index that asks to find the geometry column from the result types.
+     */
+    static final int DETECT_GEOMETRY = -2;
+
+    private final Statement stmt;
+    private final ResultSet rs;
+    private final int columnCount;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> types = new ArrayList<>();
+    private int geometryIndex;
+    private boolean isGeometryLenient;
+    private final WKBReader wkbReader = new WKBReader();
+
+    private volatile boolean isCanceled = false;
+    private boolean isClosed = false;
+    private long readCount = 0;
+
+    /**
+     * Run a query.
+     *
+     * @param conn the connection to use.
+     * @param sql the query.
+     * @param fetchSize the fetch size hint for the driver.
+     * @param geometryIndex the index of the WKB geometry column, -1 if there is none,
+     *          {@link #DETECT_GEOMETRY} to find it from the result types.
+     * @param isGeometryLenient if <code>true</code>, geometries that can't be decoded are returned as <code>null</code>.
+     * @throws SQLException
+     */
+    public SpatialiteCursor( Connection conn, String sql, int fetchSize, int geometryIndex, boolean isGeometryLenient )
+            throws SQLException {
+        this.isGeometryLenient = isGeometryLenient;
+        stmt = conn.createStatement();
+        try {
+            stmt.setFetchSize(fetchSize);
+            rs = stmt.executeQuery(sql);
+            ResultSetMetaData rsmd = rs.getMetaData();
+            columnCount = rsmd.getColumnCount();
+            int detectedIndex = -1;
+            for( int i = 1; i <= columnCount; i++ ) {
+                names.add(rsmd.getColumnName(i));
+                String columnTypeName = rsmd.getColumnTypeName(i);
+                types.add(columnTypeName);
+                if (columnTypeName.equals("BLOB") && SpatialiteGeometryType.forValue(rsmd.getColumnType(i)) != null) {
+                    detectedIndex = i - 1;
+                }
+            }
+            this.geometryIndex = geometryIndex == DETECT_GEOMETRY ? detectedIndex : geometryIndex;
+        } catch (SQLException e) {
+            stmt.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the metadata of the result.
+     * @throws SQLException
+     */
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return rs.getMetaData();
+    }
+
+    /**
+     * @return the column names.
+     */
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return the column type names.
+     */
+    public List<String> getColumnTypes() {
+        return Collections.unmodifiableList(types);
+    }
+
+    /**
+     * @return the number of columns.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @return the index of the geometry column or -1.
+     */
+    public int getGeometryIndex() {
+        return geometryIndex;
+    }
+
+    /**
+     * Set the geometry column.
+     *
+     * @param geometryIndex the index of the WKB geometry column or -1.
+     * @param isGeometryLenient if <code>true</code>, geometries that can't be decoded are returned as <code>null</code>.
+     */
+    void setGeometryIndex( int geometryIndex, boolean isGeometryLenient ) {
+        this.geometryIndex = geometryIndex;
+        this.isGeometryLenient = isGeometryLenient;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return <code>false</code> if there are no more records or the cursor has been canceled.
+     * @throws SQLException
+     */
+    public boolean next() throws SQLException {
+        if (isCanceled || isClosed) {
+            return false;
+        }
+        if (rs.next()) {
+            readCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of records read so far.
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Get a value of the current record.
+     *
+     * @param index the index of the column.
+     * @return the value, with the geometry decoded.
+     * @throws SQLException
+     * @throws ParseException
+     */
+    public Object getObject( int index ) throws SQLException, ParseException {
+        if (index == geometryIndex) {
+            return getGeometry();
+        }
+        return rs.getObject(index + 1);
+    }
+
+    /**
+     * @return the WKB of the geometry of the current record.
+     * @throws SQLException
+     */
+    public byte[] getGeometryBytes() throws SQLException {
+        if (geometryIndex < 0) {
+            return null;
+        }
+        return rs.getBytes(geometryIndex + 1);
+    }
+
+    /**
+     * @return the decoded geometry of the current record or <code>null</code>.
+     * @throws SQLException
+     * @throws ParseException
+     */
+    public Geometry getGeometry() throws SQLException, ParseException {
+        byte[] geomBytes = getGeometryBytes();
+        if (geomBytes == null) {
+            return null;
+        }
+        try {
+            return wkbReader.read(geomBytes);
+        } catch (ParseException | RuntimeException e) {
+            if (isGeometryLenient) {
+                // it could be missing ST_AsBinary() in the sql
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return all the values of the current record, with the geometry decoded.
+     * @throws SQLException
+     * @throws ParseException
+     */
+    public Object[] getRecord() throws SQLException, ParseException {
+        Object[] rec = new Object[columnCount];
+        for( int i = 0; i < columnCount; i++ ) {
+            rec[i] = getObject(i);
+        }
+        return rec;
+    }
+
+    /**
+     * Stop the cursor at the next move.
+     *
+     * <p>Can be called from any thread. A running step of the query is not interrupted,
+     * since that would interrupt all the statements of the connection. The cursor still
+     * needs to be closed.</p>
+     */
+    public void cancel() {
+        isCanceled = true;
+    }
+
+    /**
+     * @return <code>true</code> if the cursor has been canceled.
+     */
+    public boolean isCanceled() {
+        return isCanceled;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+    }
+
+}
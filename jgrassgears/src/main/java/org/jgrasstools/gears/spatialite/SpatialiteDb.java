@@ -41,10 +41,8 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.geotools.feature.DefaultFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.referencing.CRS;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.sqlite.SQLiteConfig;
@@ -279,6 +277,45 @@ public class SpatialiteDb implements AutoCloseable {
         }
     }
 
+    /**
+     * Create the spatial index of a geometry column, indexing the existing records.
+     *
+     * @param tableName the table name.
+     * @param geomColName the geometry column name.
+     * @throws SQLException
+     */
+    public void createSpatialIndex( String tableName, String geomColName ) throws SQLException {
+        if (geomColName == null) {
+            geomColName = defaultGeomFieldName;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            String sql = "SELECT CreateSpatialIndex('" + tableName + "', '" + geomColName + "');";
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * Remove the spatial index of a geometry column.
+     *
+     * <p>Useful before bulk inserts, since updating the index at every insert is
+     * a lot slower than creating it once with {@link #createSpatialIndex(String, String)}.</p>
+     *
+     * @param tableName the table name.
+     * @param geomColName the geometry column name.
+     * @throws SQLException
+     */
+    public void dropSpatialIndex( String tableName, String geomColName ) throws SQLException {
+        if (geomColName == null) {
+            geomColName = defaultGeomFieldName;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            String sql = "SELECT DisableSpatialIndex('" + tableName + "', '" + geomColName + "');";
+            stmt.execute(sql);
+            sql = "DROP TABLE IF EXISTS idx_" + tableName + "_" + geomColName;
+            stmt.execute(sql);
+        }
+    }
+
     /**
      * Insert a geometry into a table.
      * 
@@ -535,8 +572,33 @@ public class SpatialiteDb implements AutoCloseable {
      */
     public QueryResult getTableRecordsMapIn( String tableName, Envelope envelope, boolean alsoPK_UID, int limit )
             throws SQLException, ParseException {
-        QueryResult queryResult = new QueryResult();
+        try (SpatialiteCursor cursor = queryTableRecordsIn(tableName, envelope, alsoPK_UID, limit)) {
+            QueryResult queryResult = new QueryResult();
+            queryResult.names.addAll(cursor.getColumnNames());
+            queryResult.types.addAll(cursor.getColumnTypes());
+            queryResult.geometryIndex = cursor.getGeometryIndex();
+            while( cursor.next() ) {
+                queryResult.data.add(cursor.getRecord());
+            }
+            return queryResult;
+        }
+    }
 
+    /**
+     * Get a cursor over the table records with geometry in the given envelope.
+     * 
+     * <p>The records are read while the cursor is moved, see {@link #getTableRecordsMapIn(String, Envelope, boolean, int)}
+     * for the content. The geometry, if any, is the first column.
+     * 
+     * @param tableName the table name.
+     * @param envelope the envelope to check.
+     * @param alsoPK_UID if <code>true</code>, also the PK_UID column is considered.
+     * @param limit if > 0 a limit is set.
+     * @return the cursor, to be closed after use.
+     * @throws SQLException
+     */
+    public SpatialiteCursor queryTableRecordsIn( String tableName, Envelope envelope, boolean alsoPK_UID, int limit )
+            throws SQLException {
         SpatialiteGeometryColumns gCol = getGeometryColumnsForTable(tableName);
         boolean hasGeom = gCol != null;
 
@@ -572,39 +634,7 @@ public class SpatialiteDb implements AutoCloseable {
         if (limit > 0) {
             sql += " LIMIT " + limit;
         }
-        WKBReader wkbReader = new WKBReader();
-        try (Statement stmt = conn.createStatement()) {
-            ResultSet rs = stmt.executeQuery(sql);
-            ResultSetMetaData rsmd = rs.getMetaData();
-            int columnCount = rsmd.getColumnCount();
-
-            for( int i = 1; i <= columnCount; i++ ) {
-                String columnName = rsmd.getColumnName(i);
-                queryResult.names.add(columnName);
-                String columnTypeName = rsmd.getColumnTypeName(i);
-                queryResult.types.add(columnTypeName);
-                if (hasGeom && columnName.equals(gCol.f_geometry_column)) {
-                    queryResult.geometryIndex = i - 1;
-                }
-            }
-
-            while( rs.next() ) {
-                int i = 1;
-                Object[] rec = new Object[columnCount];
-                if (hasGeom) {
-                    byte[] geomBytes = rs.getBytes(i);
-                    Geometry geometry = wkbReader.read(geomBytes);
-                    rec[i - 1] = geometry;
-                    i++;
-                }
-                for( int j = i; j <= columnCount; j++ ) {
-                    Object object = rs.getObject(j);
-                    rec[j - 1] = object;
-                }
-                queryResult.data.add(rec);
-            }
-            return queryResult;
-        }
+        return new SpatialiteCursor(conn, sql, SpatialiteCursor.DEFAULT_FETCH_SIZE, hasGeom ? 0 : -1, false);
     }
 
     /**
@@ -617,43 +647,14 @@ public class SpatialiteDb implements AutoCloseable {
      * @throws ParseException
      */
     public QueryResult getTableRecordsMapFromRawSql( String sql, int limit ) throws SQLException, ParseException {
-        QueryResult queryResult = new QueryResult();
-        WKBReader wkbReader = new WKBReader();
-        try (Statement stmt = conn.createStatement()) {
-            ResultSet rs = stmt.executeQuery(sql);
-            ResultSetMetaData rsmd = rs.getMetaData();
-            int columnCount = rsmd.getColumnCount();
-            int geometryIndex = -1;
-            for( int i = 1; i <= columnCount; i++ ) {
-                int columnType = rsmd.getColumnType(i);
-                String columnName = rsmd.getColumnName(i);
-                queryResult.names.add(columnName);
-                String columnTypeName = rsmd.getColumnTypeName(i);
-                queryResult.types.add(columnTypeName);
-                if (columnTypeName.equals("BLOB") && SpatialiteGeometryType.forValue(columnType) != null) {
-                    geometryIndex = i;
-                    queryResult.geometryIndex = i - 1;
-                }
-            }
-            int count = 0;
-            while( rs.next() ) {
-                Object[] rec = new Object[columnCount];
-                for( int j = 1; j <= columnCount; j++ ) {
-                    if (j == geometryIndex) {
-                        byte[] geomBytes = rs.getBytes(j);
-                        try {
-                            Geometry geometry = wkbReader.read(geomBytes);
-                            rec[j - 1] = geometry;
-                        } catch (Exception e) {
-                            // ignore this, it could be missing ST_AsBinary() in the sql
-                        }
-                    } else {
-                        Object object = rs.getObject(j);
-                        rec[j - 1] = object;
-                    }
-                }
-                queryResult.data.add(rec);
-                if (limit > 0 && ++count > (limit - 1)) {
+        try (SpatialiteCursor cursor = queryRawSql(sql)) {
+            QueryResult queryResult = new QueryResult();
+            queryResult.names.addAll(cursor.getColumnNames());
+            queryResult.types.addAll(cursor.getColumnTypes());
+            queryResult.geometryIndex = cursor.getGeometryIndex();
+            while( cursor.next() ) {
+                queryResult.data.add(cursor.getRecord());
+                if (limit > 0 && cursor.getReadCount() >= limit) {
                     break;
                 }
             }
@@ -661,6 +662,21 @@ public class SpatialiteDb implements AutoCloseable {
         }
     }
 
+    /**
+     * Get a cursor over the records of a query from raw sql.
+     * 
+     * <p>The geometry column is recognized from the result types. Geometries
+     * that can't be decoded (for example if ST_AsBinary() is missing in the sql)
+     * are returned as <code>null</code>.
+     * 
+     * @param sql the sql to run.
+     * @return the cursor, to be closed after use.
+     * @throws SQLException
+     */
+    public SpatialiteCursor queryRawSql( String sql ) throws SQLException {
+        return new SpatialiteCursor(conn, sql, SpatialiteCursor.DEFAULT_FETCH_SIZE, SpatialiteCursor.DETECT_GEOMETRY, true);
+    }
+
     /**
      * Execute a query from raw sql and put the result in a csv file.
      * 
@@ -742,6 +758,28 @@ public class SpatialiteDb implements AutoCloseable {
      * @throws Exception
      */
     public DefaultFeatureCollection runRawSqlToFeatureCollection( String simpleSql ) throws Exception {
+        DefaultFeatureCollection fc = new DefaultFeatureCollection();
+        SpatialiteFeatureIterator featureIterator = runRawSqlToFeatureIterator(simpleSql);
+        try {
+            while( featureIterator.hasNext() ) {
+                fc.add(featureIterator.next());
+            }
+        } finally {
+            featureIterator.close();
+        }
+        return fc;
+    }
+
+    /**
+     * Get an iterator over the features of an sql statement.
+     * 
+     * <p>The features are built while the iterator is moved, see {@link #runRawSqlToFeatureCollection(String)}.
+     * 
+     * @param simpleSql the sql.
+     * @return the feature iterator, to be closed after use.
+     * @throws Exception
+     */
+    public SpatialiteFeatureIterator runRawSqlToFeatureIterator( String simpleSql ) throws Exception {
         String[] split = simpleSql.split("\\s+");
         String tableName = null;
         for( int i = 0; i < split.length; i++ ) {
@@ -759,11 +797,9 @@ public class SpatialiteDb implements AutoCloseable {
             throw new IllegalArgumentException("The supplied table name doesn't seem to be spatial: " + tableName);
         }
 
-        DefaultFeatureCollection fc = new DefaultFeatureCollection();
-        WKBReader wkbReader = new WKBReader();
-        try (Statement stmt = conn.createStatement()) {
-            ResultSet rs = stmt.executeQuery(simpleSql);
-            ResultSetMetaData rsmd = rs.getMetaData();
+        SpatialiteCursor cursor = new SpatialiteCursor(conn, simpleSql, SpatialiteCursor.DEFAULT_FETCH_SIZE, -1, false);
+        try {
+            ResultSetMetaData rsmd = cursor.getMetaData();
             int columnCount = rsmd.getColumnCount();
             int geometryIndex = -1;
 
@@ -803,29 +839,14 @@ public class SpatialiteDb implements AutoCloseable {
                     }
                 }
             }
+            cursor.setGeometryIndex(geometryIndex - 1, false);
 
             SimpleFeatureType type = b.buildFeatureType();
-            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-            while( rs.next() ) {
-                Object[] values = new Object[columnCount];
-                for( int j = 1; j <= columnCount; j++ ) {
-                    if (j == geometryIndex) {
-                        byte[] geomBytes = rs.getBytes(j);
-                        Geometry geometry = wkbReader.read(geomBytes);
-                        values[j - 1] = geometry;
-                    } else {
-                        Object object = rs.getObject(j);
-                        if (object != null) {
-                            values[j - 1] = object;
-                        }
-                    }
-                }
-                builder.addAll(values);
-                SimpleFeature feature = builder.buildFeature(null);
-                fc.add(feature);
-            }
+            return new SpatialiteFeatureIterator(cursor, type);
+        } catch (Exception e) {
+            cursor.close();
+            throw e;
         }
-        return fc;
     }
 
     /**
@@ -898,7 +919,25 @@ public class SpatialiteDb implements AutoCloseable {
      */
     public List<Geometry> getGeometriesIn( String tableName, Envelope envelope ) throws SQLException, ParseException {
         List<Geometry> geoms = new ArrayList<Geometry>();
+        try (SpatialiteCursor cursor = queryGeometriesIn(tableName, envelope)) {
+            while( cursor.next() ) {
+                geoms.add(cursor.getGeometry());
+            }
+        }
+        return geoms;
+    }
 
+    /**
+     * Get a cursor over the geometries of a table inside a given envelope.
+     * 
+     * <p>The geometry is the only column of the cursor.
+     * 
+     * @param tableName the table name.
+     * @param envelope the envelope to check.
+     * @return the cursor, to be closed after use.
+     * @throws SQLException
+     */
+    public SpatialiteCursor queryGeometriesIn( String tableName, Envelope envelope ) throws SQLException {
         SpatialiteGeometryColumns gCol = getGeometryColumnsForTable(tableName);
         String sql = "SELECT ST_AsBinary(" + gCol.f_geometry_column + ") FROM " + tableName;
 
@@ -909,16 +948,7 @@ public class SpatialiteDb implements AutoCloseable {
             double y2 = envelope.getMaxY();
             sql += " WHERE " + getSpatialindexBBoxWherePiece(tableName, null, x1, y1, x2, y2);
         }
-        WKBReader wkbReader = new WKBReader();
-        try (Statement stmt = conn.createStatement()) {
-            ResultSet rs = stmt.executeQuery(sql);
-            while( rs.next() ) {
-                byte[] geomBytes = rs.getBytes(1);
-                Geometry geometry = wkbReader.read(geomBytes);
-                geoms.add(geometry);
-            }
-            return geoms;
-        }
+        return new SpatialiteCursor(conn, sql, SpatialiteCursor.DEFAULT_FETCH_SIZE, 0, false);
     }
 
     /**
@@ -0,0 +1,95 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.spatialite;
+
+import java.util.NoSuchElementException;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * A feature iterator that builds the features from a {@link SpatialiteCursor}
+ * while it is moved.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteFeatureIterator implements SimpleFeatureIterator {
+
+    private final SpatialiteCursor cursor;
+    private final SimpleFeatureBuilder builder;
+    private Boolean hasNext = null;
+
+    SpatialiteFeatureIterator( SpatialiteCursor cursor, SimpleFeatureType featureType ) {
+        this.cursor = cursor;
+        builder = new SimpleFeatureBuilder(featureType);
+    }
+
+    /**
+     * @return the feature type of the features.
+     */
+    public SimpleFeatureType getFeatureType() {
+        return builder.getFeatureType();
+    }
+
+    /**
+     * Stop the iteration at the next move, see {@link SpatialiteCursor#cancel()}.
+     *
+     * <p>Can be called from any thread. The iterator still needs to be closed.</p>
+     */
+    public void cancel() {
+        cursor.cancel();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (hasNext == null) {
+            try {
+                hasNext = cursor.next();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return hasNext;
+    }
+
+    @Override
+    public SimpleFeature next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasNext = null;
+        try {
+            builder.addAll(cursor.getRecord());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return builder.buildFeature(null);
+    }
+
+    @Override
+    public void close() {
+        try {
+            cursor.close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
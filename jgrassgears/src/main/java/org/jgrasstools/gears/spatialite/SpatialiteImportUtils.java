@@ -20,16 +20,24 @@ package org.jgrasstools.gears.spatialite;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.data.store.ReprojectingFeatureCollection;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 import org.jgrasstools.gears.utils.CrsUtilities;
 import org.jgrasstools.gears.utils.files.FileUtilities;
 import org.opengis.feature.simple.SimpleFeature;
@@ -37,6 +45,7 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
@@ -45,6 +54,7 @@ import com.vividsolutions.jts.geom.MultiPoint;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKBWriter;
 
 /**
  * Import utilities.
@@ -53,6 +63,10 @@ import com.vividsolutions.jts.geom.Polygon;
  */
 public class SpatialiteImportUtils {
 
+    private static final int CHUNK_SIZE = 10000;
+    private static final int STATEMENT_BATCH_SIZE = 1000;
+    private static final int TRANSACTION_SIZE = 100000;
+
     /**
      * Create a spatial table using a shapefile as schema.
      * 
@@ -122,85 +136,255 @@ public class SpatialiteImportUtils {
      * @param shapeFile the shapefile to import.
      * @param tableName the name of the table to import to.
      * @param limit if > 0, a limit to teh imported features is applied.
+     * @return the number of imported features.
      * @throws Exception
      */
-    public static void importShapefile( SpatialiteDb db, File shapeFile, String tableName, int limit ) throws Exception {
-        FileDataStore store = FileDataStoreFinder.getDataStore(shapeFile);
-        SimpleFeatureSource featureSource = store.getFeatureSource();
-        SimpleFeatureType schema = featureSource.getSchema();
-        List<AttributeDescriptor> attributeDescriptors = schema.getAttributeDescriptors();
+    public static int importShapefile( SpatialiteDb db, File shapeFile, String tableName, int limit ) throws Exception {
+        return importShapefile(db, shapeFile, tableName, limit, new DummyProgressMonitor());
+    }
 
-        SimpleFeatureCollection features = featureSource.getFeatures();
+    /**
+     * Import a shapefile into a table.
+     * 
+     * <p>The features are read in chunks. The geometries of a chunk are reprojected to the
+     * srid of the table and encoded as WKB in parallel, while the previous chunk is inserted.
+     * The inserts are executed in batches inside large transactions. The spatial index of
+     * the table, if any, is dropped before the import and created again at the end, also
+     * if the import fails.</p>
+     * 
+     * @param db the database to use.
+     * @param shapeFile the shapefile to import.
+     * @param tableName the name of the table to import to.
+     * @param limit if > 0, a limit to teh imported features is applied.
+     * @param pm the monitor.
+     * @return the number of imported features.
+     * @throws Exception
+     */
+    public static int importShapefile( SpatialiteDb db, File shapeFile, String tableName, int limit, IJGTProgressMonitor pm )
+            throws Exception {
+        FileDataStore store = FileDataStoreFinder.getDataStore(shapeFile);
+        try {
+            SimpleFeatureSource featureSource = store.getFeatureSource();
+            SimpleFeatureType schema = featureSource.getSchema();
+            List<AttributeDescriptor> attributeDescriptors = schema.getAttributeDescriptors();
 
-        List<String[]> tableInfo = db.getTableColumns(tableName);
-        List<String> tableColumns = new ArrayList<>();
-        for( String[] item : tableInfo ) {
-            tableColumns.add(item[0]);
-        }
-        SpatialiteGeometryColumns geometryColumns = db.getGeometryColumnsForTable(tableName);
-        String gCol = geometryColumns.f_geometry_column;
+            SimpleFeatureCollection features = featureSource.getFeatures();
 
-        int epsg = geometryColumns.srid;
-        CoordinateReferenceSystem crs = CRS.decode("EPSG:" + epsg);
-        ReprojectingFeatureCollection repFeatures = new ReprojectingFeatureCollection(features, crs);
-        SimpleFeatureIterator featureIterator = repFeatures.features();
+            List<String[]> tableInfo = db.getTableColumns(tableName);
+            List<String> tableColumns = new ArrayList<>();
+            for( String[] item : tableInfo ) {
+                tableColumns.add(item[0]);
+            }
+            SpatialiteGeometryColumns geometryColumns = db.getGeometryColumnsForTable(tableName);
+            String gCol = geometryColumns.f_geometry_column;
 
-        String valueNames = "";
-        String qMarks = "";
-        for( AttributeDescriptor attributeDescriptor : attributeDescriptors ) {
-            String attrName = attributeDescriptor.getLocalName();
-            if (attrName.equals(SpatialiteDb.PK_UID)) {
-                continue;
+            int epsg = geometryColumns.srid;
+            CoordinateReferenceSystem crs = CRS.decode("EPSG:" + epsg);
+            CoordinateReferenceSystem shpCrs = schema.getCoordinateReferenceSystem();
+            MathTransform transform = null;
+            if (shpCrs != null && !CRS.equalsIgnoreMetadata(shpCrs, crs)) {
+                transform = CRS.findMathTransform(shpCrs, crs);
             }
-            if (attributeDescriptor instanceof GeometryDescriptor) {
-                valueNames += "," + gCol;
-                qMarks += ",GeomFromText(?, " + epsg + ")";
-            } else {
-                if (!tableColumns.contains(attrName)) {
-                    throw new IllegalArgumentException("The imported shapefile doesn't seem to match the table's schema.");
+
+            // the position of every attribute in the insert statement, 0 if not inserted
+            int[] parameterIndexes = new int[attributeDescriptors.size()];
+            int parametersNum = 0;
+            String valueNames = "";
+            String qMarks = "";
+            for( int i = 0; i < attributeDescriptors.size(); i++ ) {
+                AttributeDescriptor attributeDescriptor = attributeDescriptors.get(i);
+                String attrName = attributeDescriptor.getLocalName();
+                if (attrName.equals(SpatialiteDb.PK_UID)) {
+                    continue;
+                }
+                if (attributeDescriptor instanceof GeometryDescriptor) {
+                    valueNames += "," + gCol;
+                    qMarks += ",GeomFromWKB(?, " + epsg + ")";
+                } else {
+                    if (!tableColumns.contains(attrName)) {
+                        throw new IllegalArgumentException("The imported shapefile doesn't seem to match the table's schema.");
+                    }
+                    valueNames += "," + attrName;
+                    qMarks += ",?";
                 }
-                valueNames += "," + attrName;
-                qMarks += ",?";
+                parameterIndexes[i] = ++parametersNum;
+            }
+            valueNames = valueNames.substring(1);
+            qMarks = qMarks.substring(1);
+            String sql = "INSERT INTO " + tableName + " (" + valueNames + ") VALUES (" + qMarks + ")";
+
+            boolean hasSpatialIndex = geometryColumns.spatial_index_enabled == 1;
+            if (hasSpatialIndex) {
+                db.dropSpatialIndex(tableName, gCol);
             }
-        }
-        valueNames = valueNames.substring(1);
-        qMarks = qMarks.substring(1);
-        String sql = "INSERT INTO " + tableName + " (" + valueNames + ") VALUES (" + qMarks + ")";
 
-        Connection conn = db.getConnection();
-        try (PreparedStatement pStmt = conn.prepareStatement(sql)) {
             int count = 0;
-            while( featureIterator.hasNext() ) {
-                SimpleFeature f = (SimpleFeature) featureIterator.next();
-                List<Object> attributes = f.getAttributes();
-                for( int i = 0; i < attributes.size(); i++ ) {
-                    Object object = attributes.get(i);
-                    if (object == null) {
-                        continue;
+            boolean isLoaded = false;
+            try {
+                int maxCount = limit > 0 ? limit : Integer.MAX_VALUE;
+                int size = features.size();
+                pm.beginTask("Importing " + shapeFile.getName() + "...",
+                        size < 0 ? IJGTProgressMonitor.UNKNOWN : Math.min(size, maxCount));
+                long startTime = System.currentTimeMillis();
+                Connection conn = db.getConnection();
+                boolean autoCommit = conn.getAutoCommit();
+                conn.setAutoCommit(false);
+                SimpleFeatureIterator featureIterator = features.features();
+                try (PreparedStatement pStmt = conn.prepareStatement(sql)) {
+                    List<SimpleFeature> chunk = readChunk(featureIterator, Math.min(CHUNK_SIZE, maxCount));
+                    int read = chunk.size();
+                    Future<Object[][]> converted = null;
+                    if (!chunk.isEmpty()) {
+                        converted = convertChunk(chunk, parameterIndexes, parametersNum, transform);
                     }
-                    int iPlus = i + 1;
-                    if (object instanceof Double) {
-                        pStmt.setDouble(iPlus, (Double) object);
-                    } else if (object instanceof Float) {
-                        pStmt.setFloat(iPlus, (Float) object);
-                    } else if (object instanceof Integer) {
-                        pStmt.setInt(iPlus, (Integer) object);
-                    } else if (object instanceof String) {
-                        pStmt.setString(iPlus, (String) object);
-                    } else if (object instanceof Geometry) {
-                        pStmt.setString(iPlus, ((Geometry) object).toText());
-                    } else {
-                        pStmt.setString(iPlus, object.toString());
+                    int inBatch = 0;
+                    int inTransaction = 0;
+                    while( converted != null ) {
+                        Object[][] rows = getConverted(converted);
+                        // convert the next chunk while this one is inserted
+                        converted = null;
+                        if (!pm.isCanceled()) {
+                            chunk = readChunk(featureIterator, Math.min(CHUNK_SIZE, maxCount - read));
+                            read += chunk.size();
+                            if (!chunk.isEmpty()) {
+                                converted = convertChunk(chunk, parameterIndexes, parametersNum, transform);
+                            }
+                        }
+
+                        for( Object[] values : rows ) {
+                            setInsertValues(pStmt, values);
+                            pStmt.addBatch();
+                            count++;
+                            inBatch++;
+                            inTransaction++;
+                            if (inBatch >= STATEMENT_BATCH_SIZE) {
+                                pStmt.executeBatch();
+                                inBatch = 0;
+                            }
+                            if (inTransaction >= TRANSACTION_SIZE) {
+                                conn.commit();
+                                inTransaction = 0;
+                            }
+                        }
+                        pm.worked(rows.length);
                     }
+                    if (inBatch > 0) {
+                        pStmt.executeBatch();
+                    }
+                    conn.commit();
+                } catch (Exception e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    featureIterator.close();
+                    conn.setAutoCommit(autoCommit);
                 }
-                pStmt.executeUpdate();
-
-                count++;
-                if (limit > 0 && count > limit) {
-                    break;
+                pm.done();
+                long loadTime = System.currentTimeMillis() - startTime;
+                pm.message("Imported " + count + " features in " + loadTime / 1000.0 + " s ("
+                        + (int) (count * 1000.0 / Math.max(loadTime, 1)) + " features/s)");
+                isLoaded = true;
+            } finally {
+                // also after a failed import, so that the table doesn't lose its index
+                if (hasSpatialIndex) {
+                    long indexStartTime = System.currentTimeMillis();
+                    try {
+                        db.createSpatialIndex(tableName, gCol);
+                    } catch (SQLException e) {
+                        if (isLoaded) {
+                            throw e;
+                        }
+                        // don't hide the error of the import
+                        pm.errorMessage("Unable to create the spatial index again: " + e.getMessage());
+                    }
+                    if (isLoaded) {
+                        pm.message("Created the spatial index in " + (System.currentTimeMillis() - indexStartTime) / 1000.0
+                                + " s");
+                    }
                 }
             }
-            featureIterator.close();
+            return count;
+        } finally {
+            store.dispose();
+        }
+    }
+
+    private static List<SimpleFeature> readChunk( SimpleFeatureIterator featureIterator, int maxSize ) {
+        List<SimpleFeature> chunk = new ArrayList<SimpleFeature>();
+        while( chunk.size() < maxSize && featureIterator.hasNext() ) {
+            chunk.add(featureIterator.next());
+        }
+        return chunk;
+    }
+
+    /**
+     * Start the conversion of a chunk of features to the values of the insert statement.
+     */
+    private static Future<Object[][]> convertChunk( final List<SimpleFeature> chunk, final int[] parameterIndexes,
+            final int parametersNum, final MathTransform transform ) {
+        return JGTExecutor.getPool().submit(new Callable<Object[][]>(){
+            public Object[][] call() throws Exception {
+                final Object[][] rows = new Object[chunk.size()][];
+                JGTExecutor.forEachIndex(chunk.size(), 0, null, null, new JGTExecutor.IndexProcessor(){
+                    public void process( int index ) throws Exception {
+                        List<Object> attributes = chunk.get(index).getAttributes();
+                        Object[] values = new Object[parametersNum];
+                        for( int i = 0; i < attributes.size(); i++ ) {
+                            int parameterIndex = parameterIndexes[i];
+                            if (parameterIndex == 0) {
+                                continue;
+                            }
+                            Object object = attributes.get(i);
+                            if (object instanceof Geometry) {
+                                Geometry geometry = (Geometry) object;
+                                if (transform != null) {
+                                    geometry = JTS.transform(geometry, transform);
+                                }
+                                object = new WKBWriter().write(geometry);
+                            }
+                            values[parameterIndex - 1] = object;
+                        }
+                        rows[index] = values;
+                    }
+                });
+                return rows;
+            }
+        });
+    }
+
+    private static Object[][] getConverted( Future<Object[][]> converted ) throws Exception {
+        try {
+            return converted.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static void setInsertValues( PreparedStatement pStmt, Object[] values ) throws SQLException {
+        for( int i = 0; i < values.length; i++ ) {
+            Object object = values[i];
+            int iPlus = i + 1;
+            if (object == null) {
+                pStmt.setNull(iPlus, Types.NULL);
+            } else if (object instanceof Double) {
+                pStmt.setDouble(iPlus, (Double) object);
+            } else if (object instanceof Float) {
+                pStmt.setFloat(iPlus, (Float) object);
+            } else if (object instanceof Integer) {
+                pStmt.setInt(iPlus, (Integer) object);
+            } else if (object instanceof Long) {
+                pStmt.setLong(iPlus, (Long) object);
+            } else if (object instanceof String) {
+                pStmt.setString(iPlus, (String) object);
+            } else if (object instanceof byte[]) {
+                pStmt.setBytes(iPlus, (byte[]) object);
+            } else {
+                pStmt.setString(iPlus, object.toString());
+            }
         }
     }
 }
@@ -64,4 +64,49 @@ public class BitMatrix {
     public void unMark( int col, int row ) {
         bitSet.set(row * cols + col, false);
     }
+
+    /**
+     * Gets the state of a particular bit.
+     * 
+     * @param index the position of the bit, as <code>row * cols + col</code>.
+     * @return <code>true</code> if the bit is set, else <code>false</code>.
+     */
+    public boolean isMarked( int index ) {
+        return bitSet.get(index);
+    }
+
+    /**
+     * Marks the bit in a given position.
+     * 
+     * @param index the position to mark, as <code>row * cols + col</code>.
+     */
+    public void mark( int index ) {
+        bitSet.set(index);
+    }
+
+    /**
+     * Unmarks the bit in a given position.
+     * 
+     * @param index the position to unmark, as <code>row * cols + col</code>.
+     */
+    public void unMark( int index ) {
+        bitSet.set(index, false);
+    }
+
+    /**
+     * Gets the first marked position starting from a given one.
+     * 
+     * @param fromIndex the position to start from (inclusive), as <code>row * cols + col</code>.
+     * @return the first marked position or -1 if there is none.
+     */
+    public int nextMarked( int fromIndex ) {
+        return bitSet.nextSetBit(fromIndex);
+    }
+
+    /**
+     * @return the number of marked bits.
+     */
+    public int getMarkedCount() {
+        return bitSet.cardinality();
+    }
 }
@@ -18,12 +18,16 @@
  */
 package org.jgrasstools.gears.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -32,7 +36,7 @@ import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.joda.time.DateTime;
 
 /**
- * Utilities class to zip and unzip folders.
+ * Utilities class to zip and unzip folders and to compress byte arrays.
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  * @since 0.7.0
@@ -145,6 +149,65 @@ public class CompressionUtilities {
         return newFirstName;
     }
 
+    /**
+     * Compress a byte array with the deflate algorithm, favouring speed over size.
+     * 
+     * @param data the data to compress.
+     * @param offset the position of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @return the compressed bytes.
+     */
+    public static byte[] deflate( byte[] data, int offset, int length ) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            byte[] buffer = new byte[8192];
+            while( !deflater.finished() ) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Uncompress a byte array compressed with {@link #deflate(byte[], int, int)}.
+     * 
+     * @param data the compressed data.
+     * @param offset the position of the first compressed byte.
+     * @param length the number of compressed bytes.
+     * @param inflatedLength the length of the uncompressed data.
+     * @return the uncompressed bytes.
+     * @throws IOException if the data are not valid.
+     */
+    public static byte[] inflate( byte[] data, int offset, int length, int inflatedLength ) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            byte[] inflated = new byte[inflatedLength];
+            int count = 0;
+            while( count < inflatedLength ) {
+                int read = inflater.inflate(inflated, count, inflatedLength - count);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count = count + read;
+            }
+            if (count != inflatedLength) {
+                throw new IOException("Compressed data are shorter than expected: " + count + " instead of " + inflatedLength);
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     static private void addToZip( String path, String srcFile, ZipOutputStream zip ) throws IOException {
         File folder = new File(srcFile);
         if (folder.isDirectory()) {
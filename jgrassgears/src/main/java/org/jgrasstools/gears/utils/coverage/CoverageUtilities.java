@@ -24,10 +24,15 @@ import static org.jgrasstools.gears.libs.modules.JGTConstants.doubleNovalue;
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.image.ComponentSampleModel;
+import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
@@ -40,6 +45,7 @@ import java.util.List;
 
 import javax.media.jai.ROI;
 import javax.media.jai.ROIShape;
+import javax.media.jai.RenderedImageAdapter;
 import javax.media.jai.RasterFactory;
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
@@ -68,6 +74,7 @@ import org.jgrasstools.gears.io.grasslegacy.GrassLegacyGridCoverage2D;
 import org.jgrasstools.gears.io.grasslegacy.GrassLegacyRandomIter;
 import org.jgrasstools.gears.io.grasslegacy.GrassLegacyWritableRaster;
 import org.jgrasstools.gears.io.grasslegacy.utils.Window;
+import org.jgrasstools.gears.libs.logging.JGTLogger;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
@@ -110,6 +117,53 @@ public class CoverageUtilities {
     public static final String ROWS = "ROWS"; //$NON-NLS-1$
     public static final String COLS = "COLS"; //$NON-NLS-1$
 
+    /**
+     * System property to set the number of cells above which rasters are created as {@link TiledDataBuffer tiled}.
+     */
+    public static final String TILED_RASTER_THRESHOLD_PROPERTY = "jgrasstools.tiledraster.threshold"; //$NON-NLS-1$
+    /**
+     * System property to set the number of tiles kept in memory by each {@link TiledDataBuffer tiled} raster.
+     */
+    public static final String TILED_RASTER_CACHE_PROPERTY = "jgrasstools.tiledraster.cachetiles"; //$NON-NLS-1$
+
+    private static volatile long tiledRasterThreshold = Long.getLong(TILED_RASTER_THRESHOLD_PROPERTY, Long.MAX_VALUE);
+    private static volatile int tiledRasterCacheTiles = Integer.getInteger(TILED_RASTER_CACHE_PROPERTY,
+            TiledDataBuffer.DEFAULT_CACHE_TILES);
+
+    /**
+     * Set the number of cells above which the rasters created through 
+     * {@link #createDoubleWritableRaster(int, int, Class, SampleModel, Double)} and
+     * {@link #renderedImage2WritableRaster(RenderedImage, boolean)} are backed by 
+     * a file based {@link TiledDataBuffer} instead of being held in memory.
+     * 
+     * <p>By default tiling is disabled, unless the {@link #TILED_RASTER_THRESHOLD_PROPERTY}
+     * system property is set.
+     * 
+     * @param cellsThreshold the number of cells, {@link Long#MAX_VALUE} to disable tiling.
+     */
+    public static void setTiledRasterThreshold( long cellsThreshold ) {
+        tiledRasterThreshold = cellsThreshold;
+    }
+
+    /**
+     * @return the number of cells above which rasters are tiled.
+     */
+    public static long getTiledRasterThreshold() {
+        return tiledRasterThreshold;
+    }
+
+    /**
+     * Set the number of tiles each tiled raster keeps in memory.
+     * 
+     * @param cacheTiles the number of tiles.
+     */
+    public static void setTiledRasterCacheTiles( int cacheTiles ) {
+        if (cacheTiles < 1) {
+            throw new IllegalArgumentException("At least one tile needs to be cached.");
+        }
+        tiledRasterCacheTiles = cacheTiles;
+    }
+
     /**
      * Creates a {@link RandomIter} for the given {@link GridCoverage2D}.
      * 
@@ -126,10 +180,32 @@ public class CoverageUtilities {
             return iter;
         }
         RenderedImage renderedImage = coverage.getRenderedImage();
+        TiledDataBuffer tiledBuffer = getTiledDataBuffer(renderedImage);
+        if (tiledBuffer != null) {
+            return new TiledRandomIter(tiledBuffer);
+        }
         RandomIter iter = RandomIterFactory.create(renderedImage, null);
         return iter;
     }
 
+    /**
+     * Creates a {@link RandomIter} for the given {@link Raster}.
+     * 
+     * <p>It is important to use this method since it supports also 
+     * {@link TiledDataBuffer tiled} rasters.
+     * 
+     * @param raster the raster on which to wrap a {@link RandomIter}.
+     * @return the iterator.
+     */
+    public static RandomIter getRandomIterator( Raster raster ) {
+        TiledDataBuffer tiledBuffer = getTiledDataBuffer(raster);
+        if (tiledBuffer != null) {
+            return new TiledRandomIter(tiledBuffer);
+        }
+        RandomIter iter = RandomIterFactory.create(raster, null);
+        return iter;
+    }
+
     /**
      * Creates a {@link WritableRandomIter}.
      * 
@@ -170,6 +246,10 @@ public class CoverageUtilities {
             double[][] data = wRaster.getData();
             getWritableRandomIterator(data[0].length, data.length);
         }
+        TiledDataBuffer tiledBuffer = getTiledDataBuffer(raster);
+        if (tiledBuffer != null) {
+            return new TiledRandomIter(tiledBuffer);
+        }
         WritableRandomIter iter = RandomIterFactory.createWritable(raster, null);
         return iter;
     }
@@ -225,6 +305,9 @@ public class CoverageUtilities {
         }
 
         if (!doesOverFlow(width, height)) {
+            if (sampleModel == null && isTiled(width, height, dataType)) {
+                return createTiledWritableRaster(width, height, dataType, value);
+            }
             if (sampleModel == null) {
                 sampleModel = new ComponentSampleModel(dataType, width, height, 1, width, new int[]{0});
             }
@@ -252,6 +335,129 @@ public class CoverageUtilities {
         }
     }
 
+    /**
+     * Creates a {@link WritableRaster writable raster} backed by a file based {@link TiledDataBuffer}.
+     * 
+     * <p>Only the tiles in use are kept in memory, which allows to handle rasters bigger 
+     * than the available heap. Iterators created through {@link #getRandomIterator(GridCoverage2D)}
+     * and {@link #getWritableRandomIterator(WritableRaster)} access the tiles directly.
+     * 
+     * @param width width of the raster to create.
+     * @param height height of the raster to create.
+     * @param dataType the {@link DataBuffer} data type, one of double, float or int.
+     * @param value value to which to set the raster to. If null, 0 is used.
+     * @return the tiled {@link WritableRaster writable raster}.
+     */
+    public static WritableRaster createTiledWritableRaster( int width, int height, int dataType, Double value ) {
+        double initialValue = value != null ? value : 0.0;
+        TiledDataBuffer dataBuffer = new TiledDataBuffer(dataType, width, height, initialValue,
+                TiledDataBuffer.DEFAULT_TILE_SIZE, tiledRasterCacheTiles);
+        SampleModel sampleModel = new ComponentSampleModel(dataType, width, height, 1, width, new int[]{0});
+        return Raster.createWritableRaster(sampleModel, dataBuffer, null);
+    }
+
+    /**
+     * Creates a single banked {@link DataBuffer} to hold a value per raster cell, 
+     * addressed by the cell index.
+     * 
+     * <p>Above the {@link #getTiledRasterThreshold() tiled raster threshold} the buffer is a 
+     * file based {@link TiledDataBuffer} whose tiles hold consecutive elements, so that sequential 
+     * scans touch one tile at the time. Such a buffer needs to be closed through 
+     * {@link #closeTiledBuffer(DataBuffer)}.</p>
+     * 
+     * @param dataType the {@link DataBuffer} data type, one of double, float or int.
+     * @param size the number of elements.
+     * @return the buffer, whose size can be bigger than the requested one.
+     */
+    public static DataBuffer createCellsBuffer( int dataType, int size ) {
+        if (dataType != DataBuffer.TYPE_DOUBLE && dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_INT) {
+            throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+        if (size > tiledRasterThreshold) {
+            int tileSize = TiledDataBuffer.DEFAULT_TILE_SIZE;
+            int height = (int) ((size + (long) tileSize - 1) / tileSize);
+            return new TiledDataBuffer(dataType, tileSize, height, 0.0, tileSize, tiledRasterCacheTiles);
+        }
+        switch( dataType ) {
+        case DataBuffer.TYPE_INT:
+            return new DataBufferInt(size);
+        case DataBuffer.TYPE_FLOAT:
+            return new DataBufferFloat(size);
+        default:
+            return new DataBufferDouble(size);
+        }
+    }
+
+    /**
+     * Closes the {@link TiledDataBuffer} backing a raster, deleting its temporary file.
+     * 
+     * <p>Nothing is done for rasters held in memory.</p>
+     * 
+     * @param raster the raster, can be <code>null</code>.
+     */
+    public static void closeTiledBuffer( Raster raster ) {
+        if (raster != null) {
+            closeTiledBuffer(raster.getDataBuffer());
+        }
+    }
+
+    /**
+     * Closes a {@link TiledDataBuffer}, deleting its temporary file.
+     * 
+     * <p>Nothing is done for buffers held in memory.</p>
+     * 
+     * @param dataBuffer the buffer, can be <code>null</code>.
+     */
+    public static void closeTiledBuffer( DataBuffer dataBuffer ) {
+        if (dataBuffer instanceof TiledDataBuffer) {
+            try {
+                ((TiledDataBuffer) dataBuffer).close();
+            } catch (IOException e) {
+                JGTLogger.logError(CoverageUtilities.class, "Error closing the tiled raster.", e);
+            }
+        }
+    }
+
+    /**
+     * Get the {@link TiledDataBuffer} backing a raster.
+     * 
+     * @param raster the raster to check.
+     * @return the tiled buffer or <code>null</code> if the raster is not tiled.
+     */
+    public static TiledDataBuffer getTiledDataBuffer( Raster raster ) {
+        if (raster != null && raster.getDataBuffer() instanceof TiledDataBuffer) {
+            return (TiledDataBuffer) raster.getDataBuffer();
+        }
+        return null;
+    }
+
+    /**
+     * Get the {@link TiledDataBuffer} backing an image.
+     * 
+     * @param renderedImage the image to check.
+     * @return the tiled buffer or <code>null</code> if the image is not backed by a single tiled raster.
+     */
+    public static TiledDataBuffer getTiledDataBuffer( RenderedImage renderedImage ) {
+        if (renderedImage == null || renderedImage.getNumXTiles() != 1 || renderedImage.getNumYTiles() != 1
+                || renderedImage.getSampleModel().getNumBands() != 1) {
+            return null;
+        }
+        if (renderedImage instanceof BufferedImage) {
+            return getTiledDataBuffer(((BufferedImage) renderedImage).getRaster());
+        }
+        if (renderedImage instanceof RenderedImageAdapter) {
+            return getTiledDataBuffer(((RenderedImageAdapter) renderedImage).getWrappedImage());
+        }
+        return null;
+    }
+
+    private static boolean isTiled( int width, int height, int dataType ) {
+        if (dataType != DataBuffer.TYPE_DOUBLE && dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_INT) {
+            return false;
+        }
+        return (long) width * height > tiledRasterThreshold;
+    }
+
     /**
      * Creates a new {@link GridCoverage2D} using an existing as template.
      * 
@@ -837,6 +1043,9 @@ public class CoverageUtilities {
     /**
      * Creates a {@link GridCoverage2D coverage} from the {@link WritableRaster writable raster} and the necessary geographic Information.
      * 
+     * <p>Rasters backed by a {@link TiledDataBuffer} give a {@link TiledGridCoverage2D}, which 
+     * closes the buffer when disposed.</p>
+     * 
      * @param name the name of the coverage.
      * @param writableRaster the raster containing the data.
      * @param envelopeParams the map of boundary parameters.
@@ -865,6 +1074,10 @@ public class CoverageUtilities {
             GridCoverageFactory factory = CoverageFactoryFinder.getGridCoverageFactory(null);
 
             GridCoverage2D coverage2D = factory.create(name, writableRaster, writeEnvelope);
+            TiledDataBuffer tiledBuffer = getTiledDataBuffer(writableRaster);
+            if (tiledBuffer != null) {
+                return new TiledGridCoverage2D(name, coverage2D, tiledBuffer);
+            }
             return coverage2D;
         }
     }
@@ -901,9 +1114,26 @@ public class CoverageUtilities {
         int width = renderedImage.getWidth();
         int height = renderedImage.getHeight();
 
-        Raster data = renderedImage.getData();
-        WritableRaster writableRaster = data.createCompatibleWritableRaster();
-        writableRaster.setDataElements(0, 0, data);
+        WritableRaster writableRaster;
+        int dataType = renderedImage.getSampleModel().getDataType();
+        if (renderedImage.getSampleModel().getNumBands() == 1 && isTiled(width, height, dataType)) {
+            // copy in strips, to never have the whole image in memory
+            writableRaster = createTiledWritableRaster(width, height, dataType, null);
+            int minX = renderedImage.getMinX();
+            int minY = renderedImage.getMinY();
+            int stripHeight = TiledDataBuffer.DEFAULT_TILE_SIZE;
+            double[] strip = null;
+            for( int y = 0; y < height; y = y + stripHeight ) {
+                int h = Math.min(stripHeight, height - y);
+                Raster data = renderedImage.getData(new Rectangle(minX, minY + y, width, h));
+                strip = data.getSamples(minX, minY + y, width, h, 0, strip);
+                writableRaster.setSamples(0, y, width, h, 0, strip);
+            }
+        } else {
+            Raster data = renderedImage.getData();
+            writableRaster = data.createCompatibleWritableRaster();
+            writableRaster.setDataElements(0, 0, data);
+        }
         if (nullBorders) {
             for( int c = 0; c < width; c++ ) {
                 writableRaster.setSample(c, 0, 0, doubleNovalue);
@@ -0,0 +1,631 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single banked {@link DataBuffer} that keeps its data in square tiles
+ * stored in a temporary file, with only a limited number of tiles held in memory.
+ *
+ * <p>The elements are addressed like in a row major raster of the given width
+ * and height, so that the buffer can back a {@link java.awt.image.WritableRaster}
+ * with a {@link java.awt.image.ComponentSampleModel} of pixel stride 1 and scanline
+ * stride equal to the width, as the ones created through {@link CoverageUtilities}.</p>
+ *
+ * <p>The tiles are kept in a LRU cache. Evicted tiles are written to the file
+ * only if they have been modified, tiles never written are not stored at all and are
+ * read back as the initial value. The file is created only at the first eviction, so
+ * small rasters never touch the disk.</p>
+ *
+ * <p>The tiles hold the values in the data type of the buffer, int, float or double.
+ * The cache is split by tile in segments that are locked separately, so threads 
+ * working on tiles of different segments do not block each other.</p>
+ *
+ * <p>The cache statistics can be retrieved through {@link #getCacheHitRate()}
+ * and {@link #getCacheStatistics()}.</p>
+ *
+ * <p>The temporary file is deleted by {@link #close()}. Coverages built on the buffer through
+ * {@link CoverageUtilities#buildCoverage(String, java.awt.image.WritableRaster, java.util.HashMap, org.opengis.referencing.crs.CoordinateReferenceSystem)}
+ * close it when they are disposed.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TiledDataBuffer extends DataBuffer implements AutoCloseable {
+
+    /**
+     * The default side of the tiles.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /**
+     * The default number of tiles kept in memory.
+     */
+    public static final int DEFAULT_CACHE_TILES = 256;
+
+    /**
+     * The maximum number of separately locked cache segments.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int width;
+    private final int height;
+    private final int tileShift;
+    private final int tileMask;
+    private final int tileCols;
+    private final int tileCells;
+    private final int tileBytes;
+    private final int maxCachedTiles;
+    private final double initialValue;
+
+    private final Segment[] segments;
+
+    private final Object fileLock = new Object();
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private volatile FileChannel channel;
+    private volatile boolean isClosed = false;
+
+    /**
+     * A tile, holding the values in the data type of the buffer.
+     */
+    private static abstract class Tile {
+        int index;
+        boolean isDirty = false;
+
+        abstract double get( int cell );
+
+        abstract void set( int cell, double value );
+
+        abstract void fill( double value );
+
+        abstract void read( ByteBuffer buffer );
+
+        abstract void write( ByteBuffer buffer );
+    }
+
+    private static class IntTile extends Tile {
+        final int[] data;
+
+        IntTile( int cells ) {
+            data = new int[cells];
+        }
+
+        double get( int cell ) {
+            return data[cell];
+        }
+
+        void set( int cell, double value ) {
+            data[cell] = (int) value;
+        }
+
+        void fill( double value ) {
+            Arrays.fill(data, (int) value);
+        }
+
+        void read( ByteBuffer buffer ) {
+            buffer.asIntBuffer().get(data);
+        }
+
+        void write( ByteBuffer buffer ) {
+            buffer.asIntBuffer().put(data);
+        }
+    }
+
+    private static class FloatTile extends Tile {
+        final float[] data;
+
+        FloatTile( int cells ) {
+            data = new float[cells];
+        }
+
+        double get( int cell ) {
+            return data[cell];
+        }
+
+        void set( int cell, double value ) {
+            data[cell] = (float) value;
+        }
+
+        void fill( double value ) {
+            Arrays.fill(data, (float) value);
+        }
+
+        void read( ByteBuffer buffer ) {
+            buffer.asFloatBuffer().get(data);
+        }
+
+        void write( ByteBuffer buffer ) {
+            buffer.asFloatBuffer().put(data);
+        }
+    }
+
+    private static class DoubleTile extends Tile {
+        final double[] data;
+
+        DoubleTile( int cells ) {
+            data = new double[cells];
+        }
+
+        double get( int cell ) {
+            return data[cell];
+        }
+
+        void set( int cell, double value ) {
+            data[cell] = value;
+        }
+
+        void fill( double value ) {
+            Arrays.fill(data, value);
+        }
+
+        void read( ByteBuffer buffer ) {
+            buffer.asDoubleBuffer().get(data);
+        }
+
+        void write( ByteBuffer buffer ) {
+            buffer.asDoubleBuffer().put(data);
+        }
+    }
+
+    /**
+     * A separately locked part of the tile cache, holding the tiles whose
+     * index modulo the number of segments is the segment index.
+     */
+    private class Segment {
+        private final LinkedHashMap<Integer, Tile> cache;
+        private final BitSet storedTiles = new BitSet();
+        private Tile lastTile;
+        private Tile recycledTile;
+        private ByteBuffer ioBuffer;
+
+        long hits = 0;
+        long misses = 0;
+        long writes = 0;
+
+        Segment( final int maxTiles ) {
+            cache = new LinkedHashMap<Integer, Tile>(16, 0.75f, true){
+                private static final long serialVersionUID = 1L;
+                protected boolean removeEldestEntry( Map.Entry<Integer, Tile> eldest ) {
+                    if (size() > maxTiles) {
+                        evict(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Tile getTile( int index ) {
+            Tile tile = lastTile;
+            if (tile != null && tile.index == index) {
+                hits++;
+                return tile;
+            }
+            if (isClosed) {
+                throw new IllegalStateException("The tiled buffer has been closed.");
+            }
+            tile = cache.get(index);
+            if (tile != null) {
+                hits++;
+            } else {
+                misses++;
+                tile = loadTile(index);
+                cache.put(index, tile);
+            }
+            lastTile = tile;
+            return tile;
+        }
+
+        private Tile loadTile( int index ) {
+            Tile tile = recycledTile;
+            recycledTile = null;
+            if (tile == null) {
+                tile = newTile();
+            }
+            tile.index = index;
+            tile.isDirty = false;
+            if (storedTiles.get(index / segments.length)) {
+                try {
+                    ByteBuffer buffer = getIoBuffer();
+                    long position = (long) index * tileBytes;
+                    while( buffer.hasRemaining() ) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of the tile file.");
+                        }
+                    }
+                    buffer.flip();
+                    tile.read(buffer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                tile.fill(initialValue);
+            }
+            return tile;
+        }
+
+        private void evict( Tile tile ) {
+            if (tile == lastTile) {
+                lastTile = null;
+            }
+            if (tile.isDirty) {
+                try {
+                    FileChannel fileChannel = ensureFile();
+                    ByteBuffer buffer = getIoBuffer();
+                    tile.write(buffer);
+                    long position = (long) tile.index * tileBytes;
+                    while( buffer.hasRemaining() ) {
+                        fileChannel.write(buffer, position + buffer.position());
+                    }
+                    storedTiles.set(tile.index / segments.length);
+                    writes++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            recycledTile = tile;
+        }
+
+        private ByteBuffer getIoBuffer() {
+            if (ioBuffer == null) {
+                ioBuffer = ByteBuffer.allocateDirect(tileBytes).order(ByteOrder.nativeOrder());
+            }
+            ioBuffer.clear();
+            return ioBuffer;
+        }
+
+        void clear() {
+            lastTile = null;
+            recycledTile = null;
+            ioBuffer = null;
+            cache.clear();
+        }
+    }
+
+    /**
+     * Constructor with default tile and cache size.
+     *
+     * @param dataType the data type, one of {@link DataBuffer#TYPE_DOUBLE}, {@link DataBuffer#TYPE_FLOAT}
+     *              or {@link DataBuffer#TYPE_INT}.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param initialValue the value of the cells never written.
+     */
+    public TiledDataBuffer( int dataType, int width, int height, double initialValue ) {
+        this(dataType, width, height, initialValue, DEFAULT_TILE_SIZE, DEFAULT_CACHE_TILES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dataType the data type, one of {@link DataBuffer#TYPE_DOUBLE}, {@link DataBuffer#TYPE_FLOAT}
+     *              or {@link DataBuffer#TYPE_INT}.
+     * @param width the width of the raster.
+     * @param height the height of the raster.
+     * @param initialValue the value of the cells never written.
+     * @param tileSize the side of the tiles, needs to be a power of 2.
+     * @param maxCachedTiles the maximum number of tiles kept in memory.
+     */
+    public TiledDataBuffer( int dataType, int width, int height, double initialValue, int tileSize, int maxCachedTiles ) {
+        super(dataType, checkSize(width, height));
+        if (dataType != TYPE_DOUBLE && dataType != TYPE_FLOAT && dataType != TYPE_INT) {
+            throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+        if (tileSize < 1 || Integer.bitCount(tileSize) != 1 || tileSize > 4096) {
+            throw new IllegalArgumentException("The tile size needs to be a power of 2 not bigger than 4096: " + tileSize);
+        }
+        if (maxCachedTiles < 1) {
+            throw new IllegalArgumentException("At least one tile needs to be cached.");
+        }
+        this.width = width;
+        this.height = height;
+        this.tileShift = Integer.numberOfTrailingZeros(tileSize);
+        this.tileMask = tileSize - 1;
+        this.tileCols = (width + tileSize - 1) >> tileShift;
+        this.tileCells = tileSize * tileSize;
+        this.tileBytes = tileCells * DataBuffer.getDataTypeSize(dataType) / 8;
+        this.maxCachedTiles = maxCachedTiles;
+        this.initialValue = initialValue;
+
+        int segmentsCount = Math.min(MAX_SEGMENTS, maxCachedTiles);
+        segments = new Segment[segmentsCount];
+        for( int i = 0; i < segmentsCount; i++ ) {
+            segments[i] = new Segment(maxCachedTiles / segmentsCount);
+        }
+    }
+
+    private static int checkSize( int width, int height ) {
+        if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid raster size: " + width + "x" + height);
+        }
+        return width * height;
+    }
+
+    /**
+     * @return the width of the raster.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the raster.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the side of the tiles.
+     */
+    public int getTileSize() {
+        return tileMask + 1;
+    }
+
+    /**
+     * Get the value of a cell.
+     *
+     * @param x the column.
+     * @param y the row.
+     * @return the value.
+     */
+    public double getSample( int x, int y ) {
+        int index = tileIndex(x, y);
+        int cell = ((y & tileMask) << tileShift) + (x & tileMask);
+        Segment segment = segments[index % segments.length];
+        synchronized (segment) {
+            return segment.getTile(index).get(cell);
+        }
+    }
+
+    /**
+     * Set the value of a cell.
+     *
+     * @param x the column.
+     * @param y the row.
+     * @param value the value to set, converted following the data type.
+     */
+    public void setSample( int x, int y, double value ) {
+        int index = tileIndex(x, y);
+        int cell = ((y & tileMask) << tileShift) + (x & tileMask);
+        Segment segment = segments[index % segments.length];
+        synchronized (segment) {
+            Tile tile = segment.getTile(index);
+            tile.set(cell, value);
+            tile.isDirty = true;
+        }
+    }
+
+    /*
+     * the single bank accessors of DataBuffer go through the int ones, so they are all overridden
+     */
+
+    @Override
+    public int getElem( int i ) {
+        return (int) getElemDouble(i);
+    }
+
+    @Override
+    public float getElemFloat( int i ) {
+        return (float) getElemDouble(i);
+    }
+
+    @Override
+    public double getElemDouble( int i ) {
+        int y = i / width;
+        return getSample(i - y * width, y);
+    }
+
+    @Override
+    public void setElem( int i, int val ) {
+        setElemDouble(i, val);
+    }
+
+    @Override
+    public void setElemFloat( int i, float val ) {
+        setElemDouble(i, val);
+    }
+
+    @Override
+    public void setElemDouble( int i, double val ) {
+        int y = i / width;
+        setSample(i - y * width, y, val);
+    }
+
+    @Override
+    public int getElem( int bank, int i ) {
+        return (int) getElemDouble(bank, i);
+    }
+
+    @Override
+    public float getElemFloat( int bank, int i ) {
+        return (float) getElemDouble(bank, i);
+    }
+
+    @Override
+    public double getElemDouble( int bank, int i ) {
+        int y = i / width;
+        return getSample(i - y * width, y);
+    }
+
+    @Override
+    public void setElem( int bank, int i, int val ) {
+        setElemDouble(bank, i, val);
+    }
+
+    @Override
+    public void setElemFloat( int bank, int i, float val ) {
+        setElemDouble(bank, i, val);
+    }
+
+    @Override
+    public void setElemDouble( int bank, int i, double val ) {
+        int y = i / width;
+        setSample(i - y * width, y, val);
+    }
+
+    private int tileIndex( int x, int y ) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            throw new ArrayIndexOutOfBoundsException("Position out of raster: " + x + "/" + y);
+        }
+        return (y >> tileShift) * tileCols + (x >> tileShift);
+    }
+
+    private Tile newTile() {
+        switch( dataType ) {
+        case TYPE_INT:
+            return new IntTile(tileCells);
+        case TYPE_FLOAT:
+            return new FloatTile(tileCells);
+        default:
+            return new DoubleTile(tileCells);
+        }
+    }
+
+    private FileChannel ensureFile() throws IOException {
+        FileChannel fileChannel = channel;
+        if (fileChannel != null) {
+            return fileChannel;
+        }
+        synchronized (fileLock) {
+            if (isClosed) {
+                throw new IllegalStateException("The tiled buffer has been closed.");
+            }
+            if (channel == null) {
+                file = File.createTempFile("jgt_tiledraster_", ".tiles");
+                // only a fallback, the file is deleted on close
+                file.deleteOnExit();
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                channel = randomAccessFile.getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * @return the number of accesses served by a tile already in memory.
+     */
+    public long getCacheHits() {
+        long hits = 0;
+        for( Segment segment : segments ) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of accesses that required to load or create a tile.
+     */
+    public long getCacheMisses() {
+        long misses = 0;
+        for( Segment segment : segments ) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * @return the number of tiles written to disk.
+     */
+    public long getTileWrites() {
+        long writes = 0;
+        for( Segment segment : segments ) {
+            synchronized (segment) {
+                writes += segment.writes;
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * @return the fraction of accesses served by the cache, 1 if no access happened yet.
+     */
+    public double getCacheHitRate() {
+        long hits = getCacheHits();
+        long total = hits + getCacheMisses();
+        if (total == 0) {
+            return 1.0;
+        }
+        return (double) hits / total;
+    }
+
+    /**
+     * @return a human readable summary of the cache usage.
+     */
+    @SuppressWarnings("nls")
+    public String getCacheStatistics() {
+        long hits = getCacheHits();
+        long misses = getCacheMisses();
+        double hitRate = hits + misses == 0 ? 1.0 : (double) hits / (hits + misses);
+        return String.format("Tile cache: %d hits, %d misses, hit rate %.2f%%, %d tiles written to disk (%dx%d tiles of %d cells, %d cached).",
+                hits, misses, hitRate * 100.0, getTileWrites(), tileCols, (height + tileMask) >> tileShift, tileCells,
+                maxCachedTiles);
+    }
+
+    /**
+     * @return <code>true</code> if the buffer has been closed.
+     */
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * Releases the memory and deletes the temporary file.
+     *
+     * <p>The buffer can't be used after this.</p>
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (fileLock) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        for( Segment segment : segments ) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        synchronized (fileLock) {
+            if (channel != null) {
+                channel.close();
+                randomAccessFile.close();
+                file.delete();
+                channel = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * A {@link GridCoverage2D} backed by a {@link TiledDataBuffer}.
+ *
+ * <p>Disposing the coverage closes the buffer, which releases the cached
+ * tiles and deletes the temporary tiles file.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TiledGridCoverage2D extends GridCoverage2D {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient TiledDataBuffer tiledBuffer;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the coverage.
+     * @param coverage the coverage to wrap, whose image is backed by the tiled buffer.
+     * @param tiledBuffer the buffer to close on dispose.
+     */
+    public TiledGridCoverage2D( CharSequence name, GridCoverage2D coverage, TiledDataBuffer tiledBuffer ) {
+        super(name, coverage);
+        this.tiledBuffer = tiledBuffer;
+    }
+
+    /**
+     * @return the buffer backing the coverage.
+     */
+    public TiledDataBuffer getTiledDataBuffer() {
+        return tiledBuffer;
+    }
+
+    @Override
+    public synchronized boolean dispose( boolean force ) {
+        boolean isDisposed = super.dispose(force);
+        if (isDisposed || force) {
+            CoverageUtilities.closeTiledBuffer(tiledBuffer);
+        }
+        return isDisposed;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.utils.coverage;
+
+import javax.media.jai.iterator.WritableRandomIter;
+
+/**
+ * A {@link WritableRandomIter} working directly on a {@link TiledDataBuffer}.
+ *
+ * <p>This skips the sample model and the element index translation
+ * of the generic iterators. Only the first band exists.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TiledRandomIter implements WritableRandomIter {
+
+    private final TiledDataBuffer buffer;
+
+    public TiledRandomIter( TiledDataBuffer buffer ) {
+        this.buffer = buffer;
+    }
+
+    public TiledDataBuffer getBuffer() {
+        return buffer;
+    }
+
+    public void done() {
+    }
+
+    public int[] getPixel( int x, int y, int[] iArray ) {
+        if (iArray == null) {
+            iArray = new int[1];
+        }
+        iArray[0] = (int) buffer.getSample(x, y);
+        return iArray;
+    }
+
+    public float[] getPixel( int x, int y, float[] fArray ) {
+        if (fArray == null) {
+            fArray = new float[1];
+        }
+        fArray[0] = (float) buffer.getSample(x, y);
+        return fArray;
+    }
+
+    public double[] getPixel( int x, int y, double[] dArray ) {
+        if (dArray == null) {
+            dArray = new double[1];
+        }
+        dArray[0] = buffer.getSample(x, y);
+        return dArray;
+    }
+
+    public int getSample( int x, int y, int b ) {
+        return (int) buffer.getSample(x, y);
+    }
+
+    public double getSampleDouble( int x, int y, int b ) {
+        return buffer.getSample(x, y);
+    }
+
+    public float getSampleFloat( int x, int y, int b ) {
+        return (float) buffer.getSample(x, y);
+    }
+
+    public void setPixel( int x, int y, int[] iArray ) {
+        buffer.setSample(x, y, iArray[0]);
+    }
+
+    public void setPixel( int x, int y, float[] fArray ) {
+        buffer.setSample(x, y, fArray[0]);
+    }
+
+    public void setPixel( int x, int y, double[] dArray ) {
+        buffer.setSample(x, y, dArray[0]);
+    }
+
+    public void setSample( int x, int y, int b, int s ) {
+        buffer.setSample(x, y, s);
+    }
+
+    public void setSample( int x, int y, int b, float s ) {
+        buffer.setSample(x, y, s);
+    }
+
+    public void setSample( int x, int y, int b, double s ) {
+        buffer.setSample(x, y, s);
+    }
+
+}
@@ -20,12 +20,16 @@ package org.jgrasstools.gears.utils.sorting;
 
 import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
 
+import java.awt.image.DataBuffer;
+
 import org.jgrasstools.gears.libs.monitor.LogProgressMonitor;
 import org.jgrasstools.gears.libs.monitor.IJGTProgressMonitor;
 public class QuickSortAlgorithm {
     private double[] valuesToSort;
     private int number;
     private double[] valuesToFollow;
+    private DataBuffer bufferToSort;
+    private DataBuffer bufferToFollow;
     private IJGTProgressMonitor monitor = new LogProgressMonitor();
 
     public QuickSortAlgorithm( IJGTProgressMonitor monitor ) {
@@ -54,6 +58,34 @@ public class QuickSortAlgorithm {
         monitor.done();
     }
 
+    /**
+     * Sorts the first values of a {@link DataBuffer} and moves with the sort a second buffer.
+     * 
+     * <p>The order is the same as the one of {@link #sort(double[], double[])}. Since the
+     * partitioning scans the buffers sequentially, this works well also on file 
+     * based buffers as the {@link org.jgrasstools.gears.utils.coverage.TiledDataBuffer}.</p>
+     * 
+     * @param values the buffer to sort.
+     * @param valuesToFollow the buffer that should be sorted following the 
+     *              indexes of the first buffer. Can be null.
+     * @param count the number of elements to sort.
+     */
+    public void sort( DataBuffer values, DataBuffer valuesToFollow, int count ) {
+        this.bufferToSort = values;
+        this.bufferToFollow = valuesToFollow;
+
+        monitor.beginTask("Sorting...", -1);
+
+        monitor.worked(1);
+        if (count > 0) {
+            quicksortBuffer(0, count - 1);
+        }
+
+        monitor.done();
+        bufferToSort = null;
+        bufferToFollow = null;
+    }
+
     private void quicksort( int low, int high ) {
         int i = low, j = high;
         // Get the pivot element from the middle of the list
@@ -102,4 +134,40 @@ public class QuickSortAlgorithm {
         }
     }
 
+    private void quicksortBuffer( int low, int high ) {
+        int i = low, j = high;
+        double pivot = bufferToSort.getElemDouble((low + high) >>> 1);
+
+        while( i <= j ) {
+            double value = bufferToSort.getElemDouble(i);
+            while( value < pivot || (isNovalue(value) && !isNovalue(pivot)) ) {
+                value = bufferToSort.getElemDouble(++i);
+            }
+            value = bufferToSort.getElemDouble(j);
+            while( value > pivot || (!isNovalue(value) && isNovalue(pivot)) ) {
+                value = bufferToSort.getElemDouble(--j);
+            }
+            if (i <= j) {
+                exchangeBuffer(i, j);
+                i++;
+                j--;
+            }
+        }
+        if (low < j)
+            quicksortBuffer(low, j);
+        if (i < high)
+            quicksortBuffer(i, high);
+    }
+
+    private void exchangeBuffer( int i, int j ) {
+        double temp = bufferToSort.getElemDouble(i);
+        bufferToSort.setElemDouble(i, bufferToSort.getElemDouble(j));
+        bufferToSort.setElemDouble(j, temp);
+        if (bufferToFollow != null) {
+            double tempFollow = bufferToFollow.getElemDouble(i);
+            bufferToFollow.setElemDouble(i, bufferToFollow.getElemDouble(j));
+            bufferToFollow.setElemDouble(j, tempFollow);
+        }
+    }
+
 }
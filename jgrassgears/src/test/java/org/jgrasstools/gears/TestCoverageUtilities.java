@@ -17,10 +17,20 @@
  */
 package org.jgrasstools.gears;
 
+import static org.jgrasstools.gears.libs.modules.JGTConstants.isNovalue;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.WritableRandomIter;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.geometry.Envelope2D;
@@ -30,6 +40,10 @@ import org.jgrasstools.gears.utils.HMTestMaps;
 import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.jgrasstools.gears.utils.coverage.ProfilePoint;
+import org.jgrasstools.gears.utils.coverage.TiledDataBuffer;
+import org.jgrasstools.gears.utils.coverage.TiledGridCoverage2D;
+import org.jgrasstools.gears.utils.coverage.TiledRandomIter;
+import org.jgrasstools.gears.utils.sorting.QuickSortAlgorithm;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -222,6 +236,175 @@ public class TestCoverageUtilities extends HMTestCase {
         }
     }
 
+    public void testTiledRaster() throws Exception {
+        int width = 37;
+        int height = 23;
+        // tiny tiles and cache to force evictions
+        TiledDataBuffer tiledBuffer = new TiledDataBuffer(DataBuffer.TYPE_DOUBLE, width, height, Double.NaN, 4, 3);
+        SampleModel sampleModel = new ComponentSampleModel(DataBuffer.TYPE_DOUBLE, width, height, 1, width, new int[]{0});
+        WritableRaster tiledRaster = Raster.createWritableRaster(sampleModel, tiledBuffer, null);
+        WritableRaster memoryRaster = CoverageUtilities.createDoubleWritableRaster(width, height, null, null, Double.NaN);
+
+        WritableRandomIter tiledIter = CoverageUtilities.getWritableRandomIterator(tiledRaster);
+        assertTrue(tiledIter instanceof TiledRandomIter);
+        Random random = new Random(7);
+        for( int i = 0; i < 20000; i++ ) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            if (random.nextBoolean()) {
+                double value = random.nextDouble();
+                if (random.nextBoolean()) {
+                    tiledIter.setSample(x, y, 0, value);
+                } else {
+                    tiledRaster.setSample(x, y, 0, value);
+                }
+                memoryRaster.setSample(x, y, 0, value);
+            } else {
+                double expected = memoryRaster.getSampleDouble(x, y, 0);
+                double value = tiledIter.getSampleDouble(x, y, 0);
+                if (isNovalue(expected)) {
+                    assertTrue(isNovalue(value));
+                } else {
+                    assertEquals(expected, value);
+                }
+            }
+        }
+        assertTrue(tiledBuffer.getTileWrites() > 0);
+        assertTrue(tiledBuffer.getCacheHitRate() > 0 && tiledBuffer.getCacheHitRate() < 1);
+        // every loop accessed the tiled raster once
+        assertEquals(20000, tiledBuffer.getCacheHits() + tiledBuffer.getCacheMisses());
+
+        RegionMap regionMap = CoverageUtilities.makeRegionParamsMap(height, 0, 0, width, 1, 1, width, height);
+        GridCoverage2D tiledCoverage = CoverageUtilities.buildCoverage("tiled", tiledRaster, regionMap, crs);
+        GridCoverage2D memoryCoverage = CoverageUtilities.buildCoverage("memory", memoryRaster, regionMap, crs);
+        assertNotNull(CoverageUtilities.getTiledDataBuffer(tiledCoverage.getRenderedImage()));
+        assertTrue(CoverageUtilities.getRandomIterator(tiledCoverage) instanceof TiledRandomIter);
+        double[][] expected = new double[height][width];
+        RandomIter memoryIter = CoverageUtilities.getRandomIterator(memoryCoverage);
+        for( int y = 0; y < height; y++ ) {
+            for( int x = 0; x < width; x++ ) {
+                expected[y][x] = memoryIter.getSampleDouble(x, y, 0);
+            }
+        }
+        checkMatrixEqual(tiledCoverage.getRenderedImage(), expected, 0);
+
+        // disposing the coverage releases the buffer and its file
+        assertTrue(tiledCoverage instanceof TiledGridCoverage2D);
+        assertFalse(memoryCoverage instanceof TiledGridCoverage2D);
+        tiledCoverage.dispose(true);
+        assertTrue(tiledBuffer.isClosed());
+    }
+
+    public void testTiledRasterTypes() throws Exception {
+        // int tiles truncate like the standard int buffers
+        TiledDataBuffer intBuffer = new TiledDataBuffer(DataBuffer.TYPE_INT, 50, 50, -1, 4, 2);
+        for( int y = 0; y < 50; y++ ) {
+            for( int x = 0; x < 50; x++ ) {
+                intBuffer.setSample(x, y, x * 100 + y + 0.7);
+            }
+        }
+        for( int y = 0; y < 50; y++ ) {
+            for( int x = 0; x < 50; x++ ) {
+                assertEquals(x * 100 + y, intBuffer.getElem(y * 50 + x));
+            }
+        }
+        assertTrue(intBuffer.getTileWrites() > 0);
+        intBuffer.close();
+        assertTrue(intBuffer.isClosed());
+        try {
+            intBuffer.getSample(10, 10);
+            fail("A closed buffer can't be used.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // threads writing different rows on tiles shared between them
+        final TiledDataBuffer floatBuffer = new TiledDataBuffer(DataBuffer.TYPE_FLOAT, 300, 300, Float.NaN, 8, 20);
+        Thread[] threads = new Thread[8];
+        for( int t = 0; t < threads.length; t++ ) {
+            final int firstRow = t;
+            final int rowsStep = threads.length;
+            threads[t] = new Thread(new Runnable(){
+                public void run() {
+                    for( int y = firstRow; y < 300; y += rowsStep ) {
+                        for( int x = 0; x < 300; x++ ) {
+                            floatBuffer.setSample(x, y, x + y * 0.5);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for( Thread thread : threads ) {
+            thread.join();
+        }
+        for( int y = 0; y < 300; y++ ) {
+            for( int x = 0; x < 300; x++ ) {
+                assertEquals((float) (x + y * 0.5), floatBuffer.getElemFloat(y * 300 + x));
+            }
+        }
+        floatBuffer.close();
+    }
+
+    public void testCellsBufferSort() throws Exception {
+        Random random = new Random(3);
+        int count = 50000;
+        double[] values = new double[count];
+        double[] indexes = new double[count];
+        long threshold = CoverageUtilities.getTiledRasterThreshold();
+        DataBuffer valuesBuffer;
+        DataBuffer indexesBuffer;
+        try {
+            CoverageUtilities.setTiledRasterThreshold(count - 1);
+            valuesBuffer = CoverageUtilities.createCellsBuffer(DataBuffer.TYPE_DOUBLE, count);
+            indexesBuffer = CoverageUtilities.createCellsBuffer(DataBuffer.TYPE_INT, count);
+        } finally {
+            CoverageUtilities.setTiledRasterThreshold(threshold);
+        }
+        assertTrue(valuesBuffer instanceof TiledDataBuffer);
+        for( int i = 0; i < count; i++ ) {
+            // many equal values and novalues, the order of the ties needs to be the same
+            double value = random.nextInt(10) == 0 ? Double.NaN : Math.floor(random.nextDouble() * 500) + 0.5;
+            values[i] = value;
+            indexes[i] = i + 1;
+            valuesBuffer.setElemDouble(i, value);
+            indexesBuffer.setElem(i, i + 1);
+        }
+        new QuickSortAlgorithm(new DummyProgressMonitor()).sort(values, indexes);
+        new QuickSortAlgorithm(new DummyProgressMonitor()).sort(valuesBuffer, indexesBuffer, count);
+        for( int i = 0; i < count; i++ ) {
+            assertEquals((int) indexes[i], indexesBuffer.getElem(i));
+            if (isNovalue(values[i])) {
+                assertTrue(isNovalue(valuesBuffer.getElemDouble(i)));
+            } else {
+                assertEquals(values[i], valuesBuffer.getElemDouble(i));
+            }
+        }
+        CoverageUtilities.closeTiledBuffer(valuesBuffer);
+        CoverageUtilities.closeTiledBuffer(indexesBuffer);
+        assertTrue(((TiledDataBuffer) indexesBuffer).isClosed());
+    }
+
+    public void testTiledRasterThreshold() throws Exception {
+        long threshold = CoverageUtilities.getTiledRasterThreshold();
+        try {
+            CoverageUtilities.setTiledRasterThreshold(cols * rows - 1);
+            WritableRaster raster = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, 5.0);
+            assertNotNull(CoverageUtilities.getTiledDataBuffer(raster));
+            assertEquals(5.0, raster.getSampleDouble(cols - 1, rows - 1, 0));
+
+            WritableRaster copy = CoverageUtilities.renderedImage2WritableRaster(elevationCoverage.getRenderedImage(), false);
+            assertNotNull(CoverageUtilities.getTiledDataBuffer(copy));
+            checkMatrixEqual(CoverageUtilities.buildCoverage("copy", copy, eP, crs).getRenderedImage(), HMTestMaps.mapData, 0);
+
+            CoverageUtilities.setTiledRasterThreshold(cols * rows);
+            raster = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, 5.0);
+            assertNull(CoverageUtilities.getTiledDataBuffer(raster));
+        } finally {
+            CoverageUtilities.setTiledRasterThreshold(threshold);
+        }
+    }
+
     private void checkProfile( List<ProfilePoint> profile, double[][] expected ) {
         for( int i = 0; i < expected.length; i++ ) {
             ProfilePoint point = profile.get(i);
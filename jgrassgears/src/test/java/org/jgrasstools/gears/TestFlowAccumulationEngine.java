@@ -0,0 +1,244 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import static java.lang.Double.NaN;
+
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jgrasstools.gears.libs.modules.Direction;
+import org.jgrasstools.gears.libs.modules.FlowAccumulationEngine;
+import org.jgrasstools.gears.libs.modules.FlowNode;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Test for the {@link FlowAccumulationEngine}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestFlowAccumulationEngine extends HMTestCase {
+
+    public void testTca() throws Exception {
+        double[][] flowData = HMTestMaps.flowData;
+        RandomIter flowIter = getIter(flowData);
+        int cols = flowData[0].length;
+        int rows = flowData.length;
+
+        double[] tca = engineTca(new FlowAccumulationEngine(flowIter, cols, rows));
+        checkMatrixEqual(toMatrix(tca, cols, rows), HMTestMaps.tcaData, DELTA);
+    }
+
+    public void testDonors() throws Exception {
+        double[][] flowData = HMTestMaps.flowData;
+        RandomIter flowIter = getIter(flowData);
+        int cols = flowData[0].length;
+        int rows = flowData.length;
+        FlowAccumulationEngine engine = new FlowAccumulationEngine(flowIter, cols, rows);
+
+        int[] donors = new int[8];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                int index = r * cols + c;
+                FlowNode node = new FlowNode(flowIter, cols, rows, c, r);
+                assertEquals(node.isValid(), engine.isValid(index));
+                if (!node.isValid()) {
+                    continue;
+                }
+                assertEquals(node.isSource(), engine.isSource(index));
+                int donorsNum = engine.getDonors(index, donors);
+                assertEquals(node.getEnteringNodes().size(), donorsNum);
+                assertEquals(donorsNum, engine.getDonorsNum(index));
+
+                FlowNode downstreamNode = node.goDownstream();
+                if (downstreamNode == null) {
+                    assertEquals(FlowAccumulationEngine.NONE, engine.getDownstream(index));
+                } else {
+                    assertEquals(downstreamNode.row * cols + downstreamNode.col, engine.getDownstream(index));
+                }
+            }
+        }
+    }
+
+    public void testLoopsAreSkipped() throws Exception {
+        double[][] flowData = new double[][]{//
+        /*    */{NaN, NaN, NaN, NaN, NaN}, //
+                {NaN, 1, 5, 5, NaN}, //
+                {NaN, 3, 3, 10, NaN}, //
+                {NaN, NaN, NaN, NaN, NaN}};
+        int cols = flowData[0].length;
+        int rows = flowData.length;
+
+        double[] tca = engineTca(new FlowAccumulationEngine(getIter(flowData), cols, rows));
+        double[][] expected = new double[][]{//
+        /*    */{NaN, NaN, NaN, NaN, NaN}, //
+                {NaN, NaN, NaN, 1, NaN}, //
+                {NaN, 1, 1, 1, NaN}, //
+                {NaN, NaN, NaN, NaN, NaN}};
+        checkMatrixEqual(toMatrix(tca, cols, rows), expected, DELTA);
+    }
+
+    /**
+     * Compare with the walk from every source on a synthetic dem.
+     */
+    public void testSyntheticDem() throws Exception {
+        int cols = 400;
+        int rows = 300;
+        RandomIter flowIter = getIter(syntheticFlow(cols, rows));
+
+        long t0 = System.currentTimeMillis();
+        double[] walkTca = walkTca(flowIter, cols, rows);
+        long t1 = System.currentTimeMillis();
+        double[] engineTca = engineTca(new FlowAccumulationEngine(flowIter, cols, rows));
+        long t2 = System.currentTimeMillis();
+        pm.message("Tca on " + cols + "x" + rows + ": walk " + (t1 - t0) + " ms, engine " + (t2 - t1) + " ms");
+
+        for( int i = 0; i < walkTca.length; i++ ) {
+            if (JGTConstants.isNovalue(walkTca[i])) {
+                assertTrue(JGTConstants.isNovalue(engineTca[i]));
+            } else {
+                assertEquals(walkTca[i], engineTca[i], DELTA);
+            }
+        }
+    }
+
+    private double[] engineTca( FlowAccumulationEngine engine ) throws Exception {
+        final int[] tca = new int[engine.getCols() * engine.getRows()];
+        boolean isDone = engine.accumulate(null, pm, new FlowAccumulationEngine.CellVisitor(){
+            public void visit( int index, int[] donors, int donorsNum ) {
+                int value = 1;
+                for( int i = 0; i < donorsNum; i++ ) {
+                    value += tca[donors[i]];
+                }
+                tca[index] = value;
+            }
+        });
+        assertTrue(isDone);
+
+        double[] result = new double[tca.length];
+        for( int i = 0; i < tca.length; i++ ) {
+            result[i] = tca[i] > 0 ? tca[i] : JGTConstants.doubleNovalue;
+        }
+        return result;
+    }
+
+    /**
+     * The walk downstream from every source, as done by the tca module before the engine.
+     */
+    private double[] walkTca( RandomIter flowIter, int cols, int rows ) {
+        double[] tca = new double[cols * rows];
+        for( int i = 0; i < tca.length; i++ ) {
+            tca[i] = JGTConstants.doubleNovalue;
+        }
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                FlowNode flowNode = new FlowNode(flowIter, cols, rows, c, r);
+                if (flowNode.isSource()) {
+                    double previousTcaValue = 0.0;
+                    while( flowNode != null && flowNode.isValid() ) {
+                        int index = flowNode.row * cols + flowNode.col;
+                        if (JGTConstants.isNovalue(tca[index])) {
+                            previousTcaValue = previousTcaValue + 1.0;
+                            tca[index] = previousTcaValue;
+                        } else {
+                            tca[index] = tca[index] + previousTcaValue;
+                        }
+                        flowNode = flowNode.goDownstream();
+                    }
+                }
+            }
+        }
+        return tca;
+    }
+
+    /**
+     * Steepest descent directions on a rough surface with some novalue holes.
+     */
+    private double[][] syntheticFlow( int cols, int rows ) {
+        Random random = new Random(7);
+        double[][] elev = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                elev[r][c] = 0.05 * r + 0.03 * c + 10 * Math.sin(r / 37.0) * Math.cos(c / 53.0) + 5
+                        * Math.sin(r / 11.0 + c / 17.0) + random.nextDouble() * 0.5;
+            }
+        }
+        for( int k = 0; k < 40; k++ ) {
+            int row = random.nextInt(rows - 5);
+            int col = random.nextInt(cols - 5);
+            for( int r = row; r < row + 5; r++ ) {
+                for( int c = col; c < col + 5; c++ ) {
+                    elev[r][c] = NaN;
+                }
+            }
+        }
+
+        double[][] flow = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                if (JGTConstants.isNovalue(elev[r][c])) {
+                    flow[r][c] = NaN;
+                    continue;
+                }
+                double maxSlope = 0;
+                flow[r][c] = FlowNode.OUTLET;
+                for( Direction direction : Direction.getOrderedDirs() ) {
+                    int col = c + direction.col;
+                    int row = r + direction.row;
+                    if (col < 0 || col >= cols || row < 0 || row >= rows || JGTConstants.isNovalue(elev[row][col])) {
+                        continue;
+                    }
+                    double slope = (elev[r][c] - elev[row][col]) / direction.getDistance(1, 1);
+                    if (slope > maxSlope) {
+                        maxSlope = slope;
+                        flow[r][c] = direction.getFlow();
+                    }
+                }
+            }
+        }
+        return flow;
+    }
+
+    private RandomIter getIter( double[][] data ) {
+        int rows = data.length;
+        int cols = data[0].length;
+        WritableRaster raster = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                raster.setSample(c, r, 0, data[r][c]);
+            }
+        }
+        return RandomIterFactory.create(raster, null);
+    }
+
+    private double[][] toMatrix( double[] values, int cols, int rows ) {
+        double[][] matrix = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            System.arraycopy(values, r * cols, matrix[r], 0, cols);
+        }
+        return matrix;
+    }
+
+}
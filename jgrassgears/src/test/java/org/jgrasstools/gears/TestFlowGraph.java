@@ -0,0 +1,129 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import static java.lang.Double.NaN;
+
+import java.awt.image.WritableRaster;
+import java.util.List;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jgrasstools.gears.libs.modules.FlowGraph;
+import org.jgrasstools.gears.libs.modules.FlowNode;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Test for the {@link FlowGraph}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestFlowGraph extends HMTestCase {
+
+    public void testGraphAgainstFlowNodes() throws Exception {
+        double[][] flowData = HMTestMaps.flowData;
+        RandomIter flowIter = getIter(flowData);
+        int cols = flowData[0].length;
+        int rows = flowData.length;
+        FlowGraph flowGraph = new FlowGraph(flowIter, cols, rows);
+
+        int[] donors = new int[8];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                int index = flowGraph.getIndex(c, r);
+                assertEquals(c, flowGraph.getCol(index));
+                assertEquals(r, flowGraph.getRow(index));
+
+                FlowNode node = new FlowNode(flowIter, cols, rows, c, r);
+                assertEquals(node.isValid(), flowGraph.isValid(index));
+                if (!node.isValid()) {
+                    assertFalse(flowGraph.isSource(index));
+                    assertFalse(flowGraph.isOutlet(index));
+                    continue;
+                }
+                assertEquals(node.isSource(), flowGraph.isSource(index));
+                assertEquals(node.isMarkedAsOutlet(), flowGraph.isMarkedAsOutlet(index));
+
+                List<FlowNode> enteringNodes = node.getEnteringNodes();
+                int donorsNum = flowGraph.getDonors(index, donors);
+                assertEquals(enteringNodes.size(), donorsNum);
+                assertEquals(donorsNum, flowGraph.getDonorsNum(index));
+                for( int i = 0; i < donorsNum; i++ ) {
+                    FlowNode enteringNode = enteringNodes.get(i);
+                    assertEquals(flowGraph.getIndex(enteringNode.col, enteringNode.row), donors[i]);
+                    assertEquals(donors[i], flowGraph.getDonor(index, i));
+                }
+
+                FlowNode downstreamNode = node.goDownstream();
+                if (downstreamNode == null) {
+                    assertEquals(FlowGraph.NONE, flowGraph.getDownstream(index));
+                    assertTrue(flowGraph.isOutlet(index));
+                } else {
+                    assertEquals(flowGraph.getIndex(downstreamNode.col, downstreamNode.row), flowGraph.getDownstream(index));
+                    assertFalse(flowGraph.isOutlet(index));
+                }
+            }
+        }
+    }
+
+    public void testSourcesAndOutlets() throws Exception {
+        double[][] flowData = new double[][]{//
+        /*    */{NaN, NaN, NaN, NaN, NaN}, //
+                {NaN, 1, 1, 10, NaN}, //
+                {NaN, 2, 3, 5, 1}, //
+                {NaN, NaN, NaN, NaN, NaN}};
+        int cols = flowData[0].length;
+        int rows = flowData.length;
+        FlowGraph flowGraph = new FlowGraph(getIter(flowData), cols, rows);
+
+        int[] expectedSources = {6, 11, 13, 14};
+        int index = 0;
+        for( int expected : expectedSources ) {
+            index = flowGraph.nextSource(index);
+            assertEquals(expected, index);
+            index++;
+        }
+        assertEquals(FlowGraph.NONE, flowGraph.nextSource(index));
+
+        // the marked outlet and the cell draining outside of the map
+        assertEquals(8, flowGraph.nextOutlet(0));
+        assertEquals(14, flowGraph.nextOutlet(9));
+        assertEquals(FlowGraph.NONE, flowGraph.nextOutlet(15));
+
+        assertEquals(3, flowGraph.getDonorsNum(7));
+        assertEquals(1, flowGraph.getDonorsNum(8));
+        assertEquals(8, flowGraph.getDownstream(flowGraph.getDownstream(6)));
+    }
+
+    private RandomIter getIter( double[][] data ) {
+        int rows = data.length;
+        int cols = data[0].length;
+        WritableRaster raster = CoverageUtilities.createDoubleWritableRaster(cols, rows, null, null, null);
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                raster.setSample(c, r, 0, data[r][c]);
+            }
+        }
+        return RandomIterFactory.create(raster, null);
+    }
+
+}
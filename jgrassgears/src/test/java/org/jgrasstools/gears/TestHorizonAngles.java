@@ -0,0 +1,64 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import java.awt.image.WritableRaster;
+
+import org.jgrasstools.gears.libs.modules.HorizonAngles;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Test for the {@link HorizonAngles}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestHorizonAngles extends HMTestCase {
+
+    public void testWallShadow() throws Exception {
+        // flat map with a wall 100 high on column 10
+        WritableRaster demWR = CoverageUtilities.createDoubleWritableRaster(20, 20, null, null, 0.0);
+        for( int y = 0; y < 20; y++ ) {
+            demWR.setSample(10, y, 0, 100.0);
+        }
+        HorizonAngles horizon = new HorizonAngles(demWR, 10.0, 4, 2, null);
+
+        double east = Math.PI / 2.0;
+        double west = 3.0 * Math.PI / 2.0;
+        assertEquals(2.0, horizon.getHorizonTangent(5, 3, east), 1E-6);
+        assertEquals(2.0, horizon.getHorizonTangent(15, 3, west), 1E-6);
+        assertEquals(0.0, horizon.getHorizonTangent(15, 3, east), 1E-6);
+        // nothing between the cell and the border
+        assertTrue(horizon.getHorizonAngle(19, 3, east) < -1.5);
+
+        double[] lowSun = sunVector(east, Math.toRadians(30));
+        double[] highSun = sunVector(east, Math.toRadians(70));
+        assertFalse(horizon.isLit(5, 3, lowSun));
+        assertTrue(horizon.isLit(5, 3, highSun));
+        assertTrue(horizon.isLit(15, 3, lowSun));
+
+        WritableRaster shadowWR = horizon.calculateFactor(lowSun);
+        assertEquals(0.0, shadowWR.getSampleDouble(5, 3, 0));
+        assertEquals(1.0, shadowWR.getSampleDouble(15, 3, 0));
+    }
+
+    private double[] sunVector( double azimuth, double elevation ) {
+        return new double[]{Math.sin(azimuth) * Math.cos(elevation), -Math.cos(azimuth) * Math.cos(elevation),
+                Math.sin(elevation)};
+    }
+}
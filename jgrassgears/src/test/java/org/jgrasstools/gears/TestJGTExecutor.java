@@ -0,0 +1,205 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jgrasstools.gears.libs.modules.JGTExecutor;
+import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
+import org.jgrasstools.gears.libs.monitor.DummyProgressMonitor;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+/**
+ * Test for the {@link JGTExecutor}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestJGTExecutor extends HMTestCase {
+
+    private static class CountingMonitor extends DummyProgressMonitor {
+        int total = -1;
+        int worked = 0;
+        boolean isDone = false;
+        volatile boolean isCanceled = false;
+
+        public void beginTask( String name, int totalWork ) {
+            total = totalWork;
+        }
+
+        public void worked( int work ) {
+            worked = worked + work;
+        }
+
+        public void done() {
+            isDone = true;
+        }
+
+        public boolean isCanceled() {
+            return isCanceled;
+        }
+    }
+
+    public void testRowBandsAndTiles() throws Exception {
+        final int cols = 123;
+        final int rows = 77;
+        final int[][] visits = new int[rows][cols];
+        CountingMonitor monitor = new CountingMonitor();
+        boolean isDone = JGTExecutor.forEachRowBand(rows, 5, null, monitor, new JGTExecutor.RowsProcessor(){
+            public void process( int fromRow, int toRow ) throws Exception {
+                for( int r = fromRow; r < toRow; r++ ) {
+                    for( int c = 0; c < cols; c++ ) {
+                        visits[r][c]++;
+                    }
+                }
+            }
+        });
+        assertTrue(isDone);
+        assertEquals(16, monitor.total);
+        assertEquals(16, monitor.worked);
+        assertTrue(monitor.isDone);
+
+        isDone = JGTExecutor.forEachTile(cols, rows, 32, 16, null, null, new JGTExecutor.TileProcessor(){
+            public void process( int fromCol, int fromRow, int toCol, int toRow ) throws Exception {
+                for( int r = fromRow; r < toRow; r++ ) {
+                    for( int c = fromCol; c < toCol; c++ ) {
+                        visits[r][c]++;
+                    }
+                }
+            }
+        });
+        assertTrue(isDone);
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                assertEquals(2, visits[r][c]);
+            }
+        }
+    }
+
+    public void testParallelismAndErrors() throws Exception {
+        List<Integer> items = new ArrayList<Integer>();
+        for( int i = 0; i < 50; i++ ) {
+            items.add(i);
+        }
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicLong sum = new AtomicLong();
+        JGTExecutor.forEach(items, 2, null, null, new JGTExecutor.ItemProcessor<Integer>(){
+            public void process( Integer item ) throws Exception {
+                int now = running.incrementAndGet();
+                int max;
+                while( now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now) ) {
+                }
+                Thread.sleep(1);
+                sum.addAndGet(item);
+                running.decrementAndGet();
+            }
+        });
+        assertEquals(1225, sum.get());
+        assertTrue(maxRunning.get() <= 2);
+
+        try {
+            JGTExecutor.forEachIndex(100, 0, null, null, new JGTExecutor.IndexProcessor(){
+                public void process( int index ) throws Exception {
+                    if (index == 42) {
+                        throw new IllegalStateException("failed at " + index);
+                    }
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed at 42", e.getMessage());
+        }
+    }
+
+    public void testCancel() throws Exception {
+        final CountingMonitor monitor = new CountingMonitor();
+        final AtomicInteger processed = new AtomicInteger();
+        boolean isDone = JGTExecutor.forEachIndex(10000, 1, null, monitor, new JGTExecutor.IndexProcessor(){
+            public void process( int index ) throws Exception {
+                if (index == 10) {
+                    monitor.isCanceled = true;
+                }
+                processed.incrementAndGet();
+                Thread.sleep(1);
+            }
+        });
+        assertFalse(isDone);
+        assertTrue(processed.get() < 10000);
+    }
+
+    public void testThreadedRunnable() throws Exception {
+        CountingMonitor monitor = new CountingMonitor();
+        final ThreadedRunnable< ? > runner = new ThreadedRunnable<Object>(3, monitor);
+        runner.setWorkLoad(null, 200);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        for( int i = 0; i < 200; i++ ) {
+            runner.executeRunnable(new Runnable(){
+                public void run() {
+                    int now = running.incrementAndGet();
+                    int max;
+                    while( now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now) ) {
+                    }
+                    running.decrementAndGet();
+                    runner.worked(1);
+                }
+            });
+        }
+        runner.waitAndClose();
+        assertEquals(200, monitor.worked);
+        assertTrue(monitor.isDone);
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    public void testThreadedRunnableBlocking() throws Exception {
+        // more blocking runnables than pool workers, submitted and waited from a worker
+        final int threads = JGTExecutor.getParallelism() + 2;
+        final CountDownLatch allRunning = new CountDownLatch(threads);
+        final AtomicInteger together = new AtomicInteger();
+        ForkJoinTask< ? > task = JGTExecutor.getPool().submit(new Runnable(){
+            public void run() {
+                ThreadedRunnable< ? > runner = new ThreadedRunnable<Object>(threads, null);
+                for( int i = 0; i < threads; i++ ) {
+                    runner.executeRunnable(new Runnable(){
+                        public void run() {
+                            allRunning.countDown();
+                            try {
+                                if (allRunning.await(10, TimeUnit.SECONDS)) {
+                                    together.incrementAndGet();
+                                }
+                            } catch (InterruptedException e) {
+                                // counted as failed
+                            }
+                        }
+                    });
+                }
+                runner.waitAndClose();
+            }
+        });
+        task.get(30, TimeUnit.SECONDS);
+        assertEquals(threads, together.get());
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import java.nio.ByteBuffer;
+
+import org.jgrasstools.gears.io.las.spatialite.LasCellCodec;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+/**
+ * Test {@link LasCellCodec}.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestLasCellCodec extends HMTestCase {
+
+    private static final int COUNT = 200;
+
+    private double[] xs = new double[COUNT];
+    private double[] ys = new double[COUNT];
+    private double[] zs = new double[COUNT];
+    private double[] scale = {0.01, 0.01, 0.001};
+    private double[] offset = {600000.0, 5000000.0, 0.0};
+
+    protected void setUp() throws Exception {
+        for( int i = 0; i < COUNT; i++ ) {
+            xs[i] = (12345000L + (i * 37) % 300) * scale[0] + offset[0];
+            ys[i] = (77770000L + (i * 11) % 300) * scale[1] + offset[1];
+            zs[i] = (1200000L + i * 3) * scale[2] + offset[2];
+        }
+    }
+
+    public void testPositions() throws Exception {
+        for( boolean compress : new boolean[]{false, true} ) {
+            byte[] blob = LasCellCodec.encodePositions(xs, ys, zs, COUNT, scale, offset, compress);
+            assertTrue(blob.length < 8 * 3 * COUNT);
+            double[][] decoded = LasCellCodec.decodePositions(blob, COUNT);
+            for( int i = 0; i < COUNT; i++ ) {
+                assertEquals(xs[i], decoded[i][0], 0.0);
+                assertEquals(ys[i], decoded[i][1], 0.0);
+                assertEquals(zs[i], decoded[i][2], 0.0);
+            }
+        }
+
+        // values outside of the las grid are kept as they are
+        double[] offGrid = xs.clone();
+        offGrid[3] = offGrid[3] + 0.001;
+        byte[] blob = LasCellCodec.encodePositions(offGrid, ys, zs, COUNT, scale, offset, false);
+        assertEquals(offGrid[3], LasCellCodec.decodePositions(blob, COUNT)[3][0], 0.0);
+    }
+
+    public void testOtherColumns() throws Exception {
+        short[] intensities = new short[COUNT];
+        byte[] classifications = new byte[COUNT];
+        short[] returnNumbers = new short[COUNT];
+        short[] numberOfReturns = new short[COUNT];
+        double[] gpsTimes = new double[COUNT];
+        short[] reds = new short[COUNT];
+        short[] greens = new short[COUNT];
+        short[] blues = new short[COUNT];
+        for( int i = 0; i < COUNT; i++ ) {
+            intensities[i] = (short) (i * 331);
+            classifications[i] = (byte) (i % 9);
+            returnNumbers[i] = (short) (1 + i % 3);
+            numberOfReturns[i] = 3;
+            gpsTimes[i] = 345678.123 + i * 0.00001;
+            reds[i] = (short) (i * 7);
+            greens[i] = 128;
+            blues[i] = (short) (255 - i);
+        }
+
+        for( boolean compress : new boolean[]{false, true} ) {
+            short[][] intensClass = LasCellCodec.decodeIntensitiesClassifications(
+                    LasCellCodec.encodeIntensitiesClassifications(intensities, classifications, COUNT, compress), COUNT);
+            short[][] returns = LasCellCodec.decodeReturns(
+                    LasCellCodec.encodeReturns(returnNumbers, numberOfReturns, COUNT, compress), COUNT);
+            double[] times = LasCellCodec.decodeGpsTimes(LasCellCodec.encodeGpsTimes(gpsTimes, COUNT, compress), COUNT);
+            short[][] colors = LasCellCodec.decodeColors(LasCellCodec.encodeColors(reds, greens, blues, COUNT, compress),
+                    COUNT);
+            for( int i = 0; i < COUNT; i++ ) {
+                assertEquals(intensities[i], intensClass[i][0]);
+                assertEquals(classifications[i], intensClass[i][1]);
+                assertEquals(returnNumbers[i], returns[i][0]);
+                assertEquals(numberOfReturns[i], returns[i][1]);
+                assertEquals(gpsTimes[i], times[i], 0.0);
+                assertEquals(reds[i], colors[i][0]);
+                assertEquals(greens[i], colors[i][1]);
+                assertEquals(blues[i], colors[i][2]);
+            }
+        }
+    }
+
+    public void testLegacyBlobs() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 3 * 2);
+        buffer.putDouble(1.0).putDouble(2.0).putDouble(3.0);
+        buffer.putDouble(4.0).putDouble(5.0).putDouble(6.0);
+        double[][] positions = LasCellCodec.decodePositions(buffer.array(), 2);
+        assertEquals(2.0, positions[0][1], DELTA);
+        assertEquals(6.0, positions[1][2], DELTA);
+
+        buffer = ByteBuffer.allocate(2 * 2);
+        buffer.putShort((short) 300).putShort((short) 2);
+        short[][] intensClass = LasCellCodec.decodeIntensitiesClassifications(buffer.array(), 1);
+        assertEquals(300, intensClass[0][0]);
+        assertEquals(2, intensClass[0][1]);
+    }
+
+}
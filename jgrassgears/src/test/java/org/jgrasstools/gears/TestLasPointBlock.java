@@ -0,0 +1,133 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import java.util.List;
+
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+/**
+ * Test {@link LasPointBlock}.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestLasPointBlock extends HMTestCase {
+
+    private static final int COUNT = 50;
+
+    private LasPointBlock block;
+
+    protected void setUp() throws Exception {
+        // small initial capacity to exercise the growth of the storage
+        block = new LasPointBlock(4);
+        for( int i = 0; i < COUNT; i++ ) {
+            LasRecord dot = new LasRecord();
+            dot.x = i;
+            dot.y = 2 * i;
+            dot.z = (i * 7) % 10;
+            dot.intensity = (short) i;
+            dot.classification = (byte) (i % 2 == 0 ? 2 : 1);
+            dot.groundElevation = i / 10.0;
+            block.add(dot);
+        }
+    }
+
+    public void testRecords() throws Exception {
+        assertEquals(COUNT, block.size());
+        List<LasRecord> records = block.toRecords();
+        assertEquals(COUNT, records.size());
+        for( int i = 0; i < COUNT; i++ ) {
+            LasRecord dot = records.get(i);
+            assertEquals(i, dot.x, DELTA);
+            assertEquals(2.0 * i, dot.y, DELTA);
+            assertEquals(i, dot.intensity);
+            assertEquals(i / 10.0, dot.groundElevation, DELTA);
+        }
+    }
+
+    public void testViews() throws Exception {
+        LasPointBlock ground = block.filter(new LasPointBlock.Filter(){
+            public boolean accept( LasPointBlock b, int index ) {
+                return b.getClassification(index) == 2;
+            }
+        });
+        assertEquals(COUNT / 2, ground.size());
+        for( int i = 0; i < ground.size(); i++ ) {
+            assertEquals(2.0 * i, ground.getX(i), DELTA);
+        }
+
+        LasPointBlock sub = ground.subBlock(3, 6);
+        assertEquals(3, sub.size());
+        assertEquals(6.0, sub.getX(0), DELTA);
+        assertEquals(10.0, sub.getX(2), DELTA);
+
+        // views share the storage with the block
+        sub.setGroundElevation(0, 99.0);
+        assertEquals(99.0, block.getGroundElevation(6), DELTA);
+
+        LasPointBlock inRange = block.getPointsInHeightRange(1.0, 2.0);
+        assertEquals(11, inRange.size());
+        assertEquals(10.0, inRange.getX(0), DELTA);
+    }
+
+    public void testSelectAndCopy() throws Exception {
+        LasPointBlock odd = block.filter(new LasPointBlock.Filter(){
+            public boolean accept( LasPointBlock b, int index ) {
+                return b.getClassification(index) == 1;
+            }
+        });
+        LasPointBlock selected = odd.select(new int[]{4, 0, 2, 99}, 3);
+        assertEquals(3, selected.size());
+        assertEquals(9.0, selected.getX(0), DELTA);
+        assertEquals(1.0, selected.getX(1), DELTA);
+        assertEquals(5.0, selected.getX(2), DELTA);
+        try {
+            odd.select(new int[]{0}, 2);
+            fail("The count is more than the positions.");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        // a copied point doesn't share the values
+        LasPointBlock copy = new LasPointBlock();
+        copy.add(selected, 1);
+        assertEquals(1, copy.size());
+        assertEquals(1.0, copy.getX(0), DELTA);
+        assertEquals(2.0, copy.getY(0), DELTA);
+        assertEquals(1, copy.getIntensity(0));
+        copy.setGroundElevation(0, 99.0);
+        assertEquals(0.1, block.getGroundElevation(1), DELTA);
+    }
+
+    public void testSort() throws Exception {
+        LasPointBlock sorted = block.sortByZ();
+        assertEquals(COUNT, sorted.size());
+        for( int i = 1; i < sorted.size(); i++ ) {
+            assertTrue(sorted.getZ(i - 1) <= sorted.getZ(i));
+            if (sorted.getZ(i - 1) == sorted.getZ(i)) {
+                // stable
+                assertTrue(sorted.getX(i - 1) < sorted.getX(i));
+            }
+        }
+        // the block itself keeps its order
+        assertEquals(1.0, block.getX(1), DELTA);
+    }
+
+}
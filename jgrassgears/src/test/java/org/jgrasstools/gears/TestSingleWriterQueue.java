@@ -0,0 +1,166 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jgrasstools.gears.libs.modules.SingleWriterQueue;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+/**
+ * Test for the {@link SingleWriterQueue}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestSingleWriterQueue extends HMTestCase {
+
+    /**
+     * Keeps the written and the committed items, as a database would.
+     */
+    private static class RecordingWriter implements SingleWriterQueue.ItemsWriter<Integer> {
+        final List<Integer> written = new ArrayList<Integer>();
+        final List<Integer> committed = new ArrayList<Integer>();
+        final Set<Thread> threads = new HashSet<Thread>();
+        int maxBatchSize = 0;
+        int commits = 0;
+        int failAt = -1;
+
+        public synchronized void write( List<Integer> items ) throws Exception {
+            threads.add(Thread.currentThread());
+            maxBatchSize = Math.max(maxBatchSize, items.size());
+            for( Integer item : items ) {
+                if (item == failAt) {
+                    throw new IllegalStateException("Failed at " + item);
+                }
+                written.add(item);
+            }
+        }
+
+        public synchronized void commit() throws Exception {
+            commits++;
+            committed.clear();
+            committed.addAll(written);
+        }
+
+        synchronized List<Integer> getCommitted() {
+            return new ArrayList<Integer>(committed);
+        }
+    }
+
+    public void testConcurrentProducers() throws Exception {
+        final RecordingWriter itemsWriter = new RecordingWriter();
+        final SingleWriterQueue<Integer> queue = new SingleWriterQueue<Integer>("test-writer", 16, 50, itemsWriter);
+        final int producersNum = 8;
+        final int itemsPerProducer = 5000;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] producers = new Thread[producersNum];
+        for( int p = 0; p < producersNum; p++ ) {
+            final int offset = p * itemsPerProducer;
+            producers[p] = new Thread(new Runnable(){
+                public void run() {
+                    try {
+                        for( int i = 0; i < itemsPerProducer; i++ ) {
+                            queue.add(offset + i);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for( Thread producer : producers ) {
+            producer.join();
+        }
+        assertNull(error.get());
+        queue.close();
+
+        int itemsNum = producersNum * itemsPerProducer;
+        assertEquals(itemsNum, queue.getWrittenCount());
+        List<Integer> committed = itemsWriter.getCommitted();
+        Collections.sort(committed);
+        assertEquals(itemsNum, committed.size());
+        for( int i = 0; i < itemsNum; i++ ) {
+            assertEquals(i, committed.get(i).intValue());
+        }
+        assertEquals(1, itemsWriter.threads.size());
+        assertTrue(itemsWriter.maxBatchSize <= 50);
+        assertEquals(1, itemsWriter.commits);
+
+        try {
+            queue.add(1);
+            fail("The queue is closed.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // closing again does nothing
+        queue.close();
+        assertEquals(1, itemsWriter.commits);
+    }
+
+    public void testFlush() throws Exception {
+        RecordingWriter itemsWriter = new RecordingWriter();
+        SingleWriterQueue<Integer> queue = new SingleWriterQueue<Integer>("test-writer", 4, 3, itemsWriter);
+        for( int i = 0; i < 10; i++ ) {
+            queue.add(i);
+        }
+        queue.flush();
+        assertEquals(10, itemsWriter.getCommitted().size());
+        assertEquals(10, queue.getWrittenCount());
+        int commits = itemsWriter.commits;
+
+        queue.add(10);
+        queue.flush();
+        assertEquals(11, itemsWriter.getCommitted().size());
+        assertEquals(commits + 1, itemsWriter.commits);
+        queue.close();
+        assertEquals(11, itemsWriter.getCommitted().size());
+    }
+
+    public void testWriterError() throws Exception {
+        RecordingWriter itemsWriter = new RecordingWriter();
+        itemsWriter.failAt = 5;
+        SingleWriterQueue<Integer> queue = new SingleWriterQueue<Integer>("test-writer", 2, 1, itemsWriter);
+        // the failed writer keeps draining the queue, so the producer is not blocked
+        Exception addError = null;
+        for( int i = 0; i < 1000 && addError == null; i++ ) {
+            try {
+                queue.add(i);
+            } catch (IllegalStateException e) {
+                addError = e;
+            }
+        }
+        assertNotNull(addError);
+        assertEquals("Failed at 5", addError.getMessage());
+        try {
+            queue.close();
+            fail("The writer error should be thrown.");
+        } catch (IllegalStateException e) {
+            assertSame(addError, e);
+        }
+        assertEquals(5, queue.getWrittenCount());
+        assertEquals(0, itemsWriter.commits);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.util.Random;
+
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReader;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasWriter;
+
+/**
+ * Benchmark of the record based las reading against the batch based one.
+ *
+ * <p>Synthetic las files of growing size are created in the temp folder
+ * and read with {@link LasReader#getNextPoint()} and {@link LasReader#readNextBatch(LasPointBatch)}.</p>
+ *
+ * <p>Usage: LasReaderBenchmark [maxPoints [batchSize [iterations]]]</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class LasReaderBenchmark {
+
+    public static void main( String[] args ) throws Exception {
+        int maxPoints = 10000000;
+        int batchSize = 100000;
+        int iterations = 5;
+        if (args.length > 0) {
+            maxPoints = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            batchSize = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            iterations = Integer.parseInt(args[2]);
+        }
+
+        System.out.println("points\trecords[ms]\tbatch[ms]\tspeedup");
+        for( int points = 100000; points <= maxPoints; points = points * 10 ) {
+            File lasFile = createSyntheticLas(points);
+            try {
+                // warm up
+                readRecords(lasFile);
+                readBatches(lasFile, batchSize);
+
+                long recordsTime = 0;
+                long batchTime = 0;
+                for( int i = 0; i < iterations; i++ ) {
+                    long t1 = System.nanoTime();
+                    double sum1 = readRecords(lasFile);
+                    long t2 = System.nanoTime();
+                    double sum2 = readBatches(lasFile, batchSize);
+                    long t3 = System.nanoTime();
+                    if (sum1 != sum2) {
+                        throw new IllegalStateException("Readers returned different data.");
+                    }
+                    recordsTime += t2 - t1;
+                    batchTime += t3 - t2;
+                }
+                double recordsMs = recordsTime / 1E6 / iterations;
+                double batchMs = batchTime / 1E6 / iterations;
+                System.out.println(points + "\t" + String.format("%.1f", recordsMs) + "\t" + String.format("%.1f", batchMs)
+                        + "\t" + String.format("%.1fx", recordsMs / batchMs));
+            } finally {
+                lasFile.delete();
+            }
+        }
+    }
+
+    private static double readRecords( File lasFile ) throws Exception {
+        double sum = 0;
+        try (LasReader reader = new LasReader(lasFile, null)) {
+            reader.open();
+            while( reader.hasNextPoint() ) {
+                LasRecord record = reader.getNextPoint();
+                sum += record.x + record.y + record.z + record.intensity + record.gpsTime;
+            }
+        }
+        return sum;
+    }
+
+    private static double readBatches( File lasFile, int batchSize ) throws Exception {
+        double sum = 0;
+        LasPointBatch batch = new LasPointBatch(batchSize);
+        try (LasReader reader = new LasReader(lasFile, null)) {
+            reader.open();
+            int read;
+            while( (read = reader.readNextBatch(batch)) > 0 ) {
+                for( int i = 0; i < read; i++ ) {
+                    sum += batch.x[i] + batch.y[i] + batch.z[i] + batch.intensity[i] + batch.gpsTime[i];
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static File createSyntheticLas( int points ) throws Exception {
+        File lasFile = File.createTempFile("lasbenchmark", ".las");
+        Random random = new Random(points);
+        LasWriter writer = new LasWriter(lasFile, null);
+        writer.setPointFormat(1);
+        writer.setBounds(0, 1000, 0, 1000, 0, 100);
+        writer.open();
+        LasRecord record = new LasRecord();
+        for( int i = 0; i < points; i++ ) {
+            record.x = random.nextDouble() * 1000;
+            record.y = random.nextDouble() * 1000;
+            record.z = random.nextDouble() * 100;
+            record.intensity = (short) random.nextInt(1000);
+            record.classification = (byte) (random.nextInt(5) + 1);
+            record.returnNumber = 1;
+            record.numberOfReturns = 1;
+            record.gpsTime = i * 0.001;
+            writer.addPoint(record);
+        }
+        writer.close();
+        return lasFile;
+    }
+
+}
@@ -2,16 +2,24 @@ package org.jgrasstools.gears.modules;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
+import org.jgrasstools.gears.io.disktree.DiskTreeReader;
+import org.jgrasstools.gears.io.disktree.DiskTreeWriter;
 import org.jgrasstools.gears.io.disktree.IDiskTree;
 import org.jgrasstools.gears.utils.HMTestCase;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.index.quadtree.Quadtree;
 import com.vividsolutions.jts.io.WKTReader;
 /**
@@ -151,6 +159,174 @@ public class TestDiskTreeIO extends HMTestCase {
 
     }
 
+    public void testBinaryFormat() throws Exception {
+        WKTReader r = new WKTReader();
+        Geometry pol = r.read("POLYGON ((210 350, 230 310, 290 350, 290 350, 210 350))");
+        pol.setUserData(new Integer(1));
+        Envelope polEnvelope = pol.getEnvelopeInternal();
+        Geometry line = r.read("LINESTRING (50 380, 90 210, 180 160, 240 40, 240 40)");
+        line.setUserData("line");
+        Geometry point = r.read("POINT (130 120)");
+        point.setUserData(new Double(3.0));
+
+        File tmpFile = File.createTempFile("jgt-disktree", ".bin");
+        try {
+            DiskTreeWriter writer = new DiskTreeWriter(tmpFile.getAbsolutePath());
+            writer.writeGeometries(new Geometry[]{point, line, pol});
+
+            DiskTreeReader reader = new DiskTreeReader(tmpFile.getAbsolutePath());
+            reader.open();
+            assertFalse(reader.isLegacyFormat());
+            assertEquals(3, reader.size());
+
+            List<Geometry> geomList = reader.queryGeometries(polEnvelope);
+            assertEquals(2, geomList.size());
+            for( Geometry geometry : geomList ) {
+                Object userData = geometry.getUserData();
+                if (userData instanceof Integer) {
+                    assertEquals(1, ((Integer) userData).intValue());
+                    assertTrue(geometry.equalsExact(pol));
+                } else {
+                    assertEquals("line", userData);
+                    assertTrue(geometry.equalsExact(line));
+                }
+            }
+
+            // the line envelope contains the point
+            List<long[]> positions = reader.query(point.getEnvelopeInternal());
+            assertEquals(2, positions.size());
+            Geometry pickedPoint = null;
+            for( long[] position : positions ) {
+                Geometry picked = reader.pickGeometry(position[0], position[1]);
+                if (picked.getUserData() instanceof Double) {
+                    pickedPoint = picked;
+                }
+            }
+            assertNotNull(pickedPoint);
+            assertTrue(pickedPoint.equalsExact(point));
+            assertEquals(3.0, (Double) pickedPoint.getUserData(), DELTA);
+
+            assertEquals(0, reader.query(new Envelope(1000, 1100, 1000, 1100)).size());
+            assertEquals(3, reader.readIndex().size());
+            reader.close();
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    public void testRandomEnvelopes() throws Exception {
+        GeometryFactory gf = new GeometryFactory();
+        Random random = new Random(7);
+        int geometriesCount = 5000;
+        Geometry[] geometries = new Geometry[geometriesCount];
+        for( int i = 0; i < geometriesCount; i++ ) {
+            double x = random.nextDouble() * 10000;
+            double y = random.nextDouble() * 10000;
+            Envelope envelope = new Envelope(x, x + random.nextDouble() * 200, y, y + random.nextDouble() * 200);
+            Geometry geometry;
+            if (i % 10 == 0) {
+                geometry = gf.createPoint(new Coordinate(x, y));
+            } else {
+                geometry = gf.toGeometry(envelope);
+            }
+            geometry.setUserData(i);
+            geometries[i] = geometry;
+        }
+
+        int[] nodeCapacities = {2, 5, IDiskTree.DEFAULT_NODE_CAPACITY};
+        for( int nodeCapacity : nodeCapacities ) {
+            File tmpFile = File.createTempFile("jgt-disktree", ".bin");
+            try {
+                DiskTreeWriter writer = new DiskTreeWriter(tmpFile.getAbsolutePath());
+                writer.setNodeCapacity(nodeCapacity);
+                writer.writeGeometries(geometries);
+
+                DiskTreeReader reader = new DiskTreeReader(tmpFile.getAbsolutePath());
+                reader.open();
+                assertEquals(geometriesCount, reader.size());
+                for( int q = 0; q < 200; q++ ) {
+                    double x = random.nextDouble() * 10500 - 250;
+                    double y = random.nextDouble() * 10500 - 250;
+                    double size = q % 20 == 0 ? 5000 : random.nextDouble() * 800;
+                    Envelope searchEnv = new Envelope(x, x + size, y, y + size);
+
+                    List<Integer> expected = new ArrayList<Integer>();
+                    for( Geometry geometry : geometries ) {
+                        if (geometry.getEnvelopeInternal().intersects(searchEnv)) {
+                            expected.add((Integer) geometry.getUserData());
+                        }
+                    }
+
+                    List<Integer> found = new ArrayList<Integer>();
+                    for( Geometry geometry : reader.queryGeometries(searchEnv) ) {
+                        Integer id = (Integer) geometry.getUserData();
+                        assertTrue(geometry.equalsExact(geometries[id]));
+                        found.add(id);
+                    }
+                    Collections.sort(found);
+                    assertEquals(expected, found);
+                    assertEquals(expected.size(), reader.query(searchEnv).size());
+                }
+                reader.close();
+            } finally {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    public void testArrayUserDataAndReopen() throws Exception {
+        GeometryFactory gf = new GeometryFactory();
+        Geometry[] geometries = new Geometry[20];
+        for( int i = 0; i < geometries.length; i++ ) {
+            geometries[i] = gf.toGeometry(new Envelope(i * 10, i * 10 + 5, 0, 5));
+            geometries[i].setUserData(new double[]{i, i + 0.5});
+        }
+        File tmpFile = File.createTempFile("jgt-disktree", ".bin");
+        try {
+            new DiskTreeWriter(tmpFile.getAbsolutePath()).writeGeometries(geometries);
+
+            DiskTreeReader reader = new DiskTreeReader(tmpFile.getAbsolutePath());
+            List<Geometry> all = reader.getGeometries();
+            assertEquals(geometries.length, all.size());
+            for( int i = 0; i < geometries.length; i++ ) {
+                assertTrue(all.get(i).equalsExact(geometries[i]));
+                double[] values = (double[]) all.get(i).getUserData();
+                assertEquals(2, values.length);
+                assertEquals(i, values[0], DELTA);
+                assertEquals(i + 0.5, values[1], DELTA);
+            }
+
+            // positions found before closing can still be read, the reader opens again
+            List<long[]> positions = reader.query(new Envelope(31, 32, 1, 2));
+            assertEquals(1, positions.size());
+            reader.close();
+            Geometry picked = reader.pickGeometry(positions.get(0)[0], positions.get(0)[1]);
+            assertEquals(3.0, ((double[]) picked.getUserData())[0], DELTA);
+            assertEquals(1, reader.queryGeometries(new Envelope(31, 32, 1, 2)).size());
+            reader.close();
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    public void testUnsupportedUserData() throws Exception {
+        WKTReader r = new WKTReader();
+        Geometry point = r.read("POINT (130 120)");
+        point.setUserData(new Object());
+        File tmpFile = File.createTempFile("jgt-disktree", ".bin");
+        try {
+            DiskTreeWriter writer = new DiskTreeWriter(tmpFile.getAbsolutePath());
+            try {
+                writer.writeGeometries(new Geometry[]{point});
+                fail("Unsupported user data should not be written.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
     private static byte[] serialize( Object obj ) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream out = new ObjectOutputStream(bos);
@@ -0,0 +1,158 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.net.URL;
+
+import org.jgrasstools.gears.io.grasslegacy.io.GrassRasterReader;
+import org.jgrasstools.gears.io.grasslegacy.utils.Window;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+/**
+ * Test {@link GrassRasterReader}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestGrassLegacyReader extends HMTestCase {
+
+    private static final double N = 5140020.0;
+    private static final double S = 5139780.0;
+    private static final double W = 1640650.0;
+    private static final double E = 1640950.0;
+    private static final double NV = Double.NaN;
+
+    /**
+     * 2 bytes integer map, not compressed, with null file.
+     */
+    private static final double[][] INT_DATA = {//
+    {1, -2, 300, NV}, //
+            {-32000, 5, NV, 7}, //
+            {8, 9, 10, 11} //
+    };
+    /**
+     * 3 bytes integer map, compressed: the first, third and fourth rows are run length
+     * encoded, the second one is stored as is.
+     */
+    private static final double[][] INT3_DATA = {//
+    {70000, 70000, 70000, 70000, 2, 2}, //
+            {1, 2, 3, 4, 5, 6}, //
+            {100000, 100000, 100000, 100000, 100000, 100000}, //
+            {5, 5, 5, 9, 9, 9} //
+    };
+    /**
+     * Float map, compressed: the first and third rows are deflated, the second one is stored
+     * as is.
+     */
+    private static final double[][] FLOAT_DATA = {//
+    {1.5, -2.25, NV, 1000.125}, //
+            {0.5, 3.75, 12.0, NV}, //
+            {-0.125, 7.5, 8.25, 9.0} //
+    };
+
+    private String grassPath;
+
+    protected void setUp() throws Exception {
+        grassPath = getMapPath("cell/test");
+    }
+
+    public void testParallelReadAll() throws Exception {
+        double[][] data = read(grassPath, new Window(W, E, S, N, 30.0, 30.0), true);
+        assertEquals(HMTestMaps.mapData.length, data.length);
+        assertEquals(HMTestMaps.mapData[0].length, data[0].length);
+        checkMatrixEqual(data, HMTestMaps.mapData, DELTA);
+    }
+
+    public void testParallelAsSerial() throws Exception {
+        Window[] windows = {//
+        new Window(1640710.0, 1640920.0, 5139840.0, 5140020.0, 30.0, 30.0), //
+                new Window(W - 60.0, E + 90.0, S - 30.0, N + 45.0, 30.0, 30.0), //
+                new Window(W, E, S, N, 60.0, 60.0), //
+                new Window(W, E, S, N, 10.0, 10.0), //
+                new Window(W + 7.0, E, S, N - 7.0, 21.0, 21.0) //
+        };
+        for( Window window : windows ) {
+            double[][] serialData = read(grassPath, window, false);
+            double[][] parallelData = read(grassPath, window, true);
+            assertEquals(serialData.length, parallelData.length);
+            assertEquals(serialData[0].length, parallelData[0].length);
+            checkMatrixEqual(parallelData, serialData, 0.0);
+        }
+    }
+
+    public void testIntegerMaps() throws Exception {
+        checkMap(getMapPath("cell/testint"), INT_DATA);
+        checkMap(getMapPath("cell/testint3"), INT3_DATA);
+    }
+
+    public void testFloatMap() throws Exception {
+        checkMap(getMapPath("cell/testfloat"), FLOAT_DATA);
+    }
+
+    /**
+     * Check a map of 10 meters cells with south west corner in 500/1000, read in its own
+     * region and in a window of half resolution, both in parallel and sequentially.
+     */
+    private void checkMap( String mapPath, double[][] expected ) throws Exception {
+        checkMap(mapPath, expected, true);
+        checkMap(mapPath, expected, false);
+    }
+
+    private void checkMap( String mapPath, double[][] expected, boolean parallel ) throws Exception {
+        int rows = expected.length;
+        int cols = expected[0].length;
+        Window window = new Window(500.0, 500.0 + cols * 10.0, 1000.0, 1000.0 + rows * 10.0, 10.0, 10.0);
+        double[][] data = read(mapPath, window, parallel);
+        assertEquals(rows, data.length);
+        assertEquals(cols, data[0].length);
+        checkMatrixEqual(data, expected, 0.0);
+
+        Window fineWindow = new Window(500.0, 500.0 + cols * 10.0, 1000.0, 1000.0 + rows * 10.0, 5.0, 5.0);
+        double[][] fineExpected = new double[rows * 2][cols * 2];
+        for( int r = 0; r < fineExpected.length; r++ ) {
+            for( int c = 0; c < fineExpected[0].length; c++ ) {
+                fineExpected[r][c] = expected[r / 2][c / 2];
+            }
+        }
+        double[][] fineData = read(mapPath, fineWindow, parallel);
+        assertEquals(rows * 2, fineData.length);
+        assertEquals(cols * 2, fineData[0].length);
+        checkMatrixEqual(fineData, fineExpected, 0.0);
+    }
+
+    private String getMapPath( String map ) throws Exception {
+        URL testUrl = this.getClass().getClassLoader().getResource("gbovest/testcase/" + map);
+        return new File(testUrl.toURI()).getAbsolutePath();
+    }
+
+    private double[][] read( String mapPath, Window window, boolean parallel ) throws Exception {
+        GrassRasterReader reader = new GrassRasterReader();
+        try {
+            reader.setOutputDataObject(new double[0][0]);
+            reader.setDataWindow(window);
+            reader.setParameter("parallel", parallel);
+            assertTrue(reader.open(mapPath));
+            assertTrue(reader.hasMoreData(pm));
+            return (double[][]) reader.getNextData();
+        } finally {
+            reader.close();
+        }
+    }
+
+}
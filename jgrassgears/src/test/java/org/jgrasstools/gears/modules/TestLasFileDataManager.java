@@ -0,0 +1,181 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.io.las.ALasDataManager;
+import org.jgrasstools.gears.io.las.core.ALasWriter;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasWriter;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Test the queries of the {@link ALasDataManager} of a single las file.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestLasFileDataManager extends HMTestCase {
+    private static final int POINTS_COUNT = 2000;
+    private static final double ELEV_THRESHOLD = 2.0;
+
+    private CoordinateReferenceSystem crs;
+    private File lasFile;
+    private List<LasRecord> allPoints;
+
+    protected void setUp() throws Exception {
+        crs = HMTestMaps.getCrs();
+        lasFile = File.createTempFile("jgt-", ".las");
+        allPoints = new ArrayList<LasRecord>();
+        ALasWriter w = new LasWriter(lasFile, crs);
+        w.setBounds(1000, 1100, 5000, 5100, 10, 19);
+        w.open();
+        for( int i = 0; i < POINTS_COUNT; i++ ) {
+            LasRecord record = new LasRecord();
+            // half cell values, so that no point is on the border of a dem cell
+            record.x = 1000.5 + (i * 37) % 100;
+            record.y = 5000.5 + (i * 11) % 100;
+            record.z = 10 + i % 10;
+            // the intensity is a unique point id
+            record.intensity = (short) i;
+            w.addPoint(record);
+            allPoints.add(record);
+        }
+        w.close();
+    }
+
+    protected void tearDown() throws Exception {
+        lasFile.delete();
+    }
+
+    public void testQueries() throws Exception {
+        ALasDataManager dataManager = ALasDataManager.getDataManager(lasFile, null, 0, crs);
+        try {
+            dataManager.open();
+            GeometryFactory gf = new GeometryFactory();
+            Random random = new Random(42);
+            for( int i = 0; i < 50; i++ ) {
+                double x = 980 + random.nextDouble() * 120;
+                double y = 4980 + random.nextDouble() * 120;
+                Envelope env = new Envelope(x, x + 1 + random.nextDouble() * 60, y, y + 1 + random.nextDouble() * 60);
+                Geometry envGeom = gf.toGeometry(env);
+                checkIds(expectedIds(envGeom, null), dataManager.getPointBlockInGeometry(envGeom, true));
+
+                Geometry circle = gf.createPoint(new Coordinate(x, y)).buffer(5 + random.nextDouble() * 30);
+                checkIds(expectedIds(circle, null), dataManager.getPointBlockInGeometry(circle, false));
+            }
+
+            // outside of the data
+            Geometry outside = gf.toGeometry(new Envelope(0, 10, 0, 10));
+            assertEquals(0, dataManager.getPointBlockInGeometry(outside, true).size());
+
+            // all of the data
+            Geometry all = gf.toGeometry(new Envelope(0, 10000, 0, 10000));
+            assertEquals(POINTS_COUNT, dataManager.getPointBlockInGeometry(all, true).size());
+        } finally {
+            dataManager.close();
+        }
+    }
+
+    public void testQueriesOnDem() throws Exception {
+        // a dem with the value of the column, in cells of 10 meters
+        double[][] demData = new double[10][10];
+        for( int row = 0; row < 10; row++ ) {
+            for( int col = 0; col < 10; col++ ) {
+                demData[row][col] = col;
+            }
+        }
+        RegionMap regionMap = CoverageUtilities.makeRegionParamsMap(5100, 5000, 1000, 1100, 10, 10, 10, 10);
+        GridCoverage2D inDem = CoverageUtilities.buildCoverage("dem", demData, regionMap, crs, true);
+
+        ALasDataManager dataManager = ALasDataManager.getDataManager(lasFile, inDem, ELEV_THRESHOLD, crs);
+        try {
+            dataManager.open();
+            GeometryFactory gf = new GeometryFactory();
+            Geometry query = gf.toGeometry(new Envelope(1020, 1070, 5010, 5060));
+            LasPointBlock first = dataManager.getPointBlockInGeometry(query, true);
+            checkIds(expectedIds(query, inDem), first);
+            checkGroundElevations(first);
+
+            // the ground elevations of a result are not shared with the other results
+            for( int i = 0; i < first.size(); i++ ) {
+                first.setGroundElevation(i, -1.0);
+            }
+            LasPointBlock second = dataManager.getPointBlockInGeometry(query, true);
+            checkIds(expectedIds(query, inDem), second);
+            checkGroundElevations(second);
+
+            Geometry all = gf.toGeometry(new Envelope(0, 10000, 0, 10000));
+            LasPointBlock allPointsBlock = dataManager.getPointBlockInGeometry(all, true);
+            checkIds(expectedIds(all, inDem), allPointsBlock);
+            checkGroundElevations(allPointsBlock);
+        } finally {
+            dataManager.close();
+        }
+    }
+
+    private void checkGroundElevations( LasPointBlock block ) {
+        for( int i = 0; i < block.size(); i++ ) {
+            double demValue = Math.floor((block.getX(i) - 1000) / 10);
+            assertEquals(block.getZ(i) - demValue, block.getGroundElevation(i), DELTA);
+        }
+    }
+
+    /**
+     * @return the ids of the points in the geometry, in the order of the file.
+     */
+    private List<Integer> expectedIds( Geometry geometry, GridCoverage2D inDem ) {
+        GeometryFactory gf = new GeometryFactory();
+        List<Integer> ids = new ArrayList<Integer>();
+        for( LasRecord point : allPoints ) {
+            if (!geometry.contains(gf.createPoint(new Coordinate(point.x, point.y)))) {
+                continue;
+            }
+            if (inDem != null) {
+                double demValue = Math.floor((point.x - 1000) / 10);
+                if (point.z - demValue <= ELEV_THRESHOLD) {
+                    continue;
+                }
+            }
+            ids.add((int) point.intensity);
+        }
+        return ids;
+    }
+
+    private static void checkIds( List<Integer> expected, LasPointBlock block ) {
+        assertEquals(expected.size(), block.size());
+        for( int i = 0; i < block.size(); i++ ) {
+            assertEquals(expected.get(i).intValue(), block.getIntensity(i));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jgrasstools.gears.io.las.ALasDataManager;
+import org.jgrasstools.gears.io.las.LasFolderIndexDataManager;
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.ALasWriter;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasWriter;
+import org.jgrasstools.gears.io.las.index.LasIndexer;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Test the concurrent queries of {@link LasFolderIndexDataManager}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestLasFolderIndexDataManager extends HMTestCase {
+    private static final int FILES_PER_SIDE = 3;
+    private static final int POINTS_PER_FILE = 400;
+
+    public void testConcurrentQueries() throws Exception {
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        File folder = File.createTempFile("jgt-", "");
+        folder.delete();
+        folder.mkdirs();
+
+        // a grid of adjacent las files, the intensity is a unique point id
+        final List<LasRecord> allPoints = new ArrayList<LasRecord>();
+        int id = 0;
+        for( int fileRow = 0; fileRow < FILES_PER_SIDE; fileRow++ ) {
+            for( int fileCol = 0; fileCol < FILES_PER_SIDE; fileCol++ ) {
+                double west = 1000 + fileCol * 100;
+                double south = 5000 + fileRow * 100;
+                ALasWriter w = new LasWriter(new File(folder, "points_" + fileRow + "_" + fileCol + ".las"), crs);
+                w.setBounds(west, west + 99, south, south + 99, 10, 19);
+                w.open();
+                for( int i = 0; i < POINTS_PER_FILE; i++ ) {
+                    LasRecord record = new LasRecord();
+                    record.x = west + (i * 37) % 100;
+                    record.y = south + (i * 11) % 100;
+                    record.z = 10 + i % 10;
+                    record.intensity = (short) id++;
+                    w.addPoint(record);
+                    allPoints.add(record);
+                }
+                w.close();
+            }
+        }
+
+        LasIndexer indexer = new LasIndexer();
+        indexer.inFolder = folder.getAbsolutePath();
+        indexer.pCellsize = 10;
+        indexer.pChunksize = 100;
+        indexer.process();
+
+        final GeometryFactory gf = new GeometryFactory();
+        Random random = new Random(42);
+        int queriesCount = 60;
+        final Geometry[] queries = new Geometry[queriesCount];
+        final int[][] expected = new int[queriesCount][];
+        for( int i = 0; i < queriesCount; i++ ) {
+            double x = 990 + random.nextDouble() * FILES_PER_SIDE * 100;
+            double y = 4990 + random.nextDouble() * FILES_PER_SIDE * 100;
+            Envelope env = new Envelope(x, x + 10 + random.nextDouble() * 150, y, y + 10 + random.nextDouble() * 150);
+            queries[i] = gf.toGeometry(env);
+            expected[i] = bruteForceIds(allPoints, env);
+        }
+
+        File mainIndexFile = new File(folder, LasIndexer.INDEX_LASFOLDER);
+        final LasFolderIndexDataManager dataManager = (LasFolderIndexDataManager) ALasDataManager.getDataManager(
+                mainIndexFile, null, 0, crs);
+        try {
+            // small caches, to have readers and indexes evicted while querying
+            dataManager.setCacheSizes(2, 2);
+            dataManager.setThreadsNum(4);
+            dataManager.open();
+
+            // sequential reference
+            for( int i = 0; i < queriesCount; i++ ) {
+                assertTrue(Arrays.equals(expected[i], ids(dataManager.getPointBlockInGeometry(queries[i], true))));
+            }
+
+            // concurrent queries, each also fanning out on the files
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[6];
+            for( int t = 0; t < threads.length; t++ ) {
+                final int offset = t;
+                threads[t] = new Thread(new Runnable(){
+                    public void run() {
+                        try {
+                            for( int repeat = 0; repeat < 3; repeat++ ) {
+                                for( int i = 0; i < queries.length; i++ ) {
+                                    int q = (i + offset * 7) % queries.length;
+                                    int[] ids = ids(dataManager.getPointBlockInGeometry(queries[q], true));
+                                    if (!Arrays.equals(expected[q], ids)) {
+                                        throw new AssertionError("Wrong result for query " + q);
+                                    }
+                                }
+                            }
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for( Thread thread : threads ) {
+                thread.join();
+            }
+            if (error.get() != null) {
+                throw new AssertionError(error.get());
+            }
+
+            // idle readers beyond the bound have been closed
+            assertTrue(dataManager.getOpenReadersCount() <= 2);
+
+            // a reader in use while closing is closed when given back, not pooled
+            String name = "points_0_0_indexed.las";
+            ALasReader reader = dataManager.borrowReader(name);
+            dataManager.close();
+            assertEquals(1, dataManager.getOpenReadersCount());
+            dataManager.returnReader(name, reader);
+            assertEquals(0, dataManager.getOpenReadersCount());
+
+            // the next query opens the manager again
+            assertTrue(Arrays.equals(expected[0], ids(dataManager.getPointBlockInGeometry(queries[0], true))));
+        } finally {
+            dataManager.close();
+        }
+        assertEquals(0, dataManager.getOpenReadersCount());
+    }
+
+    private static int[] bruteForceIds( List<LasRecord> points, Envelope env ) {
+        List<Integer> idsList = new ArrayList<Integer>();
+        for( LasRecord point : points ) {
+            if (env.contains(point.x, point.y)) {
+                idsList.add((int) point.intensity);
+            }
+        }
+        int[] ids = new int[idsList.size()];
+        for( int i = 0; i < ids.length; i++ ) {
+            ids[i] = idsList.get(i);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static int[] ids( LasPointBlock block ) {
+        int[] ids = new int[block.size()];
+        for( int i = 0; i < ids.length; i++ ) {
+            ids[i] = block.getIntensity(i);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+}
@@ -25,6 +25,7 @@ import java.net.URL;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.jgrasstools.gears.io.las.core.ILasHeader;
+import org.jgrasstools.gears.io.las.core.LasPointBatch;
 import org.jgrasstools.gears.io.las.core.LasRecord;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasHeader;
 import org.jgrasstools.gears.io.las.core.liblas.LiblasJNALibrary;
@@ -95,6 +96,43 @@ public class TestLasIO extends HMTestCase {
         processFile(name, expectedCount, true);
     }
 
+    public void testLasBatchReader() throws Exception {
+        String[] names = {"las/1.0_0.las", "las/1.0_1.las", "las/1.1_0.las", "las/1.1_1.las", "las/1.2_0.las",
+                "las/1.2_1.las", "las/1.2_2.las", "las/1.2_3.las", "las/1.2-with-color.las"};
+        for( String name : names ) {
+            URL lasUrl = this.getClass().getClassLoader().getResource(name);
+            File lasFile = new File(lasUrl.toURI());
+
+            try (LasReader recordReader = new LasReader(lasFile, null); LasReader batchReader = new LasReader(lasFile, null)) {
+                recordReader.open();
+                batchReader.open();
+                long expectedCount = recordReader.getHeader().getRecordsCount();
+
+                // small batch to test reading across batch boundaries
+                LasPointBatch batch = new LasPointBatch(100);
+                long count = 0;
+                int read;
+                while( (read = batchReader.readNextBatch(batch)) > 0 ) {
+                    assertEquals(read, batch.size());
+                    for( int i = 0; i < read; i++ ) {
+                        assertTrue(recordReader.hasNextPoint());
+                        LasRecord expected = recordReader.getNextPoint();
+                        LasRecord batchRecord = batch.getRecord(i);
+                        assertTrue(LasUtils.lasRecordEqual(expected, batchRecord));
+                        assertEquals(expected.gpsTime, batchRecord.gpsTime, DELTA);
+                        assertEquals(expected.color[0], batchRecord.color[0]);
+                        assertEquals(expected.color[1], batchRecord.color[1]);
+                        assertEquals(expected.color[2], batchRecord.color[2]);
+                        count++;
+                    }
+                }
+                assertEquals(expectedCount, count);
+                assertFalse(batchReader.hasNextPoint());
+                assertEquals(0, batchReader.readNextBatch(batch));
+            }
+        }
+    }
+
     public void testLazReader() throws Exception {
         if (doNative) {
             String name = "las/1.2-with-color.laz";
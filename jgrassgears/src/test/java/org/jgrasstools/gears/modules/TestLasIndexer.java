@@ -0,0 +1,252 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jgrasstools.gears.io.disktree.DiskTreeReader;
+import org.jgrasstools.gears.io.las.core.ALasReader;
+import org.jgrasstools.gears.io.las.core.ALasWriter;
+import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasReader;
+import org.jgrasstools.gears.io.las.core.v_1_0.LasWriter;
+import org.jgrasstools.gears.io.las.index.LasIndexer;
+import org.jgrasstools.gears.io.las.index.OmsLasIndexReader;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+/**
+ * Test {@link LasIndexer}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestLasIndexer extends HMTestCase {
+    private static final long HOUR = 3600000L;
+
+    private CoordinateReferenceSystem crs;
+    private File folder;
+
+    protected void setUp() throws Exception {
+        crs = HMTestMaps.getCrs();
+        folder = createFolder();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testLasIndexer() throws Exception {
+        int pointsCount = 1000;
+        writePoints(new File(folder, "points.las"), pointsCount, 0);
+        // chunks smaller than the file, so that the points are sorted a window of cells at a time
+        index(folder, 100);
+
+        File mainIndexFile = new File(folder, LasIndexer.INDEX_LASFOLDER);
+        assertTrue(mainIndexFile.exists());
+        List<LasRecord> points = checkIndexed(folder, "points", pointsCount, 0);
+        // the temporary file of the chunks is removed
+        for( String name : folder.list() ) {
+            assertFalse(name, name.endsWith(".spill"));
+        }
+
+        // the same file sorted in memory gives the same order
+        File memoryFolder = createFolder();
+        try {
+            writePoints(new File(memoryFolder, "points.las"), pointsCount, 0);
+            index(memoryFolder, pointsCount);
+            List<LasRecord> memoryPoints = checkIndexed(memoryFolder, "points", pointsCount, 0);
+            for( int i = 0; i < pointsCount; i++ ) {
+                assertEquals(memoryPoints.get(i).intensity, points.get(i).intensity);
+            }
+        } finally {
+            FileUtilities.deleteFileOrDir(memoryFolder);
+        }
+    }
+
+    public void testIncrementalIndexing() throws Exception {
+        File pointsFile = new File(folder, "points.las");
+        File otherFile = new File(folder, "other.las");
+        writePoints(pointsFile, 1000, 0);
+        writePoints(otherFile, 300, 2000);
+        index(folder, 100);
+        checkIndexed(folder, "points", 1000, 0);
+        checkIndexed(folder, "other", 300, 2000);
+        File pointsIndex = new File(folder, "points_indexed.lasfix");
+        File otherIndex = new File(folder, "other_indexed.lasfix");
+
+        // the timestamps are moved back, since the file times may have a resolution of seconds
+        long oldTime = setOldTime(folder, "points");
+        long otherOldTime = setOldTime(folder, "other");
+        index(folder, 100);
+        assertEquals(oldTime, pointsIndex.lastModified());
+        assertEquals(otherOldTime, otherIndex.lastModified());
+
+        // a touched file with the same content is not indexed again
+        pointsFile.setLastModified(pointsFile.lastModified() - HOUR);
+        index(folder, 100);
+        assertEquals(oldTime, pointsIndex.lastModified());
+
+        // a changed file is indexed again, the others are kept
+        writePoints(pointsFile, 600, 5000);
+        index(folder, 100);
+        assertTrue(pointsIndex.lastModified() != oldTime);
+        assertEquals(otherOldTime, otherIndex.lastModified());
+        checkIndexed(folder, "points", 600, 5000);
+        checkIndexed(folder, "other", 300, 2000);
+        assertEquals(Arrays.asList("other_indexed.las", "points_indexed.las"), getMainIndexFiles(folder));
+
+        // the index of a removed file is removed
+        otherFile.delete();
+        index(folder, 100);
+        assertFalse(otherIndex.exists());
+        assertFalse(new File(folder, "other_indexed.las").exists());
+        assertEquals(Arrays.asList("points_indexed.las"), getMainIndexFiles(folder));
+        checkIndexed(folder, "points", 600, 5000);
+    }
+
+    private void index( File lasFolder, int chunkSize ) throws Exception {
+        LasIndexer indexer = new LasIndexer();
+        indexer.pm = pm;
+        indexer.inFolder = lasFolder.getAbsolutePath();
+        indexer.pCellsize = 10;
+        indexer.pChunksize = chunkSize;
+        indexer.process();
+    }
+
+    private void writePoints( File lasFile, int pointsCount, int firstIntensity ) throws Exception {
+        ALasWriter w = new LasWriter(lasFile, crs);
+        w.setBounds(1000, 1099, 5000, 5099, 10, 19);
+        w.open();
+        LasRecord record = new LasRecord();
+        for( int i = 0; i < pointsCount; i++ ) {
+            record.x = 1000 + (i * 37) % 100;
+            record.y = 5000 + (i * 11) % 100;
+            record.z = 10 + i % 10;
+            record.intensity = (short) (firstIntensity + i);
+            w.addPoint(record);
+        }
+        w.close();
+    }
+
+    /**
+     * Check that the indexed file has all the points, grouped by cell in the order of the cells,
+     * and that every cell of the index points to the range of its points.
+     *
+     * @return the points of the indexed file.
+     */
+    private List<LasRecord> checkIndexed( File lasFolder, String name, int pointsCount, int firstIntensity ) throws Exception {
+        List<LasRecord> points = new ArrayList<LasRecord>();
+        ALasReader r = new LasReader(new File(lasFolder, name + "_indexed.las"), crs);
+        r.open();
+        assertEquals(pointsCount, r.getHeader().getRecordsCount());
+        while( r.hasNextPoint() ) {
+            points.add(r.getNextPoint());
+        }
+        r.close();
+        assertEquals(pointsCount, points.size());
+
+        int[] intensities = new int[pointsCount];
+        for( int i = 0; i < pointsCount; i++ ) {
+            intensities[i] = points.get(i).intensity;
+        }
+        Arrays.sort(intensities);
+        for( int i = 0; i < pointsCount; i++ ) {
+            assertEquals(firstIntensity + i, intensities[i]);
+        }
+
+        DiskTreeReader index = OmsLasIndexReader.openIndex(new File(lasFolder, name + "_indexed.lasfix").getAbsolutePath());
+        List<Geometry> cells = index.queryGeometries(new Envelope(0, 10000, 0, 10000));
+        index.close();
+        Collections.sort(cells, new Comparator<Geometry>(){
+            public int compare( Geometry o1, Geometry o2 ) {
+                return Double.compare(((double[]) o1.getUserData())[0], ((double[]) o2.getUserData())[0]);
+            }
+        });
+        int next = 0;
+        Envelope previous = null;
+        for( Geometry cell : cells ) {
+            double[] item = (double[]) cell.getUserData();
+            Envelope cellEnvelope = new Envelope(cell.getEnvelopeInternal());
+            assertEquals(next, (int) item[0]);
+            int to = (int) item[1];
+            assertTrue(to > next);
+
+            // the cells are ordered by column and then from north to south
+            if (previous != null) {
+                double dx = cellEnvelope.centre().x - previous.centre().x;
+                double dy = cellEnvelope.centre().y - previous.centre().y;
+                assertTrue(dx > DELTA || (Math.abs(dx) < DELTA && dy < -DELTA));
+            }
+            previous = cellEnvelope;
+
+            cellEnvelope.expandBy(DELTA);
+            double elevSum = 0;
+            double intensitySum = 0;
+            for( int i = next; i < to; i++ ) {
+                LasRecord point = points.get(i);
+                assertTrue(cellEnvelope.contains(point.x, point.y));
+                elevSum += point.z;
+                intensitySum += point.intensity;
+            }
+            assertEquals(elevSum / (to - next), item[2], DELTA);
+            assertEquals(intensitySum / (to - next), item[3], DELTA);
+            next = to;
+        }
+        assertEquals(pointsCount, next);
+        return points;
+    }
+
+    private List<String> getMainIndexFiles( File lasFolder ) throws Exception {
+        File mainIndexFile = new File(lasFolder, LasIndexer.INDEX_LASFOLDER);
+        DiskTreeReader mainIndex = OmsLasIndexReader.openIndex(mainIndexFile.getAbsolutePath());
+        List<String> files = new ArrayList<String>();
+        for( Geometry file : mainIndex.queryGeometries(new Envelope(0, 10000, 0, 10000)) ) {
+            files.add((String) file.getUserData());
+        }
+        mainIndex.close();
+        Collections.sort(files);
+        return files;
+    }
+
+    private static long setOldTime( File lasFolder, String name ) {
+        File indexedFile = new File(lasFolder, name + "_indexed.las");
+        File indexFile = new File(lasFolder, name + "_indexed.lasfix");
+        // the times of many filesystems are in seconds
+        long oldTime = (indexFile.lastModified() / 1000) * 1000 - HOUR;
+        assertTrue(indexedFile.setLastModified(oldTime));
+        assertTrue(indexFile.setLastModified(oldTime));
+        return oldTime;
+    }
+
+    private static File createFolder() throws Exception {
+        File folder = File.createTempFile("jgt-", "");
+        folder.delete();
+        folder.mkdirs();
+        return folder;
+    }
+}
@@ -17,15 +17,25 @@
  */
 package org.jgrasstools.gears.modules;
 
+import java.awt.image.Raster;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.jgrasstools.gears.io.rasterreader.OmsRasterReader;
+import org.jgrasstools.gears.io.rasterwriter.GeoTiffStreamWriter;
+import org.jgrasstools.gears.io.rasterwriter.IStreamingRasterWriter;
 import org.jgrasstools.gears.io.rasterwriter.OmsRasterWriter;
 import org.jgrasstools.gears.utils.HMTestCase;
 import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.RegionMap;
 import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 /**
@@ -85,4 +95,237 @@ public class TestRasterWriter extends HMTestCase {
         }
     }
 
+    public void testStreamingWriter() throws Exception {
+        RegionMap region = CoverageUtilities.getRegionParamsFromGridCoverage(coverage);
+        double[][] elevationData = HMTestMaps.mapData;
+        String[] paths = {arcPath.replaceFirst("dtm_testout.asc", "dtm_testout_stream.tiff"), grassPath + "_stream"};
+        for( String path : paths ) {
+            IStreamingRasterWriter writer = OmsRasterWriter.getStreamingWriter(path, region, HMTestMaps.getCrs());
+            try {
+                for( double[] row : elevationData ) {
+                    writer.writeRow(row);
+                }
+            } finally {
+                writer.close();
+            }
+            assertEquals(elevationData.length, writer.getWrittenRows());
+
+            OmsRasterReader reader = new OmsRasterReader();
+            reader.file = path;
+            reader.fileNovalue = -9999.0;
+            reader.geodataNovalue = Double.NaN;
+            reader.process();
+            GridCoverage2D readCoverage = reader.outRaster;
+            checkMatrixEqual(readCoverage.getRenderedImage(), elevationData);
+        }
+    }
+
+    public void testStreamingTiffTilesAndOverviews() throws Exception {
+        int cols = 100;
+        int rows = 70;
+        int tileSize = 16;
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                // a novalue hole wider than a cell of the overviews and sparse novalues
+                boolean isNovalue = (r >= 20 && r < 28 && c >= 30 && c < 46) || (r + c) % 17 == 0;
+                data[r][c] = isNovalue ? Double.NaN : r * 100 + c;
+            }
+        }
+
+        File file = File.createTempFile("jgt-stream", ".tiff");
+        try {
+            GeoTiffStreamWriter writer = new GeoTiffStreamWriter(file, cols, rows, 1000, 5700, 10, 10);
+            writer.setTileSize(tileSize);
+            writer.setFloat(true);
+            writer.setCompress(true);
+            writer.setOverviews(2);
+            writer.setNovalue(-9999.0);
+            int tilesAcross = (cols + tileSize - 1) / tileSize;
+            int tilesDown = (rows + tileSize - 1) / tileSize;
+            // the tiles in reverse order, with values outside of the raster that must be ignored
+            for( int tileRow = tilesDown - 1; tileRow >= 0; tileRow-- ) {
+                for( int tileCol = tilesAcross - 1; tileCol >= 0; tileCol-- ) {
+                    double[] tile = new double[tileSize * tileSize];
+                    for( int r = 0; r < tileSize; r++ ) {
+                        for( int c = 0; c < tileSize; c++ ) {
+                            int row = tileRow * tileSize + r;
+                            int col = tileCol * tileSize + c;
+                            tile[r * tileSize + c] = row < rows && col < cols ? data[row][col] : 1.0E6;
+                        }
+                    }
+                    writer.writeTile(tileCol, tileRow, tile);
+                }
+            }
+            writer.close();
+            try {
+                writer.writeTile(0, 0, new double[tileSize * tileSize]);
+                fail("The writer has been closed.");
+            } catch (IOException e) {
+                // expected
+            }
+
+            // the overviews are the means of the valid values of the 2x2 cells of the previous level
+            double[][][] levels = new double[3][][];
+            levels[0] = data;
+            levels[1] = reduce(levels[0]);
+            levels[2] = reduce(levels[1]);
+            assertEquals(50, levels[1][0].length);
+            assertEquals(35, levels[1].length);
+            assertEquals(25, levels[2][0].length);
+            assertEquals(18, levels[2].length);
+            Raster[] rasters = readTiff(file);
+            assertEquals(levels.length, rasters.length);
+            for( int l = 0; l < levels.length; l++ ) {
+                checkRaster(rasters[l], levels[l], -9999.0, 0.01);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testStreamingIncompleteRaster() throws Exception {
+        int cols = 40;
+        int rows = 50;
+        int writtenRows = 21;
+        double[][] data = new double[rows][cols];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                data[r][c] = r < writtenRows ? r * 0.5 + c : Double.NaN;
+            }
+        }
+
+        File file = File.createTempFile("jgt-stream", ".tiff");
+        try {
+            GeoTiffStreamWriter writer = new GeoTiffStreamWriter(file, cols, rows, 1000, 5500, 10, 10);
+            writer.setTileSize(16);
+            writer.setOverviews(1);
+            for( int r = 0; r < writtenRows; r++ ) {
+                writer.writeRow(data[r]);
+            }
+            // the written rows are kept, the missing ones are novalues
+            writer.close();
+            assertEquals(writtenRows, writer.getWrittenRows());
+
+            Raster[] rasters = readTiff(file);
+            assertEquals(2, rasters.length);
+            checkRaster(rasters[0], data, Double.NaN, DELTA);
+            checkRaster(rasters[1], reduce(data), Double.NaN, DELTA);
+        } finally {
+            file.delete();
+        }
+
+        // a GRASS map needs all of its rows
+        RegionMap region = CoverageUtilities.getRegionParamsFromGridCoverage(coverage);
+        IStreamingRasterWriter writer = OmsRasterWriter.getStreamingWriter(grassPath + "_incomplete", region,
+                HMTestMaps.getCrs());
+        writer.writeRow(HMTestMaps.mapData[0]);
+        try {
+            writer.close();
+            fail("The map is incomplete.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testStreamingEmptyRaster() throws Exception {
+        int cols = 20;
+        int rows = 30;
+        double[][] data = new double[rows][cols];
+        for( double[] row : data ) {
+            Arrays.fill(row, Double.NaN);
+        }
+
+        File file = File.createTempFile("jgt-stream", ".tiff");
+        try {
+            GeoTiffStreamWriter writer = new GeoTiffStreamWriter(file, cols, rows, 1000, 5300, 10, 10);
+            writer.setTileSize(16);
+            writer.setOverviews(1);
+            // closing without rows gives a raster of novalues
+            writer.close();
+            writer.close();
+            assertEquals(0, writer.getWrittenRows());
+            try {
+                writer.writeRow(new double[cols]);
+                fail("The writer is closed.");
+            } catch (IOException e) {
+                // expected
+            }
+
+            Raster[] rasters = readTiff(file);
+            assertEquals(2, rasters.length);
+            checkRaster(rasters[0], data, Double.NaN, DELTA);
+            checkRaster(rasters[1], reduce(data), Double.NaN, DELTA);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return the mean of the valid values of each 2x2 cells.
+     */
+    private static double[][] reduce( double[][] data ) {
+        int rows = data.length;
+        int cols = data[0].length;
+        double[][] reduced = new double[(rows + 1) / 2][(cols + 1) / 2];
+        for( int r = 0; r < reduced.length; r++ ) {
+            for( int c = 0; c < reduced[0].length; c++ ) {
+                double sum = 0;
+                int count = 0;
+                for( int row = 2 * r; row < Math.min(2 * r + 2, rows); row++ ) {
+                    for( int col = 2 * c; col < Math.min(2 * c + 2, cols); col++ ) {
+                        if (!Double.isNaN(data[row][col])) {
+                            sum += data[row][col];
+                            count++;
+                        }
+                    }
+                }
+                reduced[r][c] = count == 0 ? Double.NaN : sum / count;
+            }
+        }
+        return reduced;
+    }
+
+    /**
+     * @return the rasters of all the images of the file.
+     */
+    private static Raster[] readTiff( File file ) throws Exception {
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        try {
+            ImageReader reader = ImageIO.getImageReadersByFormatName("tiff").next();
+            try {
+                reader.setInput(stream);
+                int imagesNum = reader.getNumImages(true);
+                Raster[] rasters = new Raster[imagesNum];
+                for( int i = 0; i < imagesNum; i++ ) {
+                    rasters[i] = reader.read(i).getRaster();
+                }
+                return rasters;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void checkRaster( Raster raster, double[][] expected, double novalue, double delta ) {
+        assertEquals(expected.length, raster.getHeight());
+        assertEquals(expected[0].length, raster.getWidth());
+        for( int r = 0; r < expected.length; r++ ) {
+            for( int c = 0; c < expected[0].length; c++ ) {
+                double value = raster.getSampleDouble(c, r, 0);
+                if (Double.isNaN(expected[r][c])) {
+                    if (Double.isNaN(novalue)) {
+                        assertTrue(c + " " + r, Double.isNaN(value));
+                    } else {
+                        assertEquals(c + " " + r, novalue, value, 0.0);
+                    }
+                } else {
+                    assertEquals(c + " " + r, expected[r][c], value, delta);
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,256 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jgrasstools.gears.spatialite.QueryResult;
+import org.jgrasstools.gears.spatialite.SpatialiteCursor;
+import org.jgrasstools.gears.spatialite.SpatialiteDb;
+import org.jgrasstools.gears.spatialite.SpatialiteGeometryColumns;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.sqlite.Function;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Test the {@link SpatialiteCursor} and the list based queries of {@link SpatialiteDb} that use it.
+ *
+ * <p>Runs on a plain sqlite database: the geometries are stored as WKB, the geometry_columns
+ * table is created by hand and ST_AsBinary is a function that returns its argument.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestSpatialiteCursor extends HMTestCase {
+    private static final int RECORDS_COUNT = 20;
+
+    private File dbFile;
+    private PlainSqliteDb db;
+    private Geometry[] geometries;
+
+    protected void setUp() throws Exception {
+        dbFile = File.createTempFile("jgt-", ".sqlite");
+        db = new PlainSqliteDb(dbFile);
+        Function.create(db.getConnection(), "ST_AsBinary", new Function(){
+            protected void xFunc() throws SQLException {
+                result(value_blob(0));
+            }
+        });
+
+        db.executeInsertUpdateDeleteSql("CREATE TABLE " + SpatialiteGeometryColumns.TABLENAME + " ("
+                + SpatialiteGeometryColumns.F_TABLE_NAME + " TEXT, " + SpatialiteGeometryColumns.F_GEOMETRY_COLUMN + " TEXT, "
+                + SpatialiteGeometryColumns.GEOMETRY_TYPE + " INTEGER, " + SpatialiteGeometryColumns.COORD_DIMENSION
+                + " INTEGER, " + SpatialiteGeometryColumns.SRID + " INTEGER, "
+                + SpatialiteGeometryColumns.SPATIAL_INDEX_ENABLED + " INTEGER)");
+        db.executeInsertUpdateDeleteSql("INSERT INTO " + SpatialiteGeometryColumns.TABLENAME
+                + " VALUES ('points', 'the_geom', 1, 2, 32632, 0)");
+        db.executeInsertUpdateDeleteSql("CREATE TABLE points (" + SpatialiteDb.PK_UID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT, the_geom BLOB, name TEXT, elev DOUBLE)");
+
+        GeometryFactory gf = new GeometryFactory();
+        WKBWriter wkbWriter = new WKBWriter();
+        geometries = new Geometry[RECORDS_COUNT];
+        String insertSql = "INSERT INTO points (the_geom, name, elev) VALUES (?,?,?)";
+        try (PreparedStatement pStmt = db.getConnection().prepareStatement(insertSql)) {
+            for( int i = 0; i < RECORDS_COUNT; i++ ) {
+                // a missing geometry and missing names
+                if (i != 3) {
+                    geometries[i] = gf.createPoint(new Coordinate(1000 + i * 1.5, 5000 - i * 2.25));
+                    pStmt.setBytes(1, wkbWriter.write(geometries[i]));
+                } else {
+                    pStmt.setNull(1, Types.BLOB);
+                }
+                pStmt.setString(2, i % 4 == 0 ? null : "point " + i);
+                pStmt.setDouble(3, i * 10.5);
+                pStmt.executeUpdate();
+            }
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        db.close();
+        dbFile.delete();
+    }
+
+    public void testCursor() throws Exception {
+        String sql = "SELECT the_geom, name, elev FROM points";
+        SpatialiteCursor cursor = new SpatialiteCursor(db.getConnection(), sql, 5, 0, false);
+        try {
+            assertEquals(Arrays.asList("the_geom", "name", "elev"), cursor.getColumnNames());
+            assertEquals(3, cursor.getColumnCount());
+            assertEquals(0, cursor.getGeometryIndex());
+            int index = 0;
+            while( cursor.next() ) {
+                checkGeometry(geometries[index], cursor.getGeometry());
+                Object[] record = cursor.getRecord();
+                checkGeometry(geometries[index], (Geometry) record[0]);
+                assertEquals(index % 4 == 0 ? null : "point " + index, record[1]);
+                assertEquals(index % 4 == 0 ? null : "point " + index, cursor.getObject(1));
+                assertEquals(index * 10.5, ((Number) record[2]).doubleValue(), DELTA);
+                index++;
+                assertEquals(index, cursor.getReadCount());
+            }
+            assertEquals(RECORDS_COUNT, index);
+            assertFalse(cursor.next());
+            assertFalse(cursor.isCanceled());
+        } finally {
+            cursor.close();
+        }
+        // closing again does nothing
+        cursor.close();
+        assertFalse(cursor.next());
+    }
+
+    public void testGeometryDetection() throws Exception {
+        db.executeInsertUpdateDeleteSql("CREATE TABLE wrong (the_geom BLOB)");
+        // little endian, unknown geometry type 99
+        db.executeInsertUpdateDeleteSql("INSERT INTO wrong VALUES (X'0163000000')");
+
+        try (SpatialiteCursor cursor = new SpatialiteCursor(db.getConnection(), "SELECT the_geom FROM wrong", 5, 0, false)) {
+            assertTrue(cursor.next());
+            assertEquals(5, cursor.getGeometryBytes().length);
+            try {
+                cursor.getGeometry();
+                fail("The geometry can't be decoded.");
+            } catch (Exception e) {
+                // expected
+            }
+        }
+        try (SpatialiteCursor cursor = new SpatialiteCursor(db.getConnection(), "SELECT the_geom FROM wrong", 5, 0, true)) {
+            assertTrue(cursor.next());
+            assertNull(cursor.getGeometry());
+        }
+        // without geometry the blob is returned as is
+        try (SpatialiteCursor cursor = new SpatialiteCursor(db.getConnection(), "SELECT the_geom FROM wrong", 5, -1, false)) {
+            assertTrue(cursor.next());
+            assertEquals(-1, cursor.getGeometryIndex());
+            assertNull(cursor.getGeometryBytes());
+            assertEquals(5, ((byte[]) cursor.getObject(0)).length);
+        }
+    }
+
+    public void testCancel() throws Exception {
+        String sql = "SELECT the_geom, name, elev FROM points";
+        try (SpatialiteCursor canceled = new SpatialiteCursor(db.getConnection(), sql, 5, 0, false);
+                SpatialiteCursor other = new SpatialiteCursor(db.getConnection(), sql, 5, 0, false)) {
+            for( int i = 0; i < 5; i++ ) {
+                assertTrue(canceled.next());
+                assertTrue(other.next());
+            }
+            Thread thread = new Thread(new Runnable(){
+                public void run() {
+                    canceled.cancel();
+                }
+            });
+            thread.start();
+            thread.join();
+            assertTrue(canceled.isCanceled());
+            assertFalse(canceled.next());
+            assertEquals(5, canceled.getReadCount());
+
+            // the other cursor and the other queries of the connection go on
+            int index = 5;
+            while( other.next() ) {
+                checkGeometry(geometries[index], other.getGeometry());
+                index++;
+            }
+            assertEquals(RECORDS_COUNT, index);
+            assertEquals(RECORDS_COUNT, db.getCount("points"));
+        }
+    }
+
+    public void testTableRecords() throws Exception {
+        QueryResult result = db.getTableRecordsMapIn("points", null, false, -1);
+        assertEquals(Arrays.asList("the_geom", "name", "elev"), result.names);
+        assertEquals(3, result.types.size());
+        assertEquals(0, result.geometryIndex);
+        assertEquals(RECORDS_COUNT, result.data.size());
+        for( int i = 0; i < RECORDS_COUNT; i++ ) {
+            Object[] record = result.data.get(i);
+            checkGeometry(geometries[i], (Geometry) record[0]);
+            assertEquals(i % 4 == 0 ? null : "point " + i, record[1]);
+            assertEquals(i * 10.5, ((Number) record[2]).doubleValue(), DELTA);
+        }
+
+        result = db.getTableRecordsMapIn("points", null, true, 7);
+        assertEquals(Arrays.asList("the_geom", SpatialiteDb.PK_UID, "name", "elev"), result.names);
+        assertEquals(7, result.data.size());
+        for( int i = 0; i < 7; i++ ) {
+            assertEquals(i + 1, ((Number) result.data.get(i)[1]).intValue());
+        }
+    }
+
+    public void testRawSqlRecords() throws Exception {
+        String sql = "SELECT name, elev FROM points";
+        QueryResult result = db.getTableRecordsMapFromRawSql(sql, -1);
+        assertEquals(Arrays.asList("name", "elev"), result.names);
+        assertEquals(-1, result.geometryIndex);
+        assertEquals(RECORDS_COUNT, result.data.size());
+
+        result = db.getTableRecordsMapFromRawSql(sql, 5);
+        assertEquals(5, result.data.size());
+        for( int i = 0; i < 5; i++ ) {
+            assertEquals(i * 10.5, ((Number) result.data.get(i)[1]).doubleValue(), DELTA);
+        }
+
+        result = db.getTableRecordsMapFromRawSql(sql + " WHERE elev < 0", 5);
+        assertEquals(2, result.names.size());
+        assertEquals(0, result.data.size());
+    }
+
+    public void testGeometries() throws Exception {
+        List<Geometry> geometriesIn = db.getGeometriesIn("points", null);
+        assertEquals(RECORDS_COUNT, geometriesIn.size());
+        for( int i = 0; i < RECORDS_COUNT; i++ ) {
+            checkGeometry(geometries[i], geometriesIn.get(i));
+        }
+    }
+
+    private static void checkGeometry( Geometry expected, Geometry geometry ) {
+        if (expected == null) {
+            assertNull(geometry);
+        } else {
+            assertTrue(expected.equalsExact(geometry));
+        }
+    }
+
+    /**
+     * A {@link SpatialiteDb} on a plain sqlite database, without the spatialite extension.
+     */
+    static class PlainSqliteDb extends SpatialiteDb {
+        PlainSqliteDb( File dbFile ) throws SQLException {
+            conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        }
+
+        Connection getConnection() {
+            return conn;
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.jgrasstools.gears.io.shapefile.OmsShapefileFeatureReader;
+import org.jgrasstools.gears.io.shapefile.OmsShapefileFeatureWriter;
+import org.jgrasstools.gears.spatialite.QueryResult;
+import org.jgrasstools.gears.spatialite.SpatialiteDb;
+import org.jgrasstools.gears.spatialite.SpatialiteGeometryColumns;
+import org.jgrasstools.gears.spatialite.SpatialiteImportUtils;
+import org.jgrasstools.gears.utils.CrsUtilities;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.features.FeatureUtilities;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+import org.jgrasstools.gears.utils.geometry.GeometryUtilities;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.sqlite.Function;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Test the shapefile import of {@link SpatialiteImportUtils}.
+ *
+ * <p>Runs on a plain sqlite database, as {@link TestSpatialiteCursor}: the geometries are stored
+ * as WKB, the geometry_columns table is created by hand, GeomFromWKB and ST_AsBinary return their
+ * argument and the functions that handle the geometry column and its spatial index only record
+ * their calls.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestSpatialiteImport extends HMTestCase {
+    private static final int FEATURES_COUNT = 25;
+    private static final String[] ATTRIBUTES = {"name", "elev", "num"};
+
+    private File folder;
+    private final List<String> spatialCalls = Collections.synchronizedList(new ArrayList<String>());
+
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("jgt-", "");
+        folder.delete();
+        folder.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtilities.deleteFileOrDir(folder);
+    }
+
+    public void testImportShapefile() throws Exception {
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("points");
+        b.setCRS(HMTestMaps.getCrs());
+        b.add("the_geom", Point.class);
+        b.add("name", String.class);
+        b.add("elev", Double.class);
+        b.add("num", Integer.class);
+        SimpleFeatureType type = b.buildFeatureType();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        DefaultFeatureCollection featureCollection = new DefaultFeatureCollection();
+        GeometryFactory gf = GeometryUtilities.gf();
+        for( int i = 0; i < FEATURES_COUNT; i++ ) {
+            Point point = gf.createPoint(new Coordinate(1000 + i * 10.5, 5000 - i * 3.25));
+            // some missing values in every attribute
+            String name = i % 4 == 0 ? null : "point " + i;
+            Double elev = i % 3 == 0 ? null : i * 1.5;
+            Integer num = i % 5 == 0 ? null : i;
+            builder.addAll(new Object[]{point, name, elev, num});
+            featureCollection.add(builder.buildFeature(null));
+        }
+        File shpFile = new File(folder, "points.shp");
+        OmsShapefileFeatureWriter.writeShapefile(shpFile.getAbsolutePath(), featureCollection, pm);
+        // the expected values are the ones of the shapefile, as the dbf stores them
+        List<SimpleFeature> expected = FeatureUtilities.featureCollectionToList(OmsShapefileFeatureReader
+                .readShapefile(shpFile.getAbsolutePath()));
+        assertEquals(FEATURES_COUNT, expected.size());
+
+        String srid = CrsUtilities.getCodeFromCrs(HMTestMaps.getCrs()).replaceFirst("EPSG:", "");
+        List<String> indexCalls = Arrays.asList("DisableSpatialIndex(points,the_geom)", "CreateSpatialIndex(points,the_geom)");
+
+        TestSpatialiteCursor.PlainSqliteDb db = new TestSpatialiteCursor.PlainSqliteDb(new File(folder, "test.sqlite"));
+        try {
+            createSpatialFunctions(db.getConnection());
+            db.executeInsertUpdateDeleteSql("CREATE TABLE " + SpatialiteGeometryColumns.TABLENAME + " ("
+                    + SpatialiteGeometryColumns.F_TABLE_NAME + " TEXT, " + SpatialiteGeometryColumns.F_GEOMETRY_COLUMN
+                    + " TEXT, " + SpatialiteGeometryColumns.GEOMETRY_TYPE + " INTEGER, "
+                    + SpatialiteGeometryColumns.COORD_DIMENSION + " INTEGER, " + SpatialiteGeometryColumns.SRID + " INTEGER, "
+                    + SpatialiteGeometryColumns.SPATIAL_INDEX_ENABLED + " INTEGER)");
+
+            SpatialiteImportUtils.createTableFromShp(db, shpFile);
+            assertEquals(Arrays.asList("AddGeometryColumn(points,the_geom," + srid + ",POINT,XY)",
+                    "CreateSpatialIndex(points,the_geom)"), spatialCalls);
+            assertEquals(Arrays.asList("name", "elev", "num"), getColumnNames(db, "points"));
+            // what AddGeometryColumn and CreateSpatialIndex do in spatialite
+            db.executeInsertUpdateDeleteSql("ALTER TABLE points ADD COLUMN the_geom BLOB");
+            db.executeInsertUpdateDeleteSql("INSERT INTO " + SpatialiteGeometryColumns.TABLENAME
+                    + " VALUES ('points', 'the_geom', 1, 2, " + srid + ", 1)");
+
+            // the spatial index is dropped for the import and created again at the end
+            spatialCalls.clear();
+            assertEquals(FEATURES_COUNT, SpatialiteImportUtils.importShapefile(db, shpFile, "points", -1));
+            assertEquals(FEATURES_COUNT, db.getCount("points"));
+            assertEquals(indexCalls, spatialCalls);
+
+            QueryResult result = db.getTableRecordsMapIn("points", null, false, -1);
+            assertEquals(FEATURES_COUNT, result.data.size());
+            for( int i = 0; i < FEATURES_COUNT; i++ ) {
+                SimpleFeature feature = expected.get(i);
+                Object[] record = result.data.get(i);
+                Geometry geometry = (Geometry) record[result.geometryIndex];
+                assertTrue(geometry.equalsExact((Geometry) feature.getDefaultGeometry(), DELTA));
+                for( String attribute : ATTRIBUTES ) {
+                    Object expectedValue = feature.getAttribute(attribute);
+                    Object value = record[result.names.indexOf(attribute)];
+                    if (expectedValue == null) {
+                        assertNull(attribute + " " + i, value);
+                    } else if (expectedValue instanceof Number) {
+                        assertEquals(attribute + " " + i, ((Number) expectedValue).doubleValue(), ((Number) value).doubleValue(),
+                                DELTA);
+                    } else {
+                        assertEquals(attribute + " " + i, expectedValue.toString(), value.toString());
+                    }
+                }
+            }
+
+            // a failing import is rolled back and the spatial index is created again
+            db.executeInsertUpdateDeleteSql("CREATE TRIGGER fail_insert BEFORE INSERT ON points WHEN NEW.num = 7 "
+                    + "BEGIN SELECT RAISE(ABORT, 'failed insert'); END");
+            spatialCalls.clear();
+            try {
+                SpatialiteImportUtils.importShapefile(db, shpFile, "points", -1);
+                fail("The import should fail.");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertEquals(FEATURES_COUNT, db.getCount("points"));
+            assertEquals(indexCalls, spatialCalls);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void createSpatialFunctions( Connection conn ) throws SQLException {
+        Function identity = new Function(){
+            protected void xFunc() throws SQLException {
+                result(value_blob(0));
+            }
+        };
+        Function.create(conn, "GeomFromWKB", identity);
+        Function.create(conn, "ST_AsBinary", identity);
+        for( final String name : new String[]{"AddGeometryColumn", "CreateSpatialIndex", "DisableSpatialIndex"} ) {
+            Function.create(conn, name, new Function(){
+                protected void xFunc() throws SQLException {
+                    StringBuilder call = new StringBuilder(name).append('(');
+                    for( int i = 0; i < args(); i++ ) {
+                        if (i > 0) {
+                            call.append(',');
+                        }
+                        call.append(value_text(i));
+                    }
+                    spatialCalls.add(call.append(')').toString());
+                    result(1);
+                }
+            });
+        }
+    }
+
+    private static List<String> getColumnNames( SpatialiteDb db, String tableName ) throws SQLException {
+        List<String> names = new ArrayList<String>();
+        for( String[] column : db.getTableColumns(tableName) ) {
+            names.add(column[0]);
+        }
+        return names;
+    }
+
+}
@@ -19,10 +19,19 @@ package org.jgrasstools.gears.modules;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
 
 import org.jgrasstools.gears.io.timedependent.OmsTimeSeriesIteratorReader;
+import org.jgrasstools.gears.io.timedependent.TimeSeriesFastReader;
+import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.utils.HMTestCase;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 /**
  * Test {@link OmsTimeSeriesIteratorReader}.
  * 
@@ -93,6 +102,86 @@ public class TestTimeSeriesIteratorReader extends HMTestCase {
         }
 
     }
+
+    public void testFastReaderAndCache() throws Exception {
+        URL dataUrl = this.getClass().getClassLoader().getResource("csvtest2.csv");
+        String path = new File(dataUrl.toURI()).getAbsolutePath();
+        File cacheFile = new File(path + TimeSeriesFastReader.CACHE_EXTENSION);
+        try {
+            for( int pNum : new int[]{1, 3} ) {
+                List<HashMap<Integer, double[]>> expected = readAll(path, pNum, false, false);
+                assertTrue(expected.size() > 1000);
+                assertSameRecords(expected, readAll(path, pNum, true, false));
+                // first run creates the cache, second one maps it
+                assertSameRecords(expected, readAll(path, pNum, false, true));
+                assertTrue(cacheFile.exists());
+                assertSameRecords(expected, readAll(path, pNum, false, true));
+            }
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    public void testFastReaderOtherFormatter() throws Exception {
+        URL dataUrl = this.getClass().getClassLoader().getResource("csvtest2.csv");
+        File csvFile = new File(dataUrl.toURI());
+        // same pattern, different zone: the timestamps must not be decoded as UTC
+        DateTimeFormatter formatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm").withZone(DateTimeZone.forOffsetHours(2));
+        TimeSeriesFastReader utcReader = new TimeSeriesFastReader(csvFile, 1, null,
+                JGTConstants.utcDateFormatterYYYYMMDDHHMM, false);
+        TimeSeriesFastReader reader = new TimeSeriesFastReader(csvFile, 1, null, formatter, false);
+        try {
+            assertEquals(utcReader.getRowsCount(), reader.getRowsCount());
+            for( int row = 0; row < reader.getRowsCount(); row++ ) {
+                long utcTimestamp = utcReader.getTimestamp(row);
+                String timestampString = JGTConstants.utcDateFormatterYYYYMMDDHHMM.print(utcTimestamp);
+                assertEquals(formatter.parseMillis(timestampString), reader.getTimestamp(row));
+                assertEquals(utcTimestamp - 2 * 3600000L, reader.getTimestamp(row));
+            }
+        } finally {
+            utcReader.close();
+            reader.close();
+        }
+    }
+
+    private List<HashMap<Integer, double[]>> readAll( String path, int pNum, boolean doFast, boolean doCache ) throws Exception {
+        OmsTimeSeriesIteratorReader reader = new OmsTimeSeriesIteratorReader();
+        reader.file = path;
+        reader.idfield = "ID";
+        reader.pNum = pNum;
+        reader.doFast = doFast;
+        reader.doCache = doCache;
+        reader.tStart = "1997-01-01 00:00";
+        reader.tTimestep = 1440 * pNum;
+        List<HashMap<Integer, double[]>> records = new ArrayList<HashMap<Integer, double[]>>();
+        try {
+            reader.initProcess();
+            while( reader.doProcess ) {
+                reader.nextRecord();
+                // the fast reader reuses the arrays
+                HashMap<Integer, double[]> copy = new HashMap<Integer, double[]>();
+                for( Entry<Integer, double[]> entry : reader.outData.entrySet() ) {
+                    copy.put(entry.getKey(), entry.getValue().clone());
+                }
+                records.add(copy);
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private void assertSameRecords( List<HashMap<Integer, double[]>> expected, List<HashMap<Integer, double[]>> records ) {
+        assertEquals(expected.size(), records.size());
+        for( int i = 0; i < expected.size(); i++ ) {
+            HashMap<Integer, double[]> expectedMap = expected.get(i);
+            assertEquals(expectedMap.keySet(), records.get(i).keySet());
+            for( Entry<Integer, double[]> entry : expectedMap.entrySet() ) {
+                assertTrue(Arrays.equals(entry.getValue(), records.get(i).get(entry.getKey())));
+            }
+        }
+    }
+
     public static void main( String[] args ) throws Exception {
         new TestTimeSeriesIteratorReader().testId2ValueReader2();
     }
@@ -0,0 +1,225 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.jgrasstools.gears.io.rasterwriter.OmsRasterWriter;
+import org.jgrasstools.gears.modules.r.tmsgenerator.MBTilesHelper;
+import org.jgrasstools.gears.modules.r.tmsgenerator.OmsTmsGenerator;
+import org.jgrasstools.gears.utils.HMTestCase;
+import org.jgrasstools.gears.utils.HMTestMaps;
+import org.jgrasstools.gears.utils.RegionMap;
+import org.jgrasstools.gears.utils.coverage.CoverageUtilities;
+import org.jgrasstools.gears.utils.files.FileUtilities;
+
+/**
+ * Test the pyramid and the deduplicated database of {@link OmsTmsGenerator}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class TestTmsGenerator extends HMTestCase {
+    private static final int TILESIZE = MBTilesHelper.TILESIZE;
+    private static final int MINZOOM = 15;
+    private static final int MAXZOOM = 18;
+
+    public void testDeduplicatedTiles() throws Exception {
+        int[] colors = {0xFF0000, 0x00FF00, 0x0000FF};
+        byte[][] images = new byte[colors.length][];
+        for( int k = 0; k < colors.length; k++ ) {
+            BufferedImage image = new BufferedImage(TILESIZE, TILESIZE, BufferedImage.TYPE_INT_RGB);
+            for( int x = 0; x < TILESIZE; x++ ) {
+                for( int y = 0; y < TILESIZE; y++ ) {
+                    image.setRGB(x, y, colors[k]);
+                }
+            }
+            images[k] = MBTilesHelper.encodeImage(image, "png");
+        }
+
+        File dbFile = File.createTempFile("jgt-mbtiles", ".mbtiles");
+        try {
+            MBTilesHelper mbtilesHelper = new MBTilesHelper();
+            mbtilesHelper.open(dbFile);
+            mbtilesHelper.createTables(false, true);
+            // more tiles than a batch, so that the repeated images span more transactions
+            int tilesCount = 1200;
+            for( int i = 0; i < tilesCount; i++ ) {
+                mbtilesHelper.addTileBytes(i % 40, i / 40, 10, images[i % colors.length]);
+            }
+            mbtilesHelper.commit();
+            assertEquals(tilesCount, mbtilesHelper.getAddedTilesCount());
+            assertEquals(tilesCount - colors.length, mbtilesHelper.getDuplicatedTilesCount());
+            mbtilesHelper.createIndexes();
+
+            for( int i = 0; i < tilesCount; i = i + 97 ) {
+                BufferedImage tile = mbtilesHelper.getTile(i % 40, i / 40, 10);
+                assertEquals(colors[i % colors.length], tile.getRGB(7, 7) & 0xFFFFFF);
+            }
+            mbtilesHelper.close();
+
+            assertEquals(colors.length, count(dbFile, MBTilesHelper.TABLE_IMAGES));
+            assertEquals(tilesCount, count(dbFile, MBTilesHelper.TABLE_MAP));
+            assertEquals(tilesCount, count(dbFile, MBTilesHelper.TABLE_TILES));
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    public void testPyramid() throws Exception {
+        File folder = File.createTempFile("jgt-", "");
+        folder.delete();
+        folder.mkdirs();
+        try {
+            RegionMap envelopeParams = HMTestMaps.getEnvelopeparams();
+            GridCoverage2D coverage = CoverageUtilities.buildCoverage("elevation", HMTestMaps.mapData, envelopeParams,
+                    HMTestMaps.getCrs(), true);
+            File rasterFile = new File(folder, "elevation.tif");
+            OmsRasterWriter.writeRaster(rasterFile.getAbsolutePath(), coverage);
+            File rasterListFile = new File(folder, "rasters.txt");
+            FileUtilities.writeFile(rasterFile.getAbsolutePath(), rasterListFile);
+
+            Map<String, BufferedImage> levels = generate(folder, rasterListFile, "levels", false);
+            Map<String, BufferedImage> pyramid = generate(folder, rasterListFile, "pyramid", true);
+
+            // the max zoom level is drawn from the data in both cases
+            int maxZoomTiles = 0;
+            for( String key : levels.keySet() ) {
+                if (key.startsWith(MAXZOOM + "/")) {
+                    checkImageEqual(levels.get(key), pyramid.get(key));
+                    maxZoomTiles++;
+                }
+            }
+            assertTrue(maxZoomTiles > 0);
+
+            // the lower levels are the downsampling of their children
+            for( int z = MINZOOM; z < MAXZOOM; z++ ) {
+                int levelTiles = 0;
+                for( String key : pyramid.keySet() ) {
+                    String[] split = key.split("/");
+                    if (Integer.parseInt(split[0]) != z) {
+                        continue;
+                    }
+                    levelTiles++;
+                    int x = Integer.parseInt(split[1]);
+                    int y = Integer.parseInt(split[2]);
+                    BufferedImage[] children = {//
+                    pyramid.get((z + 1) + "/" + (2 * x) + "/" + (2 * y + 1)), //
+                            pyramid.get((z + 1) + "/" + (2 * x + 1) + "/" + (2 * y + 1)), //
+                            pyramid.get((z + 1) + "/" + (2 * x) + "/" + (2 * y)), //
+                            pyramid.get((z + 1) + "/" + (2 * x + 1) + "/" + (2 * y))};
+                    checkDownsampled(pyramid.get(key), children);
+                }
+                assertTrue(levelTiles > 0);
+            }
+        } finally {
+            FileUtilities.deleteFileOrDir(folder);
+        }
+    }
+
+    private Map<String, BufferedImage> generate( File folder, File rasterListFile, String name, boolean doPyramid )
+            throws Exception {
+        RegionMap envelopeParams = HMTestMaps.getEnvelopeparams();
+        OmsTmsGenerator generator = new OmsTmsGenerator();
+        generator.pm = pm;
+        generator.inRasterFile = rasterListFile.getAbsolutePath();
+        generator.dataCrs = HMTestMaps.getCrs();
+        generator.pNorth = envelopeParams.getNorth();
+        generator.pSouth = envelopeParams.getSouth();
+        generator.pWest = envelopeParams.getWest();
+        generator.pEast = envelopeParams.getEast();
+        generator.pMinzoom = MINZOOM;
+        generator.pMaxzoom = MAXZOOM;
+        generator.pName = name;
+        generator.inPath = folder.getAbsolutePath();
+        generator.doMbtiles = true;
+        generator.doPyramid = doPyramid;
+        generator.process();
+        return readTiles(new File(folder, name + ".mbtiles"));
+    }
+
+    private void checkDownsampled( BufferedImage image, BufferedImage[] children ) {
+        int half = TILESIZE / 2;
+        for( int k = 0; k < 4; k++ ) {
+            int offsetX = (k % 2) * half;
+            int offsetY = (k / 2) * half;
+            for( int row = 0; row < half; row++ ) {
+                for( int col = 0; col < half; col++ ) {
+                    int expected = 0xFFFFFF;
+                    if (children[k] != null) {
+                        int[] pixels = children[k].getRGB(2 * col, 2 * row, 2, 2, null, 0, 2);
+                        expected = 0;
+                        for( int shift = 0; shift <= 16; shift = shift + 8 ) {
+                            int sum = 2;
+                            for( int pixel : pixels ) {
+                                sum += (pixel >> shift) & 0xFF;
+                            }
+                            expected |= (sum >> 2) << shift;
+                        }
+                    }
+                    assertEquals(expected, image.getRGB(offsetX + col, offsetY + row) & 0xFFFFFF);
+                }
+            }
+        }
+    }
+
+    private void checkImageEqual( BufferedImage expected, BufferedImage image ) {
+        assertNotNull(image);
+        int[] expectedPixels = expected.getRGB(0, 0, TILESIZE, TILESIZE, null, 0, TILESIZE);
+        int[] pixels = image.getRGB(0, 0, TILESIZE, TILESIZE, null, 0, TILESIZE);
+        for( int i = 0; i < pixels.length; i++ ) {
+            assertEquals(expectedPixels[i] & 0xFFFFFF, pixels[i] & 0xFFFFFF);
+        }
+    }
+
+    private static Map<String, BufferedImage> readTiles( File dbFile ) throws Exception {
+        Map<String, BufferedImage> tiles = new HashMap<String, BufferedImage>();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT " + MBTilesHelper.COL_TILES_ZOOM_LEVEL + ","
+                        + MBTilesHelper.COL_TILES_TILE_COLUMN + "," + MBTilesHelper.COL_TILES_TILE_ROW + ","
+                        + MBTilesHelper.COL_TILES_TILE_DATA + " FROM " + MBTilesHelper.TABLE_TILES)) {
+            while( resultSet.next() ) {
+                String key = resultSet.getInt(1) + "/" + resultSet.getInt(2) + "/" + resultSet.getInt(3);
+                tiles.put(key, ImageIO.read(new ByteArrayInputStream(resultSet.getBytes(4))));
+            }
+        }
+        return tiles;
+    }
+
+    private static int count( File dbFile, String table ) throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of JGrasstools (http://www.jgrasstools.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * JGrasstools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jgrasstools.gears.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jgrasstools.gears.modules.v.vectoroverlayoperators.VectorOverlayEngine;
+import org.jgrasstools.gears.utils.HMTestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Test for the {@link VectorOverlayEngine}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestVectorOverlayEngine extends HMTestCase {
+
+    private GeometryFactory gf = new GeometryFactory();
+
+    public void testOverlayAgainstDissolvedLayers() throws Exception {
+        // a grid of touching squares and a set of shifted overlapping squares
+        List<Geometry> layer1 = new ArrayList<Geometry>();
+        for( int i = 0; i < 10; i++ ) {
+            for( int j = 0; j < 10; j++ ) {
+                layer1.add(gf.toGeometry(new Envelope(i * 10, i * 10 + 10, j * 10, j * 10 + 10)));
+            }
+        }
+        List<Geometry> layer2 = new ArrayList<Geometry>();
+        for( int i = 0; i < 8; i++ ) {
+            layer2.add(gf.toGeometry(new Envelope(i * 13 + 3, i * 13 + 17, i * 9 + 2, i * 9 + 30)));
+        }
+        layer2.add(gf.toGeometry(new Envelope(200, 210, 200, 210)));
+
+        Geometry dissolved1 = new GeometryCollection(layer1.toArray(new Geometry[0]), gf).buffer(0);
+        Geometry dissolved2 = new GeometryCollection(layer2.toArray(new Geometry[0]), gf).buffer(0);
+
+        VectorOverlayEngine engine = new VectorOverlayEngine(layer2);
+        Geometry[] intersections = new Geometry[layer1.size()];
+        assertTrue(engine.intersection(layer1, 3, null, collector(intersections)));
+        Geometry intersection = VectorOverlayEngine.union(collect(intersections), 2, null);
+        Geometry expected = dissolved1.intersection(dissolved2);
+        assertEquals(expected.getArea(), intersection.getArea(), DELTA);
+        assertEquals(expected.getNumGeometries(), intersection.getNumGeometries());
+        assertTrue(expected.equalsTopo(intersection));
+
+        Geometry[] differences = new Geometry[layer1.size()];
+        assertTrue(engine.difference(layer1, 3, null, collector(differences)));
+        Geometry difference = VectorOverlayEngine.union(collect(differences));
+        expected = dissolved1.difference(dissolved2);
+        assertEquals(expected.getArea(), difference.getArea(), DELTA);
+        assertTrue(expected.equalsTopo(difference));
+
+        // a feature far from the overlay layer
+        assertNull(engine.intersection(gf.toGeometry(new Envelope(500, 501, 500, 501))));
+    }
+
+    public void testDroppedPieces() throws Exception {
+        List<Geometry> overlay = new ArrayList<Geometry>();
+        overlay.add(gf.toGeometry(new Envelope(10, 20, 0, 10)));
+        overlay.add(gf.toGeometry(new Envelope(0, 10, 20, 30)));
+        VectorOverlayEngine engine = new VectorOverlayEngine(overlay);
+
+        // touching the first only along a side
+        assertNull(engine.intersection(gf.toGeometry(new Envelope(0, 10, 0, 10))));
+        assertEquals(1, engine.getDroppedPiecesCount());
+
+        // overlapping the first and touching the second along a side
+        Geometry intersection = engine.intersection(gf.toGeometry(new Envelope(5, 15, 5, 20)));
+        assertEquals(25.0, intersection.getArea(), DELTA);
+        assertEquals(1, intersection.getNumGeometries());
+        assertEquals(2, engine.getDroppedPiecesCount());
+    }
+
+    private VectorOverlayEngine.GeometryCollector collector( final Geometry[] results ) {
+        return new VectorOverlayEngine.GeometryCollector(){
+            public void collect( int index, Geometry geometry ) throws Exception {
+                results[index] = geometry;
+            }
+        };
+    }
+
+    private List<Geometry> collect( Geometry[] results ) {
+        List<Geometry> list = new ArrayList<Geometry>();
+        for( Geometry geometry : results ) {
+            if (geometry != null) {
+                list.add(geometry);
+            }
+        }
+        return list;
+    }
+
+}
@@ -28,8 +28,6 @@ import static org.jgrasstools.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
 import java.awt.Point;
 import java.awt.image.WritableRaster;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
 
 import javax.media.jai.iterator.WritableRandomIter;
 
@@ -56,7 +54,7 @@ import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.jgrasstools.gears.io.las.ALasDataManager;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
 import org.jgrasstools.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
@@ -263,7 +261,7 @@ public class Las2BivariateRasterMosaic extends JGTModel {
         double deltaY = yRes * pBuffer;
         env.expandBy(deltaX, deltaY);
         Polygon roiPolygon = GeometryUtilities.createPolygonFromEnvelope(env);
-        List<LasRecord> tileLasPoints = lasData.getPointsInGeometry(roiPolygon, true);
+        LasPointBlock tileLasPoints = lasData.getPointBlockInGeometry(roiPolygon, true);
 
         if (tileLasPoints.size() > 100) {
             final GridGeometry2D gridGeometry = outputCoverage.getGridGeometry();
@@ -273,30 +271,50 @@ public class Las2BivariateRasterMosaic extends JGTModel {
             GridGeometry2D bufferedGridGeometry = CoverageUtilities.gridGeometryFromRegionValues(env.getMaxY(), env.getMinY(),
                     env.getMaxX(), env.getMinX(), newCols, newRows, crs);
 
-            ArrayList<LasRecord>[][] lasMatrix = new ArrayList[newCols][newRows];
-            for( int c = 0; c < newCols; c++ ) {
-                for( int r = 0; r < newRows; r++ ) {
-                    ArrayList<LasRecord> item = new ArrayList<LasRecord>();
-                    lasMatrix[c][r] = item;
-                }
-            }
-
-            // Splitting las into cells
+            /*
+             * Splitting las into cells: the point indexes are grouped by cell 
+             * (counting sort), cell c,r holds the points from cellStart[c * newRows + r] 
+             * to cellStart[c * newRows + r + 1] of cellPoints.
+             */
+            int pointsNum = tileLasPoints.size();
+            int[] pointCell = new int[pointsNum];
+            int[] cellStart = new int[newCols * newRows + 1];
             final Point point = new Point();
-            for( LasRecord dot : tileLasPoints ) {
+            for( int i = 0; i < pointsNum; i++ ) {
+                pointCell[i] = -1;
                 if (doIntensity) {
-                    if (dot.intensity == NOINTENSITY) {
+                    short intensity = tileLasPoints.getIntensity(i);
+                    if (intensity == NOINTENSITY) {
                         continue;
                     }
-                    minValue = min(dot.intensity, minValue);
-                    maxValue = max(dot.intensity, maxValue);
+                    minValue = min(intensity, minValue);
+                    maxValue = max(intensity, maxValue);
                 } else {
-                    minValue = min(dot.z, minValue);
-                    maxValue = max(dot.z, maxValue);
+                    double z = tileLasPoints.getZ(i);
+                    minValue = min(z, minValue);
+                    maxValue = max(z, maxValue);
                 }
-                CoverageUtilities.colRowFromCoordinate(new Coordinate(dot.x, dot.y), bufferedGridGeometry, point);
-                lasMatrix[point.x][point.y].add(dot);
+                CoverageUtilities.colRowFromCoordinate(new Coordinate(tileLasPoints.getX(i), tileLasPoints.getY(i)),
+                        bufferedGridGeometry, point);
+                int cell = point.x * newRows + point.y;
+                pointCell[i] = cell;
+                cellStart[cell + 1]++;
             }
+            for( int i = 0; i < newCols * newRows; i++ ) {
+                cellStart[i + 1] += cellStart[i];
+            }
+            int[] cellPoints = new int[cellStart[newCols * newRows]];
+            int[] cellFill = new int[newCols * newRows];
+            for( int i = 0; i < pointsNum; i++ ) {
+                int cell = pointCell[i];
+                if (cell != -1) {
+                    cellPoints[cellStart[cell] + cellFill[cell]++] = i;
+                }
+            }
+            pointCell = null;
+            cellFill = null;
+
+            int[] currentPoints = new int[cellPoints.length];
 
             WritableRandomIter outWIter = null;
             try {
@@ -313,17 +331,18 @@ public class Las2BivariateRasterMosaic extends JGTModel {
                     }
                     for( int r = pBuffer; r < newRows - pBuffer; r++ ) {
                         Coordinate coordinate = CoverageUtilities.coordinateFromColRow(c, r, bufferedGridGeometry);
-                        List<LasRecord> currentPoints = new ArrayList<LasRecord>();
+                        int size = 0;
                         for( int tmpC = c - pBuffer; tmpC <= c + pBuffer; tmpC++ ) {
-                            for( int tmpR = r - pBuffer; tmpR <= r + pBuffer; tmpR++ ) {
-                                currentPoints.addAll(lasMatrix[tmpC][tmpR]);
-                            }
+                            // the rows of a column are contiguous
+                            int from = cellStart[tmpC * newRows + r - pBuffer];
+                            int to = cellStart[tmpC * newRows + r + pBuffer + 1];
+                            System.arraycopy(cellPoints, from, currentPoints, size, to - from);
+                            size += to - from;
                         }
-                        int size = currentPoints.size();
                         if (size >= pMinpoints) {
                             // need at least as many samples as parameters
                             try {
-                                double[] parameters = calculateParameters(currentPoints);
+                                double[] parameters = calculateParameters(tileLasPoints, currentPoints, size);
                                 double interpolatedValue = getInterpolatedValue(parameters, coordinate.x, coordinate.y);
                                 // limit by min/max
                                 if (interpolatedValue < minValue) {
@@ -352,23 +371,23 @@ public class Las2BivariateRasterMosaic extends JGTModel {
         }
     }
 
-    private double[] calculateParameters( final List<LasRecord> pointsInGeometry ) {
-        int pointsNum = pointsInGeometry.size();
-
+    private double[] calculateParameters( final LasPointBlock points, final int[] indexes, final int pointsNum ) {
         final double[][] xyMatrix = new double[pointsNum][6];
         final double[] valueArray = new double[pointsNum];
         for( int i = 0; i < pointsNum; i++ ) {
-            LasRecord dot = pointsInGeometry.get(i);
-            xyMatrix[i][0] = dot.x * dot.x; // x^2
-            xyMatrix[i][1] = dot.y * dot.y; // y^2
-            xyMatrix[i][2] = dot.x * dot.y; // xy
-            xyMatrix[i][3] = dot.x; // x
-            xyMatrix[i][4] = dot.y; // y
+            int index = indexes[i];
+            double x = points.getX(index);
+            double y = points.getY(index);
+            xyMatrix[i][0] = x * x; // x^2
+            xyMatrix[i][1] = y * y; // y^2
+            xyMatrix[i][2] = x * y; // xy
+            xyMatrix[i][3] = x; // x
+            xyMatrix[i][4] = y; // y
             xyMatrix[i][5] = 1;
             if (doIntensity) {
-                valueArray[i] = dot.intensity;
+                valueArray[i] = points.getIntensity(index);
             } else {
-                valueArray[i] = dot.z;
+                valueArray[i] = points.getZ(index);
             }
         }
 
@@ -45,7 +45,7 @@ import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.jgrasstools.gears.io.las.ALasDataManager;
-import org.jgrasstools.gears.io.las.core.LasRecord;
+import org.jgrasstools.gears.io.las.core.LasPointBlock;
 import org.jgrasstools.gears.libs.modules.JGTConstants;
 import org.jgrasstools.gears.libs.modules.JGTModel;
 import org.jgrasstools.gears.libs.modules.ThreadedRunnable;
@@ -110,13 +110,15 @@ public class LasTriangulation2Dsm extends JGTModel {
         Polygon polygon = CoverageUtilities.getRegionPolygon(inDtmGC);
         CoordinateReferenceSystem crs = inDtmGC.getCoordinateReferenceSystem();
 
-        List<Coordinate> lasCoordinates = new ArrayList<Coordinate>();
+        List<Coordinate> lasCoordinates;
         pm.beginTask("Preparing triangulation...", -1);
         try (ALasDataManager lasData = ALasDataManager.getDataManager(new File(inLas), null, 0.0, crs)) {
             lasData.open();
-            List<LasRecord> lasPoints = lasData.getPointsInGeometry(polygon, false);
-            for( LasRecord lasRecord : lasPoints ) {
-                lasCoordinates.add(new Coordinate(lasRecord.x, lasRecord.y, lasRecord.z));
+            LasPointBlock lasPoints = lasData.getPointBlockInGeometry(polygon, false);
+            int size = lasPoints.size();
+            lasCoordinates = new ArrayList<Coordinate>(size);
+            for( int i = 0; i < size; i++ ) {
+                lasCoordinates.add(new Coordinate(lasPoints.getX(i), lasPoints.getY(i), lasPoints.getZ(i)));
             }
         }
 
@@ -29,6 +29,7 @@ import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_inE
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_outHill_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pAzimuth_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pElev_DESCRIPTION;
+import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pHorizonSectors_DESCRIPTION;
 import static org.jgrasstools.hortonmachine.i18n.HortonMessages.OMSHILLSHADE_pMinDiffuse_DESCRIPTION;
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -71,6 +72,10 @@ public class Hillshade extends JGTModel {
     @In
     public double pElev = 90;
 
+    @Description(OMSHILLSHADE_pHorizonSectors_DESCRIPTION)
+    @In
+    public int pHorizonSectors = 0;
+
     @Description(OMSHILLSHADE_outHill_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -83,6 +88,7 @@ public class Hillshade extends JGTModel {
         hillshade.pMinDiffuse = pMinDiffuse;
         hillshade.pAzimuth = pAzimuth;
         hillshade.pElev = pElev;
+        hillshade.pHorizonSectors = pHorizonSectors;
         hillshade.pm = pm;
         hillshade.doProcess = doProcess;
         hillshade.doReset = doReset;
@@ -98,6 +98,10 @@ public class VectorIntersector extends JGTModel {
     @In
     public boolean doKeepFirstAttributes = true;
 
+    @Description(OmsVectorIntersector.MAX_THREADS)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -109,6 +113,7 @@ public class VectorIntersector extends JGTModel {
         vint.inMap1 = getVector(inMap1);
         vint.inMap2 = getVector(inMap2);
         vint.doKeepFirstAttributes = doKeepFirstAttributes;
+        vint.pMaxThreads = pMaxThreads;
         vint.process();
         dumpVector(vint.outMap, outMap);
     }
@@ -61,6 +61,10 @@ public class VectorOverlayOperators extends JGTModel {
     @In
     public String pType = INTERSECTION;
 
+    @Description(OMSVECTOROVERLAYOPERATORS_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = 1;
+
     @Description(OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION)
     @UI(JGTConstants.FILEOUT_UI_HINT)
     @In
@@ -72,6 +76,7 @@ public class VectorOverlayOperators extends JGTModel {
         vectoroverlayoperators.inMap1 = getVector(inMap1);
         vectoroverlayoperators.inMap2 = getVector(inMap2);
         vectoroverlayoperators.pType = pType;
+        vectoroverlayoperators.pMaxThreads = pMaxThreads;
         vectoroverlayoperators.pm = pm;
         vectoroverlayoperators.doProcess = doProcess;
         vectoroverlayoperators.doReset = doReset;
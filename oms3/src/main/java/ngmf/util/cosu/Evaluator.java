@@ -0,0 +1,269 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ngmf.util.cosu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates candidate parameter sets of an optimizer.
+ *
+ * Independent candidates are evaluated concurrently on a bounded pool.
+ * Every running evaluation owns a worker slot (0 .. threads-1), so that
+ * the function can keep an isolated model instance and output folder per
+ * worker. The values are memoized by parameter vector: a candidate that has
+ * been evaluated before (or is being evaluated) is not run again.
+ *
+ * The results do not depend on the number of threads, as long as the
+ * function only depends on the parameter values.
+ *
+ * @author od
+ */
+public class Evaluator {
+
+    /**
+     * The function to evaluate.
+     */
+    public interface Function {
+
+        /**
+         * Evaluate a candidate.
+         *
+         * @param worker the worker slot, no two evaluations run with the same slot at the same time.
+         * @param x the parameter values, not to be modified.
+         * @return the objective function value
+         * @throws Exception
+         */
+        double evaluate(int worker, double[] x) throws Exception;
+    }
+
+    static class Key {
+
+        final double[] x;
+        final int hash;
+
+        Key(double[] x) {
+            this.x = x.clone();
+            this.hash = Arrays.hashCode(this.x);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(x, ((Key) o).x);
+        }
+    }
+    final Function function;
+    final int threads;
+    final BlockingQueue<Integer> workers;
+    final ConcurrentHashMap<Key, FutureTask<Double>> memo = new ConcurrentHashMap<Key, FutureTask<Double>>();
+    final AtomicInteger runs = new AtomicInteger();
+    final AtomicInteger hits = new AtomicInteger();
+    boolean memoize = true;
+    ExecutorService executor;
+
+    /**
+     * Create an evaluator.
+     *
+     * @param function the function to evaluate
+     * @param threads the max number of concurrent evaluations, &lt; 1 for the number of processors.
+     */
+    public Evaluator(Function function, int threads) {
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.function = function;
+        this.threads = threads;
+        workers = new ArrayBlockingQueue<Integer>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(i);
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setMemoize(boolean memoize) {
+        this.memoize = memoize;
+    }
+
+    /**
+     * @return the number of function evaluations.
+     */
+    public int getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * @return the number of candidates taken from the memo.
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Evaluate a single candidate in the calling thread.
+     *
+     * Waits for a free worker slot, it can be called from several
+     * threads at the same time.
+     *
+     * @param x the parameter values
+     * @return the objective function value
+     * @throws Exception
+     */
+    public double evaluate(final double[] x) throws Exception {
+        if (!memoize) {
+            return run(x);
+        }
+        Key key = new Key(x);
+        FutureTask<Double> task = memo.get(key);
+        if (task == null) {
+            FutureTask<Double> newTask = new FutureTask<Double>(new Callable<Double>() {
+
+                @Override
+                public Double call() throws Exception {
+                    return run(x);
+                }
+            });
+            task = memo.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException E) {
+            // do not keep failures, a later call runs it again.
+            memo.remove(key, task);
+            throw unwrap(E);
+        }
+    }
+
+    /**
+     * Evaluate candidates concurrently.
+     *
+     * @param x the candidates
+     * @return the objective function values, in the order of the candidates.
+     * @throws Exception
+     */
+    public double[] evaluate(final double[][] x) throws Exception {
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(x.length);
+        for (final double[] c : x) {
+            tasks.add(new Callable<Double>() {
+
+                @Override
+                public Double call() throws Exception {
+                    return evaluate(c);
+                }
+            });
+        }
+        List<Double> r = invokeAll(tasks);
+        double[] y = new double[r.size()];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = r.get(i);
+        }
+        return y;
+    }
+
+    /**
+     * Run independent tasks on the pool of this evaluator, for example
+     * the evolution of complexes that call {@link #evaluate(double[])}.
+     *
+     * The tasks must not call {@link #evaluate(double[][])} or this method.
+     *
+     * @param tasks the tasks
+     * @return the results, in the order of the tasks.
+     * @throws Exception the first failure of a task
+     */
+    public <T> List<T> invokeAll(Collection<? extends Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (threads == 1 || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        List<Future<T>> futures = executor().invokeAll(tasks);
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException E) {
+            throw unwrap(E);
+        }
+        return results;
+    }
+
+    /**
+     * Release the threads of this evaluator.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private double run(double[] x) throws Exception {
+        Integer worker = workers.take();
+        try {
+            runs.incrementAndGet();
+            return function.evaluate(worker, x);
+        } finally {
+            workers.put(worker);
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                int count = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "oms3-eval-" + count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static Exception unwrap(ExecutionException E) {
+        Throwable cause = E.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return E;
+    }
+}
@@ -14,4 +14,18 @@ public interface ExecutionHandle {
 
     void execute(Step.Data stepData) throws Exception;
     void writeParameterFile(Step.Data stepData) throws Exception;
+
+    /**
+     * Executes the model for a candidate parameter set in the isolated
+     * workspace (model instance, parameter and output folder) of a worker.
+     * Calls with different workers may run concurrently.
+     *
+     * @param worker the worker
+     * @param step the step to calibrate
+     * @param stepData the step data
+     * @param paramValues the candidate parameter values
+     * @return the objective function value
+     * @throws Exception
+     */
+    double execute(int worker, Step step, Step.Data stepData, double[] paramValues) throws Exception;
 }
@@ -1,9 +1,14 @@
 package ngmf.util.cosu.luca;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import ngmf.util.cosu.Evaluator;
 import oms3.dsl.cosu.Step;
 
 /**
@@ -47,14 +52,6 @@ public class SCE {
     double[] objFuncValueOfX;
     //COORDINATES OF A SINGLE POINT IN X
     double[] pointInX;
-    //COORDINATES OF POINTS IN A COMPLEX
-    double[][] pointsInComplex;
-    //FUNCTION VALUES OF CX(.,.)
-    double[] objFuncValuesOfComplex;
-    //COORDINATES OF POINTS IN THE CURRENT SIMPLEX
-    double[][] pointsInSimplex;
-    //FUNCTION VALUES OF S(.,.)
-    double[] objFuncValuesOfSimplex;
     //WORST POINT AT CURRENT SHUFFLING LOOP
     double[] worstPoint;
     //FUNCTION VALUE OF WORSTX(.)
@@ -63,8 +60,6 @@ public class SCE {
     double[] stdDevOfPopulation;
     //NORMALIZED GEOMETRIC MEAN OF PARAMETER RANGES
     double normalizedGeometricMean;
-    //INDICES LOCATING POSITION OF S(.,.) IN X(.,.)
-    int[] indicesOfSimplex;
     //BOUND ON ITH VARIABLE BEING OPTIMIZED
     double[] bound;
     //NUMBER OF COMPLEXES IN CURRENT POPULATION
@@ -85,6 +80,9 @@ public class SCE {
     int IGS = 0;
     int icall = 0;
     //
+    int threads = 1;
+    Random random = new Random();
+    Evaluator evaluator;
 
     PrintStream out = System.out;
 
@@ -121,15 +119,9 @@ public class SCE {
         objFuncValueOfX = new double[initTotalNumOfPoints];
         pointInX = new double[numOfParams];
 
-        pointsInComplex = new double[numOfPointsInComplex][numOfParams];
-        objFuncValuesOfComplex = new double[numOfPointsInComplex];
-
-        pointsInSimplex = new double[numOfPointsInSubComplex][numOfParams];
-        objFuncValuesOfSimplex = new double[numOfPointsInSubComplex];
         worstPoint = new double[numOfParams];
 
         stdDevOfPopulation = new double[numOfParams];
-        indicesOfSimplex = new int[numOfPointsInSubComplex];
         bound = new double[numOfParams];
         bestCriterion = new double[10];
         initialPoint = new double[numOfParams];
@@ -139,7 +131,43 @@ public class SCE {
         this.out = out;
     }
 
+    /** Set the number of model executions that run concurrently.
+     * Complexes evolve independently and are distributed over the threads.
+     *
+     * @param threads the number of threads, &lt; 1 for the number of processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /** Set the random seed, the search is reproducible with a given seed
+     * and does not depend on the number of threads.
+     *
+     * @param seed the seed
+     */
+    public void setSeed(long seed) {
+        random = new Random(seed);
+    }
+
     public void run() throws Exception {
+        evaluator = new Evaluator(new Evaluator.Function() {
+
+            @Override
+            public double evaluate(int worker, double[] x) throws Exception {
+                return executionHandle.execute(worker, stepData, data, x);
+            }
+        }, threads);
+        try {
+            search();
+        } finally {
+            evaluator.shutdown();
+        }
+        if (evaluator.getHits() > 0) {
+            out.println(" Model executions: " + evaluator.getRuns() + ", repeated parameter sets: " + evaluator.getHits());
+        }
+    }
+
+    private void search() throws Exception {
         currentNumOfComplexes = initNumOfComplexes;
         totalNumOfPoints = initTotalNumOfPoints;
         double objFuncValue;
@@ -174,7 +202,7 @@ public class SCE {
         } else {
 //            out.println("Initial point won't be included");
             for (int j = 0; j < numOfParams; j++) {
-                pointsX[0][j] = lowerBound[j] + bound[j] * Math.random();
+                pointsX[0][j] = lowerBound[j] + bound[j] * random.nextDouble();
                 pointInX[j] = pointsX[0][j];
             }
             // write pointInX in the 'newPARAMS' file, executes runMMS and SRobjfun()
@@ -185,20 +213,22 @@ public class SCE {
         data.setObjFuncValueOfBestPoint(objFuncValueOfX[0]);
         int outputType = 1;
         if (icall < maxNumOfTrials) {
-            for (int i = 1; i < totalNumOfPoints; i++) {
+            // the points of the initial population are independent
+            int count = Math.min(totalNumOfPoints - 1, maxNumOfTrials - icall);
+            double[][] points = new double[count][];
+            for (int i = 1; i <= count; i++) {
                 for (int j = 0; j < numOfParams; j++) {
-                    pointsX[i][j] = lowerBound[j] + bound[j] * Math.random();
-                    pointInX[j] = pointsX[i][j];
-                }
-
-                objFuncValueOfX[i] = execute(pointInX);
-                //ICALL++;
-                if (icall >= maxNumOfTrials) {
-                    totalNumOfPoints = i + 1;
-                    pointsX = copy(pointsX, totalNumOfPoints);
-                    objFuncValueOfX = copy(objFuncValueOfX, totalNumOfPoints);
-                    break;
+                    pointsX[i][j] = lowerBound[j] + bound[j] * random.nextDouble();
                 }
+                points[i - 1] = pointsX[i];
+            }
+            double[] values = execute(points);
+            System.arraycopy(values, 0, objFuncValueOfX, 1, count);
+            //ICALL++;
+            if (icall >= maxNumOfTrials) {
+                totalNumOfPoints = count + 1;
+                pointsX = copy(pointsX, totalNumOfPoints);
+                objFuncValueOfX = copy(objFuncValueOfX, totalNumOfPoints);
             }
 //            out.println("size of pointsX = " + totalNumOfPoints + " (max size is " + pointsX.length + ")" +
 //                    ", max size of objFuncValueOfX = " + objFuncValueOfX.length);
@@ -281,75 +311,33 @@ public class SCE {
         int outputType = 1; // different output will be displayed depending on the value of ouputTYpe
         while (true) {
             NLOOP++;
-            for (IGS = 0; IGS < currentNumOfComplexes; IGS++) {
+            // the complexes evolve independently, each one with its own share
+            // of the remaining trials and its own random sequence.
+            int remaining = maxNumOfTrials - icall;
+            List<Complex> complexes = new ArrayList<Complex>(currentNumOfComplexes);
+            for (int igs = 0; igs < currentNumOfComplexes; igs++) {
+                int budget = remaining / currentNumOfComplexes + (igs < remaining % currentNumOfComplexes ? 1 : 0);
+                complexes.add(new Complex(igs, budget, new Random(random.nextLong())));
+            }
+            evaluator.invokeAll(complexes);
+            for (Complex complex : complexes) {
                 for (int k1 = 0; k1 < numOfPointsInComplex; k1++) {
-                    int k2 = k1 * currentNumOfComplexes + IGS;
+                    int k2 = k1 * currentNumOfComplexes + complex.igs;
                     for (int j = 0; j < numOfParams; j++) {
-                        pointsInComplex[k1][j] = pointsX[k2][j];
+                        pointsX[k2][j] = complex.points[k1][j];
                     }
-                    objFuncValuesOfComplex[k1] = objFuncValueOfX[k2];
+                    objFuncValueOfX[k2] = complex.values[k1];
                 }
-                for (LOOP = 0; LOOP < numOfEvolutionSteps; LOOP++) {
-                    if (numOfPointsInSubComplex == numOfPointsInComplex) {
-                        for (int k = 0; k < numOfPointsInSubComplex; k++) {
-                            indicesOfSimplex[k] = k;
-                        }
-                    } else {
-                        //  k = 0 instead of k = 1 because the line above (indicesOfSimplex[0] = ....)
-                        // is removed.
-                        for (int k = 0; k < numOfPointsInSubComplex; k++) {
-                            boolean again = true;
-                            int lpos = -1;
-                            while (again) {
-                                again = false;
-                                lpos = (int) (numOfPointsInComplex + 0.5 -
-                                        Math.sqrt(Math.pow((numOfPointsInComplex + 0.5), 2) -
-                                        numOfPointsInComplex * (numOfPointsInComplex + 1) * Math.random()));
-                                // check if any element from indicesOfSimplex[0] to indicesOfSimplex[k-1]
-                                // is equal to LPOS. If not, get out of the for loop, finish the while(AGAIN) loop,
-                                // and set LPOS as a value of indicesOfSimplex[k]
-                                for (int k1 = 0; k1 < k; k1++) {
-                                    if (lpos == indicesOfSimplex[k1]) {
-                                        again = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            indicesOfSimplex[k] = lpos;
-                        }
-                        // sort the indiciesOfSimplex array in increasing order
-                        Arrays.sort(indicesOfSimplex);
-                    }
-
-                    for (int k = 0; k < numOfPointsInSubComplex; k++) {
-                        for (int j = 0; j < numOfParams; j++) {
-                            pointsInSimplex[k][j] = pointsInComplex[indicesOfSimplex[k]][j];
-                        }
-                        objFuncValuesOfSimplex[k] = objFuncValuesOfComplex[indicesOfSimplex[k]];
-                    }
-                    cce();
-                    for (int k = 0; k < numOfPointsInSubComplex; k++) {
-                        for (int j = 0; j < numOfParams; j++) {
-                            pointsInComplex[indicesOfSimplex[k]][j] = pointsInSimplex[k][j];
-                        }
-                        objFuncValuesOfComplex[indicesOfSimplex[k]] = objFuncValuesOfSimplex[k];
-                    }
-                    sort_duan(pointsInComplex, objFuncValuesOfComplex);
-                    if (icall >= maxNumOfTrials) {
+            }
+            if (icall >= maxNumOfTrials) {
+                for (Complex complex : complexes) {
+                    if (complex.calls >= complex.budget) {
+                        IGS = complex.igs;
+                        LOOP = complex.loop;
                         break;
                     }
-                } // end of loop with LOOP
-                for (int k1 = 0; k1 < numOfPointsInComplex; k1++) {
-                    int k2 = k1 * currentNumOfComplexes + IGS;
-                    for (int j = 0; j < numOfParams; j++) {
-                        pointsX[k2][j] = pointsInComplex[k1][j];
-                    }
-                    objFuncValueOfX[k2] = objFuncValuesOfComplex[k1];
-                }
-                if (icall >= maxNumOfTrials) {
-                    break;
                 }
-            } // end of for loop with IGS
+            }
 
             sort_duan(pointsX, objFuncValueOfX);
             // set the best point and its objective function value
@@ -417,10 +405,21 @@ public class SCE {
     //##  Other functions
     //########################################################################
     double execute(double[] array) throws Exception {
-        data.setParamValues(array);
-        executionHandle.execute(data);
+        double of = evaluator.evaluate(array);
+        report(of);
+        return of;
+    }
+
+    double[] execute(double[][] points) throws Exception {
+        double[] of = evaluator.evaluate(points);
+        for (int i = 0; i < of.length; i++) {
+            report(of[i]);
+        }
+        return of;
+    }
+
+    synchronized void report(double of) {
         icall++;
-        double of = stepData.calculateObjectiveFunctionValue(executionHandle);
          double distribution = normdistForBestPoint();
 //          out.println("loop " + NLOOP + "  ICALL = " + icall);
 //            out.println("Number of complexes in a current population: " + currentNumOfComplexes);
@@ -429,7 +428,6 @@ public class SCE {
 //            out.println("Normal Distribution of best point: " + distribution);
 
         out.print("\n    " + icall + ": " + of + " [" + data.getObjFuncValueOfBestPoint() + "/" + objFuncValueOfWorstPoint+"]" + " c:" + currentNumOfComplexes + " d:" + distribution);
-        return of;
     }
 
     void sort_duan(double[][] x, double[] y) {
@@ -538,125 +536,224 @@ public class SCE {
         }
     }
 
-    void cce() throws Exception {
-        double[] worstPointSimplex = new double[numOfParams]; // WO(.)
-        double[] centroid = new double[numOfParams]; //CE(.)
-        double[] newPoint = new double[numOfParams]; //SNEW(.)
-        double[] vector = new double[numOfParams]; //STEP(.)
-        double worstObjFuncValue; //FW
-
-        for (int j = 0; j < numOfParams; j++) {
-            // pointsInSimplex[] is sorted based on the objective functions values,
-            // so the element in the last index is the worst point.
-            worstPointSimplex[j] = pointsInSimplex[numOfPointsInSubComplex - 1][j];
-            centroid[j] = 0;
-            // exclude the last point (worst point) in this loop
-            for (int i = 0; i < (numOfPointsInSubComplex - 1); i++) {
-                centroid[j] += pointsInSimplex[i][j];
-            }
-            centroid[j] = centroid[j] / ((double) (numOfPointsInSubComplex - 1));
-            vector[j] = centroid[j] - worstPointSimplex[j];
-        }
-        worstObjFuncValue = objFuncValuesOfSimplex[numOfPointsInSubComplex - 1];
-        for (int j = 0; j < numOfParams; j++) {
-            newPoint[j] = worstPointSimplex[j] + 2 * vector[j];
+    /* A complex of the population. During a shuffling loop the complexes
+     * evolve independently, so they can be evolved concurrently. Every complex
+     * draws from its own random sequence and stops after its share of trials,
+     * which keeps the search reproducible for any number of threads. */
+    class Complex implements Callable<Void> {
+
+        final int igs;
+        final int budget;
+        final Random random;
+        int calls = 0;
+        int loop = 0;
+        //COORDINATES OF POINTS IN A COMPLEX
+        final double[][] points = new double[numOfPointsInComplex][numOfParams];
+        //FUNCTION VALUES OF CX(.,.)
+        final double[] values = new double[numOfPointsInComplex];
+        //COORDINATES OF POINTS IN THE CURRENT SIMPLEX
+        final double[][] pointsInSimplex = new double[numOfPointsInSubComplex][numOfParams];
+        //FUNCTION VALUES OF S(.,.)
+        final double[] objFuncValuesOfSimplex = new double[numOfPointsInSubComplex];
+        //INDICES LOCATING POSITION OF S(.,.) IN X(.,.)
+        final int[] indicesOfSimplex = new int[numOfPointsInSubComplex];
+
+        Complex(int igs, int budget, Random random) {
+            this.igs = igs;
+            this.budget = budget;
+            this.random = random;
+            for (int k1 = 0; k1 < numOfPointsInComplex; k1++) {
+                int k2 = k1 * currentNumOfComplexes + igs;
+                for (int j = 0; j < numOfParams; j++) {
+                    points[k1][j] = pointsX[k2][j];
+                }
+                values[k1] = objFuncValueOfX[k2];
+            }
         }
-        boolean outOfBOUND = false;
-        for (int j = 0; j < numOfParams; j++) {
-            if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
-                outOfBOUND = true;
-                break;
+
+        @Override
+        public Void call() throws Exception {
+            if (budget < 1) {
+                return null;
             }
+            for (loop = 0; loop < numOfEvolutionSteps; loop++) {
+                if (numOfPointsInSubComplex == numOfPointsInComplex) {
+                    for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                        indicesOfSimplex[k] = k;
+                    }
+                } else {
+                    //  k = 0 instead of k = 1 because the line above (indicesOfSimplex[0] = ....)
+                    // is removed.
+                    for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                        boolean again = true;
+                        int lpos = -1;
+                        while (again) {
+                            again = false;
+                            lpos = (int) (numOfPointsInComplex + 0.5 -
+                                    Math.sqrt(Math.pow((numOfPointsInComplex + 0.5), 2) -
+                                    numOfPointsInComplex * (numOfPointsInComplex + 1) * random.nextDouble()));
+                            // check if any element from indicesOfSimplex[0] to indicesOfSimplex[k-1]
+                            // is equal to LPOS. If not, get out of the for loop, finish the while(AGAIN) loop,
+                            // and set LPOS as a value of indicesOfSimplex[k]
+                            for (int k1 = 0; k1 < k; k1++) {
+                                if (lpos == indicesOfSimplex[k1]) {
+                                    again = true;
+                                    break;
+                                }
+                            }
+                        }
+                        indicesOfSimplex[k] = lpos;
+                    }
+                    // sort the indiciesOfSimplex array in increasing order
+                    Arrays.sort(indicesOfSimplex);
+                }
+
+                for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                    for (int j = 0; j < numOfParams; j++) {
+                        pointsInSimplex[k][j] = points[indicesOfSimplex[k]][j];
+                    }
+                    objFuncValuesOfSimplex[k] = values[indicesOfSimplex[k]];
+                }
+                cce();
+                for (int k = 0; k < numOfPointsInSubComplex; k++) {
+                    for (int j = 0; j < numOfParams; j++) {
+                        points[indicesOfSimplex[k]][j] = pointsInSimplex[k][j];
+                    }
+                    values[indicesOfSimplex[k]] = objFuncValuesOfSimplex[k];
+                }
+                sort_duan(points, values);
+                if (calls >= budget) {
+                    break;
+                }
+            } // end of loop with LOOP
+            return null;
         }
-        if (outOfBOUND) {
-            getNewPointAtRandom(newPoint);
+
+        double execute(double[] point) throws Exception {
+            calls++;
+            return SCE.this.execute(point);
         }
-        double newObjFuncValue = execute(newPoint);
 
-        if ((stepData.maximizeObjectiveFunctionValue() && newObjFuncValue <= worstObjFuncValue) ||
-                (!stepData.maximizeObjectiveFunctionValue() && newObjFuncValue >= worstObjFuncValue)) {
-            if (icall >= maxNumOfTrials) {
-                return; //ICALL;
+        void cce() throws Exception {
+            double[] worstPointSimplex = new double[numOfParams]; // WO(.)
+            double[] centroid = new double[numOfParams]; //CE(.)
+            double[] newPoint = new double[numOfParams]; //SNEW(.)
+            double[] vector = new double[numOfParams]; //STEP(.)
+            double worstObjFuncValue; //FW
+
+            for (int j = 0; j < numOfParams; j++) {
+                // pointsInSimplex[] is sorted based on the objective functions values,
+                // so the element in the last index is the worst point.
+                worstPointSimplex[j] = pointsInSimplex[numOfPointsInSubComplex - 1][j];
+                centroid[j] = 0;
+                // exclude the last point (worst point) in this loop
+                for (int i = 0; i < (numOfPointsInSubComplex - 1); i++) {
+                    centroid[j] += pointsInSimplex[i][j];
+                }
+                centroid[j] = centroid[j] / ((double) (numOfPointsInSubComplex - 1));
+                vector[j] = centroid[j] - worstPointSimplex[j];
             }
+            worstObjFuncValue = objFuncValuesOfSimplex[numOfPointsInSubComplex - 1];
             for (int j = 0; j < numOfParams; j++) {
-                newPoint[j] = worstPointSimplex[j] + 0.5 * vector[j];
+                newPoint[j] = worstPointSimplex[j] + 2 * vector[j];
             }
-            newObjFuncValue = execute(newPoint);
-            if ((stepData.maximizeObjectiveFunctionValue() && newObjFuncValue < worstObjFuncValue) ||
-                    (!stepData.maximizeObjectiveFunctionValue() && newObjFuncValue > worstObjFuncValue)) {
-                if (icall >= maxNumOfTrials) {
-                    return;
+            boolean outOfBOUND = false;
+            for (int j = 0; j < numOfParams; j++) {
+                if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
+                    outOfBOUND = true;
+                    break;
                 }
+            }
+            if (outOfBOUND) {
                 getNewPointAtRandom(newPoint);
+            }
+            double newObjFuncValue = execute(newPoint);
+
+            if ((stepData.maximizeObjectiveFunctionValue() && newObjFuncValue <= worstObjFuncValue) ||
+                    (!stepData.maximizeObjectiveFunctionValue() && newObjFuncValue >= worstObjFuncValue)) {
+                if (calls >= budget) {
+                    return; //ICALL;
+                }
+                for (int j = 0; j < numOfParams; j++) {
+                    newPoint[j] = worstPointSimplex[j] + 0.5 * vector[j];
+                }
                 newObjFuncValue = execute(newPoint);
+                if ((stepData.maximizeObjectiveFunctionValue() && newObjFuncValue < worstObjFuncValue) ||
+                        (!stepData.maximizeObjectiveFunctionValue() && newObjFuncValue > worstObjFuncValue)) {
+                    if (calls >= budget) {
+                        return;
+                    }
+                    getNewPointAtRandom(newPoint);
+                    newObjFuncValue = execute(newPoint);
 
-            }// end of the 2nd if ((newObjFuncValue > worstObjFuncValue) ... )
-        } // end of the 1st if ((newObjFuncValue > worstObjFuncValue) ... )
+                }// end of the 2nd if ((newObjFuncValue > worstObjFuncValue) ... )
+            } // end of the 1st if ((newObjFuncValue > worstObjFuncValue) ... )
 
-        for (int j = 0; j < numOfParams; j++) {
-            pointsInSimplex[numOfPointsInSubComplex - 1][j] = newPoint[j];
+            for (int j = 0; j < numOfParams; j++) {
+                pointsInSimplex[numOfPointsInSubComplex - 1][j] = newPoint[j];
+            }
+            objFuncValuesOfSimplex[numOfPointsInSubComplex - 1] = newObjFuncValue;
         }
-        objFuncValuesOfSimplex[numOfPointsInSubComplex - 1] = newObjFuncValue;
-    }
 
-    /* a new point is assigned to newPoint based on stdDevOfPopulation[],
-     *  gasdev(), bound[], and etc.*/
-    void getNewPointAtRandom(double[] newPoint) {
-        for (int j = 0; j < numOfParams; j++) {
-            int nnn = 0;
-            do {
-                double R = gasdev();
-                newPoint[j] = pointsInSimplex[0][j] + stdDevOfPopulation[j] * R * bound[j];
-                nnn++;
-                if (nnn == 1001) {
-                    out.println("SCE: getNewPointAtRandom(): Having hard time generating a new point in a feasible region");
-                }
-                if (nnn > 1000) {
-                    newPoint[j] = lowerBound[j] + Math.abs(R) * (0.5 * bound[j]);
-                    if (nnn % 100 == 1) {
-                        out.print("Attempt " + nnn + ": new point = " + newPoint[j] +
-                                ", lower bound = " + lowerBound[j] + ", upper bound = " + upperBound[j]);
+        /* a new point is assigned to newPoint based on stdDevOfPopulation[],
+         *  gasdev(), bound[], and etc.*/
+        void getNewPointAtRandom(double[] newPoint) {
+            for (int j = 0; j < numOfParams; j++) {
+                int nnn = 0;
+                do {
+                    double R = gasdev();
+                    newPoint[j] = pointsInSimplex[0][j] + stdDevOfPopulation[j] * R * bound[j];
+                    nnn++;
+                    if (nnn == 1001) {
+                        out.println("SCE: getNewPointAtRandom(): Having hard time generating a new point in a feasible region");
                     }
-                    if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
-                        out.println(" ---> out of bound");
-                    } else {
-                        out.println(" ---> in bound!!");
+                    if (nnn > 1000) {
+                        newPoint[j] = lowerBound[j] + Math.abs(R) * (0.5 * bound[j]);
+                        if (nnn % 100 == 1) {
+                            out.print("Attempt " + nnn + ": new point = " + newPoint[j] +
+                                    ", lower bound = " + lowerBound[j] + ", upper bound = " + upperBound[j]);
+                        }
+                        if ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j])) {
+                            out.println(" ---> out of bound");
+                        } else {
+                            out.println(" ---> in bound!!");
+                        }
                     }
-                }
-            } while ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j]));
+                } while ((newPoint[j] > upperBound[j]) || (newPoint[j] < lowerBound[j]));
+            }
         }
-    }
-    //
-    boolean calculateGASDEV = true; // if true, gasdev() returns gasdevValue1
-    double gasdevValue1; // one of the two values generated in gasdev()
-    double gasdevValue2; // one of the two values generated in gasdev()
-
-    /* returns a normally distributed deviate with zero mean and unit variance,
-     *  using random number generator, as the source of uniform deviates.
-     */
-    double gasdev() {
-        double R, v1, v2;
-        if (calculateGASDEV) {
-            // if we don't have an extra deviate handy
-            do {
-                // pick two uniform numbers in the square extending from -1 to +1
-                // in each direction
-                v1 = 2 * Math.random() - 1;
-                v2 = 2 * Math.random() - 1;
-                // check if v1 and v2 are in the unit circle
-                R = v1 * v1 + v2 * v2;
-            } while (R >= 1); // if v1 and v2 are not in the unit circle
-
-            // make the Box-Muller transformation to get two normal deviates
-            double fac = Math.sqrt((-1) * ((2 * Math.log(R)) / R));
-            gasdevValue2 = v1 * fac; // one of the two normal deviates. gasdevValue2 is returned
-            // next time this function is called
-            gasdevValue1 = v2 * fac; // the other normal deviate, which will be returned at this time
-            calculateGASDEV = false;
-            return gasdevValue1;
-        } else {
-            calculateGASDEV = true;
-            return gasdevValue2;
+        //
+        boolean calculateGASDEV = true; // if true, gasdev() returns gasdevValue1
+        double gasdevValue1; // one of the two values generated in gasdev()
+        double gasdevValue2; // one of the two values generated in gasdev()
+
+        /* returns a normally distributed deviate with zero mean and unit variance,
+         *  using random number generator, as the source of uniform deviates.
+         */
+        double gasdev() {
+            double R, v1, v2;
+            if (calculateGASDEV) {
+                // if we don't have an extra deviate handy
+                do {
+                    // pick two uniform numbers in the square extending from -1 to +1
+                    // in each direction
+                    v1 = 2 * random.nextDouble() - 1;
+                    v2 = 2 * random.nextDouble() - 1;
+                    // check if v1 and v2 are in the unit circle
+                    R = v1 * v1 + v2 * v2;
+                } while (R >= 1); // if v1 and v2 are not in the unit circle
+
+                // make the Box-Muller transformation to get two normal deviates
+                double fac = Math.sqrt((-1) * ((2 * Math.log(R)) / R));
+                gasdevValue2 = v1 * fac; // one of the two normal deviates. gasdevValue2 is returned
+                // next time this function is called
+                gasdevValue1 = v2 * fac; // the other normal deviate, which will be returned at this time
+                calculateGASDEV = false;
+                return gasdevValue1;
+            } else {
+                calculateGASDEV = true;
+                return gasdevValue2;
+            }
         }
     }
 
@@ -71,6 +71,9 @@ public class ComponentAccess {
     Notification ens;
     /** Execute method. */
     final MethodInvoker exec;
+    // instrumentation statistics, cached for the owning instrumentation.
+    Instrumentation.Stats stats;
+    Instrumentation statsOwner;
 
 //    public static int counter;
 //    static final Object lock = new Object();
@@ -147,14 +150,27 @@ public class ComponentAccess {
     }
 
     final void exec() throws ComponentException {
+        Instrumentation i = Instrumentation.active;
+        if (i != null) {
+            i.measure(this);
+        } else {
+            exec(null);
+        }
+    }
+
+    final void exec(Instrumentation.Probe probe) throws ComponentException {
         try {
             ens.fireWait(this);
+            long t0 = probe != null ? System.nanoTime() : 0;
             // synchonized in()
             for (Access a : ins.values()) {     // wait for all inputs to arrive
                 if (a.getClass() == FieldAccess.class) {
                     a.in();
                 }
             }
+            if (probe != null) {
+                probe.waiting = System.nanoTime() - t0;
+            }
             // un synchonized in()
             for (Access a : ins.values()) {     // wait for all inputs to arrive
                 if (a.getClass() == FieldObjectAccess.class || a.getClass() == FieldValueAccess.class
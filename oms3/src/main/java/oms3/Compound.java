@@ -63,6 +63,22 @@ public  class Compound {
         internalExec();
     }
 
+    /** Selects the scheduling of the internal components.
+     * 
+     * By default every component is started in its own thread at each
+     * execution and waits for its inputs. With the dataflow scheduling the
+     * components are ordered from their connections and started once their
+     * inputs are available: independent branches run in parallel, sequential
+     * chains run on the calling thread. The default can be changed through
+     * the system property <code>oms.dataflow</code>.
+     * 
+     * @param dataflow <code>true</code> to use the dataflow scheduling.
+     */
+    public void setDataflow(boolean dataflow) {
+        controller.dataflow = dataflow;
+        controller.flow = null;
+    }
+
     /** Shutting down the execution service
      * 
      */
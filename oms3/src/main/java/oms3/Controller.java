@@ -26,6 +26,9 @@ import java.lang.annotation.Annotation;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import oms3.util.Threads;
@@ -38,6 +41,8 @@ import oms3.util.Threads;
 class Controller {
 
     static boolean checkCircular = Boolean.getBoolean("oms.check.circular");
+    /* default for the dataflow scheduling, see Compound.setDataflow() */
+    static boolean dataflowDefault = Boolean.getBoolean("oms.dataflow");
     //
     private static final Logger log = Logger.getLogger("oms3.sim");
     /** Execution event Notification */
@@ -50,6 +55,8 @@ class Controller {
     ComponentAccess ca;
     // optional skipping the integrity checking.
     Validator validator;
+    // run the components in dataflow order instead of one thread each.
+    boolean dataflow = dataflowDefault;
 
     Controller(Object compound) {
         if (checkCircular) {
@@ -334,15 +341,31 @@ class Controller {
     // something internal.
     ComponentException E;
     static ExecutorService executor = Executors.newCachedThreadPool();
+    static ForkJoinPool flowPool;
 
     static void reload() {
         executor = Executors.newCachedThreadPool();
         Threads.e = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
+        synchronized (Controller.class) {
+            flowPool = null;
+        }
     }
 
     public static void shutdown() {
         executor.shutdown();
         Threads.e.shutdown();
+        synchronized (Controller.class) {
+            if (flowPool != null) {
+                flowPool.shutdown();
+            }
+        }
+    }
+
+    static synchronized ForkJoinPool flowPool() {
+        if (flowPool == null) {
+            flowPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return flowPool;
     }
 
     static private class Latch {
@@ -398,6 +421,16 @@ class Controller {
             dataRef.invalidate();
         }
 
+        if (dataflow) {
+            ens.fireStart(ca);
+            if (flow == null) {
+                flow = new Dataflow(comps);
+            }
+            flow.exec();
+            finish();
+            return;
+        }
+
 //        final CountDownLatch latch = new CountDownLatch(comps.size());
         latch.reload(comps.size());
         ens.fireStart(ca);
@@ -457,6 +490,10 @@ class Controller {
             // nothing to do here.
         }
 
+        finish();
+    }
+
+    private void finish() throws ComponentException {
         // some of the components left an
         // exception.
         if (E != null) {
@@ -476,6 +513,215 @@ class Controller {
         }
     }
 
+    Dataflow flow;
+
+    /**
+     * Dataflow scheduler.
+     * 
+     * The components are ordered from the connection graph, a component is
+     * started only after all the components providing its synchronized
+     * inputs are done, so it never waits on a field. The first component that
+     * becomes ready is run inline on the thread that made it ready, the other
+     * ones are forked to a shared pool. Purely sequential chains therefore
+     * run on the caller thread without any handoff.
+     */
+    private class Dataflow implements ForkJoinPool.ManagedBlocker {
+
+        final ComponentAccess[] nodes;
+        final int[][] successors;
+        final int[] indegree;
+        final int[] roots;
+        final AtomicIntegerArray pending;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile Thread waiter;
+
+        Dataflow(Collection<ComponentAccess> comps) {
+            List<ComponentAccess> list = new ArrayList<ComponentAccess>(comps);
+            int n = list.size();
+
+            // the producer of every synchronized data object.
+            Map<FieldContent, Integer> producers = new IdentityHashMap<FieldContent, Integer>();
+            for (int i = 0; i < n; i++) {
+                for (Access a : list.get(i).outputs()) {
+                    if (a.getClass() == FieldAccess.class && a.isValid()) {
+                        producers.put(a.getData(), i);
+                    }
+                }
+            }
+            List<Set<Integer>> succ = new ArrayList<Set<Integer>>(n);
+            for (int i = 0; i < n; i++) {
+                succ.add(new LinkedHashSet<Integer>());
+            }
+            int[] indeg = new int[n];
+            for (int i = 0; i < n; i++) {
+                for (Access a : list.get(i).inputs()) {
+                    if (a.getClass() == FieldAccess.class && a.isValid()) {
+                        Integer p = producers.get(a.getData());
+                        if (p != null && p != i && succ.get(p).add(i)) {
+                            indeg[i]++;
+                        }
+                    }
+                }
+            }
+
+            // topological order, so that inline runs follow the chains.
+            int[] order = new int[n];
+            int[] deg = indeg.clone();
+            int head = 0;
+            int tail = 0;
+            for (int i = 0; i < n; i++) {
+                if (deg[i] == 0) {
+                    order[tail++] = i;
+                }
+            }
+            int rootCount = tail;
+            while (head < tail) {
+                for (int s : succ.get(order[head++])) {
+                    if (--deg[s] == 0) {
+                        order[tail++] = s;
+                    }
+                }
+            }
+            if (tail < n) {
+                throw new ComponentException("Circular reference in the dataflow of " + ca.getComponent());
+            }
+            int[] position = new int[n];
+            for (int i = 0; i < n; i++) {
+                position[order[i]] = i;
+            }
+
+            nodes = new ComponentAccess[n];
+            successors = new int[n][];
+            indegree = new int[n];
+            for (int i = 0; i < n; i++) {
+                int o = order[i];
+                nodes[i] = list.get(o);
+                indegree[i] = indeg[o];
+                int[] s = new int[succ.get(o).size()];
+                int k = 0;
+                for (int j : succ.get(o)) {
+                    s[k++] = position[j];
+                }
+                Arrays.sort(s);
+                successors[i] = s;
+            }
+            roots = new int[rootCount];
+            for (int i = 0; i < rootCount; i++) {
+                roots[i] = i;
+            }
+            pending = new AtomicIntegerArray(n);
+        }
+
+        void exec() {
+            if (nodes.length == 0) {
+                return;
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                pending.set(i, indegree[i]);
+            }
+            waiter = Thread.currentThread();
+            inFlight.set(roots.length);
+            for (int i = 1; i < roots.length; i++) {
+                fork(roots[i]);
+            }
+            run(roots[0]);
+            if (inFlight.get() > 0) {
+                try {
+                    ForkJoinPool.managedBlock(this);
+                } catch (InterruptedException IE) {
+                    // nothing to do here.
+                }
+            }
+            waiter = null;
+        }
+
+        private void fork(final int i) {
+            try {
+                flowPool().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Dataflow.this.run(i);
+                    }
+                });
+            } catch (Throwable t) {
+                // the component will never run, don't leave the caller waiting for it.
+                fail(t, i);
+                done();
+            }
+        }
+
+        private void run(int i) {
+            while (i >= 0) {
+                int next = -1;
+                try {
+                    if (E == null) {
+                        try {
+                            nodes[i].exec();
+                        } catch (ComponentException ce) {
+                            synchronized (l) {
+                                if (E == null) {
+                                    E = ce;
+                                }
+                            }
+                        } catch (Throwable t) {
+                            fail(t, i);
+                        }
+                    }
+                    // on errors nothing new is started.
+                    if (E == null) {
+                        for (int s : successors[i]) {
+                            if (pending.decrementAndGet(s) == 0) {
+                                inFlight.incrementAndGet();
+                                if (next < 0) {
+                                    next = s;
+                                } else {
+                                    fork(s);
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    done();
+                }
+                i = next;
+            }
+        }
+
+        private void fail(Throwable t, int i) {
+            synchronized (l) {
+                if (E == null) {
+                    E = new ComponentException(t, nodes[i].getComponent());
+                }
+            }
+        }
+
+        /**
+         * A started component is done, wake the caller up with the last one.
+         */
+        private void done() {
+            if (inFlight.decrementAndGet() == 0) {
+                Thread w = waiter;
+                if (w != null) {
+                    LockSupport.unpark(w);
+                }
+            }
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return inFlight.get() == 0;
+        }
+
+        @Override
+        public boolean block() {
+            while (inFlight.get() > 0) {
+                LockSupport.park(this);
+            }
+            return true;
+        }
+    }
+
     /**
      * Call an annotated method.
      *
@@ -0,0 +1,387 @@
+/*
+ * $Id$
+ * 
+ * This software is provided 'as-is', without any express or implied
+ * warranty. In no event will the authors be held liable for any damages
+ * arising from the use of this software.
+ * 
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ * 
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software
+ *     in a product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ * 
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ * 
+ *  3. This notice may not be removed or altered from any source
+ *     distribution.
+ */
+package oms3;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Component execution instrumentation.
+ * 
+ * Opt-in measurement of the component executions of all the compounds.
+ * For every component the number of calls, the wall time, the thread CPU
+ * time, the bytes allocated by the thread and the time spent waiting on
+ * the synchronized inputs (the field transfer from the producing
+ * components) are collected. The time of a compound includes the one of
+ * its internal components.
+ * 
+ * The wall time of an execution includes the time waiting for the inputs,
+ * the components are therefore ranked by their busy time, the wall time 
+ * without the waiting.
+ * 
+ * <pre>
+ *   Instrumentation ins = Instrumentation.start(true);
+ *   model.execute();
+ *   Instrumentation.stop();
+ *   ins.printSummary(System.out);
+ *   ins.writeCSV(new FileWriter("trace.csv"));
+ * </pre>
+ * 
+ * CPU time and allocated bytes are -1 if the JVM does not support their
+ * measurement. With the trace enabled every single execution is recorded,
+ * the call index of a component is its time step.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ * @version $Id$ 
+ */
+public class Instrumentation {
+
+    /* The active instrumentation, null if disabled. */
+    static volatile Instrumentation active;
+    //
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) threads : null;
+    //
+    private final boolean trace;
+    private final int maxTrace;
+    private final boolean cpu;
+    private final boolean alloc;
+    private final long startNanos = System.nanoTime();
+    private final Map<Object, Stats> stats = new IdentityHashMap<Object, Stats>();
+    private final ConcurrentLinkedQueue<Record> records = new ConcurrentLinkedQueue<Record>();
+    private final AtomicInteger recordCount = new AtomicInteger();
+
+    /** The statistics of a component.
+     */
+    public static class Stats {
+
+        final String name;
+        long calls;
+        long wall;
+        long cpu;
+        long alloc;
+        long waiting;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long wall, long cpu, long alloc, long waiting) {
+            calls++;
+            this.wall += wall;
+            this.cpu += cpu;
+            this.alloc += alloc;
+            this.waiting += waiting;
+        }
+
+        /** @return the component name */
+        public String getName() {
+            return name;
+        }
+
+        /** @return the number of executions */
+        public synchronized long getCalls() {
+            return calls;
+        }
+
+        /** @return the total wall time in nanoseconds */
+        public synchronized long getWallTime() {
+            return wall;
+        }
+
+        /** @return the total CPU time in nanoseconds, negative if not measured */
+        public synchronized long getCpuTime() {
+            return cpu;
+        }
+
+        /** @return the total allocated bytes, negative if not measured */
+        public synchronized long getAllocatedBytes() {
+            return alloc;
+        }
+
+        /** @return the total time waiting for the inputs in nanoseconds */
+        public synchronized long getWaitTime() {
+            return waiting;
+        }
+
+        /** @return the total wall time without the time waiting for the inputs, in nanoseconds */
+        public synchronized long getBusyTime() {
+            return wall - waiting;
+        }
+    }
+
+    /* A single traced execution. */
+    static class Record {
+
+        final String name;
+        final long step;
+        final String thread;
+        final long start;
+        final long wall;
+        final long cpu;
+        final long alloc;
+        final long waiting;
+
+        Record(String name, long step, String thread, long start, long wall, long cpu, long alloc, long waiting) {
+            this.name = name;
+            this.step = step;
+            this.thread = thread;
+            this.start = start;
+            this.wall = wall;
+            this.cpu = cpu;
+            this.alloc = alloc;
+            this.waiting = waiting;
+        }
+    }
+
+    /* Measurement of a running execution, filled by ComponentAccess. */
+    static class Probe {
+
+        long waiting;
+    }
+
+    private Instrumentation(boolean trace, int maxTrace) {
+        this.trace = trace;
+        this.maxTrace = maxTrace;
+        boolean cpuSupported = false;
+        try {
+            cpuSupported = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException E) {
+            // no cpu time.
+        }
+        cpu = cpuSupported;
+        boolean allocSupported = false;
+        try {
+            allocSupported = allocations != null && allocations.isThreadAllocatedMemorySupported()
+                    && allocations.isThreadAllocatedMemoryEnabled();
+        } catch (UnsupportedOperationException E) {
+            // no allocation
+        }
+        alloc = allocSupported;
+    }
+
+    /** Start the instrumentation of all the component executions, without trace.
+     * 
+     * @return the new active instrumentation.
+     */
+    public static Instrumentation start() {
+        return start(false);
+    }
+
+    /** Start the instrumentation of all the component executions.
+     * 
+     * @param trace true if every single execution should be recorded.
+     * @return the new active instrumentation.
+     */
+    public static Instrumentation start(boolean trace) {
+        return start(trace, 1000000);
+    }
+
+    /** Start the instrumentation of all the component executions.
+     * 
+     * @param trace true if every single execution should be recorded.
+     * @param maxTrace the maximum number of recorded executions, the later 
+     *      ones are only summarized.
+     * @return the new active instrumentation.
+     */
+    public static Instrumentation start(boolean trace, int maxTrace) {
+        Instrumentation i = new Instrumentation(trace, maxTrace);
+        active = i;
+        return i;
+    }
+
+    /** Stop the active instrumentation.
+     * 
+     * @return the stopped instrumentation, or null if none was active.
+     */
+    public static Instrumentation stop() {
+        Instrumentation i = active;
+        active = null;
+        return i;
+    }
+
+    /** Get the active instrumentation.
+     * 
+     * @return the active instrumentation or null.
+     */
+    public static Instrumentation getActive() {
+        return active;
+    }
+
+    void measure(ComponentAccess ca) throws ComponentException {
+        Stats s = ca.stats;
+        if (ca.statsOwner != this) {
+            s = stats(ca.getComponent());
+            ca.stats = s;
+            ca.statsOwner = this;
+        }
+        Thread t = Thread.currentThread();
+        long a0 = alloc ? allocations.getThreadAllocatedBytes(t.getId()) : 0;
+        long c0 = cpu ? threads.getCurrentThreadCpuTime() : 0;
+        long w0 = System.nanoTime();
+        Probe p = new Probe();
+        try {
+            ca.exec(p);
+        } finally {
+            long wall = System.nanoTime() - w0;
+            long c = cpu ? threads.getCurrentThreadCpuTime() - c0 : -1;
+            long a = alloc ? allocations.getThreadAllocatedBytes(t.getId()) - a0 : -1;
+            long step;
+            synchronized (s) {
+                step = s.calls;
+                s.add(wall, c, a, p.waiting);
+            }
+            if (trace && recordCount.incrementAndGet() <= maxTrace) {
+                records.add(new Record(s.name, step, t.getName(), w0 - startNanos, wall, c, a, p.waiting));
+            }
+        }
+    }
+
+    private Stats stats(Object comp) {
+        synchronized (stats) {
+            Stats s = stats.get(comp);
+            if (s == null) {
+                String name = comp.getClass().getSimpleName();
+                if (name.isEmpty()) {
+                    name = comp.getClass().getName();
+                }
+                s = new Stats(name + "@" + Integer.toHexString(System.identityHashCode(comp)));
+                stats.put(comp, s);
+            }
+            return s;
+        }
+    }
+
+    /** Get the statistics of all the executed components.
+     * 
+     * @return the statistics, sorted by decreasing busy time.
+     */
+    public List<Stats> getStats() {
+        List<Stats> l;
+        synchronized (stats) {
+            l = new ArrayList<Stats>(stats.values());
+        }
+        Collections.sort(l, new Comparator<Stats>() {
+
+            @Override
+            public int compare(Stats o1, Stats o2) {
+                return Long.compare(o2.getBusyTime(), o1.getBusyTime());
+            }
+        });
+        return l;
+    }
+
+    /** Print a summary table of the components, the busiest first.
+     * 
+     * @param out the output stream
+     */
+    public void printSummary(PrintStream out) {
+        out.println(String.format(Locale.US, "%-40s %10s %12s %12s %12s %12s %13s %14s", "component", "calls", "busy[ms]",
+                "wall[ms]", "cpu[ms]", "wait[ms]", "busy/call[us]", "alloc/call[B]"));
+        for (Stats s : getStats()) {
+            long calls = s.getCalls();
+            out.println(String.format(Locale.US, "%-40s %10d %12.2f %12.2f %12s %12.2f %13.2f %14s", s.getName(), calls,
+                    s.getBusyTime() / 1e6, s.getWallTime() / 1e6,
+                    s.getCpuTime() < 0 ? "-" : String.format(Locale.US, "%.2f", s.getCpuTime() / 1e6),
+                    s.getWaitTime() / 1e6, calls == 0 ? 0.0 : s.getBusyTime() / 1e3 / calls,
+                    s.getAllocatedBytes() < 0 || calls == 0 ? "-" : Long.toString(s.getAllocatedBytes() / calls)));
+        }
+    }
+
+    /** Write the trace as CSV, one line per execution.
+     * 
+     * @param w the writer, not closed.
+     * @throws IOException 
+     */
+    public void writeCSV(Writer w) throws IOException {
+        w.write("component,step,thread,start_ns,wall_ns,cpu_ns,alloc_bytes,wait_ns\n");
+        for (Record r : records) {
+            w.write(csv(r.name) + ',' + r.step + ',' + csv(r.thread) + ',' + r.start + ',' + r.wall + ',' + r.cpu + ','
+                    + r.alloc + ',' + r.waiting + '\n');
+        }
+        w.flush();
+    }
+
+    /** Write the summary and the trace as JSON.
+     * 
+     * @param w the writer, not closed.
+     * @throws IOException 
+     */
+    public void writeJSON(Writer w) throws IOException {
+        w.write("{\n  \"components\": [");
+        boolean first = true;
+        for (Stats s : getStats()) {
+            w.write(first ? "\n" : ",\n");
+            first = false;
+            w.write("    {\"component\": " + json(s.getName()) + ", \"calls\": " + s.getCalls() + ", \"wall_ns\": "
+                    + s.getWallTime() + ", \"cpu_ns\": " + s.getCpuTime() + ", \"alloc_bytes\": " + s.getAllocatedBytes()
+                    + ", \"wait_ns\": " + s.getWaitTime() + ", \"busy_ns\": " + s.getBusyTime() + "}");
+        }
+        w.write("\n  ],\n  \"trace\": [");
+        first = true;
+        for (Record r : records) {
+            w.write(first ? "\n" : ",\n");
+            first = false;
+            w.write("    {\"component\": " + json(r.name) + ", \"step\": " + r.step + ", \"thread\": " + json(r.thread)
+                    + ", \"start_ns\": " + r.start + ", \"wall_ns\": " + r.wall + ", \"cpu_ns\": " + r.cpu
+                    + ", \"alloc_bytes\": " + r.alloc + ", \"wait_ns\": " + r.waiting + "}");
+        }
+        w.write("\n  ]\n}\n");
+        w.flush();
+    }
+
+    private static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    private static String json(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 2);
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+}
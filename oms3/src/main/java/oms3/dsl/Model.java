@@ -39,6 +39,7 @@ public class Model implements Buildable {
     String controlClass = "oms3.Compound";
     //
     URLClassLoader modelClassLoader;
+    Class<?> generatedClass;
 
     @Override
     public Buildable create(Object name, Object value) {
@@ -186,7 +187,13 @@ public class Model implements Buildable {
         if (classname == null) {
 //            return getGeneratedComponent(loader);
 //            classname = getGeneratedComponent(loader);
-            c = getGeneratedComponent(loader);
+            // compile once, calibrations create an instance per model run.
+            synchronized (this) {
+                if (generatedClass == null) {
+                    generatedClass = getGeneratedComponent(loader);
+                }
+                c = generatedClass;
+            }
         } else {
             try {
                 c = loader.loadClass(getComponentClassName(classname));
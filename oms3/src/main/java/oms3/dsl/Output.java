@@ -148,6 +148,24 @@ public class Output implements Buildable {
         return LEAF;
     }
 
+    /** Creates an output with the same settings, for a model
+     * instance that runs at the same time as the one of this output.
+     *
+     * @return the copy
+     */
+    public Output copy() {
+        Output o = new Output();
+        for (V v : vars) {
+            o.vars.add(o.new V(v.token, v.name, v.idx));
+        }
+        o.d.addAll(d);
+        o.file = file;
+        o.fformat = fformat;
+        o.dformat = dformat;
+        o.dfmt = (SimpleDateFormat) dfmt.clone();
+        return o;
+    }
+
     public void setup(Object comp, File dir, final String header) throws IOException {
         printHeader = true;
         if (!dir.exists()) {
@@ -16,6 +16,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import oms3.Notification.*;
 import ngmf.util.OutputStragegy;
+import ngmf.util.cosu.Evaluator;
 import ngmf.util.cosu.luca.ParameterData;
 import oms3.ComponentAccess;
 import oms3.Conversions;
@@ -33,6 +34,7 @@ public class DDS extends AbstractSimulation {
 
     int samples = 2000;
     int terms = 4;
+    int threads = 1;
     Params params = new Params();
     Date sens_start;
     Date sens_end;
@@ -52,6 +54,8 @@ public class DDS extends AbstractSimulation {
 //            if (samples<2000) {
 //                throw new IllegalArgumentException("samples<2000");
 //            }
+        } else if (name.equals("threads")) {
+            threads = (Integer) value;
         } else if (name.equals("terms")) {
             terms = (Integer) value;
             if (terms != 4 && terms != 6) {
@@ -85,7 +89,24 @@ public class DDS extends AbstractSimulation {
     }
 
     /// DDS
-    void run(Model model, List<Output> out, File folder, String name) throws Exception {
+    void run(final Model model, List<Output> out, final File folder, final String name) throws Exception {
+        // the samples of a parameter are independent
+        final Workspaces workspaces = new Workspaces(folder, out, threads < 1 ? Runtime.getRuntime().availableProcessors() : threads);
+        Evaluator evaluator = new Evaluator(new Evaluator.Function() {
+
+            @Override
+            public double evaluate(int worker, double[] x) throws Exception {
+                return run_model(model, workspaces.getOut(worker), folder, workspaces.getFolder(worker), name, x);
+            }
+        }, threads);
+        try {
+            run(model, evaluator);
+        } finally {
+            evaluator.shutdown();
+        }
+    }
+
+    private void run(Model model, Evaluator evaluator) throws Exception {
 
         List<Param> pList = params.getParam();
 
@@ -144,7 +165,9 @@ public class DDS extends AbstractSimulation {
                     Param par = pList.get(i);
                     x[j][i] = p * (par.getUpper() - par.getLower()) + par.getLower();
                 }
-                y[j] = run_model(model, out, folder, name, x[j]);
+            }
+            y = evaluator.evaluate(x);
+            for (int j = 0; j < N; j++) {
                 System.out.println("par:" + h + " N:" + j + " of:" + y[j]);
             }
             // Compute total variance
@@ -205,7 +228,7 @@ public class DDS extends AbstractSimulation {
         System.out.println(b.toString());
     }
 
-    private double run_model(Model model, List<Output> out, File folder, String simName, double[] x) throws Exception {
+    private double run_model(Model model, List<Output> out, File folder, File simFolder, String simName, double[] x) throws Exception {
 
         Map<String, Object> parameter = model.getParameter();
         Object comp = model.getComponent();
@@ -230,9 +253,9 @@ public class DDS extends AbstractSimulation {
             throw new RuntimeException("There are Parameter problems. Simulation exits.");
         }
 
-        ComponentAccess.adjustOutputPath(folder, comp, log);
+        ComponentAccess.adjustOutputPath(simFolder, comp, log);
         for (Output e : out) {
-            e.setup(comp, folder, simName);
+            e.setup(comp, simFolder, simName);
         }
         // execute phases and be done.
         log.config("Exec ...");
@@ -244,7 +267,7 @@ public class DDS extends AbstractSimulation {
             e.done();
         }
 
-        return ObjFunc.calculateObjectiveFunctionValue(ofs, sens_start, sens_end, folder);
+        return ObjFunc.calculateObjectiveFunctionValue(ofs, sens_start, sens_end, folder, simFolder);
     }
 
     private Object toValue(String name, double[] vals, Map<String, Object> parameter) {
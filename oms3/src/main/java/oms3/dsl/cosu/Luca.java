@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ngmf.util.OutputStragegy;
@@ -35,6 +36,8 @@ public class Luca extends AbstractSimulation {
     //
     Date calib_start;           // Calibration start date
     int rounds = 1;             // number of rounds
+    int threads = 1;            // number of concurrent model runs
+    Long seed;                  // random seed, for reproducible calibrations
 
     @Override
     public Buildable create(Object name, Object value) {
@@ -49,6 +52,13 @@ public class Luca extends AbstractSimulation {
             }
         } else if (name.equals("calibration_start")) {
             calib_start = Conversions.convert(value, Date.class);
+        } else if (name.equals("threads")) {
+            threads = (Integer) value;
+            if (threads < 1) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+        } else if (name.equals("seed")) {
+            seed = Conversions.convert(value, Long.class);
         } else {
             return super.create(name, value);
         }
@@ -76,6 +86,7 @@ public class Luca extends AbstractSimulation {
         for (Step step : steps) {
             step.init(exec, calib_start, endTime, rounds);
         }
+        Random seeds = (seed == null) ? null : new Random(seed);
 
         for (int r = 0; r < rounds; r++) {
             for (int s = 0; s < steps.size(); s++) {
@@ -83,6 +94,10 @@ public class Luca extends AbstractSimulation {
                 Data stepData = step.round()[r];
                 System.out.println("\n\n>>>>>>>>>>>>>>  Round [" + (r + 1) + "]  Step [" + step.getName() + "] <<<<<<<<<<<<<<");
                 SCE sce = new SCE(exec, step, stepData);
+                sce.setThreads(threads);
+                if (seeds != null) {
+                    sce.setSeed(seeds.nextLong());
+                }
                 sce.run();
                 exec.writeParameterCopy(step, r);
                 step.post(r, stepData);
@@ -97,6 +112,7 @@ public class Luca extends AbstractSimulation {
 
         File lastFolder;
         Map<String, Object> parameter;
+        Workspaces workspaces;
 
         public ModelExecution() throws IOException {
             OutputStragegy st = getOutput().getOutputStrategy(getName());
@@ -107,6 +123,7 @@ public class Luca extends AbstractSimulation {
             lastFolder.mkdirs();
 
             parameter = getModel().getParameter();
+            workspaces = new Workspaces(lastFolder, getOut(), threads);
             Logger.getLogger("oms3.model").setLevel(Level.WARNING);
         }
 
@@ -116,6 +133,26 @@ public class Luca extends AbstractSimulation {
 
         @Override
         public void execute(Step.Data step) throws Exception {
+            writeParameterFile(step);
+            run(parameter, lastFolder, getOut());
+        }
+
+        @Override
+        public double execute(int worker, Step step, Step.Data stepData, double[] paramValues) throws Exception {
+            // every run gets its own copy of the parameter, the shared
+            // step data only converts the candidate values.
+            Map<String, Object> p = DataIO.properties();
+            p.putAll(parameter);
+            synchronized (stepData) {
+                stepData.setParamValues(paramValues);
+                writeParameterFile(stepData, p);
+            }
+            File folder = workspaces.getFolder(worker);
+            run(p, folder, workspaces.getOut(worker));
+            return step.calculateObjectiveFunctionValue(folder);
+        }
+
+        private void run(Map<String, Object> parameter, File folder, List<Output> out) throws Exception {
 
             // Path
             String libPath = getModel().getLibpath();
@@ -128,7 +165,6 @@ public class Luca extends AbstractSimulation {
 
             Object comp = getModel().getComponent();
 
-            writeParameterFile(step);
             log.config("Init ...");
             ComponentAccess.callAnnotated(comp, Initialize.class, true);
 
@@ -138,10 +174,10 @@ public class Luca extends AbstractSimulation {
                 throw new RuntimeException("There are Parameter problems. Simulation exits.");
             }
 
-            boolean adjusted = ComponentAccess.adjustOutputPath(lastFolder, comp, log);
+            boolean adjusted = ComponentAccess.adjustOutputPath(folder, comp, log);
 
-            for (Output e : getOut()) {
-                e.setup(comp, lastFolder, getName());
+            for (Output e : out) {
+                e.setup(comp, folder, getName());
             }
             // execute phases and be done.
             log.config("Exec ...");
@@ -149,13 +185,17 @@ public class Luca extends AbstractSimulation {
             log.config("Finalize ...");
             ComponentAccess.callAnnotated(comp, Finalize.class, true);
 
-            for (Output e : getOut()) {
+            for (Output e : out) {
                 e.done();
             }
         }
 
         @Override
         public void writeParameterFile(Step.Data step) {
+            writeParameterFile(step, parameter);
+        }
+
+        private void writeParameterFile(Step.Data step, Map<String, Object> parameter) {
             ParameterData[] paramData = step.paramData;
             for (int i = 0; i < paramData.length; i++) {
                 String name = paramData[i].getName();
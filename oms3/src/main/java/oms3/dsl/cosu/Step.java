@@ -348,6 +348,15 @@ public class Step implements Buildable {
         return ObjFunc.calculateObjectiveFunctionValue(ofs, calibStart, calibEnd, outFolder);
     }
 
+    /** Objective function value of a run that wrote its output to a worker folder.
+     *
+     * @param simFolder the folder with the simulated data.
+     * @return the objective function value
+     */
+    public double calculateObjectiveFunctionValue(File simFolder) {
+        return ObjFunc.calculateObjectiveFunctionValue(ofs, calibStart, calibEnd, outFolder, simFolder);
+    }
+
 //    public static void main(String[] args) {
 //       ParameterData p = new ParameterData("ggg");
 //       p.set(new double[] {2.3}, 0, 4, ParameterData.MEAN, new boolean[] {true});
@@ -0,0 +1,54 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package oms3.dsl.cosu;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import oms3.dsl.Output;
+
+/**
+ * Output folders and outputs of the workers of a calibration/sensitivity
+ * run. Worker 0 uses the simulation output folder and outputs, the other
+ * workers use a sub folder and their own copies of the outputs, so that model
+ * runs of different workers do not overwrite each other.
+ *
+ * @author od
+ */
+class Workspaces {
+
+    File folder;
+    List<Output> out;
+    List<List<Output>> outs = new ArrayList<List<Output>>();
+
+    Workspaces(File folder, List<Output> out, int workers) {
+        this.folder = folder;
+        this.out = out;
+        for (int i = 0; i < workers; i++) {
+            if (i == 0) {
+                outs.add(out);
+            } else {
+                List<Output> copies = new ArrayList<Output>();
+                for (Output e : out) {
+                    copies.add(e.copy());
+                }
+                outs.add(copies);
+            }
+        }
+    }
+
+    File getFolder(int worker) {
+        if (worker == 0) {
+            return folder;
+        }
+        File f = new File(folder, "worker-" + worker);
+        f.mkdirs();
+        return f;
+    }
+
+    List<Output> getOut(int worker) {
+        return outs.get(worker);
+    }
+}